@@ -132,6 +132,18 @@ INSERT INTO `api_usage` (user_id, tokens_remaining, search_remaining)
 SELECT 1, 999999, 100
 WHERE NOT EXISTS (SELECT 1 FROM api_usage WHERE user_id = 1);
 
+-- ----------------------------
+-- Table structure for quota_journal_checkpoint
+-- 每个实例的配额变更日志已写回 api_usage 的最后一个分段，与增量在同一事务中更新，回放时跳过已写回的分段
+-- ----------------------------
+DROP TABLE IF EXISTS `quota_journal_checkpoint`;
+CREATE TABLE `quota_journal_checkpoint` (
+  `journal_id` varchar(64) COLLATE utf8mb4_unicode_ci NOT NULL COMMENT '配额日志目录标识',
+  `segment` bigint NOT NULL COMMENT '已写回的最后一个分段号',
+  `updated_at` datetime DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  PRIMARY KEY (`journal_id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='配额日志写回检查点';
+
 -- ----------------------------
 -- Table structure for ai_config
 -- ----------------------------
@@ -191,6 +203,10 @@ INSERT INTO `ai_config` (config_key, config_value, description) VALUES
 ('deepseek_temperature', '0.7', 'DeepSeek 温度参数 (0.0-2.0)')
 ON DUPLICATE KEY UPDATE config_value = VALUES(config_value);
 
+INSERT INTO `ai_config` (config_key, config_value, description) VALUES
+('deepseek_cache_hit_weight', '0.1', 'DeepSeek 命中前缀缓存的输入 Token 扣减配额时的折算系数 (0.0-1.0)')
+ON DUPLICATE KEY UPDATE config_value = VALUES(config_value);
+
 -- ----------------------------
 -- SiliconFlow AI 配置
 -- ----------------------------
@@ -237,6 +253,137 @@ INSERT INTO `ai_config` (config_key, config_value, description) VALUES
 ('bocha_search_limit', '5', 'Bocha 搜索结果数量限制')
 ON DUPLICATE KEY UPDATE config_value = VALUES(config_value);
 
+INSERT INTO `ai_config` (config_key, config_value, description) VALUES
+('bocha_cache_hit_debit', 'true', '搜索命中缓存时是否仍扣减搜索次数 (true/false)')
+ON DUPLICATE KEY UPDATE config_value = VALUES(config_value);
+
+-- ----------------------------
+-- 上下文压缩配置（按服务商）
+-- ----------------------------
+INSERT INTO `ai_config` (config_key, config_value, description) VALUES
+('deepseek_context_budget_tokens', '16000', 'DeepSeek 上下文预算（估算 Token 数），超出时丢弃最早的轮次，0 表示不限制')
+ON DUPLICATE KEY UPDATE config_value = VALUES(config_value);
+
+INSERT INTO `ai_config` (config_key, config_value, description) VALUES
+('deepseek_context_tool_output_max_chars', '2000', 'DeepSeek 本轮较早工具结果保留的最大字符数，0 表示不截断')
+ON DUPLICATE KEY UPDATE config_value = VALUES(config_value);
+
+INSERT INTO `ai_config` (config_key, config_value, description) VALUES
+('deepseek_context_summary_enabled', 'false', 'DeepSeek 丢弃的轮次是否调用模型生成摘要 (true/false)')
+ON DUPLICATE KEY UPDATE config_value = VALUES(config_value);
+
+INSERT INTO `ai_config` (config_key, config_value, description) VALUES
+('siliconflow_context_budget_tokens', '16000', 'SiliconFlow 上下文预算（估算 Token 数），超出时丢弃最早的轮次，0 表示不限制')
+ON DUPLICATE KEY UPDATE config_value = VALUES(config_value);
+
+INSERT INTO `ai_config` (config_key, config_value, description) VALUES
+('siliconflow_context_tool_output_max_chars', '2000', 'SiliconFlow 本轮较早工具结果保留的最大字符数，0 表示不截断')
+ON DUPLICATE KEY UPDATE config_value = VALUES(config_value);
+
+INSERT INTO `ai_config` (config_key, config_value, description) VALUES
+('siliconflow_context_summary_enabled', 'false', 'SiliconFlow 丢弃的轮次是否调用模型生成摘要 (true/false)')
+ON DUPLICATE KEY UPDATE config_value = VALUES(config_value);
+
+-- ----------------------------
+-- 对话准入控制配置（按服务商）
+-- ----------------------------
+INSERT INTO `ai_config` (config_key, config_value, description) VALUES
+('deepseek_max_concurrent', '50', 'DeepSeek 本实例同时进行的对话数上限')
+ON DUPLICATE KEY UPDATE config_value = VALUES(config_value);
+
+INSERT INTO `ai_config` (config_key, config_value, description) VALUES
+('deepseek_max_concurrent_per_user', '2', 'DeepSeek 单用户同时进行的对话数上限，含排队中的请求')
+ON DUPLICATE KEY UPDATE config_value = VALUES(config_value);
+
+INSERT INTO `ai_config` (config_key, config_value, description) VALUES
+('deepseek_admission_queue_size', '20', 'DeepSeek 并发已满时最多排队的请求数，0 表示直接拒绝')
+ON DUPLICATE KEY UPDATE config_value = VALUES(config_value);
+
+INSERT INTO `ai_config` (config_key, config_value, description) VALUES
+('deepseek_admission_queue_wait_ms', '3000', 'DeepSeek 排队请求的最长等待时间（毫秒）')
+ON DUPLICATE KEY UPDATE config_value = VALUES(config_value);
+
+INSERT INTO `ai_config` (config_key, config_value, description) VALUES
+('siliconflow_max_concurrent', '50', 'SiliconFlow 本实例同时进行的对话数上限')
+ON DUPLICATE KEY UPDATE config_value = VALUES(config_value);
+
+INSERT INTO `ai_config` (config_key, config_value, description) VALUES
+('siliconflow_max_concurrent_per_user', '2', 'SiliconFlow 单用户（匿名按 IP）同时进行的对话数上限，含排队中的请求')
+ON DUPLICATE KEY UPDATE config_value = VALUES(config_value);
+
+INSERT INTO `ai_config` (config_key, config_value, description) VALUES
+('siliconflow_admission_queue_size', '20', 'SiliconFlow 并发已满时最多排队的请求数，0 表示直接拒绝')
+ON DUPLICATE KEY UPDATE config_value = VALUES(config_value);
+
+INSERT INTO `ai_config` (config_key, config_value, description) VALUES
+('siliconflow_admission_queue_wait_ms', '3000', 'SiliconFlow 排队请求的最长等待时间（毫秒）')
+ON DUPLICATE KEY UPDATE config_value = VALUES(config_value);
+
+INSERT INTO `ai_config` (config_key, config_value, description) VALUES
+('deepseek_failover_provider', 'siliconflow', 'DeepSeek 失败或熔断时转移到的服务商（需已启用），空表示不转移')
+ON DUPLICATE KEY UPDATE config_value = VALUES(config_value);
+
+INSERT INTO `ai_config` (config_key, config_value, description) VALUES
+('deepseek_hedge_enabled', 'false', 'DeepSeek 响应慢于其 p95 延迟时是否向故障转移服务商发出对冲请求 (true/false)')
+ON DUPLICATE KEY UPDATE config_value = VALUES(config_value);
+
+INSERT INTO `ai_config` (config_key, config_value, description) VALUES
+('siliconflow_failover_provider', '', 'SiliconFlow 失败或熔断时转移到的服务商，空表示不转移（匿名对话默认不占用 DeepSeek 额度）')
+ON DUPLICATE KEY UPDATE config_value = VALUES(config_value);
+
+INSERT INTO `ai_config` (config_key, config_value, description) VALUES
+('siliconflow_hedge_enabled', 'false', 'SiliconFlow 响应慢于其 p95 延迟时是否向故障转移服务商发出对冲请求 (true/false)')
+ON DUPLICATE KEY UPDATE config_value = VALUES(config_value);
+
+INSERT INTO `ai_config` (config_key, config_value, description) VALUES
+('router_model_map', '', '故障转移时的模型名映射（源模型=目标模型，逗号分隔，如 deepseek-chat=deepseek-ai/DeepSeek-V3），未配置的按对话/推理模型对应到目标服务商的默认模型')
+ON DUPLICATE KEY UPDATE config_value = VALUES(config_value);
+
+INSERT INTO `ai_config` (config_key, config_value, description) VALUES
+('router_failure_rate_percent', '50', '服务商熔断阈值：最近 50 次调用中失败率达到该百分比时熔断')
+ON DUPLICATE KEY UPDATE config_value = VALUES(config_value);
+
+INSERT INTO `ai_config` (config_key, config_value, description) VALUES
+('router_min_calls', '10', '计算失败率所需的最少调用次数')
+ON DUPLICATE KEY UPDATE config_value = VALUES(config_value);
+
+INSERT INTO `ai_config` (config_key, config_value, description) VALUES
+('router_open_seconds', '30', '熔断持续时间（秒），之后放行一个探测请求')
+ON DUPLICATE KEY UPDATE config_value = VALUES(config_value);
+
+-- ----------------------------
+-- Table structure for ai_conversation
+-- ----------------------------
+DROP TABLE IF EXISTS `ai_conversation`;
+CREATE TABLE `ai_conversation` (
+  `id` bigint NOT NULL AUTO_INCREMENT COMMENT '主键',
+  `conversation_key` char(36) COLLATE utf8mb4_unicode_ci NOT NULL COMMENT '对话ID（UUID，即接口中的 conversationId）',
+  `user_id` bigint NOT NULL COMMENT '用户ID',
+  `title` varchar(100) COLLATE utf8mb4_unicode_ci DEFAULT NULL COMMENT '标题（首条用户消息）',
+  `message_count` int NOT NULL DEFAULT '0' COMMENT '消息数',
+  `ended` tinyint NOT NULL DEFAULT '0' COMMENT '是否已结束',
+  `created_at` datetime(3) DEFAULT CURRENT_TIMESTAMP(3) COMMENT '创建时间',
+  `updated_at` datetime(3) DEFAULT CURRENT_TIMESTAMP(3) COMMENT '最后一条消息时间',
+  PRIMARY KEY (`id`),
+  UNIQUE KEY `uk_conversation_key` (`conversation_key`),
+  KEY `idx_user_updated` (`user_id`, `updated_at`, `id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='AI对话表';
+
+-- ----------------------------
+-- Table structure for ai_message
+-- ----------------------------
+DROP TABLE IF EXISTS `ai_message`;
+CREATE TABLE `ai_message` (
+  `id` bigint NOT NULL AUTO_INCREMENT COMMENT '主键',
+  `conversation_id` bigint NOT NULL COMMENT 'ai_conversation.id',
+  `role` varchar(16) COLLATE utf8mb4_unicode_ci NOT NULL COMMENT '角色（user/assistant）',
+  `content` mediumblob NOT NULL COMMENT '消息正文（UTF-8，deflate 压缩）',
+  `content_length` int NOT NULL DEFAULT '0' COMMENT '正文原始字节数',
+  `created_at` datetime(3) DEFAULT CURRENT_TIMESTAMP(3) COMMENT '创建时间',
+  PRIMARY KEY (`id`),
+  KEY `idx_conversation_id` (`conversation_id`, `id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='AI对话消息表';
+
 -- ----------------------------
 -- 系统配置表
 -- ----------------------------
@@ -0,0 +1,92 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 非流式响应解码：流式解码器 vs 改造前的 JsonNode 树解析
+ * 每个响应的分配量看 -prof gc 输出的 gc.alloc.rate.norm
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChatCompletionDecoderBenchmark {
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private byte[] response;
+
+	@Setup
+	public void setUp() throws Exception {
+		response = completionResponse();
+	}
+
+	@Benchmark
+	public int treeParsing() throws Exception {
+		// 改造前的做法：整段转 String，构建 JsonNode 树，再把 tool_calls 子树转换为 Map
+		JsonNode root = objectMapper.readTree(new String(response, StandardCharsets.UTF_8));
+		JsonNode message = root.path("choices").get(0).path("message");
+		List<Map<String, Object>> toolCalls = objectMapper.convertValue(message.path("tool_calls"),
+				new TypeReference<List<Map<String, Object>>>() { });
+		return message.path("content").asText("").length() + root.path("usage").path("prompt_tokens").asInt()
+				+ toolCalls.size();
+	}
+
+	@Benchmark
+	public int streamingDecoder() {
+		ChatCompletionDecoder.ChatCompletion completion = ChatCompletionDecoder.decode(response);
+		return completion.content().length() + (int) completion.usage().promptTokens()
+				+ completion.toolCallMaps().size();
+	}
+
+	/**
+	 * 真实大小的非流式响应：约 4KB 正文、2KB 思考过程、两个工具调用
+	 */
+	private byte[] completionResponse() throws Exception {
+		Map<String, Object> message = new LinkedHashMap<>();
+		message.put("role", "assistant");
+		message.put("content", "根据查询结果，今天上海多云转晴，气温 18 到 25 度，适合出行。".repeat(120));
+		message.put("reasoning_content", "用户想知道天气和时间，需要分别调用两个工具。".repeat(90));
+		message.put("tool_calls", List.of(
+				Map.of("id", "call_1", "type", "function",
+						"function", Map.of("name", "web_search", "arguments", "{\"query\":\"上海 今天 天气\"}")),
+				Map.of("id", "call_2", "type", "function",
+						"function", Map.of("name", "get_current_time", "arguments", "{\"timezone\":\"Asia/Shanghai\"}"))));
+
+		Map<String, Object> choice = new LinkedHashMap<>();
+		choice.put("index", 0);
+		choice.put("message", message);
+		choice.put("logprobs", null);
+		choice.put("finish_reason", "tool_calls");
+
+		Map<String, Object> response = new LinkedHashMap<>();
+		response.put("id", "0f4e3c9a-6d7b-4b8e-9a61-2f1c5e7d8b90");
+		response.put("object", "chat.completion");
+		response.put("created", 1760000000);
+		response.put("model", "deepseek-chat");
+		response.put("choices", List.of(choice));
+		response.put("usage", Map.of("prompt_tokens", 1200, "completion_tokens", 850, "total_tokens", 2050,
+				"prompt_cache_hit_tokens", 1024, "prompt_cache_miss_tokens", 176));
+		response.put("system_fingerprint", "fp_8802369eaa_prod0623");
+		return objectMapper.writeValueAsBytes(response);
+	}
+}
@@ -0,0 +1,83 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import com.bezhuang.my_little_app_backend.service.ToolService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每轮请求体序列化：逐轮构建系统消息和工具定义 vs 预编译提示词片段
+ * 每次请求的分配量看 -prof gc 输出的 gc.alloc.rate.norm
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PromptFragmentsBenchmark {
+
+	private static final String DEFAULT_PROMPT = "你是 Bezhuang AI，一个智能助手。";
+	private static final String CONFIGURED_PROMPT = "你是一个乐于助人的助手，回答要准确、简洁，必要时给出步骤和示例。".repeat(40);
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final ToolService toolService = new ToolService(null, null, null, null, 30);
+	private PromptFragments.Compiled prompt;
+	private List<Map<String, Object>> messages;
+
+	@Setup
+	public void setUp() {
+		String systemPrompt = PromptFragments.resolvePrompt(CONFIGURED_PROMPT, DEFAULT_PROMPT)
+				+ "\n\n" + toolService.getToolsPrompt(true);
+		prompt = PromptFragments.compile(objectMapper, systemPrompt, toolService.getToolsDefinition(true));
+		messages = new ArrayList<>();
+		messages.add(prompt.getSystemMessage());
+		messages.add(Map.of("role", "user", "content", "今天上海天气怎么样？"));
+		messages.add(Map.of("role", "assistant", "content", "我来帮你查一下。"));
+		messages.add(Map.of("role", "user", "content", "顺便告诉我现在几点。"));
+	}
+
+	@Benchmark
+	public byte[] rebuiltBody() throws Exception {
+		// 改造前每轮的做法：清洗校验提示词、重建系统消息和工具定义、整体序列化
+		String systemPrompt = PromptFragments.resolvePrompt(CONFIGURED_PROMPT, DEFAULT_PROMPT)
+				+ "\n\n" + toolService.getToolsPrompt(true);
+		List<Map<String, Object>> rebuiltMessages = new ArrayList<>(messages);
+		rebuiltMessages.set(0, Map.of("role", "system", "content", systemPrompt));
+		Map<String, Object> body = baseBody();
+		body.put("messages", rebuiltMessages);
+		body.put("tools", toolService.getToolsDefinition(true));
+		return objectMapper.writeValueAsBytes(body);
+	}
+
+	@Benchmark
+	public byte[] splicedBody() throws Exception {
+		Map<String, Object> body = baseBody();
+		body.put("messages", prompt.messagesValue(messages));
+		body.put("tools", prompt.toolsValue());
+		return objectMapper.writeValueAsBytes(body);
+	}
+
+	private static Map<String, Object> baseBody() {
+		Map<String, Object> body = new LinkedHashMap<>();
+		body.put("model", "deepseek-chat");
+		body.put("stream", true);
+		body.put("max_tokens", 4096);
+		body.put("temperature", 0.7);
+		return body;
+	}
+}
@@ -0,0 +1,61 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * token 事件编码：手写转义 + 字符串拼接 vs SseEventWriter
+ * 每个事件的分配量看 -prof gc 输出的 gc.alloc.rate.norm
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SseEventWriterBenchmark {
+
+	private final String token = "今天上海多云";
+
+	@Benchmark
+	public int stringConcatenation() {
+		// 改造前的做法：手写转义 + 字符串拼接，SseEmitter 再把各段分别转为字节写出
+		Set<ResponseBodyEmitter.DataWithMediaType> parts = SseEmitter.event().name("token")
+				.data("{\"token\": " + escapeJson(token) + "}").build();
+		int length = 0;
+		for (ResponseBodyEmitter.DataWithMediaType part : parts) {
+			length += part.getData().toString().getBytes(StandardCharsets.UTF_8).length;
+		}
+		return length;
+	}
+
+	@Benchmark
+	public int encoder() {
+		int length = 0;
+		for (ResponseBodyEmitter.DataWithMediaType part : SseEventWriter.token(token)) {
+			length += ((byte[]) part.getData()).length;
+		}
+		return length;
+	}
+
+	private static String escapeJson(String text) {
+		return "\"" + text.replace("\\", "\\\\")
+				.replace("\"", "\\\"")
+				.replace("\n", "\\n")
+				.replace("\r", "\\r")
+				.replace("\t", "\\t") + "\"";
+	}
+}
@@ -0,0 +1,54 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 令牌桶限流：1024 个 IP 轮流请求时的单次判定耗时，应远低于 1 微秒
+ * 单线程与多线程（同一组桶上竞争）各测一次
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenBucketLimiterBenchmark {
+
+	private final TokenBucketLimiter limiter = new TokenBucketLimiter(10, 20, 600);
+	private final String[] ips = new String[1024];
+
+	@Setup
+	public void setUp() {
+		for (int i = 0; i < ips.length; i++) {
+			ips[i] = "192.168." + (i >> 8) + "." + (i & 0xff);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next;
+	}
+
+	@Benchmark
+	public boolean tryAcquire(Cursor cursor) {
+		return limiter.tryAcquire(ips[cursor.next++ & 1023]);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public boolean tryAcquireContended(Cursor cursor) {
+		return limiter.tryAcquire(ips[cursor.next++ & 1023]);
+	}
+}
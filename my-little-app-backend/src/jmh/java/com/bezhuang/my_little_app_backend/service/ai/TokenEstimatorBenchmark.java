@@ -0,0 +1,63 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 本地 token 估算：10 轮中英文混排对话（21 条消息）的估算耗时，应在微秒级
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenEstimatorBenchmark {
+
+	private List<Map<String, Object>> messages;
+
+	@Setup
+	public void setUp() {
+		messages = history(10);
+	}
+
+	@Benchmark
+	public long estimateTenRoundHistory() {
+		return TokenEstimator.estimateMessages(messages);
+	}
+
+	/**
+	 * 系统消息 + rounds 轮真实长度的问答（中英文混排）
+	 */
+	private static List<Map<String, Object>> history(int rounds) {
+		List<Map<String, Object>> messages = new ArrayList<>();
+		messages.add(message("system", "你是 Bezhuang AI，一个智能助手。请用简洁清晰的中文回答用户问题。"));
+		for (int i = 1; i <= rounds; i++) {
+			messages.add(message("user", "第 " + i + " 个问题：Spring Boot 里怎么配置 WebClient 的连接池？"));
+			messages.add(message("assistant", ("可以通过 ConnectionProvider.builder(\"upstream\").maxConnections(200) "
+					+ "创建连接池，再传给 HttpClient.create(provider)。").repeat(6)));
+		}
+		return messages;
+	}
+
+	private static Map<String, Object> message(String role, String content) {
+		Map<String, Object> message = new LinkedHashMap<>();
+		message.put("role", role);
+		message.put("content", content);
+		return message;
+	}
+}
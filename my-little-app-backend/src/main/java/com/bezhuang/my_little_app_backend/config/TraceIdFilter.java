@@ -0,0 +1,58 @@
+package com.bezhuang.my_little_app_backend.config;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.MDC;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Pattern;
+
+/**
+ * 请求追踪 ID 过滤器
+ * 每个请求分配一个 traceId：优先沿用 nginx 传入的 X-Request-Id，否则生成 16 位十六进制随机数。
+ * traceId 写入 SLF4J MDC（日志格式中的 %X{traceId}）和 X-Trace-Id 响应头，流式对话还会放在 SSE start 事件中，
+ * 用户反馈问题时可据此检索服务端日志。
+ * 在所有过滤器（包括 Spring Security）之前执行，请求结束时清除 MDC。
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class TraceIdFilter extends OncePerRequestFilter {
+
+    public static final String MDC_KEY = "traceId";
+    public static final String RESPONSE_HEADER = "X-Trace-Id";
+
+    private static final String REQUEST_HEADER = "X-Request-Id";
+    // 只接受长度合理的字母数字，避免客户端伪造的请求头污染日志
+    private static final Pattern VALID_ID = Pattern.compile("[A-Za-z0-9-]{8,64}");
+
+    /**
+     * 当前线程上的 traceId，不在请求（或已传递 MDC 的对话线程）中时返回 null
+     */
+    public static String currentTraceId() {
+        return MDC.get(MDC_KEY);
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request,
+                                    HttpServletResponse response,
+                                    FilterChain filterChain) throws ServletException, IOException {
+        String traceId = request.getHeader(REQUEST_HEADER);
+        if (traceId == null || !VALID_ID.matcher(traceId).matches()) {
+            traceId = String.format("%016x", ThreadLocalRandom.current().nextLong());
+        }
+        MDC.put(MDC_KEY, traceId);
+        response.setHeader(RESPONSE_HEADER, traceId);
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            MDC.remove(MDC_KEY);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.bezhuang.my_little_app_backend.config.security;
 
 import com.bezhuang.my_little_app_backend.config.jwt.JwtAuthenticationFilter;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.DispatcherType;
 import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
@@ -39,11 +40,14 @@ public class SecurityConfig {
 
     private final CustomUserDetailsService customUserDetailsService;
     private final JwtAuthenticationFilter jwtAuthenticationFilter;
+    private final SiliconFlowRateLimitFilter siliconFlowRateLimitFilter;
 
     public SecurityConfig(CustomUserDetailsService customUserDetailsService,
-                          JwtAuthenticationFilter jwtAuthenticationFilter) {
+                          JwtAuthenticationFilter jwtAuthenticationFilter,
+                          SiliconFlowRateLimitFilter siliconFlowRateLimitFilter) {
         this.customUserDetailsService = customUserDetailsService;
         this.jwtAuthenticationFilter = jwtAuthenticationFilter;
+        this.siliconFlowRateLimitFilter = siliconFlowRateLimitFilter;
     }
 
     /**
@@ -82,8 +86,14 @@ public class SecurityConfig {
             // 添加 JWT 过滤器
             .addFilterBefore(jwtAuthenticationFilter, UsernamePasswordAuthenticationFilter.class)
 
+            // 匿名 SiliconFlow 接口按 IP 限流（在 JWT 解析之前，被限流的请求不再查询用户）
+            .addFilterBefore(siliconFlowRateLimitFilter, JwtAuthenticationFilter.class)
+
             // 请求授权配置
             .authorizeHttpRequests(auth -> auth
+                // 异步对话结果回写（async dispatch）时请求已在首次进入时完成鉴权
+                .dispatcherTypeMatchers(DispatcherType.ASYNC, DispatcherType.ERROR).permitAll()
+
                 // 公开接口
                 .requestMatchers("/api/auth/**").permitAll()
                 .requestMatchers("/api/public/**").permitAll()
@@ -91,6 +101,9 @@ public class SecurityConfig {
                 .requestMatchers("/api/thoughts/**").permitAll()
                 .requestMatchers("/error").permitAll()
 
+                // 监控端点（只在独立的 management 端口上提供，不对外暴露）
+                .requestMatchers("/actuator/health", "/actuator/prometheus").permitAll()
+
                 // 公开图片数据接口（无需认证，用于前端显示）
                 .requestMatchers("/api/admin/images/public/**").permitAll()
 
@@ -0,0 +1,69 @@
+package com.bezhuang.my_little_app_backend.config.security;
+
+import com.bezhuang.my_little_app_backend.service.RateLimitService;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 匿名 SiliconFlow 接口限流过滤器
+ * /api/ai/siliconflow/** 无需登录，按客户端 IP 做令牌桶限流，防止脚本刷接口耗尽上游额度和对话线程池。
+ * 客户端 IP 取 getRemoteAddr()：server.forward-headers-strategy=native 时 Tomcat 只信任内网代理（nginx）传入的 X-Forwarded-For，
+ * 客户端自己伪造的该请求头不会生效。
+ * 超限时返回 429：流式接口以 SSE warning 事件返回提示，其余接口返回 JSON。
+ */
+@Component
+public class SiliconFlowRateLimitFilter extends OncePerRequestFilter {
+
+    private static final Logger logger = LoggerFactory.getLogger(SiliconFlowRateLimitFilter.class);
+
+    private static final String PATH_PREFIX = "/api/ai/siliconflow/";
+    private static final String MESSAGE = "请求过于频繁，请稍后再试";
+    private static final byte[] SSE_BODY = ("event:warning\ndata:{\"warning\":\"" + MESSAGE + "\"}\n\n")
+            .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] JSON_BODY = ("{\"success\":false,\"warning\":true,\"message\":\"" + MESSAGE + "\"}")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final RateLimitService rateLimitService;
+
+    public SiliconFlowRateLimitFilter(RateLimitService rateLimitService) {
+        this.rateLimitService = rateLimitService;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        // CORS 预检请求不计入
+        return !request.getRequestURI().startsWith(PATH_PREFIX) || "OPTIONS".equals(request.getMethod());
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request,
+                                    HttpServletResponse response,
+                                    FilterChain filterChain) throws ServletException, IOException {
+        String clientIp = request.getRemoteAddr();
+        if (rateLimitService.tryAcquire(clientIp)) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        logger.debug("匿名 AI 请求被限流: ip={}, uri={}", clientIp, request.getRequestURI());
+        response.setStatus(429);
+        response.setHeader("Retry-After", "3");
+        if (request.getRequestURI().endsWith("/stream")) {
+            response.setContentType(MediaType.TEXT_EVENT_STREAM_VALUE + ";charset=UTF-8");
+            response.getOutputStream().write(SSE_BODY);
+        } else {
+            response.setContentType("application/json;charset=UTF-8");
+            response.getOutputStream().write(JSON_BODY);
+        }
+    }
+}
@@ -20,6 +20,10 @@ public class BochaWebSearchConfig {
         return aiConfigService.getBochaApiKey();
     }
 
+    public String getBaseUrl() {
+        return aiConfigService.getBochaBaseUrl();
+    }
+
     public boolean isEnabled() {
         return aiConfigService.isBochaEnabled();
     }
@@ -28,6 +32,13 @@ public class BochaWebSearchConfig {
         return aiConfigService.getBochaSearchLimit();
     }
 
+    /**
+     * 搜索命中缓存时是否仍扣减用户搜索次数
+     */
+    public boolean isCacheHitDebit() {
+        return aiConfigService.isBochaCacheHitDebit();
+    }
+
     public boolean isConfigured() {
         String apiKey = getApiKey();
         return apiKey != null && !apiKey.isEmpty() && !apiKey.equals("YOUR-BOCHA-API-KEY-HERE");
@@ -5,14 +5,29 @@ import com.bezhuang.my_little_app_backend.entity.ApiUsage;
 import com.bezhuang.my_little_app_backend.entity.Admin;
 import com.bezhuang.my_little_app_backend.entity.User;
 import com.bezhuang.my_little_app_backend.mapper.AiConfigMapper;
-import com.bezhuang.my_little_app_backend.mapper.ApiUsageMapper;
 import com.bezhuang.my_little_app_backend.mapper.AdminMapper;
 import com.bezhuang.my_little_app_backend.mapper.UserMapper;
 import com.bezhuang.my_little_app_backend.service.AiConfigService;
+import com.bezhuang.my_little_app_backend.service.AiConfigSyncService;
+import com.bezhuang.my_little_app_backend.service.RateLimitService;
+import com.bezhuang.my_little_app_backend.service.ai.AiBulkhead;
+import com.bezhuang.my_little_app_backend.service.ai.AiConfigSnapshot;
+import com.bezhuang.my_little_app_backend.service.ai.AiChatExecutor;
+import com.bezhuang.my_little_app_backend.service.ai.ContextCompactor;
+import com.bezhuang.my_little_app_backend.service.ai.LlmProvider;
+import com.bezhuang.my_little_app_backend.service.ai.LlmRouter;
+import com.bezhuang.my_little_app_backend.service.ai.PromptCacheStats;
+import com.bezhuang.my_little_app_backend.service.ai.QuotaHoldSweeper;
+import com.bezhuang.my_little_app_backend.service.ai.QuotaLedger;
+import com.bezhuang.my_little_app_backend.service.ai.SseConnectionRegistry;
+import com.bezhuang.my_little_app_backend.service.ai.UpstreamClientFactory;
+import com.bezhuang.my_little_app_backend.service.ai.WebSearchCache;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.*;
 
 import com.bezhuang.my_little_app_backend.service.ApiUsageService;
@@ -28,20 +43,100 @@ public class AiAdminController {
 
     private final AiConfigMapper aiConfigMapper;
     private final ApiUsageService apiUsageService;
-    private final ApiUsageMapper apiUsageMapper;
     private final AdminMapper adminMapper;
     private final UserMapper userMapper;
     private final AiConfigService aiConfigService;
+    private final SseConnectionRegistry sseConnectionRegistry;
+    private final AiChatExecutor aiChatExecutor;
+    private final WebSearchCache webSearchCache;
+    private final UpstreamClientFactory upstreamClientFactory;
+    private final AiConfigSyncService aiConfigSyncService;
+    private final ContextCompactor contextCompactor;
+    private final PromptCacheStats promptCacheStats;
+    private final QuotaHoldSweeper quotaHoldSweeper;
+    private final AiBulkhead aiBulkhead;
+    private final RateLimitService rateLimitService;
+    private final LlmRouter llmRouter;
 
     public AiAdminController(AiConfigMapper aiConfigMapper, ApiUsageService apiUsageService,
-                            ApiUsageMapper apiUsageMapper, AdminMapper adminMapper, UserMapper userMapper,
-                            AiConfigService aiConfigService) {
+                            AdminMapper adminMapper, UserMapper userMapper,
+                            AiConfigService aiConfigService, SseConnectionRegistry sseConnectionRegistry,
+                            AiChatExecutor aiChatExecutor, WebSearchCache webSearchCache,
+                            UpstreamClientFactory upstreamClientFactory, AiConfigSyncService aiConfigSyncService,
+                            ContextCompactor contextCompactor, PromptCacheStats promptCacheStats,
+                            QuotaHoldSweeper quotaHoldSweeper, AiBulkhead aiBulkhead,
+                            RateLimitService rateLimitService, LlmRouter llmRouter) {
         this.aiConfigMapper = aiConfigMapper;
         this.apiUsageService = apiUsageService;
-        this.apiUsageMapper = apiUsageMapper;
         this.adminMapper = adminMapper;
         this.userMapper = userMapper;
         this.aiConfigService = aiConfigService;
+        this.sseConnectionRegistry = sseConnectionRegistry;
+        this.aiChatExecutor = aiChatExecutor;
+        this.webSearchCache = webSearchCache;
+        this.upstreamClientFactory = upstreamClientFactory;
+        this.aiConfigSyncService = aiConfigSyncService;
+        this.contextCompactor = contextCompactor;
+        this.promptCacheStats = promptCacheStats;
+        this.quotaHoldSweeper = quotaHoldSweeper;
+        this.aiBulkhead = aiBulkhead;
+        this.rateLimitService = rateLimitService;
+        this.llmRouter = llmRouter;
+    }
+
+    /**
+     * 获取 AI 对话运行指标（SSE 连接数、对话线程池状态、JVM 线程数、准入控制、服务商路由与熔断、搜索缓存命中、上游连接池、配置快照）
+     */
+    @GetMapping("/stats")
+    public ResponseEntity<Map<String, Object>> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("sseLiveConnections", sseConnectionRegistry.getLiveCount());
+        stats.put("sseTotalConnections", sseConnectionRegistry.getTotalRegistered());
+        stats.put("executorActive", aiChatExecutor.getActiveCount());
+        stats.put("executorPoolSize", aiChatExecutor.getPoolSize());
+        stats.put("executorQueueSize", aiChatExecutor.getQueueSize());
+        stats.put("executorRejected", aiChatExecutor.getRejectedCount());
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        stats.put("jvmThreads", threads.getThreadCount());
+        stats.put("jvmPeakThreads", threads.getPeakThreadCount());
+        stats.put("admissionInFlight", aiBulkhead.getInFlight());
+        stats.put("admissionQueued", aiBulkhead.getQueued());
+        stats.put("admission", aiBulkhead.getStats());
+        stats.put("rateLimitMode", rateLimitService.getMode());
+        stats.put("rateLimitBuckets", rateLimitService.getBucketCount());
+        stats.put("rateLimitAllowed", rateLimitService.getAllowedCount());
+        stats.put("rateLimitRejected", rateLimitService.getRejectedCount());
+        stats.put("routerOpenCircuits", llmRouter.getOpenCircuits());
+        stats.put("router", llmRouter.getStats());
+        stats.put("webSearchCacheSize", webSearchCache.size());
+        stats.put("webSearchCacheHits", webSearchCache.getHitCount());
+        stats.put("webSearchCacheMisses", webSearchCache.getMissCount());
+        stats.put("upstreamPools", upstreamClientFactory.getPoolStats());
+        stats.put("contextCompactedRequests", contextCompactor.getCompactedRequests());
+        stats.put("contextSavedPromptTokens", contextCompactor.getSavedPromptTokens());
+        stats.put("contextSummaryCalls", contextCompactor.getSummaryCalls());
+        stats.put("contextSummaryCacheHits", contextCompactor.getSummaryCacheHits());
+        stats.put("contextSummaryFailures", contextCompactor.getSummaryFailures());
+        stats.put("promptCache", promptCacheStats.getStats());
+        stats.put("quotaHolds", apiUsageService.getHoldCount());
+        stats.put("quotaHoldsExpiredReleased", quotaHoldSweeper.getReleasedCount());
+        QuotaLedger quotaLedger = apiUsageService.getQuotaLedger();
+        stats.put("quotaLedgerUsers", quotaLedger.size());
+        stats.put("quotaLedgerDirtyUsers", quotaLedger.getDirtyCount());
+        stats.put("quotaLedgerFlushes", quotaLedger.getFlushCount());
+        stats.put("quotaLedgerFlushedDeltas", quotaLedger.getFlushedDeltaCount());
+        stats.put("quotaLedgerFlushFailures", quotaLedger.getFlushFailureCount());
+        stats.put("quotaJournalHealthy", quotaLedger.isJournalHealthy());
+        AiConfigSnapshot snapshot = aiConfigService.getSnapshot();
+        stats.put("configVersion", snapshot.getVersion());
+        stats.put("configLastUpdatedAt", snapshot.getLastUpdatedAt() != null ? snapshot.getLastUpdatedAt() : "");
+        stats.put("configSyncMode", aiConfigSyncService.getMode());
+        stats.put("configRemoteChanges", aiConfigSyncService.getRemoteChangeCount());
+
+        return ResponseEntity.ok(Map.of(
+                "success", true,
+                "data", stats
+        ));
     }
 
     /**
@@ -92,8 +187,8 @@ public class AiAdminController {
                 newConfig.setDescription("AI助手系统提示词");
                 aiConfigMapper.insert(newConfig);
             }
-            // 清除缓存
-            aiConfigService.clearCache();
+            // 刷新配置快照
+            aiConfigService.reload();
             return ResponseEntity.ok(Map.of("success", true, "message", "更新成功"));
         } catch (Exception e) {
             return ResponseEntity.internalServerError().body(Map.of("success", false, "message", "更新失败: " + e.getMessage()));
@@ -154,8 +249,8 @@ public class AiAdminController {
                 newConfig.setDescription("AI模型温度参数 (0.0-2.0)");
                 aiConfigMapper.insert(newConfig);
             }
-            // 清除缓存
-            aiConfigService.clearCache();
+            // 刷新配置快照
+            aiConfigService.reload();
             return ResponseEntity.ok(Map.of("success", true, "message", "更新成功"));
         } catch (NumberFormatException e) {
             return ResponseEntity.badRequest().body(Map.of("success", false, "message", "温度值必须是有效的数字"));
@@ -232,19 +327,8 @@ public class AiAdminController {
                 return ResponseEntity.badRequest().body(Map.of("success", false, "message", "请提供要更新的配额值"));
             }
 
-            // 获取或创建配额记录
-            ApiUsage usage = apiUsageService.getOrCreate(userId);
-
-            // 更新配额
-            if (tokensRemaining != null) {
-                apiUsageMapper.updateTokensRemaining(usage.getId(), tokensRemaining);
-            }
-            if (searchRemaining != null) {
-                apiUsageMapper.updateSearchRemaining(usage.getId(), searchRemaining);
-            }
-
-            // 重新获取更新后的数据
-            ApiUsage updatedUsage = apiUsageService.getOrCreate(userId);
+            // 经内存账本更新配额（与对话扣减走同一条路径，由账本写回数据库）
+            ApiUsage updatedUsage = apiUsageService.setQuota(userId, tokensRemaining, searchRemaining);
 
             return ResponseEntity.ok(Map.of(
                     "success", true,
@@ -318,8 +402,8 @@ public class AiAdminController {
             // 更新启用状态
             updateOrInsertConfig("deepseek_enabled", enabled != null ? enabled : "true", "是否启用 DeepSeek");
 
-            // 清除缓存
-            aiConfigService.clearCache();
+            // 刷新配置快照，上游客户端监听配置变更事件自行重建
+            aiConfigService.reload();
 
             return ResponseEntity.ok(Map.of("success", true, "message", "DeepSeek 配置更新成功"));
         } catch (Exception e) {
@@ -385,8 +469,8 @@ public class AiAdminController {
             // 更新启用状态
             updateOrInsertConfig("siliconflow_enabled", enabled != null ? enabled : "false", "是否启用 SiliconFlow");
 
-            // 清除缓存
-            aiConfigService.clearCache();
+            // 刷新配置快照，上游客户端监听配置变更事件自行重建
+            aiConfigService.reload();
 
             return ResponseEntity.ok(Map.of("success", true, "message", "SiliconFlow 配置更新成功"));
         } catch (Exception e) {
@@ -404,13 +488,16 @@ public class AiAdminController {
         AiConfig apiKeyConfig = aiConfigMapper.selectByConfigKey("bocha_api_key");
         AiConfig enabledConfig = aiConfigMapper.selectByConfigKey("bocha_enabled");
         AiConfig searchLimitConfig = aiConfigMapper.selectByConfigKey("bocha_search_limit");
+        AiConfig cacheHitDebitConfig = aiConfigMapper.selectByConfigKey("bocha_cache_hit_debit");
 
         return ResponseEntity.ok(Map.of(
                 "success", true,
                 "data", Map.of(
                         "apiKey", apiKeyConfig != null ? apiKeyConfig.getConfigValue() : "",
                         "enabled", enabledConfig != null ? enabledConfig.getConfigValue() : "false",
-                        "searchLimit", searchLimitConfig != null ? searchLimitConfig.getConfigValue() : "5"
+                        "searchLimit", searchLimitConfig != null ? searchLimitConfig.getConfigValue() : "5",
+                        "cacheHitDebit", cacheHitDebitConfig != null ? cacheHitDebitConfig.getConfigValue() : "true",
+                        "baseUrl", aiConfigService.getBochaBaseUrl()
                 )
         ));
     }
@@ -431,9 +518,19 @@ public class AiAdminController {
             updateOrInsertConfig("bocha_enabled", enabled != null ? enabled : "false", "是否启用 Bocha Web Search");
             // 更新搜索限制
             updateOrInsertConfig("bocha_search_limit", searchLimit != null ? searchLimit : "5", "Bocha 搜索结果数量限制");
+            // 更新 Base URL（未传时保持原值）
+            String baseUrl = request.get("baseUrl");
+            if (baseUrl != null && !baseUrl.isBlank()) {
+                updateOrInsertConfig("bocha_base_url", baseUrl.trim(), "Bocha Web Search API Base URL");
+            }
+            // 更新缓存命中是否扣减搜索次数（未传时保持原值）
+            String cacheHitDebit = request.get("cacheHitDebit");
+            if (cacheHitDebit != null) {
+                updateOrInsertConfig("bocha_cache_hit_debit", cacheHitDebit, "搜索命中缓存时是否仍扣减搜索次数");
+            }
 
-            // 清除缓存
-            aiConfigService.clearCache();
+            // 刷新配置快照，上游客户端监听配置变更事件自行重建
+            aiConfigService.reload();
 
             return ResponseEntity.ok(Map.of("success", true, "message", "Bocha 配置更新成功"));
         } catch (Exception e) {
@@ -443,19 +540,161 @@ public class AiAdminController {
 
     // ==================== 通用配置方法 ====================
 
+    /**
+     * 获取上游 HTTP 客户端配置
+     */
+    @GetMapping("/config/upstream")
+    public ResponseEntity<Map<String, Object>> getUpstreamConfig() {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("connectTimeoutMs", aiConfigService.getUpstreamConnectTimeoutMs());
+        data.put("readTimeoutSeconds", aiConfigService.getUpstreamReadTimeoutSeconds());
+        data.put("writeTimeoutSeconds", aiConfigService.getUpstreamWriteTimeoutSeconds());
+        data.put("maxInMemoryMb", aiConfigService.getUpstreamMaxInMemoryMb());
+        data.put("maxConnections", aiConfigService.getUpstreamMaxConnections());
+        data.put("pendingAcquireMax", aiConfigService.getUpstreamPendingAcquireMax());
+
+        return ResponseEntity.ok(Map.of(
+                "success", true,
+                "data", data
+        ));
+    }
+
+    /**
+     * 更新上游 HTTP 客户端配置（只更新传入的字段，保存后立即重建客户端）
+     * 先校验全部字段，任一字段不合法时不做任何修改；合法时在一个事务中保存
+     */
+    @PutMapping("/config/upstream")
+    public ResponseEntity<Map<String, Object>> updateUpstreamConfig(@RequestBody Map<String, String> request) {
+        Map<String, String> keys = new LinkedHashMap<>();
+        keys.put("connectTimeoutMs", "upstream_connect_timeout_ms");
+        keys.put("readTimeoutSeconds", "upstream_read_timeout_seconds");
+        keys.put("writeTimeoutSeconds", "upstream_write_timeout_seconds");
+        keys.put("maxInMemoryMb", "upstream_max_in_memory_mb");
+        keys.put("maxConnections", "upstream_max_connections");
+        keys.put("pendingAcquireMax", "upstream_pending_acquire_max");
+
+        List<AiConfig> updates = new ArrayList<>();
+        for (Map.Entry<String, String> entry : keys.entrySet()) {
+            String value = request.get(entry.getKey());
+            if (value == null || value.isBlank()) {
+                continue;
+            }
+            Integer number = parseInteger(value);
+            if (number == null) {
+                return ResponseEntity.badRequest().body(Map.of("success", false, "message", entry.getKey() + " 必须为整数"));
+            }
+            if (number <= 0) {
+                return ResponseEntity.badRequest().body(Map.of("success", false, "message", entry.getKey() + " 必须大于 0"));
+            }
+            updates.add(config(entry.getValue(), String.valueOf(number), "上游 HTTP 客户端 " + entry.getKey()));
+        }
+
+        try {
+            aiConfigService.saveConfigs(updates);
+            // 刷新配置快照，上游客户端监听配置变更事件自行重建
+            aiConfigService.reload();
+
+            return ResponseEntity.ok(Map.of("success", true, "message", "上游客户端配置更新成功"));
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().body(Map.of("success", false, "message", "更新失败: " + e.getMessage()));
+        }
+    }
+
+    /**
+     * 获取对话准入控制配置（按服务商）
+     */
+    @GetMapping("/config/admission")
+    public ResponseEntity<Map<String, Object>> getAdmissionConfig() {
+        Map<String, Object> data = new LinkedHashMap<>();
+        for (String provider : List.of(LlmProvider.DEEPSEEK, LlmProvider.SILICONFLOW)) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("maxConcurrent", aiConfigService.getMaxConcurrent(provider));
+            item.put("maxConcurrentPerUser", aiConfigService.getMaxConcurrentPerUser(provider));
+            item.put("queueSize", aiConfigService.getAdmissionQueueSize(provider));
+            item.put("queueWaitMs", aiConfigService.getAdmissionQueueWaitMs(provider));
+            data.put(provider, item);
+        }
+
+        return ResponseEntity.ok(Map.of(
+                "success", true,
+                "data", data
+        ));
+    }
+
+    /**
+     * 更新对话准入控制配置（只更新传入的字段，保存后下一次请求即生效）
+     * 请求体形如 {"deepseek": {"maxConcurrent": "50"}, "siliconflow": {"maxConcurrentPerUser": "1"}}
+     * 先校验全部字段，任一字段不合法时不做任何修改；合法时在一个事务中保存
+     */
+    @PutMapping("/config/admission")
+    public ResponseEntity<Map<String, Object>> updateAdmissionConfig(@RequestBody Map<String, Map<String, String>> request) {
+        Map<String, String> suffixes = new LinkedHashMap<>();
+        suffixes.put("maxConcurrent", "_max_concurrent");
+        suffixes.put("maxConcurrentPerUser", "_max_concurrent_per_user");
+        suffixes.put("queueSize", "_admission_queue_size");
+        suffixes.put("queueWaitMs", "_admission_queue_wait_ms");
+
+        List<AiConfig> updates = new ArrayList<>();
+        for (String provider : List.of(LlmProvider.DEEPSEEK, LlmProvider.SILICONFLOW)) {
+            Map<String, String> values = request.get(provider);
+            if (values == null) {
+                continue;
+            }
+            for (Map.Entry<String, String> entry : suffixes.entrySet()) {
+                String value = values.get(entry.getKey());
+                if (value == null || value.isBlank()) {
+                    continue;
+                }
+                Integer number = parseInteger(value);
+                if (number == null) {
+                    return ResponseEntity.badRequest().body(Map.of("success", false,
+                            "message", provider + "." + entry.getKey() + " 必须为整数"));
+                }
+                // 队列长度和等待时间可以为 0（不排队），并发上限必须大于 0
+                boolean allowZero = entry.getKey().startsWith("queue");
+                if (number < 0 || (number == 0 && !allowZero)) {
+                    return ResponseEntity.badRequest().body(Map.of("success", false,
+                            "message", provider + "." + entry.getKey() + (allowZero ? " 不能小于 0" : " 必须大于 0")));
+                }
+                updates.add(config(provider + entry.getValue(), String.valueOf(number),
+                        provider + " 对话准入控制 " + entry.getKey()));
+            }
+        }
+
+        try {
+            aiConfigService.saveConfigs(updates);
+            // 刷新配置快照，准入控制每次请求读取快照，排队中的请求监听配置变更事件重新检查
+            aiConfigService.reload();
+
+            return ResponseEntity.ok(Map.of("success", true, "message", "准入控制配置更新成功"));
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().body(Map.of("success", false, "message", "更新失败: " + e.getMessage()));
+        }
+    }
+
     /**
      * 更新或插入配置
      */
     private void updateOrInsertConfig(String configKey, String configValue, String description) {
-        AiConfig existing = aiConfigMapper.selectByConfigKey(configKey);
-        if (existing != null) {
-            aiConfigMapper.updateConfigValue(configKey, configValue);
-        } else {
-            AiConfig newConfig = new AiConfig();
-            newConfig.setConfigKey(configKey);
-            newConfig.setConfigValue(configValue);
-            newConfig.setDescription(description);
-            aiConfigMapper.insert(newConfig);
+        aiConfigService.saveConfigs(List.of(config(configKey, configValue, description)));
+    }
+
+    private static AiConfig config(String configKey, String configValue, String description) {
+        AiConfig config = new AiConfig();
+        config.setConfigKey(configKey);
+        config.setConfigValue(configValue);
+        config.setDescription(description);
+        return config;
+    }
+
+    /**
+     * 解析整数参数，格式不正确时返回 null
+     */
+    private static Integer parseInteger(String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
         }
     }
 }
@@ -0,0 +1,108 @@
+package com.bezhuang.my_little_app_backend.controller;
+
+import com.bezhuang.my_little_app_backend.config.security.CustomUserDetails;
+import com.bezhuang.my_little_app_backend.service.ConversationHistoryService;
+import com.bezhuang.my_little_app_backend.service.ai.Conversation;
+import com.bezhuang.my_little_app_backend.service.ai.ConversationStore;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+/**
+ * AI 对话管理控制器
+ * 对话历史保存在服务端，聊天接口传入 conversationId 后只需提交新的用户消息；
+ * 列表和消息均为键集分页，客户端用上一页返回的游标获取下一页
+ */
+@RestController
+@RequestMapping("/api/ai")
+public class AiConversationController {
+
+    private final ConversationStore conversationStore;
+    private final ConversationHistoryService historyService;
+
+    public AiConversationController(ConversationStore conversationStore,
+                                    ConversationHistoryService historyService) {
+        this.conversationStore = conversationStore;
+        this.historyService = historyService;
+    }
+
+    /**
+     * 创建对话
+     */
+    @PostMapping("/conversation/create")
+    public Map<String, Object> create(@AuthenticationPrincipal CustomUserDetails userDetails) {
+        if (userDetails == null) {
+            return Map.of("success", false, "message", "请先登录");
+        }
+        Conversation conversation = conversationStore.create(userDetails.getId());
+        return Map.of("success", true, "data", conversation.toSummary());
+    }
+
+    /**
+     * 对话列表（按最近更新时间倒序）
+     * @param cursor 上一页返回的 nextCursor，第一页不传
+     */
+    @GetMapping("/conversations")
+    public Map<String, Object> list(@RequestParam(required = false) String cursor,
+                                    @RequestParam(defaultValue = "20") int size,
+                                    @AuthenticationPrincipal CustomUserDetails userDetails) {
+        if (userDetails == null) {
+            return Map.of("success", false, "message", "请先登录");
+        }
+        return Map.of("success", true, "data", historyService.listConversations(userDetails.getId(), cursor, size));
+    }
+
+    /**
+     * 对话详情
+     */
+    @GetMapping("/conversation/{id}")
+    public Map<String, Object> detail(@PathVariable String id,
+                                      @AuthenticationPrincipal CustomUserDetails userDetails) {
+        Conversation conversation = find(id, userDetails);
+        if (conversation == null) {
+            return Map.of("success", false, "message", "对话不存在或已过期");
+        }
+        return Map.of("success", true, "data", conversation.toSummary());
+    }
+
+    /**
+     * 对话消息（默认最新一页，按时间正序）
+     * @param beforeId 上一页返回的 nextBeforeId，用于加载更早的消息
+     */
+    @GetMapping("/conversation/{id}/messages")
+    public Map<String, Object> messages(@PathVariable String id,
+                                        @RequestParam(required = false) Long beforeId,
+                                        @RequestParam(defaultValue = "50") int size,
+                                        @AuthenticationPrincipal CustomUserDetails userDetails) {
+        Conversation conversation = find(id, userDetails);
+        if (conversation == null || conversation.getRecordId() == null) {
+            return Map.of("success", false, "message", "对话不存在或已过期");
+        }
+        return Map.of("success", true,
+                "data", historyService.listMessages(conversation.getRecordId(), beforeId, size));
+    }
+
+    /**
+     * 结束对话
+     */
+    @PostMapping("/conversation/{id}/end")
+    public Map<String, Object> end(@PathVariable String id,
+                                   @AuthenticationPrincipal CustomUserDetails userDetails) {
+        Conversation conversation = find(id, userDetails);
+        if (conversation == null) {
+            return Map.of("success", false, "message", "对话不存在或已过期");
+        }
+        conversationStore.end(conversation);
+        return Map.of("success", true);
+    }
+
+    private Conversation find(String id, CustomUserDetails userDetails) {
+        return userDetails != null ? conversationStore.get(id, userDetails.getId()) : null;
+    }
+}
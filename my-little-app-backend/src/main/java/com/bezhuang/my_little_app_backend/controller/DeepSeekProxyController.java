@@ -1,34 +1,46 @@
 package com.bezhuang.my_little_app_backend.controller;
 
+import com.bezhuang.my_little_app_backend.config.TraceIdFilter;
 import com.bezhuang.my_little_app_backend.config.ai.DeepSeekConfig;
 import com.bezhuang.my_little_app_backend.config.security.CustomUserDetails;
-import com.bezhuang.my_little_app_backend.entity.AiConfig;
 import com.bezhuang.my_little_app_backend.entity.ApiUsage;
-import com.bezhuang.my_little_app_backend.mapper.AiConfigMapper;
+import com.bezhuang.my_little_app_backend.service.AiConfigService;
 import com.bezhuang.my_little_app_backend.service.ApiUsageService;
 import com.bezhuang.my_little_app_backend.service.ToolService;
+import com.bezhuang.my_little_app_backend.service.ai.AiBulkhead;
+import com.bezhuang.my_little_app_backend.service.ai.AiChatExecutor;
+import com.bezhuang.my_little_app_backend.service.ai.AiMetrics;
+import com.bezhuang.my_little_app_backend.service.ai.ChatCompletionDecoder;
+import com.bezhuang.my_little_app_backend.service.ai.ChatStreamAccumulator;
+import com.bezhuang.my_little_app_backend.service.ai.ContextCompactor;
+import com.bezhuang.my_little_app_backend.service.ai.LlmProvider;
+import com.bezhuang.my_little_app_backend.service.ai.Conversation;
+import com.bezhuang.my_little_app_backend.service.ai.ConversationStore;
+import com.bezhuang.my_little_app_backend.service.ai.LlmRouter;
+import com.bezhuang.my_little_app_backend.service.ai.PromptCacheStats;
+import com.bezhuang.my_little_app_backend.service.ai.PromptFragments;
+import com.bezhuang.my_little_app_backend.service.ai.SseConnectionRegistry;
+import com.bezhuang.my_little_app_backend.service.ai.SseEventWriter;
+import com.bezhuang.my_little_app_backend.service.ai.TokenEstimator;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpStatusCode;
+import org.slf4j.MDC;
 import org.springframework.http.MediaType;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.web.bind.annotation.*;
-import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.time.Duration;
+import java.io.UncheckedIOException;
 import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import reactor.core.Disposable;
 import reactor.core.publisher.Mono;
-import reactor.util.retry.Retry;
 
 /**
  * DeepSeek API 代理控制器
@@ -41,27 +53,46 @@ public class DeepSeekProxyController {
     private static final Logger logger = LoggerFactory.getLogger(DeepSeekProxyController.class);
     private static final int MAX_CONVERSATION_ROUNDS = 10;
     private static final int MAX_TOOL_CALLS = 5;
+    private static final String DEFAULT_SYSTEM_PROMPT = "你是 Bezhuang AI，一个智能助手。当用户询问实时信息（天气、时间、新闻等）时，务必调用相应的工具获取准确数据，然后用自然的中文回答。";
 
     private final DeepSeekConfig deepSeekConfig;
-    private final WebClient webClient;
-    private final ObjectMapper objectMapper;
-    private final AiConfigMapper aiConfigMapper;
+    private final AiConfigService aiConfigService;
     private final ToolService toolService;
     private final ApiUsageService apiUsageService;
-
-    public DeepSeekProxyController(DeepSeekConfig deepSeekConfig, ObjectMapper objectMapper,
-                                   AiConfigMapper aiConfigMapper, ToolService toolService,
-                                   ApiUsageService apiUsageService) {
+    private final AiChatExecutor aiChatExecutor;
+    private final SseConnectionRegistry sseConnectionRegistry;
+    private final LlmRouter llmRouter;
+    private final PromptFragments promptFragments;
+    private final ConversationStore conversationStore;
+    private final ContextCompactor contextCompactor;
+    private final PromptCacheStats promptCacheStats;
+    private final AiBulkhead aiBulkhead;
+    private final AiMetrics aiMetrics;
+
+    public DeepSeekProxyController(DeepSeekConfig deepSeekConfig,
+                                   AiConfigService aiConfigService, ToolService toolService,
+                                   ApiUsageService apiUsageService, AiChatExecutor aiChatExecutor,
+                                   SseConnectionRegistry sseConnectionRegistry,
+                                   LlmRouter llmRouter,
+                                   PromptFragments promptFragments,
+                                   ConversationStore conversationStore,
+                                   ContextCompactor contextCompactor,
+                                   PromptCacheStats promptCacheStats,
+                                   AiBulkhead aiBulkhead,
+                                   AiMetrics aiMetrics) {
         this.deepSeekConfig = deepSeekConfig;
-        this.objectMapper = objectMapper;
-        this.aiConfigMapper = aiConfigMapper;
+        this.aiConfigService = aiConfigService;
         this.toolService = toolService;
         this.apiUsageService = apiUsageService;
-        this.webClient = WebClient.builder()
-                .baseUrl(deepSeekConfig.getBaseUrl())
-                .defaultHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
-                .defaultHeader("Accept", "text/event-stream")
-                .build();
+        this.aiChatExecutor = aiChatExecutor;
+        this.sseConnectionRegistry = sseConnectionRegistry;
+        this.llmRouter = llmRouter;
+        this.promptFragments = promptFragments;
+        this.conversationStore = conversationStore;
+        this.contextCompactor = contextCompactor;
+        this.promptCacheStats = promptCacheStats;
+        this.aiBulkhead = aiBulkhead;
+        this.aiMetrics = aiMetrics;
     }
 
     /**
@@ -70,16 +101,18 @@ public class DeepSeekProxyController {
     @PostMapping(value = "/chat/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
     public SseEmitter chatStream(
             @RequestBody Map<String, Object> request,
-            @AuthenticationPrincipal CustomUserDetails userDetails) {
+            @AuthenticationPrincipal CustomUserDetails userDetails,
+            HttpServletResponse response) {
 
-        logger.info("========== SSE 流式请求开始 ==========");
-        logger.info("请求路径: /api/ai/chat/stream");
+        logger.debug("========== SSE 流式请求开始 ==========");
+        // 关闭 nginx 代理缓冲，保证 token 逐块到达客户端
+        response.setHeader("X-Accel-Buffering", "no");
 
         if (userDetails == null) {
             logger.warn("SSE 请求未登录");
             SseEmitter emitter = new SseEmitter();
             try {
-                emitter.send(SseEmitter.event().name("error").data("{\"error\": \"请先登录\"}"));
+                emitter.send(SseEventWriter.error("请先登录"));
                 emitter.complete();
             } catch (IOException e) {
                 logger.error("发送未登录错误失败", e);
@@ -88,21 +121,21 @@ public class DeepSeekProxyController {
             return emitter;
         }
 
-        @SuppressWarnings("unchecked")
-        List<Map<String, String>> messages = (List<Map<String, String>>) request.get("messages");
+        ChatTurn turn = resolveTurn(request, userDetails.getId());
+        List<Map<String, Object>> messages = turn.messages();
         Boolean enableDeepThink = request.get("enableDeepThink") != null &&
                 Boolean.parseBoolean(request.get("enableDeepThink").toString());
         Boolean enableWebSearch = request.get("enableWebSearch") != null &&
                 Boolean.parseBoolean(request.get("enableWebSearch").toString());
 
-        logger.info("用户ID: {}, 消息数: {}, 深度思考: {}, 联网搜索: {}",
-                userDetails.getId(), messages != null ? messages.size() : 0, enableDeepThink, enableWebSearch);
+        logger.info("SSE 流式请求: 用户ID: {}, 消息数: {}, 深度思考: {}, 联网搜索: {}",
+                userDetails.getId(), messages.size(), enableDeepThink, enableWebSearch);
 
-        if (messages == null || messages.isEmpty()) {
-            logger.warn("SSE 请求消息为空");
+        if (turn.error() != null) {
+            logger.warn("SSE 请求无效: {}", turn.error());
             SseEmitter emitter = new SseEmitter();
             try {
-                emitter.send(SseEmitter.event().name("error").data("{\"error\": \"消息不能为空\"}"));
+                emitter.send(SseEventWriter.error(turn.error()));
                 emitter.complete();
             } catch (IOException e) {
                 logger.error("发送空消息错误失败", e);
@@ -111,24 +144,18 @@ public class DeepSeekProxyController {
             return emitter;
         }
 
-        // 计算对话轮数
-        int userMessageCount = 0;
-        for (Map<String, String> msg : messages) {
-            if ("user".equals(msg.get("role"))) {
-                userMessageCount++;
-            }
-        }
+        // 计算对话轮数（服务端对话按已保存的消息计算）
+        int userMessageCount = turn.userRounds();
 
-        logger.info("对话轮数: {}/{}", userMessageCount, MAX_CONVERSATION_ROUNDS);
+        logger.debug("对话轮数: {}/{}", userMessageCount, MAX_CONVERSATION_ROUNDS);
 
         if (userMessageCount >= MAX_CONVERSATION_ROUNDS) {
             logger.warn("用户 {} 达到对话轮数上限: {}", userDetails.getId(), MAX_CONVERSATION_ROUNDS);
             SseEmitter emitter = new SseEmitter();
             try {
-                emitter.send(SseEmitter.event().name("warning")
-                        .data("{\"warning\": \"已达10轮对话上限，请点击右上角+号开启新对话\"}"));
+                emitter.send(SseEventWriter.warning("已达10轮对话上限，请点击右上角+号开启新对话"));
                 emitter.complete();
-                logger.info("已发送对话轮数上限警告");
+                logger.debug("已发送对话轮数上限警告");
             } catch (IOException e) {
                 logger.error("发送对话轮数警告失败", e);
                 emitter.completeWithError(e);
@@ -136,16 +163,16 @@ public class DeepSeekProxyController {
             return emitter;
         }
 
-        // 检查配额（启用联网搜索时才检查搜索次数）
-        String quotaWarning = apiUsageService.getQuotaWarning(userDetails.getId(), enableWebSearch);
+        // 启用联网搜索时提前检查配额；Token 在每次调用上游前原子预留，预留失败时再提示
+        String quotaWarning = enableWebSearch ? apiUsageService.getQuotaWarning(userDetails.getId(), true) : null;
         if (quotaWarning != null) {
             logger.warn("用户 {} 配额不足: {}", userDetails.getId(), quotaWarning);
+            aiMetrics.recordQuotaRejection(LlmProvider.DEEPSEEK, AiMetrics.REJECT_QUOTA);
             SseEmitter emitter = new SseEmitter();
             try {
-                emitter.send(SseEmitter.event().name("warning")
-                        .data("{\"warning\": " + escapeJson(quotaWarning) + "}"));
+                emitter.send(SseEventWriter.warning(quotaWarning));
                 emitter.complete();
-                logger.info("已发送配额不足警告");
+                logger.debug("已发送配额不足警告");
             } catch (IOException e) {
                 logger.error("发送配额警告失败", e);
                 emitter.completeWithError(e);
@@ -153,67 +180,60 @@ public class DeepSeekProxyController {
             return emitter;
         }
 
-        logger.info("SSE 连接建立成功，准备发送流式响应");
-
-        SseEmitter emitter = new SseEmitter(300000L);
-
-        // 心跳定时器
-        ScheduledExecutorService heartbeatScheduler = Executors.newScheduledThreadPool(1);
-        Runnable heartbeatTask = () -> {
+        // 准入控制：单用户或全局并发已满时立即返回繁忙提示，不建立长连接
+        AiBulkhead.Permit permit = aiBulkhead.acquire(LlmProvider.DEEPSEEK, String.valueOf(userDetails.getId()));
+        if (!permit.isGranted()) {
+            logger.warn("用户 {} 对话被准入控制拒绝: {}", userDetails.getId(), permit.getMessage());
+            response.setHeader("Retry-After", "1");
+            SseEmitter emitter = new SseEmitter();
             try {
-                emitter.send(SseEmitter.event().name("heartbeat").data(": keepalive\n\n"));
+                emitter.send(SseEventWriter.warning(permit.getMessage()));
+                emitter.complete();
             } catch (IOException e) {
-                logger.debug("心跳发送失败，连接可能已关闭");
+                logger.error("发送繁忙提示失败", e);
+                emitter.completeWithError(e);
             }
-        };
-        heartbeatScheduler.scheduleAtFixedRate(heartbeatTask, 30, 30, TimeUnit.SECONDS);
+            return emitter;
+        }
 
-        emitter.onTimeout(() -> {
-            heartbeatScheduler.shutdown();
-            try {
-                emitter.send(SseEmitter.event().name("error").data("{\"error\": \"请求超时\"}"));
-            } catch (IOException e) {
-                logger.error("发送超时错误失败", e);
-            }
-            emitter.complete();
-        });
+        logger.debug("SSE 连接建立成功，准备发送流式响应");
 
-        emitter.onError(e -> {
-            heartbeatScheduler.shutdown();
-            logger.error("SSE 连接错误: {}", e.getMessage());
-        });
+        SseEmitter emitter = new SseEmitter(300000L);
 
-        try {
-            // 构建消息列表
-            List<Map<String, Object>> messagesToSend = new ArrayList<>();
-            String systemPrompt = getSystemPrompt(enableWebSearch);
-            messagesToSend.add(Map.of("role", "system", "content", systemPrompt));
+        // 心跳、超时和断开由全局 SSE 连接注册表统一处理
+        SseConnectionRegistry.SseConnection connection = sseConnectionRegistry.register(emitter);
+        // 连接关闭（完成、出错、超时、客户端断开）时归还许可
+        connection.onClose(permit::release);
 
-            for (Map<String, String> msg : messages) {
-                messagesToSend.add(new HashMap<>(msg));
-            }
+        StreamChatContext ctx = new StreamChatContext(emitter, userDetails.getId(),
+                enableDeepThink, enableWebSearch, turn, TraceIdFilter.currentTraceId(),
+                aiMetrics.startChat(LlmProvider.DEEPSEEK));
 
-            logger.info("发送 SSE start 事件");
-            emitter.send(SseEmitter.event().name("start").data("{\"type\": \"start\"}"));
+        // 对话编排在 AI 对话线程池中执行，请求线程立即返回 emitter
+        Disposable orchestration = Mono.fromCallable(() -> {
+                    // 构建消息列表
+                    List<Map<String, Object>> messagesToSend = new ArrayList<>();
+                    messagesToSend.add(promptFragments.get(DEFAULT_SYSTEM_PROMPT, enableWebSearch).getSystemMessage());
 
-            // 执行工具调用流程（AI 自主决定是否调用工具）
-            logger.info("开始执行工具调用流程");
-            executeWithToolCalls(messagesToSend, enableDeepThink, enableWebSearch, emitter,
-                    heartbeatScheduler, userDetails.getId());
+                    for (Map<String, Object> msg : messages) {
+                        messagesToSend.add(historyMessage(msg));
+                    }
 
-        } catch (Exception e) {
-            logger.error("调用 DeepSeek API 失败: {}", e.getMessage(), e);
-            try {
-                logger.info("发送 SSE error 事件");
-                emitter.send(SseEmitter.event().name("error")
-                        .data("{\"error\": " + escapeJson(e.getMessage()) + "}"));
-            } catch (IOException ioException) {
-                logger.error("发送 SSE 错误事件失败", ioException);
-                emitter.completeWithError(ioException);
-            }
-            emitter.completeWithError(e);
-            logger.info("SSE 流式请求异常结束");
-        }
+                    logger.debug("发送 SSE start 事件");
+                    emitter.send(SseEventWriter.start(ctx.traceId));
+                    return messagesToSend;
+                })
+                .subscribeOn(aiChatExecutor.scheduler())
+                // 执行工具调用流程（AI 自主决定是否调用工具）
+                .flatMap(messagesToSend -> executeWithToolCalls(messagesToSend, ctx))
+                .subscribe(unused -> { }, error -> handleStreamError(ctx, error));
+
+        // 客户端断开或超时：立即取消上游请求和后续工具调用，只结算已生成的 token
+        connection.onClose(() -> {
+            orchestration.dispose();
+            settleCancelled(ctx);
+            ctx.observation.finish();
+        });
 
         return emitter;
     }
@@ -228,7 +248,7 @@ public class DeepSeekProxyController {
         }
 
         ApiUsage usage = apiUsageService.getUserQuota(userDetails.getId());
-        String warning = apiUsageService.getQuotaWarning(userDetails.getId());
+        String warning = apiUsageService.getQuotaWarning(usage, false);
 
         Map<String, Object> result = new LinkedHashMap<>();
         result.put("success", true);
@@ -246,75 +266,91 @@ public class DeepSeekProxyController {
      * 同步发送消息（支持深度思考和工具调用）
      */
     @PostMapping("/chat")
-    public Map<String, Object> chat(
+    public CompletableFuture<Map<String, Object>> chat(
             @RequestBody Map<String, Object> request,
             @AuthenticationPrincipal CustomUserDetails userDetails) {
 
         if (userDetails == null) {
-            return Map.of("success", false, "message", "请先登录");
+            return CompletableFuture.completedFuture(Map.of("success", false, "message", "请先登录"));
         }
 
-        @SuppressWarnings("unchecked")
-        List<Map<String, String>> messages = (List<Map<String, String>>) request.get("messages");
+        ChatTurn turn = resolveTurn(request, userDetails.getId());
         Boolean enableDeepThink = request.get("enableDeepThink") != null &&
                 Boolean.parseBoolean(request.get("enableDeepThink").toString());
         Boolean enableWebSearch = request.get("enableWebSearch") != null &&
                 Boolean.parseBoolean(request.get("enableWebSearch").toString());
 
-        if (messages == null || messages.isEmpty()) {
-            return Map.of("success", false, "message", "消息不能为空");
+        if (turn.error() != null) {
+            return CompletableFuture.completedFuture(Map.of("success", false, "message", turn.error()));
         }
 
-        // 计算对话轮数
-        int userMessageCount = 0;
-        for (Map<String, String> msg : messages) {
-            if ("user".equals(msg.get("role"))) {
-                userMessageCount++;
-            }
-        }
+        // 计算对话轮数（服务端对话按已保存的消息计算）
+        int userMessageCount = turn.userRounds();
 
         if (userMessageCount >= MAX_CONVERSATION_ROUNDS) {
-            return Map.of("success", false, "warning", true, "message", "已达10轮对话上限，请开启新对话");
+            return CompletableFuture.completedFuture(Map.of("success", false, "warning", true, "message", "已达10轮对话上限，请开启新对话"));
         }
 
-        // 检查配额（启用联网搜索时才检查搜索次数）
-        String quotaWarning = apiUsageService.getQuotaWarning(userDetails.getId(), enableWebSearch);
+        // 启用联网搜索时提前检查配额；Token 在每次调用上游前原子预留，预留失败时再提示
+        String quotaWarning = enableWebSearch ? apiUsageService.getQuotaWarning(userDetails.getId(), true) : null;
         if (quotaWarning != null) {
-            return Map.of("success", false, "warning", true, "message", quotaWarning);
+            aiMetrics.recordQuotaRejection(LlmProvider.DEEPSEEK, AiMetrics.REJECT_QUOTA);
+            return CompletableFuture.completedFuture(Map.of("success", false, "warning", true, "message", quotaWarning));
         }
 
-        logger.info("========== 开始新的聊天请求 ==========");
-        logger.info("用户ID: {}, 消息数: {}, 深度思考: {}, 联网搜索: {}",
+        logger.info("同步聊天请求: 用户ID: {}, 消息数: {}, 深度思考: {}, 联网搜索: {}",
                 userDetails.getId(), userMessageCount, enableDeepThink, enableWebSearch);
 
+        Long userId = userDetails.getId();
+        // 准入控制：单用户或全局并发已满时立即返回繁忙提示
+        AiBulkhead.Permit permit = aiBulkhead.acquire(LlmProvider.DEEPSEEK, String.valueOf(userId));
+        if (!permit.isGranted()) {
+            logger.warn("用户 {} 对话被准入控制拒绝: {}", userId, permit.getMessage());
+            return CompletableFuture.completedFuture(Map.of("success", false, "warning", true, "message", permit.getMessage()));
+        }
+        try {
+            // 对话在 AI 对话线程池中执行，释放 Tomcat 请求线程
+            return aiChatExecutor.supplyAsync(() -> doChat(turn, enableDeepThink, enableWebSearch, userId))
+                    .whenComplete((result, error) -> permit.release());
+        } catch (RejectedExecutionException e) {
+            permit.release();
+            logger.warn("AI 对话线程池已满，拒绝用户 {} 的请求", userId);
+            return CompletableFuture.completedFuture(Map.of("success", false, "message", AiChatExecutor.BUSY_MESSAGE));
+        }
+    }
+
+    /**
+     * 同步对话主体（在 AI 对话线程池中执行）
+     */
+    private Map<String, Object> doChat(ChatTurn turn, boolean enableDeepThink,
+                                       boolean enableWebSearch, Long userId) {
+        AiMetrics.ChatObservation observation = aiMetrics.startChat(LlmProvider.DEEPSEEK);
         try {
             // 构建消息列表
             List<Map<String, Object>> messagesToSend = new ArrayList<>();
-            String systemPrompt = getSystemPrompt(enableWebSearch);
-            messagesToSend.add(Map.of("role", "system", "content", systemPrompt));
+            messagesToSend.add(promptFragments.get(DEFAULT_SYSTEM_PROMPT, enableWebSearch).getSystemMessage());
 
-            for (Map<String, String> msg : messages) {
-                messagesToSend.add(new HashMap<>(msg));
+            for (Map<String, Object> msg : turn.messages()) {
+                messagesToSend.add(historyMessage(msg));
             }
 
             // 执行工具调用（AI 自主决定是否调用工具）
             ToolCallResult result = executeToolCallsSync(messagesToSend, enableDeepThink, enableWebSearch,
-                    userDetails.getId());
-
-            // 消耗Token配额
-            if (result.inputTokens > 0 || result.outputTokens > 0) {
-                boolean consumed = apiUsageService.consumeTokens(userDetails.getId(), result.inputTokens, result.outputTokens);
-                if (!consumed) {
-                    // Token不足，返回错误（不返回AI响应）
-                    logger.warn("用户 {} Token不足，阻止响应", userDetails.getId());
-                    return Map.of("success", false, "warning", true, "message", "Token不足，请联系管理员充值");
-                }
-                logger.info("用户 {} 消耗 tokens: 输入 {}, 输出 {}", userDetails.getId(), result.inputTokens, result.outputTokens);
+                    userId, observation);
+            if (result.insufficientTokens) {
+                return Map.of("success", false, "warning", true, "message", "Token不足，请联系管理员充值");
+            }
+            // Token 配额已在每轮调用上游时预留并按实际用量结算
+            logger.info("用户 {} 消耗 tokens: 输入 {}, 输出 {}", userId, result.inputTokens, result.outputTokens);
+
+            // 保存到服务端对话
+            if (turn.conversation() != null) {
+                conversationStore.appendTurn(turn.conversation(), turn.userMessage(), result.response);
             }
 
             // 获取更新后的配额
-            ApiUsage usage = apiUsageService.getUserQuota(userDetails.getId());
-            String newWarning = apiUsageService.getQuotaWarning(userDetails.getId());
+            ApiUsage usage = apiUsageService.getUserQuota(userId);
+            String newWarning = apiUsageService.getQuotaWarning(usage, false);
 
             Map<String, Object> response = new LinkedHashMap<>();
             response.put("success", true);
@@ -323,6 +359,7 @@ public class DeepSeekProxyController {
             response.put("searchLinks", result.searchLinks);
             response.put("tokensRemaining", usage.getTokensRemaining() != null ? usage.getTokensRemaining() : 0);
             response.put("searchRemaining", usage.getSearchRemaining() != null ? usage.getSearchRemaining() : 0);
+            response.put("savedPromptTokens", result.savedPromptTokens);
             if (newWarning != null) {
                 response.put("warning", newWarning);
             }
@@ -332,9 +369,70 @@ public class DeepSeekProxyController {
         } catch (Exception e) {
             logger.error("调用 DeepSeek API 失败", e);
             return Map.of("success", false, "message", "AI 响应失败: " + e.getMessage());
+        } finally {
+            observation.finish();
         }
     }
 
+    /**
+     * 本轮对话要发送的消息
+     * @param conversation 服务端对话，客户端提交完整 messages 时为 null
+     * @param userMessage 本轮新的用户消息（保存到服务端对话）
+     * @param error 请求无效时的提示，有效时为 null
+     */
+    private record ChatTurn(List<Map<String, Object>> messages, Conversation conversation,
+                            String userMessage, String error) {
+
+        static ChatTurn invalid(String error) {
+            return new ChatTurn(List.of(), null, null, error);
+        }
+
+        int userRounds() {
+            int rounds = 0;
+            for (Map<String, Object> message : messages) {
+                if ("user".equals(message.get("role"))) {
+                    rounds++;
+                }
+            }
+            return rounds;
+        }
+    }
+
+    /**
+     * 解析本轮消息：带 conversationId 时历史从服务端对话取出，客户端只提交新的 message；
+     * 否则沿用客户端提交的完整 messages
+     */
+    @SuppressWarnings("unchecked")
+    private ChatTurn resolveTurn(Map<String, Object> request, Long userId) {
+        Object conversationId = request.get("conversationId");
+        if (conversationId == null) {
+            List<Map<String, Object>> messages = (List<Map<String, Object>>) request.get("messages");
+            if (messages == null || messages.isEmpty()) {
+                return ChatTurn.invalid("消息不能为空");
+            }
+            return new ChatTurn(messages, null, null, null);
+        }
+
+        Conversation conversation = conversationStore.get(conversationId.toString(), userId);
+        if (conversation == null) {
+            return ChatTurn.invalid("对话不存在或已过期，请开启新对话");
+        }
+        if (conversation.isEnded()) {
+            return ChatTurn.invalid("对话已结束，请开启新对话");
+        }
+        Object message = request.get("message");
+        if (message == null || message.toString().isBlank()) {
+            return ChatTurn.invalid("消息不能为空");
+        }
+
+        List<Map<String, Object>> messages = conversation.getHistory();
+        Map<String, Object> userMsg = new LinkedHashMap<>();
+        userMsg.put("role", "user");
+        userMsg.put("content", message.toString());
+        messages.add(userMsg);
+        return new ChatTurn(messages, conversation, message.toString(), null);
+    }
+
     /**
      * 工具调用结果类
      */
@@ -345,6 +443,12 @@ public class DeepSeekProxyController {
         long outputTokens;
         int searchUsed;
         List<Map<String, String>> searchLinks;
+        // 上下文压缩节省的输入 token（估算）
+        long savedPromptTokens;
+        // 输入中命中上游前缀缓存的 token
+        long cacheHitTokens;
+        // 配额预留失败，未调用上游（或已停止后续轮次）
+        boolean insufficientTokens;
 
         ToolCallResult(String response, String thinking, long inputTokens, long outputTokens, int searchUsed, List<Map<String, String>> searchLinks) {
             this.response = response;
@@ -360,7 +464,8 @@ public class DeepSeekProxyController {
      * 同步执行工具调用流程（支持多轮思考 Chain of Thoughts）
      */
     private ToolCallResult executeToolCallsSync(List<Map<String, Object>> messages, boolean enableDeepThink,
-                                                boolean enableWebSearch, Long userId)
+                                                boolean enableWebSearch, Long userId,
+                                                AiMetrics.ChatObservation observation)
             throws JsonProcessingException {
         String chatModel = deepSeekConfig.getModel();
         String reasonerModel = deepSeekConfig.getReasonerModel();
@@ -368,143 +473,122 @@ public class DeepSeekProxyController {
         int toolCallCount = 0;
         int totalSearchUsed = 0;
         long totalInputTokens = 0;
+        long totalCacheHitTokens = 0;
         long totalOutputTokens = 0;
+        long savedPromptTokens = 0;
         List<Map<String, String>> allSearchLinks = new ArrayList<>(); // 收集所有搜索链接（包含标题）
 
-        logger.info("开始执行工具调用流程，当前消息数: {}", messages.size());
+        logger.debug("开始执行工具调用流程，当前消息数: {}", messages.size());
 
         while (toolCallCount < MAX_TOOL_CALLS) {
             // 选择模型：启用深度思考时每轮都使用 reasonerModel
             String currentModel = enableDeepThink ? reasonerModel : chatModel;
 
-            // 传递工具定义
-            Map<String, Object> requestBody = buildRequestBody(currentModel, messages, true, enableWebSearch);
-            String response = callDeepSeekApi(requestBody);
-
-            JsonNode root = objectMapper.readTree(response);
-
-            // 统计Token使用量
-            JsonNode usage = root.path("usage");
-            long inputTokens = usage.path("prompt_tokens").asLong(0);
-            long outputTokens = usage.path("completion_tokens").asLong(0);
-            totalInputTokens += inputTokens;
-            totalOutputTokens += outputTokens;
+            // 按上下文预算压缩后传递工具定义（同步对话本身阻塞等待上游，摘要同样等待）
+            ContextCompactor.Result context = contextCompactor.compact(LlmProvider.DEEPSEEK, messages,
+                    summarizer(userId)).block();
+            savedPromptTokens += context.savedTokens();
+
+            // 预留本轮 Token（估算输入 + max_tokens），剩余配额不足以生成最小回复时不再调用上游
+            ApiUsageService.TokenHold hold = apiUsageService.reserveTokens(userId,
+                    estimatePromptTokens(context.messages(), enableWebSearch), deepSeekConfig.getMaxTokens());
+            if (hold == null) {
+                logger.warn("用户 {} Token不足，预留失败，不调用上游", userId);
+                aiMetrics.recordQuotaRejection(LlmProvider.DEEPSEEK, AiMetrics.REJECT_TOKENS);
+                ToolCallResult result = new ToolCallResult(null, String.join("\n\n", allThinking), totalInputTokens,
+                        totalOutputTokens, totalSearchUsed, allSearchLinks);
+                result.insufficientTokens = true;
+                return result;
+            }
+            Map<String, Object> requestBody = buildRequestBody(currentModel, context.messages(), true, enableWebSearch,
+                    false, hold.maxTokens());
+            ChatCompletionDecoder.ChatCompletion completion;
+            // DeepSeek 不可用时由路由转发到故障转移服务商，按实际响应的模型统计缓存命中
+            LlmRouter.Route route = new LlmRouter.Route();
+            observation.onRound();
+            try {
+                completion = llmRouter.complete(LlmProvider.DEEPSEEK, requestBody, route).block();
+            } catch (RuntimeException e) {
+                apiUsageService.releaseHold(hold);
+                throw e;
+            }
 
-            JsonNode choice = root.path("choices").get(0);
-            JsonNode message = choice.path("message");
+            // 按实际用量结算本轮预留
+            ChatCompletionDecoder.Usage usage = completion.usage();
+            if (usage != null) {
+                totalInputTokens += usage.promptTokens();
+                totalCacheHitTokens += usage.promptCacheHitTokens();
+                totalOutputTokens += usage.completionTokens();
+                promptCacheStats.record(route.getModel(), usage.promptTokens(), usage.promptCacheHitTokens());
+                aiMetrics.recordGeneration(route, usage.completionTokens(), false);
+                apiUsageService.settle(hold, usage.promptTokens(), usage.promptCacheHitTokens(),
+                        usage.completionTokens());
+            } else {
+                apiUsageService.settle(hold, 0, 0, 0);
+            }
 
-            logger.info("第 {} 轮响应: content={}, tool_calls present={}",
+            String roundContent = completion.content() != null ? completion.content() : "";
+            logger.debug("第 {} 轮响应: content={}, tool_calls present={}",
                     toolCallCount + 1,
-                    message.path("content").asText("").substring(0, Math.min(100, message.path("content").asText("").length())),
-                    message.has("tool_calls"));
+                    roundContent.substring(0, Math.min(100, roundContent.length())),
+                    completion.hasToolCalls());
 
             // 获取思考过程（每轮都获取，最多500字）
-            if (enableDeepThink && message.has("reasoning_content")) {
-                JsonNode reasoning = message.path("reasoning_content");
-                if (!reasoning.isNull() && !reasoning.asText().isEmpty()) {
-                    String roundThinking = reasoning.asText().trim();
-                    if (!roundThinking.isEmpty()) {
-                        // 限制每轮思考不超过500字
-                        if (roundThinking.length() > 500) {
-                            roundThinking = roundThinking.substring(0, 500) + "...";
-                        }
-                        allThinking.add("=== 第 " + (toolCallCount + 1) + " 轮思考 ===\n" + roundThinking);
-                        logger.info("第 {} 轮思考过程长度: {}", toolCallCount + 1, roundThinking.length());
+            String reasoningContent = completion.reasoningContent() != null ? completion.reasoningContent() : "";
+            if (enableDeepThink && !reasoningContent.isEmpty()) {
+                String roundThinking = reasoningContent.trim();
+                if (!roundThinking.isEmpty()) {
+                    // 限制每轮思考不超过500字
+                    if (roundThinking.length() > 500) {
+                        roundThinking = roundThinking.substring(0, 500) + "...";
                     }
-                } else {
-                    logger.info("第 {} 轮 reasoning_content 为空", toolCallCount + 1);
+                    allThinking.add("=== 第 " + (toolCallCount + 1) + " 轮思考 ===\n" + roundThinking);
+                    logger.debug("第 {} 轮思考过程长度: {}", toolCallCount + 1, roundThinking.length());
                 }
-            } else {
-                logger.info("第 {} 轮无 reasoning_content 字段", toolCallCount + 1);
+            } else if (enableDeepThink) {
+                logger.debug("第 {} 轮 reasoning_content 为空", toolCallCount + 1);
             }
 
             // 检查是否有工具调用
-            JsonNode toolCalls = message.path("tool_calls");
-            if (toolCalls.isArray() && toolCalls.size() > 0) {
-                logger.info("检测到工具调用，数量: {}", toolCalls.size());
-
-                // 获取当前轮的 reasoning_content（如果有的话）
-                String reasoningContent = "";
-                if (message.has("reasoning_content") && !message.path("reasoning_content").isNull()) {
-                    reasoningContent = message.path("reasoning_content").asText("");
-                }
+            if (completion.hasToolCalls()) {
+                logger.debug("检测到工具调用，数量: {}", completion.toolCalls().size());
 
                 // 添加 assistant 消息（包含 tool_calls 和 reasoning_content）
                 Map<String, Object> assistantMessage = new LinkedHashMap<>();
                 assistantMessage.put("role", "assistant");
-                assistantMessage.put("content", message.path("content").asText(""));
-                assistantMessage.put("tool_calls", objectMapper.readValue(toolCalls.toString(), List.class));
+                assistantMessage.put("content", roundContent);
+                List<Map<String, Object>> toolCallList = completion.toolCallMaps();
+                assistantMessage.put("tool_calls", toolCallList);
                 // DeepSeek reasoner 模型要求：包含 tool_calls 的消息必须也有 reasoning_content
                 // 必须包含该字段，即使为空
                 assistantMessage.put("reasoning_content", reasoningContent);
                 messages.add(assistantMessage);
 
-                // 执行工具调用
-                for (JsonNode toolCall : toolCalls) {
-                    String toolName = toolCall.path("function").path("name").asText();
-                    String arguments = toolCall.path("function").path("arguments").asText();
-
-                    logger.info("执行工具调用: {}, 参数: {}", toolName, arguments);
-
-                    // 如果是搜索工具，使用新方法获取链接
-                    String toolResult;
-                    if ("web_search".equals(toolName) && enableWebSearch) {
-                        ToolService.WebSearchResult searchResult = toolService.executeWebSearchTool(toolName, arguments);
-                        toolResult = searchResult.getContent();
-                        allSearchLinks.addAll(searchResult.getLinks());
-                        logger.info("搜索工具返回链接数: {}", searchResult.getLinks().size());
-                    } else {
-                        toolResult = toolService.executeTool(toolName, arguments);
-                    }
-
-                    // 统计搜索使用次数
-                    if ("web_search".equals(toolName)) {
-                        boolean consumed = apiUsageService.consumeSearch(userId);
-                        if (consumed) {
-                            totalSearchUsed++;
-                            logger.info("用户 {} 消耗1次搜索配额", userId);
-                        } else {
-                            logger.warn("用户 {} 搜索次数已用尽", userId);
-                            toolResult = "搜索次数已用尽，请联系管理员充值。";
-                        }
-                    }
-
-                    logger.info("工具 {} 返回结果长度: {}", toolName, toolResult.length());
-
-                    Map<String, Object> toolMessage = new LinkedHashMap<>();
-                    toolMessage.put("role", "tool");
-                    toolMessage.put("tool_call_id", toolCall.path("id").asText());
-                    toolMessage.put("name", toolName);
-                    toolMessage.put("content", toolResult.isEmpty() ? "工具调用失败或返回空结果" : toolResult);
-                    messages.add(toolMessage);
-
-                    if (!toolResult.isEmpty()) {
-                        String truncatedResult = toolResult.length() > 200
-                            ? toolResult.substring(0, 200) + "..."
-                            : toolResult;
-                        logger.debug("工具 {} 返回结果: {}", toolName, truncatedResult);
-                    } else {
-                        logger.warn("工具 {} 返回空结果", toolName);
-                    }
-                }
+                // 并发执行工具调用（搜索配额在发起前扣减）
+                AtomicInteger searchUsed = new AtomicInteger();
+                List<ToolService.ToolCallOutcome> outcomes = toolService
+                        .executeToolCalls(toolCallList, () -> consumeSearch(userId, searchUsed::incrementAndGet))
+                        .block();
+                totalSearchUsed += searchUsed.get();
+                appendToolMessages(messages, outcomes, enableWebSearch, allSearchLinks);
 
                 toolCallCount++;
-                logger.info("工具调用轮次: {}/{}", toolCallCount, MAX_TOOL_CALLS);
+                logger.debug("工具调用轮次: {}/{}", toolCallCount, MAX_TOOL_CALLS);
                 continue;
             }
 
             // 没有工具调用，返回结果
-            String content = message.path("content").asText("");
-            logger.info("无工具调用，返回内容长度: {}", content.length());
+            String content = roundContent;
+            logger.debug("无工具调用，返回内容长度: {}", content.length());
 
-            // 注意：reasoning_content 已经在上面（第401-419行）添加过了，不需要重复添加
+            // 注意：reasoning_content 已经在上面添加过了，不需要重复添加
 
             // 合并所有思考过程
             String thinking = String.join("\n\n", allThinking);
-            logger.info("共收集到 {} 轮思考，总长度: {}", allThinking.size(), thinking.length());
+            logger.debug("共收集到 {} 轮思考，总长度: {}", allThinking.size(), thinking.length());
 
             // 如果没有工具调用，content 可能包含思考内容，需要提取最终回复
-            if (!message.has("tool_calls") || message.path("tool_calls").isEmpty()) {
+            if (!completion.hasToolCalls()) {
                 // 检查 content 是否以"第X轮思考"开头且包含"最终"关键词
                 // 如果是，说明 content 包含思考内容，需要提取最终回复部分
                 if (content.contains("最终") || content.contains("总结") || content.contains("所以")) {
@@ -530,488 +614,592 @@ public class DeepSeekProxyController {
                         // 如果提取的内容合理，使用它作为最终回复
                         if (finalAnswer.length() > 20) {
                             content = finalAnswer;
-                            logger.info("提取最终回复，长度: {}", content.length());
+                            logger.debug("提取最终回复，长度: {}", content.length());
                         }
                     }
                 }
             }
 
-            // 消耗Token配额
-            if (userId != null) {
-                apiUsageService.consumeTokens(userId, totalInputTokens, totalOutputTokens);
-                logger.info("Token使用：输入 {}, 输出 {}", totalInputTokens, totalOutputTokens);
-                logger.info("联网搜索使用：{} 次", totalSearchUsed);
-            }
+            logger.debug("Token使用：输入 {}（缓存命中 {}）, 输出 {}", totalInputTokens, totalCacheHitTokens,
+                    totalOutputTokens);
+            logger.debug("联网搜索使用：{} 次", totalSearchUsed);
 
-            return new ToolCallResult(content, thinking, totalInputTokens, totalOutputTokens, totalSearchUsed, allSearchLinks);
+            ToolCallResult result = new ToolCallResult(content, thinking, totalInputTokens, totalOutputTokens,
+                    totalSearchUsed, allSearchLinks);
+            result.savedPromptTokens = savedPromptTokens;
+            result.cacheHitTokens = totalCacheHitTokens;
+            return result;
         }
 
         logger.warn("工具调用次数达到上限: {}", MAX_TOOL_CALLS);
-        // 即使达到上限也消耗当前轮的token
-        if (userId != null) {
-            apiUsageService.consumeTokens(userId, totalInputTokens, totalOutputTokens);
-        }
         String thinking = String.join("\n\n", allThinking);
-        return new ToolCallResult("工具调用次数过多，请重试", thinking, totalInputTokens, totalOutputTokens, totalSearchUsed, allSearchLinks);
+        ToolCallResult result = new ToolCallResult("工具调用次数过多，请重试", thinking, totalInputTokens, totalOutputTokens,
+                totalSearchUsed, allSearchLinks);
+        result.savedPromptTokens = savedPromptTokens;
+        result.cacheHitTokens = totalCacheHitTokens;
+        return result;
     }
 
     /**
-     * 流式执行工具调用流程（支持多轮思考 Chain of Thoughts）
-     * 使用同步 API 调用 DeepSeek，前端通过打字机效果逐字显示
+     * 流式对话上下文（跨轮次累计的状态）
      */
-    private void executeWithToolCalls(List<Map<String, Object>> messages, boolean enableDeepThink,
-                                      boolean enableWebSearch, SseEmitter emitter,
-                                      ScheduledExecutorService heartbeatScheduler, Long userId) {
-        String chatModel = deepSeekConfig.getModel();
-        String reasonerModel = deepSeekConfig.getReasonerModel();
-        List<String> allThinking = new ArrayList<>(); // 收集所有思考过程
-        int toolCallCount = 0;
-        long totalInputTokens = 0;
-        long totalOutputTokens = 0;
-        int totalSearchUsed = 0;
-        List<Map<String, String>> allSearchLinks = new ArrayList<>(); // 收集所有搜索链接（包含标题）
+    private static class StreamChatContext {
+        final SseEmitter emitter;
+        final Long userId;
+        final boolean enableDeepThink;
+        final boolean enableWebSearch;
+        final ChatTurn turn;
+        // 请求 traceId，随 SSE start 事件返回，并在切换到对话线程时恢复到 MDC
+        final String traceId;
+        final AiMetrics.ChatObservation observation;
+        final List<Map<String, String>> allSearchLinks = new ArrayList<>(); // 收集所有搜索链接（包含标题）
+        // 流只结束一次：正常结束、出错或客户端断开，谁先到谁处理
+        final AtomicBoolean finished = new AtomicBoolean();
+        int toolCallCount;
+        long totalInputTokens;
+        long totalCacheHitTokens;
+        long totalOutputTokens;
+        int totalSearchUsed;
+        // 当前一轮实际由哪个服务商、模型响应
+        LlmRouter.Route route;
+        // 上下文压缩节省的输入 token（估算），随 quota 事件返回
+        long savedPromptTokens;
+        // 正在进行中的一轮（上游请求已发出、尚未结束）及其预留，断开时按已生成内容估算结算
+        private ChatStreamAccumulator currentRound;
+        private List<Map<String, Object>> currentMessages;
+        private ApiUsageService.TokenHold currentHold;
+
+        StreamChatContext(SseEmitter emitter, Long userId,
+                          boolean enableDeepThink, boolean enableWebSearch, ChatTurn turn,
+                          String traceId, AiMetrics.ChatObservation observation) {
+            this.emitter = emitter;
+            this.userId = userId;
+            this.enableDeepThink = enableDeepThink;
+            this.enableWebSearch = enableWebSearch;
+            this.turn = turn;
+            this.traceId = traceId;
+            this.observation = observation;
+        }
 
-        logger.info("深度思考模式: {}", enableDeepThink);
-        logger.info("开始执行工具调用流程，当前消息数: {}", messages.size());
+        synchronized void startRound(ChatStreamAccumulator accumulator, List<Map<String, Object>> messages,
+                                     ApiUsageService.TokenHold hold) {
+            currentRound = accumulator;
+            currentMessages = messages;
+            currentHold = hold;
+        }
 
-        while (toolCallCount < MAX_TOOL_CALLS) {
-            try {
-                // 选择模型：启用深度思考时每轮都使用 reasonerModel
-                String currentModel = enableDeepThink ? reasonerModel : chatModel;
-
-                // 传递工具定义
-                Map<String, Object> requestBody = buildRequestBody(currentModel, messages, true, enableWebSearch);
-
-                // 同步调用 DeepSeek API
-                String response = callDeepSeekApi(requestBody);
-                JsonNode root = objectMapper.readTree(response);
-
-                // 统计Token使用量
-                JsonNode usage = root.path("usage");
-                long inputTokens = usage.path("prompt_tokens").asLong(0);
-                long outputTokens = usage.path("completion_tokens").asLong(0);
-                totalInputTokens += inputTokens;
-                totalOutputTokens += outputTokens;
-
-                JsonNode choice = root.path("choices").get(0);
-                JsonNode message = choice.path("message");
-
-                logger.info("第 {} 轮响应: tool_calls present={}", toolCallCount + 1, message.has("tool_calls"));
-
-                // 获取思考过程（每轮都获取，最多500字）
-                if (enableDeepThink && message.has("reasoning_content")) {
-                    JsonNode reasoning = message.path("reasoning_content");
-                    if (!reasoning.isNull() && !reasoning.asText().isEmpty()) {
-                        String roundThinking = reasoning.asText().trim();
-                        if (!roundThinking.isEmpty()) {
-                            // 限制每轮思考不超过500字
-                            if (roundThinking.length() > 500) {
-                                roundThinking = roundThinking.substring(0, 500) + "...";
-                            }
-                            allThinking.add("=== 第 " + (toolCallCount + 1) + " 轮思考 ===\n" + roundThinking);
-                        }
+        /**
+         * 本轮结束，累计实际 token 用量
+         * @return 本轮的预留，由调用方按实际用量结算；客户端已断开、预留已被取走结算时返回 null
+         */
+        synchronized ApiUsageService.TokenHold finishRound(ChatStreamAccumulator accumulator) {
+            totalInputTokens += accumulator.getPromptTokens();
+            totalCacheHitTokens += accumulator.getPromptCacheHitTokens();
+            totalOutputTokens += accumulator.getCompletionTokens();
+            ApiUsageService.TokenHold hold = currentHold;
+            currentRound = null;
+            currentMessages = null;
+            currentHold = null;
+            return hold;
+        }
+
+        /**
+         * 取走进行中一轮的预留（只能取走一次）及其估算用量
+         * @return 没有进行中的一轮时返回 null
+         */
+        synchronized PendingRound takePendingRound() {
+            if (currentHold == null) {
+                return null;
+            }
+            long inputTokens = currentRound.getPromptTokens() > 0
+                    ? currentRound.getPromptTokens()
+                    : estimatePromptTokens(currentMessages);
+            PendingRound pending = new PendingRound(currentHold, inputTokens,
+                    currentRound.getPromptCacheHitTokens(), currentRound.getGeneratedTokens());
+            currentRound = null;
+            currentMessages = null;
+            currentHold = null;
+            return pending;
+        }
+
+        private static long estimatePromptTokens(List<Map<String, Object>> messages) {
+            return TokenEstimator.estimateMessages(messages);
+        }
+    }
+
+    /**
+     * 进行中一轮的预留和（估算的）用量
+     */
+    private record PendingRound(ApiUsageService.TokenHold hold, long inputTokens, long cacheHitTokens,
+                                long outputTokens) {
+    }
+
+    /**
+     * 流式执行工具调用流程（支持多轮思考 Chain of Thoughts）
+     * 上游以 stream=true 调用 DeepSeek，正文和思考过程在 Reactor 网络线程上按块实时转发；
+     * 每轮先压缩上下文（需要摘要时异步调用上游，不占用对话线程），再预留配额并调用上游；
+     * 结束后切回 AI 对话线程池结算配额、执行工具调用，再递归发起下一轮
+     */
+    private Mono<Void> executeWithToolCalls(List<Map<String, Object>> messages, StreamChatContext ctx) {
+        return Mono.defer(() -> {
+                    if (ctx.toolCallCount >= MAX_TOOL_CALLS) {
+                        sendToolCallLimitError(ctx);
+                        return Mono.<ContextCompactor.Result>empty();
+                    }
+                    // 按上下文预算压缩后传递工具定义（完整的消息列表仍用于追加工具调用结果）
+                    return contextCompactor.compact(LlmProvider.DEEPSEEK, messages, summarizer(ctx.userId));
+                })
+                // 摘要在网络线程上返回，切回对话线程预留配额
+                .publishOn(aiChatExecutor.scheduler())
+                .flatMap(context -> {
+                    restoreTraceId(ctx);
+                    ctx.savedPromptTokens += context.savedTokens();
+
+                    // 选择模型：启用深度思考时每轮都使用 reasonerModel
+                    String currentModel = ctx.enableDeepThink ? deepSeekConfig.getReasonerModel() : deepSeekConfig.getModel();
+
+                    // 预留本轮 Token（估算输入 + max_tokens），剩余配额不足以生成最小回复时不再调用上游
+                    ApiUsageService.TokenHold hold = apiUsageService.reserveTokens(ctx.userId,
+                            estimatePromptTokens(context.messages(), ctx.enableWebSearch), deepSeekConfig.getMaxTokens());
+                    if (hold == null) {
+                        sendInsufficientTokens(ctx);
+                        return Mono.<ChatStreamAccumulator>empty();
+                    }
+                    ChatStreamAccumulator accumulator = new ChatStreamAccumulator();
+                    ctx.startRound(accumulator, context.messages(), hold);
+                    Map<String, Object> requestBody = buildRequestBody(currentModel, context.messages(), true,
+                            ctx.enableWebSearch, true, hold.maxTokens());
+
+                    // 流式调用 DeepSeek API（不可用时由路由转发到故障转移服务商），边接收边转发
+                    LlmRouter.Route route = new LlmRouter.Route();
+                    ctx.route = route;
+                    ctx.observation.onRound();
+                    return llmRouter.stream(LlmProvider.DEEPSEEK, requestBody, route)
+                            .doOnNext(data -> {
+                                if (relayChunk(data, accumulator, ctx.enableDeepThink, ctx.emitter)) {
+                                    ctx.observation.onToken(route.getModel());
+                                }
+                            })
+                            .doOnComplete(() -> aiMetrics.recordGeneration(route, accumulator.getCompletionTokens(),
+                                    true))
+                            .then(Mono.just(accumulator));
+                })
+                .publishOn(aiChatExecutor.scheduler())
+                .flatMap(accumulator -> {
+                    restoreTraceId(ctx);
+                    // 按实际用量结算本轮预留（usage 在最后一个数据块中返回）
+                    ApiUsageService.TokenHold hold = ctx.finishRound(accumulator);
+                    if (hold != null) {
+                        apiUsageService.settle(hold, accumulator.getPromptTokens(),
+                                accumulator.getPromptCacheHitTokens(), accumulator.getCompletionTokens());
+                    }
+                    if (ctx.route.getModel() != null) {
+                        promptCacheStats.record(ctx.route.getModel(),
+                                accumulator.getPromptTokens(), accumulator.getPromptCacheHitTokens());
                     }
-                }
 
-                // 检查工具调用
-                JsonNode toolCalls = message.path("tool_calls");
-                if (toolCalls.isArray() && toolCalls.size() > 0) {
-                    logger.info("检测到工具调用，数量: {}", toolCalls.size());
+                    logger.debug("第 {} 轮响应: tool_calls present={}, finish_reason={}",
+                            ctx.toolCallCount + 1, accumulator.hasToolCalls(), accumulator.getFinishReason());
 
-                    // 获取当前轮的 reasoning_content（如果有的话）
-                    String reasoningContent = "";
-                    if (message.has("reasoning_content") && !message.path("reasoning_content").isNull()) {
-                        reasoningContent = message.path("reasoning_content").asText("");
+                    if (accumulator.hasToolCalls()) {
+                        return executeToolCalls(messages, accumulator, ctx)
+                                .then(Mono.defer(() -> {
+                                    ctx.toolCallCount++;
+                                    logger.debug("工具调用轮次: {}/{}", ctx.toolCallCount, MAX_TOOL_CALLS);
+                                    return executeWithToolCalls(messages, ctx);
+                                }));
                     }
 
-                    // 添加 assistant 消息（包含 tool_calls 和 reasoning_content）
-                    Map<String, Object> assistantMessage = new LinkedHashMap<>();
-                    assistantMessage.put("role", "assistant");
-                    assistantMessage.put("content", message.path("content").asText(""));
-                    assistantMessage.put("tool_calls", objectMapper.readValue(toolCalls.toString(), List.class));
-                    // DeepSeek reasoner 模型要求：包含 tool_calls 的消息必须也有 reasoning_content
-                    // 必须包含该字段，即使为空
-                    assistantMessage.put("reasoning_content", reasoningContent);
-                    messages.add(assistantMessage);
-
-                    // 执行工具调用
-                    for (JsonNode toolCall : toolCalls) {
-                        String toolName = toolCall.path("function").path("name").asText();
-                        String arguments = toolCall.path("function").path("arguments").asText();
-
-                        logger.info("执行工具调用: {}, 参数: {}", toolName, arguments);
-
-                        // 如果是搜索工具，使用新方法获取链接
-                        String toolResult;
-                        if ("web_search".equals(toolName) && enableWebSearch) {
-                            ToolService.WebSearchResult searchResult = toolService.executeWebSearchTool(toolName, arguments);
-                            toolResult = searchResult.getContent();
-                            allSearchLinks.addAll(searchResult.getLinks());
-                            logger.info("搜索工具返回链接数: {}", searchResult.getLinks().size());
-                        } else {
-                            toolResult = toolService.executeTool(toolName, arguments);
-                        }
+                    finishStream(accumulator, ctx);
+                    return Mono.<Void>empty();
+                });
+    }
 
-                        // 统计搜索使用次数
-                        if ("web_search".equals(toolName)) {
-                            boolean consumed = apiUsageService.consumeSearch(userId);
-                            if (!consumed) {
-                                logger.warn("用户 {} 搜索次数已用尽", userId);
-                                toolResult = "搜索次数已用尽，请联系管理员充值。";
-                            } else {
-                                totalSearchUsed++;
-                            }
-                        }
+    /**
+     * 上游数据在网络线程上到达，切回对话线程后恢复本次请求的 traceId
+     */
+    private static void restoreTraceId(StreamChatContext ctx) {
+        if (ctx.traceId != null) {
+            MDC.put(TraceIdFilter.MDC_KEY, ctx.traceId);
+        }
+    }
 
-                        logger.info("工具 {} 返回结果长度: {}", toolName, toolResult.length());
-
-                        Map<String, Object> toolMessage = new LinkedHashMap<>();
-                        toolMessage.put("role", "tool");
-                        toolMessage.put("tool_call_id", toolCall.path("id").asText());
-                        toolMessage.put("name", toolName);
-                        toolMessage.put("content", toolResult.isEmpty() ? "工具调用失败" : toolResult);
-                        messages.add(toolMessage);
-
-                        if (!toolResult.isEmpty()) {
-                            String truncatedResult = toolResult.length() > 200
-                                ? toolResult.substring(0, 200) + "..."
-                                : toolResult;
-                            logger.debug("工具 {} 返回结果: {}", toolName, truncatedResult);
-                        } else {
-                            logger.warn("工具 {} 返回空结果", toolName);
-                        }
-                    }
+    /**
+     * 并发执行本轮模型返回的工具调用，并把 assistant / tool 消息追加到对话中
+     */
+    private Mono<Void> executeToolCalls(List<Map<String, Object>> messages, ChatStreamAccumulator accumulator,
+                                        StreamChatContext ctx) {
+        List<Map<String, Object>> toolCalls = accumulator.getToolCalls();
+        logger.debug("检测到工具调用，数量: {}", toolCalls.size());
+
+        // 添加 assistant 消息（包含 tool_calls 和 reasoning_content）
+        Map<String, Object> assistantMessage = new LinkedHashMap<>();
+        assistantMessage.put("role", "assistant");
+        assistantMessage.put("content", accumulator.getContent());
+        assistantMessage.put("tool_calls", toolCalls);
+        // DeepSeek reasoner 模型要求：包含 tool_calls 的消息必须也有 reasoning_content
+        // 必须包含该字段，即使为空
+        assistantMessage.put("reasoning_content", accumulator.getReasoning());
+        messages.add(assistantMessage);
+
+        return toolService.executeToolCalls(toolCalls, () -> consumeSearch(ctx.userId, () -> ctx.totalSearchUsed++))
+                .publishOn(aiChatExecutor.scheduler())
+                .doOnNext(outcomes -> appendToolMessages(messages, outcomes, ctx.enableWebSearch, ctx.allSearchLinks))
+                .then();
+    }
 
-                    toolCallCount++;
-                    logger.info("工具调用轮次: {}/{}", toolCallCount, MAX_TOOL_CALLS);
-                    continue;
-                }
+    /**
+     * 发起搜索前扣减一次搜索配额
+     * @param onConsumed 扣减成功时的回调（统计本次对话的搜索次数）
+     */
+    private boolean consumeSearch(Long userId, Runnable onConsumed) {
+        boolean consumed = apiUsageService.consumeSearch(userId);
+        if (consumed) {
+            onConsumed.run();
+            logger.info("用户 {} 消耗1次搜索配额", userId);
+        } else {
+            logger.warn("用户 {} 搜索次数已用尽", userId);
+            aiMetrics.recordQuotaRejection(LlmProvider.DEEPSEEK, AiMetrics.REJECT_SEARCH);
+        }
+        return consumed;
+    }
 
-                // 没有工具调用，发送内容
-                String content = message.path("content").asText("");
-                logger.info("无工具调用，返回内容长度: {}", content.length());
-
-                // 如果有 reasoning_content，将其添加到思考列表
-                if (enableDeepThink && message.has("reasoning_content")) {
-                    JsonNode reasoning = message.path("reasoning_content");
-                    if (!reasoning.isNull() && !reasoning.asText().isEmpty()) {
-                        String roundThinking = reasoning.asText().trim();
-                        if (!roundThinking.isEmpty()) {
-                            if (roundThinking.length() > 500) {
-                                roundThinking = roundThinking.substring(0, 500) + "...";
-                            }
-                            allThinking.add("=== 第 " + (toolCallCount + 1) + " 轮思考 ===\n" + roundThinking);
-                            logger.info("第 {} 轮思考过程长度: {}", toolCallCount + 1, roundThinking.length());
-                        }
-                    }
-                }
+    /**
+     * 按 tool_calls 原始顺序追加 tool 消息，并收集搜索链接
+     */
+    private void appendToolMessages(List<Map<String, Object>> messages, List<ToolService.ToolCallOutcome> outcomes,
+                                    boolean enableWebSearch, List<Map<String, String>> searchLinks) {
+        for (ToolService.ToolCallOutcome outcome : outcomes) {
+            String toolResult = outcome.content() != null ? outcome.content() : "";
+            if (enableWebSearch && !outcome.links().isEmpty()) {
+                searchLinks.addAll(outcome.links());
+                logger.debug("搜索工具返回链接数: {}", outcome.links().size());
+            }
 
-                // 发送思考过程（合并所有轮次的思考）
-                String thinking = String.join("\n\n", allThinking);
-                if (enableDeepThink && !thinking.isEmpty()) {
-                    try {
-                        logger.info("发送 SSE reasoning 事件，内容长度: {}", thinking.length());
-                        emitter.send(SseEmitter.event().name("reasoning")
-                                .data("{\"reasoning\": " + escapeJson(thinking) + "}"));
-                    } catch (IOException e) {
-                        logger.error("发送 reasoning 失败", e);
-                    }
-                }
+            logger.debug("工具 {} 返回结果长度: {}", outcome.toolName(), toolResult.length());
 
-                // 如果没有工具调用，content 可能包含思考内容，需要提取最终回复
-                if (content.contains("最终") || content.contains("总结") || content.contains("所以")) {
-                    int finalStart = Math.max(
-                        content.lastIndexOf("最终"),
-                        Math.max(
-                            content.lastIndexOf("总结"),
-                            content.lastIndexOf("所以")
-                        )
-                    );
-                    if (finalStart > 0 && finalStart > content.length() / 2) {
-                        String finalAnswer = content.substring(finalStart).trim();
-                        if (finalAnswer.length() < 50) {
-                            int colonIndex = finalAnswer.indexOf("：");
-                            if (colonIndex > 0 && colonIndex < finalAnswer.length() - 1) {
-                                finalAnswer = finalAnswer.substring(colonIndex + 1).trim();
-                            }
-                        }
-                        if (finalAnswer.length() > 20) {
-                            content = finalAnswer;
-                            logger.info("提取最终回复，长度: {}", content.length());
-                        }
-                    }
-                }
+            Map<String, Object> toolMessage = new LinkedHashMap<>();
+            toolMessage.put("role", "tool");
+            toolMessage.put("tool_call_id", outcome.toolCallId());
+            toolMessage.put("name", outcome.toolName());
+            toolMessage.put("content", toolResult.isEmpty() ? "工具调用失败或返回空结果" : toolResult);
+            messages.add(toolMessage);
 
-                // 发送完整内容（前端打字机效果逐字显示）
-                if (!content.isEmpty()) {
-                    try {
-                        logger.info("发送 SSE token 事件，内容长度: {}", content.length());
-                        emitter.send(SseEmitter.event().name("token")
-                                .data("{\"token\": " + escapeJson(content) + "}"));
-                    } catch (IOException e) {
-                        logger.error("发送 token 失败", e);
-                    }
-                }
+            if (!toolResult.isEmpty()) {
+                String truncatedResult = toolResult.length() > 200
+                    ? toolResult.substring(0, 200) + "..."
+                    : toolResult;
+                logger.debug("工具 {} 返回结果: {}", outcome.toolName(), truncatedResult);
+            } else {
+                logger.warn("工具 {} 返回空结果", outcome.toolName());
+            }
+        }
+    }
 
-                // 消耗Token配额
-                if (userId != null) {
-                    boolean consumed = apiUsageService.consumeTokens(userId, totalInputTokens, totalOutputTokens);
-                    if (!consumed) {
-                        logger.warn("用户 {} Token不足，关闭连接", userId);
-                        try {
-                            emitter.send(SseEmitter.event().name("error")
-                                    .data("{\"error\": \"Token不足，请联系管理员充值\"}"));
-                            emitter.completeWithError(new RuntimeException("Token不足"));
-                        } catch (IOException ex) {
-                            logger.error("发送Token不足错误失败", ex);
-                        }
-                        heartbeatScheduler.shutdown();
-                        return;
-                    }
-                    logger.info("Token使用：输入 {}, 输出 {}", totalInputTokens, totalOutputTokens);
-                    logger.info("联网搜索使用：{} 次", totalSearchUsed);
-
-                    // 发送配额信息
-                    ApiUsage userQuota = apiUsageService.getUserQuota(userId);
-                    try {
-                        String quotaData = String.format("{\"quota\":{\"tokensRemaining\":%d,\"searchRemaining\":%d}}",
-                                userQuota.getTokensRemaining() != null ? userQuota.getTokensRemaining() : 0,
-                                userQuota.getSearchRemaining() != null ? userQuota.getSearchRemaining() : 0);
-                        logger.info("发送 SSE quota 事件: tokensRemaining={}, searchRemaining={}",
-                                userQuota.getTokensRemaining(), userQuota.getSearchRemaining());
-                        emitter.send(SseEmitter.event().name("quota").data(quotaData));
-
-                        String warning = apiUsageService.getQuotaWarning(userId, enableWebSearch);
-                        if (warning != null) {
-                            logger.info("发送 SSE warning 事件: {}", warning);
-                            emitter.send(SseEmitter.event().name("warning")
-                                    .data("{\"warning\": " + escapeJson(warning) + "}"));
-                        }
-                    } catch (IOException ex) {
-                        logger.error("发送配额信息失败", ex);
-                    }
-                }
+    /**
+     * 最后一轮（无工具调用）结束：发送 quota / searchLinks / complete 事件（配额已逐轮结算）
+     */
+    private void finishStream(ChatStreamAccumulator accumulator, StreamChatContext ctx) {
+        SseEmitter emitter = ctx.emitter;
+        Long userId = ctx.userId;
 
-                // 发送搜索链接
-                if (!allSearchLinks.isEmpty()) {
-                    try {
-                        String linksJson = objectMapper.writeValueAsString(allSearchLinks);
-                        logger.info("发送 SSE searchLinks 事件，链接数: {}", allSearchLinks.size());
-                        emitter.send(SseEmitter.event().name("searchLinks").data("{\"searchLinks\": " + linksJson + "}"));
-                    } catch (IOException e) {
-                        logger.error("发送搜索链接失败", e);
-                    }
-                }
+        if (!ctx.finished.compareAndSet(false, true)) {
+            // 客户端已断开
+            return;
+        }
 
-                // 完成
-                heartbeatScheduler.shutdown();
-                try {
-                    logger.info("发送 SSE complete 事件");
-                    logger.info("========== SSE 流式请求正常结束 ==========");
-                    emitter.send(SseEmitter.event().name("complete").data("{\"type\": \"complete\"}"));
-                    emitter.complete();
-                } catch (IOException e) {
-                    logger.error("发送完成信号失败", e);
-                }
-                return;
-
-            } catch (Exception e) {
-                logger.error("工具调用流程错误: {}", e.getMessage(), e);
-                try {
-                    logger.info("发送 SSE error 事件");
-                    emitter.send(SseEmitter.event().name("error")
-                            .data("{\"error\": " + escapeJson(e.getMessage()) + "}"));
-                } catch (IOException ex) {
-                    logger.error("发送错误事件失败", ex);
+        // 没有工具调用，正文已在流式过程中逐块发送
+        logger.debug("无工具调用，返回内容长度: {}, 思考过程长度: {}",
+                accumulator.getContent().length(), accumulator.getReasoning().length());
+
+        if (userId != null) {
+            logger.debug("联网搜索使用：{} 次", ctx.totalSearchUsed);
+
+            // 发送配额信息
+            ApiUsage userQuota = apiUsageService.getUserQuota(userId);
+            try {
+                logger.debug("发送 SSE quota 事件: tokensRemaining={}, searchRemaining={}",
+                        userQuota.getTokensRemaining(), userQuota.getSearchRemaining());
+                emitter.send(SseEventWriter.quota(
+                        userQuota.getTokensRemaining() != null ? userQuota.getTokensRemaining() : 0,
+                        userQuota.getSearchRemaining() != null ? userQuota.getSearchRemaining() : 0,
+                        ctx.savedPromptTokens));
+
+                String warning = apiUsageService.getQuotaWarning(userQuota, ctx.enableWebSearch);
+                if (warning != null) {
+                    logger.debug("发送 SSE warning 事件: {}", warning);
+                    emitter.send(SseEventWriter.warning(warning));
                 }
-                emitter.completeWithError(e);
-                logger.info("========== SSE 流式请求异常结束 ==========");
-                return;
+            } catch (IOException ex) {
+                logger.error("发送配额信息失败", ex);
             }
         }
 
-        // 工具调用次数过多
+        // 保存到服务端对话
+        if (ctx.turn.conversation() != null) {
+            conversationStore.appendTurn(ctx.turn.conversation(), ctx.turn.userMessage(), accumulator.getContent());
+        }
+
+        // 发送搜索链接
+        if (!ctx.allSearchLinks.isEmpty()) {
+            try {
+                logger.debug("发送 SSE searchLinks 事件，链接数: {}", ctx.allSearchLinks.size());
+                emitter.send(SseEventWriter.searchLinks(ctx.allSearchLinks));
+            } catch (IOException e) {
+                logger.error("发送搜索链接失败", e);
+            }
+        }
+
+        // 完成
         try {
-            logger.warn("工具调用次数超过上限: {}", MAX_TOOL_CALLS);
-            logger.info("发送 SSE error 事件（工具调用过多）");
-            emitter.send(SseEmitter.event().name("error").data("{\"error\": \"工具调用次数过多\"}"));
+            logger.info("SSE 流式请求正常结束: 轮数 {}, Token 输入 {}, 输出 {}", ctx.toolCallCount + 1,
+                    ctx.totalInputTokens, ctx.totalOutputTokens);
+            emitter.send(SseEventWriter.complete());
             emitter.complete();
         } catch (IOException e) {
-            logger.error("发送工具调用过多错误失败", e);
-            emitter.completeWithError(e);
+            logger.error("发送完成信号失败", e);
         }
     }
 
     /**
-     * 构建请求体
+     * 工具调用次数过多
      */
-    private Map<String, Object> buildRequestBody(String model, List<Map<String, Object>> messages,
-                                                  boolean includeTools, boolean enableWebSearch) {
-        double temperature = getTemperatureFromDb();
-        String systemPrompt = getSystemPrompt(enableWebSearch);
+    private void sendToolCallLimitError(StreamChatContext ctx) {
+        ctx.finished.set(true);
+        try {
+            logger.warn("工具调用次数超过上限: {}", MAX_TOOL_CALLS);
+            logger.debug("发送 SSE error 事件（工具调用过多）");
+            ctx.emitter.send(SseEventWriter.error("工具调用次数过多"));
+            ctx.emitter.complete();
+        } catch (IOException e) {
+            logger.error("发送工具调用过多错误失败", e);
+            ctx.emitter.completeWithError(e);
+        }
+    }
 
-        logger.info("深度思考模式: {}", false);  // 会在调用方设置
-        logger.info("System Prompt: {}", systemPrompt);
-        logger.info("Temperature: {}", temperature);
-        logger.info("选用的模型: {}", model);
-        logger.info("Messages count: {}", messages.size());
+    /**
+     * 配额预留失败：已完成的轮次已结算，直接结束流
+     */
+    private void sendInsufficientTokens(StreamChatContext ctx) {
+        logger.warn("用户 {} Token不足，预留失败，不调用上游", ctx.userId);
+        aiMetrics.recordQuotaRejection(LlmProvider.DEEPSEEK, AiMetrics.REJECT_TOKENS);
+        ctx.finished.set(true);
+        try {
+            ctx.emitter.send(SseEventWriter.error("Token不足，请联系管理员充值"));
+            ctx.emitter.complete();
+        } catch (IOException e) {
+            logger.error("发送Token不足错误失败", e);
+            ctx.emitter.completeWithError(e);
+        }
+    }
 
-        Map<String, Object> requestBody = new LinkedHashMap<>();
-        requestBody.put("model", model);
-        requestBody.put("messages", messages);
-        requestBody.put("stream", false);
-        requestBody.put("max_tokens", deepSeekConfig.getMaxTokens());
-        requestBody.put("temperature", temperature);
+    /**
+     * 流式对话异常结束（包括线程池已满被拒绝）
+     */
+    private void handleStreamError(StreamChatContext ctx, Throwable error) {
+        SseEmitter emitter = ctx.emitter;
+
+        if (error instanceof UncheckedIOException) {
+            // 转发数据块时写入失败：客户端已断开，按已生成量结算
+            logger.info("用户 {} 已断开连接，停止生成", ctx.userId);
+            settleCancelled(ctx);
+            emitter.completeWithError(error.getCause());
+            return;
+        }
+        ctx.finished.set(true);
+        // 上游出错或线程池已满：进行中一轮的预留全部退回
+        PendingRound pending = ctx.takePendingRound();
+        if (pending != null) {
+            apiUsageService.releaseHold(pending.hold());
+        }
 
-        // 添加工具定义
-        if (includeTools) {
-            List<Map<String, Object>> tools = toolService.getToolsDefinition(enableWebSearch);
-            if (!tools.isEmpty()) {
-                requestBody.put("tools", tools);
-                logger.info("开始调用 DeepSeek API...");
-                logger.info("联网搜索: {}", enableWebSearch ? "启用" : "关闭");
-                logger.info("Tools count: {}", tools.size());
-                for (Map<String, Object> tool : tools) {
-                    logger.info("Tool: {}", tool.get("function"));
-                }
+        if (error instanceof RejectedExecutionException) {
+            logger.warn("AI 对话线程池已满，拒绝用户 {} 的请求", ctx.userId);
+            try {
+                emitter.send(SseEventWriter.warning(AiChatExecutor.BUSY_MESSAGE));
+                emitter.complete();
+            } catch (IOException e) {
+                emitter.completeWithError(e);
             }
+            return;
         }
 
-        return requestBody;
+        logger.error("工具调用流程错误: {}", error.getMessage(), error);
+        try {
+            logger.debug("发送 SSE error 事件");
+            emitter.send(SseEventWriter.error(error.getMessage()));
+        } catch (IOException ex) {
+            logger.error("发送错误事件失败", ex);
+        }
+        emitter.completeWithError(error);
+        logger.debug("========== SSE 流式请求异常结束 ==========");
     }
 
     /**
-     * 从数据库获取温度配置
+     * 客户端中途断开：已完成的轮次已结算，进行中一轮的预留按已生成内容的估算用量结算
      */
-    private double getTemperatureFromDb() {
+    private void settleCancelled(StreamChatContext ctx) {
+        ctx.finished.set(true);
+        PendingRound pending = ctx.takePendingRound();
+        if (pending == null) {
+            return;
+        }
+
+        Runnable charge = () -> {
+            apiUsageService.settle(pending.hold(), pending.inputTokens(), pending.cacheHitTokens(),
+                    pending.outputTokens());
+            logger.info("用户 {} 中途断开，结算 Token：输入 {}, 输出 {}", ctx.userId,
+                    pending.inputTokens(), pending.outputTokens());
+        };
+        // 关闭回调可能在容器线程上执行，扣减配额放到 AI 对话线程池
         try {
-            AiConfig config = aiConfigMapper.selectByConfigKey("temperature");
-            if (config != null && config.getConfigValue() != null) {
-                return Double.parseDouble(config.getConfigValue());
-            }
-        } catch (Exception e) {
-            logger.warn("读取温度配置失败，使用默认值: {}", e.getMessage());
+            aiChatExecutor.scheduler().schedule(charge);
+        } catch (RejectedExecutionException e) {
+            charge.run();
         }
-        // 默认值 0.7
-        return 0.7;
     }
 
     /**
-     * 调用 DeepSeek API
+     * 解析一个上游 SSE 数据块，累加后把新增的思考过程和正文转发给前端
+     * @return 是否有思考过程或正文发给前端（用于统计首个 token 延迟）
      */
-    private String callDeepSeekApi(Map<String, Object> requestBody) throws JsonProcessingException {
-        String response = webClient.post()
-                .uri("/chat/completions")
-                .header("Authorization", "Bearer " + deepSeekConfig.getApiKey())
-                .header("User-Agent", "Spring-WebClient")
-                .bodyValue(requestBody)
-                .retrieve()
-                .onStatus(HttpStatusCode::is4xxClientError, clientResponse ->
-                        clientResponse.bodyToMono(String.class)
-                                .flatMap(body -> {
-                                    logger.error("DeepSeek API 4xx Error: {} - {}", clientResponse.statusCode(), body);
-                                    return Mono.error(new RuntimeException("DeepSeek API Error: " + body));
-                                })
-                )
-                .onStatus(HttpStatusCode::is5xxServerError, clientResponse ->
-                        clientResponse.bodyToMono(String.class)
-                                .flatMap(body -> {
-                                    logger.error("DeepSeek API 5xx Error: {} - {}", clientResponse.statusCode(), body);
-                                    return Mono.error(new RuntimeException("DeepSeek Server Error: " + body));
-                                })
-                )
-                .bodyToMono(String.class)
-                .timeout(Duration.ofSeconds(180))
-                .retryWhen(Retry.backoff(2, Duration.ofSeconds(2))
-                        .filter(throwable -> throwable instanceof org.springframework.web.reactive.function.client.WebClientRequestException
-                                || throwable instanceof java.net.ConnectException
-                                || (throwable.getMessage() != null && throwable.getMessage().contains("Connection"))))
-                .block();
-
-        logger.debug("DeepSeek API response: {}", response);
-        return response;
-    }
+    private boolean relayChunk(String data, ChatStreamAccumulator accumulator, boolean enableDeepThink,
+                               SseEmitter emitter) {
+        if (data == null || data.isBlank() || "[DONE]".equals(data.trim())) {
+            return false;
+        }
 
-    /**
-     * 获取系统提示词
-     */
-    private String getSystemPrompt(boolean enableWebSearch) {
-        String basePrompt = "";
+        ChatStreamAccumulator.Delta delta;
         try {
-            AiConfig config = aiConfigMapper.selectByConfigKey("system_prompt");
-            if (config != null && config.getConfigValue() != null) {
-                Object configValue = config.getConfigValue();
-                String value;
-                if (configValue instanceof byte[]) {
-                    value = new String((byte[]) configValue, StandardCharsets.UTF_8);
-                } else if (configValue instanceof String) {
-                    value = (String) configValue;
-                } else {
-                    value = configValue.toString();
-                }
-                value = cleanInvalidChars(value);
-                if (value != null && !value.trim().isEmpty() && isValidText(value)) {
-                    basePrompt = value;
-                }
-            }
-        } catch (Exception e) {
-            logger.warn("读取 System Prompt 失败，使用默认配置", e);
+            delta = accumulator.accept(ChatCompletionDecoder.decode(data));
+        } catch (JsonProcessingException e) {
+            logger.warn("跳过无法解析的数据块: {}", e.getMessage());
+            return false;
         }
 
-        if (basePrompt.isEmpty()) {
-            basePrompt = "你是 Bezhuang AI，一个智能助手。当用户询问实时信息（天气、时间、新闻等）时，务必调用相应的工具获取准确数据，然后用自然的中文回答。";
+        boolean relayed = false;
+        try {
+            if (enableDeepThink && delta.hasReasoning()) {
+                emitter.send(SseEventWriter.reasoning(delta.reasoning()));
+                relayed = true;
+            }
+            if (delta.hasContent()) {
+                emitter.send(SseEventWriter.token(delta.content()));
+                relayed = true;
+            }
+        } catch (IOException e) {
+            // 客户端已断开，终止本轮流式读取
+            throw new UncheckedIOException(e);
         }
+        return relayed;
+    }
 
-        // 追加工具使用说明
-        String toolsPrompt = toolService.getToolsPrompt(enableWebSearch);
-        return basePrompt + "\n\n" + toolsPrompt;
+    /**
+     * 历史消息只保留 role、content 并按固定顺序写出，同一段历史在每次请求中序列化结果完全一致，
+     * 上游前缀缓存（系统消息 + 工具定义 + 历史消息）才能持续命中
+     */
+    private static Map<String, Object> historyMessage(Map<String, Object> msg) {
+        Map<String, Object> message = new LinkedHashMap<>(4);
+        message.put("role", msg.get("role"));
+        message.put("content", msg.get("content") != null ? msg.get("content") : "");
+        return message;
     }
 
-    private String cleanInvalidChars(String value) {
-        if (value == null) return null;
-        StringBuilder cleaned = new StringBuilder();
-        for (int i = 0; i < value.length(); i++) {
-            char c = value.charAt(i);
-            if (c == '\n' || c == '\r' || c == '\t' || !Character.isISOControl(c)) {
-                cleaned.append(c);
-            } else {
-                cleaned.append(' ');
-            }
-        }
-        return cleaned.toString();
+    /**
+     * 本地估算一次上游调用的输入 token（消息 + 工具定义），用于预留配额
+     */
+    private long estimatePromptTokens(List<Map<String, Object>> messages, boolean enableWebSearch) {
+        return TokenEstimator.estimateMessages(messages)
+                + promptFragments.get(DEFAULT_SYSTEM_PROMPT, enableWebSearch).getToolsTokens();
     }
 
-    private boolean isValidText(String value) {
-        if (value == null || value.isEmpty()) return false;
-        int readableCount = 0;
-        for (int i = 0; i < value.length(); i++) {
-            char c = value.charAt(i);
-            if (Character.isLetterOrDigit(c) || Character.isWhitespace(c) ||
-                isChineseChar(c) || isCommonPunctuation(c)) {
-                readableCount++;
-            }
+    /**
+     * 构建请求体
+     * @param stream 是否以流式（SSE）方式调用上游
+     * @param maxTokens 本次调用的 max_tokens（按预留结果）
+     */
+    private Map<String, Object> buildRequestBody(String model, List<Map<String, Object>> messages,
+                                                  boolean includeTools, boolean enableWebSearch,
+                                                  boolean stream, int maxTokens) {
+        double temperature = getTemperatureFromDb();
+        PromptFragments.Compiled prompt = promptFragments.get(DEFAULT_SYSTEM_PROMPT, enableWebSearch);
+
+        logger.debug("模型: {}, Temperature: {}, Messages count: {}", model, temperature, messages.size());
+
+        Map<String, Object> requestBody = new LinkedHashMap<>();
+        requestBody.put("model", model);
+        // 系统消息和工具定义直接写出预编译的 JSON 片段
+        requestBody.put("messages", prompt.messagesValue(messages));
+        requestBody.put("stream", stream);
+        if (stream) {
+            // 流式模式下要求在最后一个数据块返回 usage，用于扣减配额
+            requestBody.put("stream_options", Map.of("include_usage", true));
         }
-        return readableCount >= value.length() * 0.5;
+        requestBody.put("max_tokens", maxTokens);
+        requestBody.put("temperature", temperature);
+
+        // 添加工具定义
+        if (includeTools && prompt.getToolCount() > 0) {
+            requestBody.put("tools", prompt.toolsValue());
+            logger.debug("联网搜索: {}, Tools count: {}", enableWebSearch ? "启用" : "关闭", prompt.getToolCount());
+        }
+
+        return requestBody;
     }
 
-    private boolean isChineseChar(char c) {
-        Character.UnicodeBlock ub = Character.UnicodeBlock.of(c);
-        return ub == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS ||
-               ub == Character.UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS ||
-               ub == Character.UnicodeBlock.CJK_SYMBOLS_AND_PUNCTUATION;
+    /**
+     * 本次对话的摘要生成器，摘要用量计入该用户的配额
+     */
+    private ContextCompactor.Summarizer summarizer(Long userId) {
+        return requestMessages -> summarizeHistory(userId, requestMessages);
     }
 
-    private boolean isCommonPunctuation(char c) {
-        String punctuation = "，。！？、；：\"''（）【】《》…—· ";
-        return punctuation.indexOf(c) >= 0;
+    /**
+     * 用对话模型总结被压缩掉的轮次（不带工具）
+     * 与普通调用一样先预留再按实际用量结算；剩余配额不足时不生成摘要，直接丢弃这些轮次
+     */
+    private Mono<String> summarizeHistory(Long userId, List<Map<String, Object>> requestMessages) {
+        ApiUsageService.TokenHold hold = apiUsageService.reserveTokens(userId,
+                ContextCompactor.estimateTokens(requestMessages), ContextCompactor.getSummaryMaxTokens());
+        if (hold == null) {
+            logger.debug("用户 {} 剩余配额不足，跳过对话摘要", userId);
+            return Mono.empty();
+        }
+        Map<String, Object> requestBody = new LinkedHashMap<>();
+        requestBody.put("model", deepSeekConfig.getModel());
+        requestBody.put("messages", requestMessages);
+        requestBody.put("stream", false);
+        requestBody.put("max_tokens", hold.maxTokens());
+        requestBody.put("temperature", 0.3);
+        return llmRouter.complete(LlmProvider.DEEPSEEK, requestBody, null)
+                .doOnNext(completion -> {
+                    ChatCompletionDecoder.Usage usage = completion.usage();
+                    if (usage != null) {
+                        apiUsageService.settle(hold, usage.promptTokens(), usage.promptCacheHitTokens(),
+                                usage.completionTokens());
+                    } else {
+                        apiUsageService.settle(hold, 0, 0, 0);
+                    }
+                })
+                // 调用失败或对话被取消时全部退回（已结算的预留不会重复退回）
+                .doOnError(error -> apiUsageService.releaseHold(hold))
+                .doOnCancel(() -> apiUsageService.releaseHold(hold))
+                .mapNotNull(ChatCompletionDecoder.ChatCompletion::content);
     }
 
-    private String escapeJson(String text) {
-        if (text == null) return "\"\"";
-        return "\"" + text.replace("\\", "\\\\")
-                .replace("\"", "\\\"")
-                .replace("\n", "\\n")
-                .replace("\r", "\\r")
-                .replace("\t", "\\t") + "\"";
+    /**
+     * 从配置快照获取温度配置
+     */
+    private double getTemperatureFromDb() {
+        try {
+            String value = aiConfigService.getConfig(AiConfigService.TEMPERATURE, null);
+            if (value != null) {
+                return Double.parseDouble(value);
+            }
+        } catch (Exception e) {
+            logger.warn("读取温度配置失败，使用默认值: {}", e.getMessage());
+        }
+        // 默认值 0.7
+        return 0.7;
     }
 }
@@ -1,15 +1,22 @@
 package com.bezhuang.my_little_app_backend.controller;
 
 import com.bezhuang.my_little_app_backend.service.SiliconFlowService;
+import com.bezhuang.my_little_app_backend.service.ai.AiBulkhead;
+import com.bezhuang.my_little_app_backend.service.ai.Conversation;
+import com.bezhuang.my_little_app_backend.service.ai.LlmProvider;
+import com.bezhuang.my_little_app_backend.service.ai.SseEventWriter;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.MediaType;
-import org.springframework.http.server.ServerHttpResponse;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * 硅基流动 AI 控制器
@@ -23,25 +30,46 @@ public class SiliconFlowController {
     private static final Logger logger = LoggerFactory.getLogger(SiliconFlowController.class);
 
     private final SiliconFlowService siliconFlowService;
+    private final AiBulkhead aiBulkhead;
 
-    public SiliconFlowController(SiliconFlowService siliconFlowService) {
+    public SiliconFlowController(SiliconFlowService siliconFlowService, AiBulkhead aiBulkhead) {
         this.siliconFlowService = siliconFlowService;
+        this.aiBulkhead = aiBulkhead;
+    }
+
+    /**
+     * 创建服务端对话，之后每轮只需提交 conversationId 和新的 message
+     */
+    @PostMapping("/conversation/create")
+    public Map<String, Object> createConversation() {
+        Conversation conversation = siliconFlowService.createConversation();
+        return Map.of("success", true, "data", conversation.toSummary());
     }
 
     /**
      * 同步聊天接口
      */
     @PostMapping("/chat")
-    public Map<String, Object> chat(@RequestBody Map<String, Object> request) {
+    public CompletableFuture<Map<String, Object>> chat(@RequestBody Map<String, Object> request,
+                                                       HttpServletRequest servletRequest) {
         String userMessage = (String) request.getOrDefault("message", "");
         @SuppressWarnings("unchecked")
         List<Map<String, Object>> history = (List<Map<String, Object>>) request.get("history");
         Boolean enableDeepThink = (Boolean) request.getOrDefault("enableDeepThink", false);
         Boolean enableWebSearch = (Boolean) request.getOrDefault("enableWebSearch", false);
+        String conversationId = (String) request.get("conversationId");
 
         logger.info("硅基流动同步聊天请求: message={}, enableDeepThink={}, enableWebSearch={}", userMessage, enableDeepThink, enableWebSearch);
 
-        return siliconFlowService.chat(userMessage, history, enableDeepThink, enableWebSearch);
+        // 准入控制：匿名用户按客户端 IP 限制并发
+        AiBulkhead.Permit permit = aiBulkhead.acquire(LlmProvider.SILICONFLOW, servletRequest.getRemoteAddr());
+        if (!permit.isGranted()) {
+            logger.warn("硅基流动同步请求被准入控制拒绝: ip={}, {}", servletRequest.getRemoteAddr(), permit.getMessage());
+            return CompletableFuture.completedFuture(Map.of("success", false, "warning", true, "message", permit.getMessage()));
+        }
+
+        return siliconFlowService.chatAsync(userMessage, history, conversationId, enableDeepThink, enableWebSearch)
+                .whenComplete((result, error) -> permit.release());
     }
 
     /**
@@ -50,18 +78,39 @@ public class SiliconFlowController {
     @PostMapping(value = "/chat/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
     public SseEmitter chatStream(
             @RequestBody Map<String, Object> request,
-            ServerHttpResponse response) {
+            HttpServletRequest servletRequest,
+            HttpServletResponse response) {
 
         String userMessage = (String) request.getOrDefault("message", "");
         @SuppressWarnings("unchecked")
         List<Map<String, Object>> history = (List<Map<String, Object>>) request.get("history");
         Boolean enableDeepThink = (Boolean) request.getOrDefault("enableDeepThink", false);
         Boolean enableWebSearch = (Boolean) request.getOrDefault("enableWebSearch", false);
+        String conversationId = (String) request.get("conversationId");
 
         logger.info("硅基流动流式聊天请求: message={}, enableDeepThink={}, enableWebSearch={}", userMessage, enableDeepThink, enableWebSearch);
 
+        // 关闭 nginx 代理缓冲，保证 token 逐块到达客户端
+        response.setHeader("X-Accel-Buffering", "no");
+
+        // 准入控制：匿名用户按客户端 IP 限制并发，已满时立即返回繁忙提示，不建立长连接
+        AiBulkhead.Permit permit = aiBulkhead.acquire(LlmProvider.SILICONFLOW, servletRequest.getRemoteAddr());
+        if (!permit.isGranted()) {
+            logger.warn("硅基流动流式请求被准入控制拒绝: ip={}, {}", servletRequest.getRemoteAddr(), permit.getMessage());
+            response.setHeader("Retry-After", "1");
+            SseEmitter emitter = new SseEmitter();
+            try {
+                emitter.send(SseEventWriter.warning(permit.getMessage()));
+                emitter.complete();
+            } catch (IOException e) {
+                logger.error("发送繁忙提示失败", e);
+                emitter.completeWithError(e);
+            }
+            return emitter;
+        }
+
         SseEmitter emitter = new SseEmitter(300000L);
-        siliconFlowService.chatStream(userMessage, history, emitter, enableDeepThink, enableWebSearch);
-        return emitter;
+        return siliconFlowService.chatStream(userMessage, history, conversationId, emitter, enableDeepThink, enableWebSearch,
+                permit);
     }
 }
@@ -5,8 +5,8 @@ import com.bezhuang.my_little_app_backend.dto.Result;
 import com.bezhuang.my_little_app_backend.entity.Admin;
 import com.bezhuang.my_little_app_backend.entity.ApiUsage;
 import com.bezhuang.my_little_app_backend.entity.User;
-import com.bezhuang.my_little_app_backend.mapper.ApiUsageMapper;
 import com.bezhuang.my_little_app_backend.service.AdminService;
+import com.bezhuang.my_little_app_backend.service.ApiUsageService;
 import com.bezhuang.my_little_app_backend.service.UserService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,14 +35,18 @@ public class UserController {
 
     private static final Logger logger = LoggerFactory.getLogger(UserController.class);
 
+    // 每次签到增加的 Token 和签到能达到的余额上限
+    private static final long SIGN_IN_BONUS_TOKENS = 3000L;
+    private static final long SIGN_IN_TOKEN_CAP = 660000L;
+
     private final UserService userService;
     private final AdminService adminService;
-    private final ApiUsageMapper apiUsageMapper;
+    private final ApiUsageService apiUsageService;
 
-    public UserController(UserService userService, AdminService adminService, ApiUsageMapper apiUsageMapper) {
+    public UserController(UserService userService, AdminService adminService, ApiUsageService apiUsageService) {
         this.userService = userService;
         this.adminService = adminService;
-        this.apiUsageMapper = apiUsageMapper;
+        this.apiUsageService = apiUsageService;
     }
 
     /**
@@ -55,10 +59,10 @@ public class UserController {
             return Result.unauthorized("请先登录");
         }
 
-        // 查询用户配额
-        ApiUsage apiUsage = apiUsageMapper.selectByUserId(currentUser.getId());
-        long remainingTokens = apiUsage != null ? apiUsage.getTokensRemaining() : 0L;
-        int remainingWebSearches = apiUsage != null ? apiUsage.getSearchRemaining() : 0;
+        // 查询用户配额（内存账本中的当前值，含未写回的扣减和进行中的预留）
+        ApiUsage apiUsage = apiUsageService.getUserQuota(currentUser.getId());
+        long remainingTokens = apiUsage.getTokensRemaining() != null ? apiUsage.getTokensRemaining() : 0L;
+        int remainingWebSearches = apiUsage.getSearchRemaining() != null ? apiUsage.getSearchRemaining() : 0;
 
         // 根据用户类型从不同的表查询
         if ("ADMIN".equals(currentUser.getUserType())) {
@@ -179,24 +183,10 @@ public class UserController {
             return Result.unauthorized("请先登录");
         }
 
-        // 查询当前配额
-        ApiUsage apiUsage = apiUsageMapper.selectByUserId(currentUser.getId());
-        if (apiUsage == null) {
-            // 如果没有配额记录，先创建
-            apiUsage = new ApiUsage();
-            apiUsage.setUserId(currentUser.getId());
-            apiUsage.setTokensRemaining(0L);
-            apiUsage.setSearchRemaining(0);
-            apiUsageMapper.insert(apiUsage);
-        }
-
-        // 计算新余额（总上限 660000）
-        long currentTokens = apiUsage.getTokensRemaining() != null ? apiUsage.getTokensRemaining() : 0L;
-        long newTokens = Math.min(currentTokens + 3000L, 660000L);
-        long addedTokens = newTokens - currentTokens;
-
-        // 更新数据库
-        apiUsageMapper.updateTokensRemaining(apiUsage.getId(), newTokens);
+        // 经配额账本按增量增加（总上限 660000），不覆盖其他请求和实例尚未写回的扣减
+        long addedTokens = apiUsageService.creditTokens(currentUser.getId(), SIGN_IN_BONUS_TOKENS,
+                SIGN_IN_TOKEN_CAP);
+        long newTokens = apiUsageService.getUserQuota(currentUser.getId()).getTokensRemaining();
 
         logger.info("用户 {} 签到，增加 {} tokens，当前余额 {}", currentUser.getId(), addedTokens, newTokens);
 
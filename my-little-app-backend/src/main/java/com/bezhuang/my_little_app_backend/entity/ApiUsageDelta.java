@@ -0,0 +1,43 @@
+package com.bezhuang.my_little_app_backend.entity;
+
+/**
+ * 用户配额增量（批量写回 api_usage 时使用）
+ */
+public class ApiUsageDelta {
+    private Long userId;
+    private long tokensDelta;
+    private int searchDelta;
+
+    public ApiUsageDelta() {
+    }
+
+    public ApiUsageDelta(Long userId, long tokensDelta, int searchDelta) {
+        this.userId = userId;
+        this.tokensDelta = tokensDelta;
+        this.searchDelta = searchDelta;
+    }
+
+    public Long getUserId() {
+        return userId;
+    }
+
+    public void setUserId(Long userId) {
+        this.userId = userId;
+    }
+
+    public long getTokensDelta() {
+        return tokensDelta;
+    }
+
+    public void setTokensDelta(long tokensDelta) {
+        this.tokensDelta = tokensDelta;
+    }
+
+    public int getSearchDelta() {
+        return searchDelta;
+    }
+
+    public void setSearchDelta(int searchDelta) {
+        this.searchDelta = searchDelta;
+    }
+}
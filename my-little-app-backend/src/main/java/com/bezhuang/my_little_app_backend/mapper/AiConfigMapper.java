@@ -4,6 +4,8 @@ import com.bezhuang.my_little_app_backend.entity.AiConfig;
 import org.apache.ibatis.annotations.Mapper;
 import org.apache.ibatis.annotations.Param;
 
+import java.util.List;
+
 /**
  * AI 配置 Mapper
  */
@@ -15,6 +17,16 @@ public interface AiConfigMapper {
      */
     AiConfig selectByConfigKey(@Param("configKey") String configKey);
 
+    /**
+     * 获取全部配置（用于加载配置快照）
+     */
+    List<AiConfig> selectAll();
+
+    /**
+     * 配置表指纹（行数、最近更新时间、配置值校验和），用于轮询检测配置变更
+     */
+    String selectFingerprint();
+
     /**
      * 更新配置值
      */
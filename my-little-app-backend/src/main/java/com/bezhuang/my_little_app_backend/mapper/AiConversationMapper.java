@@ -0,0 +1,44 @@
+package com.bezhuang.my_little_app_backend.mapper;
+
+import com.bezhuang.my_little_app_backend.entity.AiConversation;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
+
+/**
+ * AI 对话 Mapper
+ */
+@Mapper
+public interface AiConversationMapper {
+
+    /**
+     * 插入对话
+     */
+    int insert(AiConversation conversation);
+
+    /**
+     * 根据对话ID查询用户的对话
+     */
+    AiConversation selectByKey(@Param("conversationKey") String conversationKey, @Param("userId") Long userId);
+
+    /**
+     * 按最近更新时间倒序分页（键集分页）
+     * @param beforeUpdatedAt 上一页最后一条的 updated_at，第一页为 null
+     * @param beforeId 上一页最后一条的 id，第一页为 null
+     */
+    List<AiConversation> selectPageByUser(@Param("userId") Long userId,
+                                          @Param("beforeUpdatedAt") String beforeUpdatedAt,
+                                          @Param("beforeId") Long beforeId,
+                                          @Param("limit") int limit);
+
+    /**
+     * 一轮对话结束：累加消息数，首轮写入标题，刷新更新时间
+     */
+    int updateAfterTurn(@Param("id") Long id, @Param("title") String title, @Param("addedCount") int addedCount);
+
+    /**
+     * 标记对话已结束
+     */
+    int updateEnded(@Param("id") Long id);
+}
@@ -0,0 +1,27 @@
+package com.bezhuang.my_little_app_backend.mapper;
+
+import com.bezhuang.my_little_app_backend.entity.AiMessage;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
+
+/**
+ * AI 对话消息 Mapper
+ */
+@Mapper
+public interface AiMessageMapper {
+
+    /**
+     * 批量插入（一轮对话的消息一次写入）
+     */
+    int insertBatch(@Param("messages") List<AiMessage> messages);
+
+    /**
+     * 按 id 倒序分页（键集分页）
+     * @param beforeId 只查询 id 小于该值的消息，第一页（最新消息）为 null
+     */
+    List<AiMessage> selectPage(@Param("conversationId") Long conversationId,
+                               @Param("beforeId") Long beforeId,
+                               @Param("limit") int limit);
+}
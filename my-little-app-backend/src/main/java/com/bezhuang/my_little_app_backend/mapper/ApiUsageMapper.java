@@ -1,9 +1,13 @@
 package com.bezhuang.my_little_app_backend.mapper;
 
 import com.bezhuang.my_little_app_backend.entity.ApiUsage;
+import com.bezhuang.my_little_app_backend.entity.ApiUsageDelta;
 import org.apache.ibatis.annotations.Mapper;
 import org.apache.ibatis.annotations.Param;
 
+import java.util.Collection;
+import java.util.List;
+
 /**
  * API使用配额 Mapper
  */
@@ -29,4 +33,24 @@ public interface ApiUsageMapper {
      * 更新搜索剩余数
      */
     int updateSearchRemaining(@Param("id") Long id, @Param("searchRemaining") Integer searchRemaining);
+
+    /**
+     * 批量查询
+     */
+    List<ApiUsage> selectByUserIds(@Param("userIds") Collection<Long> userIds);
+
+    /**
+     * 批量累加配额增量（单条 UPDATE），结果不低于 0
+     */
+    int applyDeltas(@Param("deltas") List<ApiUsageDelta> deltas);
+
+    /**
+     * 查询配额日志已写回的最后一个分段号，没有记录时返回 null
+     */
+    Long selectJournalCheckpoint(@Param("journalId") String journalId);
+
+    /**
+     * 记录配额日志已写回的最后一个分段号（与 applyDeltas 在同一事务中执行，只增不减）
+     */
+    int upsertJournalCheckpoint(@Param("journalId") String journalId, @Param("segment") long segment);
 }
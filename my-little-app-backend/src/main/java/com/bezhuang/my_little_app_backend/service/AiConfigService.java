@@ -4,16 +4,21 @@ import com.bezhuang.my_little_app_backend.entity.AiConfig;
 import com.bezhuang.my_little_app_backend.mapper.AiConfigMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.cache.annotation.CacheEvict;
-import org.springframework.cache.annotation.Cacheable;
+import com.bezhuang.my_little_app_backend.service.ai.AiConfigChangedEvent;
+import com.bezhuang.my_little_app_backend.service.ai.AiConfigSnapshot;
+import jakarta.annotation.PostConstruct;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * AI 配置服务
- * 从数据库读取和管理 AI 相关配置，支持 Redis 缓存
+ * 启动时将 ai_config 整表加载为不可变快照，读取配置只访问内存；
+ * 管理端修改配置后调用 {@link #reload()} 原子替换快照并发布 {@link AiConfigChangedEvent}
  */
 @Service
 public class AiConfigService {
@@ -21,6 +26,13 @@ public class AiConfigService {
     private static final Logger logger = LoggerFactory.getLogger(AiConfigService.class);
 
     private final AiConfigMapper aiConfigMapper;
+    private final ApplicationEventPublisher eventPublisher;
+
+    // 当前配置快照，整体替换，读取无锁
+    private volatile AiConfigSnapshot snapshot = AiConfigSnapshot.empty();
+    // 启动加载失败时，读取配置会按此间隔重试加载
+    private static final long RETRY_INTERVAL_MS = 5000;
+    private volatile long lastLoadAttemptAt;
 
     // DeepSeek 配置键
     private static final String DEEPSEEK_API_KEY = "deepseek_api_key";
@@ -30,6 +42,7 @@ public class AiConfigService {
     private static final String DEEPSEEK_BASE_URL = "deepseek_base_url";
     private static final String DEEPSEEK_MAX_TOKENS = "deepseek_max_tokens";
     private static final String DEEPSEEK_TEMPERATURE = "deepseek_temperature";
+    private static final String DEEPSEEK_CACHE_HIT_WEIGHT = "deepseek_cache_hit_weight";
 
     // SiliconFlow 配置键
     private static final String SILICONFLOW_API_KEY = "siliconflow_api_key";
@@ -44,68 +57,165 @@ public class AiConfigService {
     private static final String BOCHA_API_KEY = "bocha_api_key";
     private static final String BOCHA_ENABLED = "bocha_enabled";
     private static final String BOCHA_SEARCH_LIMIT = "bocha_search_limit";
+    private static final String BOCHA_CACHE_HIT_DEBIT = "bocha_cache_hit_debit";
+    private static final String BOCHA_BASE_URL = "bocha_base_url";
+
+    // 上游 HTTP 客户端配置键
+    private static final String UPSTREAM_CONNECT_TIMEOUT_MS = "upstream_connect_timeout_ms";
+    private static final String UPSTREAM_READ_TIMEOUT_SECONDS = "upstream_read_timeout_seconds";
+    private static final String UPSTREAM_WRITE_TIMEOUT_SECONDS = "upstream_write_timeout_seconds";
+    private static final String UPSTREAM_MAX_IN_MEMORY_MB = "upstream_max_in_memory_mb";
+    private static final String UPSTREAM_MAX_CONNECTIONS = "upstream_max_connections";
+    private static final String UPSTREAM_PENDING_ACQUIRE_MAX = "upstream_pending_acquire_max";
+
+    // 上下文压缩配置键后缀，按服务商加前缀，如 deepseek_context_budget_tokens
+    private static final String CONTEXT_BUDGET_TOKENS = "_context_budget_tokens";
+    private static final String CONTEXT_TOOL_OUTPUT_MAX_CHARS = "_context_tool_output_max_chars";
+    private static final String CONTEXT_SUMMARY_ENABLED = "_context_summary_enabled";
+
+    // 对话准入控制配置键后缀，按服务商加前缀，如 deepseek_max_concurrent
+    private static final String MAX_CONCURRENT = "_max_concurrent";
+    private static final String MAX_CONCURRENT_PER_USER = "_max_concurrent_per_user";
+    private static final String ADMISSION_QUEUE_SIZE = "_admission_queue_size";
+    private static final String ADMISSION_QUEUE_WAIT_MS = "_admission_queue_wait_ms";
+
+    // 服务商路由与熔断配置（故障转移、对冲请求按服务商前缀拼接，其余为全局配置）
+    private static final String FAILOVER_PROVIDER = "_failover_provider";
+    private static final String HEDGE_ENABLED = "_hedge_enabled";
+    private static final String ROUTER_MODEL_MAP = "router_model_map";
+    private static final String ROUTER_FAILURE_RATE_PERCENT = "router_failure_rate_percent";
+    private static final String ROUTER_MIN_CALLS = "router_min_calls";
+    private static final String ROUTER_OPEN_SECONDS = "router_open_seconds";
+
+    // 对话参数配置键
+    public static final String TEMPERATURE = "temperature";
+    public static final String SYSTEM_PROMPT = "system_prompt";
+
+    public AiConfigService(AiConfigMapper aiConfigMapper, ApplicationEventPublisher eventPublisher) {
+        this.aiConfigMapper = aiConfigMapper;
+        this.eventPublisher = eventPublisher;
+    }
 
-    // 缓存名称
-    private static final String CACHE_NAME = "aiConfig";
+    @PostConstruct
+    public void init() {
+        try {
+            reload();
+        } catch (Exception e) {
+            // 数据库暂不可用时先使用默认值启动，读取配置时会重试加载
+            logger.error("加载 AI 配置快照失败，暂时使用默认配置: {}", e.getMessage());
+        }
+    }
 
-    public AiConfigService(AiConfigMapper aiConfigMapper) {
-        this.aiConfigMapper = aiConfigMapper;
+    /**
+     * 从数据库重新加载全部配置并原子替换快照（本实例修改配置后调用）
+     * 有配置变化时发布 {@link AiConfigChangedEvent}，并由 {@link AiConfigSyncService} 通知其他实例
+     * @return 新快照
+     */
+    public AiConfigSnapshot reload() {
+        return reload(false);
+    }
+
+    /**
+     * 在一个事务中保存多项配置（已存在的更新值，不存在的连同描述插入），任一项失败时全部回滚
+     * 不刷新快照：调用方在事务提交后调用 {@link #reload()}，其他实例收到通知时能读到已提交的值
+     */
+    @Transactional
+    public void saveConfigs(List<AiConfig> configs) {
+        for (AiConfig config : configs) {
+            if (aiConfigMapper.selectByConfigKey(config.getConfigKey()) != null) {
+                aiConfigMapper.updateConfigValue(config.getConfigKey(), config.getConfigValue());
+            } else {
+                aiConfigMapper.insert(config);
+            }
+        }
+    }
+
+    /**
+     * 收到其他实例的配置变更通知后重新加载（不再向外广播）
+     */
+    public AiConfigSnapshot reloadOnRemoteChange() {
+        return reload(true);
+    }
+
+    private synchronized AiConfigSnapshot reload(boolean remote) {
+        lastLoadAttemptAt = System.currentTimeMillis();
+        List<AiConfig> rows = aiConfigMapper.selectAll();
+        AiConfigSnapshot previous = snapshot;
+        AiConfigSnapshot current = AiConfigSnapshot.of(rows, previous.getVersion() + 1);
+        snapshot = current;
+
+        AiConfigChangedEvent event = new AiConfigChangedEvent(this, previous, current, remote);
+        if (!event.getChangedKeys().isEmpty() || previous.getVersion() == 0) {
+            logger.info("AI 配置快照已加载: version={}, 配置数={}, 变更={}",
+                    current.getVersion(), current.size(), event.getChangedKeys());
+        }
+        if (!event.getChangedKeys().isEmpty()) {
+            eventPublisher.publishEvent(event);
+        }
+        return current;
+    }
+
+    /**
+     * 当前配置快照
+     */
+    public AiConfigSnapshot getSnapshot() {
+        AiConfigSnapshot current = snapshot;
+        if (current.getVersion() == 0
+                && System.currentTimeMillis() - lastLoadAttemptAt > RETRY_INTERVAL_MS) {
+            return retryLoad();
+        }
+        return current;
+    }
+
+    private synchronized AiConfigSnapshot retryLoad() {
+        // 等锁期间可能已被其他线程加载
+        if (snapshot.getVersion() == 0 && System.currentTimeMillis() - lastLoadAttemptAt > RETRY_INTERVAL_MS) {
+            try {
+                reload();
+            } catch (Exception e) {
+                logger.warn("重试加载 AI 配置快照失败: {}", e.getMessage());
+            }
+        }
+        return snapshot;
     }
 
     /**
      * 获取配置值，如果不存在则返回默认值
      */
-    @Cacheable(value = CACHE_NAME, key = "#configKey", unless = "#result == null")
     public String getConfig(String configKey, String defaultValue) {
-        logger.debug("从数据库读取配置: {}", configKey);
-        AiConfig config = aiConfigMapper.selectByConfigKey(configKey);
-        return config != null ? config.getConfigValue() : defaultValue;
+        String value = getSnapshot().get(configKey);
+        return value != null ? value : defaultValue;
     }
 
     /**
      * 获取配置值，如果不存在则返回空字符串
      */
-    @Cacheable(value = CACHE_NAME, key = "#configKey", unless = "#result == null")
     public String getConfig(String configKey) {
         return getConfig(configKey, "");
     }
 
-    /**
-     * 清除所有 AI 配置缓存
-     */
-    @CacheEvict(value = CACHE_NAME, allEntries = true)
-    public void clearCache() {
-        logger.info("已清除 AI 配置缓存");
-    }
-
     // ==================== DeepSeek 配置 ====================
 
-    @Cacheable(value = CACHE_NAME, key = "'" + DEEPSEEK_API_KEY + "'", unless = "#result == null")
     public String getDeepSeekApiKey() {
         return getConfig(DEEPSEEK_API_KEY, "");
     }
 
-    @Cacheable(value = CACHE_NAME, key = "'" + DEEPSEEK_MODEL + "'", unless = "#result == null")
     public String getDeepSeekModel() {
         return getConfig(DEEPSEEK_MODEL, "deepseek-chat");
     }
 
-    @Cacheable(value = CACHE_NAME, key = "'" + DEEPSEEK_REASONER_MODEL + "'", unless = "#result == null")
     public String getDeepSeekReasonerModel() {
         return getConfig(DEEPSEEK_REASONER_MODEL, "deepseek-reasoner");
     }
 
-    @Cacheable(value = CACHE_NAME, key = "'" + DEEPSEEK_ENABLED + "'", unless = "#result == null")
     public boolean isDeepSeekEnabled() {
         return "true".equalsIgnoreCase(getConfig(DEEPSEEK_ENABLED, "true"));
     }
 
-    @Cacheable(value = CACHE_NAME, key = "'" + DEEPSEEK_BASE_URL + "'", unless = "#result == null")
     public String getDeepSeekBaseUrl() {
         return getConfig(DEEPSEEK_BASE_URL, "https://api.deepseek.com");
     }
 
-    @Cacheable(value = CACHE_NAME, key = "'" + DEEPSEEK_MAX_TOKENS + "'", unless = "#result == null")
     public int getDeepSeekMaxTokens() {
         String value = getConfig(DEEPSEEK_MAX_TOKENS, "4096");
         try {
@@ -115,7 +225,6 @@ public class AiConfigService {
         }
     }
 
-    @Cacheable(value = CACHE_NAME, key = "'" + DEEPSEEK_TEMPERATURE + "'", unless = "#result == null")
     public double getDeepSeekTemperature() {
         String value = getConfig(DEEPSEEK_TEMPERATURE, "0.7");
         try {
@@ -125,34 +234,41 @@ public class AiConfigService {
         }
     }
 
+    /**
+     * 命中前缀缓存的输入 token 扣减配额时的折算系数（DeepSeek 缓存命中单价约为未命中的 1/10）
+     */
+    public double getDeepSeekCacheHitWeight() {
+        String value = getConfig(DEEPSEEK_CACHE_HIT_WEIGHT, "0.1");
+        try {
+            double weight = Double.parseDouble(value.trim());
+            return weight >= 0 && weight <= 1 ? weight : 1;
+        } catch (NumberFormatException e) {
+            return 0.1;
+        }
+    }
+
     // ==================== SiliconFlow 配置 ====================
 
-    @Cacheable(value = CACHE_NAME, key = "'" + SILICONFLOW_API_KEY + "'", unless = "#result == null")
     public String getSiliconFlowApiKey() {
         return getConfig(SILICONFLOW_API_KEY, "");
     }
 
-    @Cacheable(value = CACHE_NAME, key = "'" + SILICONFLOW_MODEL + "'", unless = "#result == null")
     public String getSiliconFlowModel() {
         return getConfig(SILICONFLOW_MODEL, "deepseek-ai/DeepSeek-V2.5");
     }
 
-    @Cacheable(value = CACHE_NAME, key = "'" + SILICONFLOW_REASONER_MODEL + "'", unless = "#result == null")
     public String getSiliconFlowReasonerModel() {
         return getConfig(SILICONFLOW_REASONER_MODEL, "deepseek-ai/DeepSeek-V2.5");
     }
 
-    @Cacheable(value = CACHE_NAME, key = "'" + SILICONFLOW_ENABLED + "'", unless = "#result == null")
     public boolean isSiliconFlowEnabled() {
         return "true".equalsIgnoreCase(getConfig(SILICONFLOW_ENABLED, "false"));
     }
 
-    @Cacheable(value = CACHE_NAME, key = "'" + SILICONFLOW_BASE_URL + "'", unless = "#result == null")
     public String getSiliconFlowBaseUrl() {
         return getConfig(SILICONFLOW_BASE_URL, "https://api.siliconflow.cn/v1");
     }
 
-    @Cacheable(value = CACHE_NAME, key = "'" + SILICONFLOW_MAX_TOKENS + "'", unless = "#result == null")
     public int getSiliconFlowMaxTokens() {
         String value = getConfig(SILICONFLOW_MAX_TOKENS, "4096");
         try {
@@ -162,7 +278,6 @@ public class AiConfigService {
         }
     }
 
-    @Cacheable(value = CACHE_NAME, key = "'" + SILICONFLOW_TEMPERATURE + "'", unless = "#result == null")
     public double getSiliconFlowTemperature() {
         String value = getConfig(SILICONFLOW_TEMPERATURE, "0.7");
         try {
@@ -174,17 +289,14 @@ public class AiConfigService {
 
     // ==================== Bocha 配置 ====================
 
-    @Cacheable(value = CACHE_NAME, key = "'" + BOCHA_API_KEY + "'", unless = "#result == null")
     public String getBochaApiKey() {
         return getConfig(BOCHA_API_KEY, "");
     }
 
-    @Cacheable(value = CACHE_NAME, key = "'" + BOCHA_ENABLED + "'", unless = "#result == null")
     public boolean isBochaEnabled() {
         return "true".equalsIgnoreCase(getConfig(BOCHA_ENABLED, "false"));
     }
 
-    @Cacheable(value = CACHE_NAME, key = "'" + BOCHA_SEARCH_LIMIT + "'", unless = "#result == null")
     public int getBochaSearchLimit() {
         String value = getConfig(BOCHA_SEARCH_LIMIT, "5");
         try {
@@ -194,12 +306,154 @@ public class AiConfigService {
         }
     }
 
+    public boolean isBochaCacheHitDebit() {
+        return "true".equalsIgnoreCase(getConfig(BOCHA_CACHE_HIT_DEBIT, "true"));
+    }
+
+    public String getBochaBaseUrl() {
+        return getConfig(BOCHA_BASE_URL, "https://api.bochaai.com");
+    }
+
+    // ==================== 上游 HTTP 客户端配置 ====================
+
+    public int getUpstreamConnectTimeoutMs() {
+        return getIntConfig(UPSTREAM_CONNECT_TIMEOUT_MS, 30000);
+    }
+
+    public int getUpstreamReadTimeoutSeconds() {
+        return getIntConfig(UPSTREAM_READ_TIMEOUT_SECONDS, 180);
+    }
+
+    public int getUpstreamWriteTimeoutSeconds() {
+        return getIntConfig(UPSTREAM_WRITE_TIMEOUT_SECONDS, 30);
+    }
+
+    public int getUpstreamMaxInMemoryMb() {
+        return getIntConfig(UPSTREAM_MAX_IN_MEMORY_MB, 10);
+    }
+
+    public int getUpstreamMaxConnections() {
+        return getIntConfig(UPSTREAM_MAX_CONNECTIONS, 200);
+    }
+
+    public int getUpstreamPendingAcquireMax() {
+        return getIntConfig(UPSTREAM_PENDING_ACQUIRE_MAX, 1000);
+    }
+
+    // ==================== 上下文压缩配置 ====================
+
+    /**
+     * 发往上游的消息估算 token 上限，超出时丢弃最早的轮次，0 表示不限制
+     * @param provider 服务商前缀，如 deepseek、siliconflow
+     */
+    public int getContextBudgetTokens(String provider) {
+        return getIntConfig(provider + CONTEXT_BUDGET_TOKENS, 16000);
+    }
+
+    /**
+     * 本轮较早的工具结果保留的最大字符数，0 表示不截断
+     */
+    public int getContextToolOutputMaxChars(String provider) {
+        return getIntConfig(provider + CONTEXT_TOOL_OUTPUT_MAX_CHARS, 2000);
+    }
+
+    /**
+     * 丢弃的轮次是否调用模型生成摘要
+     */
+    public boolean isContextSummaryEnabled(String provider) {
+        return "true".equalsIgnoreCase(getConfig(provider + CONTEXT_SUMMARY_ENABLED, "false"));
+    }
+
+    // ==================== 对话准入控制配置 ====================
+
+    /**
+     * 本实例同时进行的对话数上限
+     * @param provider 服务商前缀，如 deepseek、siliconflow
+     */
+    public int getMaxConcurrent(String provider) {
+        return getIntConfig(provider + MAX_CONCURRENT, 50);
+    }
+
+    /**
+     * 单个用户（匿名按 IP）同时进行的对话数上限，含排队中的请求
+     */
+    public int getMaxConcurrentPerUser(String provider) {
+        return getIntConfig(provider + MAX_CONCURRENT_PER_USER, 2);
+    }
+
+    /**
+     * 全局并发已满时最多排队的请求数，0 表示不排队直接拒绝
+     */
+    public int getAdmissionQueueSize(String provider) {
+        return getIntConfig(provider + ADMISSION_QUEUE_SIZE, 20);
+    }
+
+    /**
+     * 排队请求的最长等待时间（毫秒），超时返回繁忙提示
+     */
+    public int getAdmissionQueueWaitMs(String provider) {
+        return getIntConfig(provider + ADMISSION_QUEUE_WAIT_MS, 3000);
+    }
+
+    // ==================== 服务商路由与熔断配置 ====================
+
+    /**
+     * 服务商失败或熔断时转移到的服务商，空表示不转移
+     * @param provider 服务商前缀，如 deepseek、siliconflow
+     */
+    public String getFailoverProvider(String provider) {
+        return getConfig(provider + FAILOVER_PROVIDER, "").trim();
+    }
+
+    /**
+     * 是否在主服务商响应慢于其 p95 延迟时向故障转移服务商发出对冲请求（先响应者胜出，另一个取消）
+     */
+    public boolean isHedgeEnabled(String provider) {
+        return "true".equalsIgnoreCase(getConfig(provider + HEDGE_ENABLED, "false"));
+    }
+
+    /**
+     * 故障转移时的模型名映射，格式为 "源模型=目标模型"，多项以逗号分隔；
+     * 未配置的模型按对话模型 / 推理模型对应到目标服务商的默认模型
+     */
+    public String getRouterModelMap() {
+        return getConfig(ROUTER_MODEL_MAP, "");
+    }
+
+    /**
+     * 滑动窗口内失败率达到该百分比时熔断
+     */
+    public int getRouterFailureRatePercent() {
+        return getIntConfig(ROUTER_FAILURE_RATE_PERCENT, 50);
+    }
+
+    /**
+     * 滑动窗口内至少有多少次调用才计算失败率
+     */
+    public int getRouterMinCalls() {
+        return getIntConfig(ROUTER_MIN_CALLS, 10);
+    }
+
+    /**
+     * 熔断持续时间（秒），之后放行一个探测请求
+     */
+    public int getRouterOpenSeconds() {
+        return getIntConfig(ROUTER_OPEN_SECONDS, 30);
+    }
+
+    private int getIntConfig(String configKey, int defaultValue) {
+        String value = getConfig(configKey, String.valueOf(defaultValue));
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
     /**
-     * 获取所有 AI 配置（用于缓存预热）
+     * 获取所有 AI 配置
      */
-    @Cacheable(value = CACHE_NAME, key = "'all_config'", unless = "#result == null")
     public Map<String, Object> getAllConfig() {
-        logger.info("从数据库加载所有 AI 配置");
         Map<String, Object> config = new HashMap<>();
 
         // DeepSeek 配置
@@ -222,6 +476,16 @@ public class AiConfigService {
         config.put("bochaApiKey", getBochaApiKey());
         config.put("bochaEnabled", isBochaEnabled());
         config.put("bochaSearchLimit", getBochaSearchLimit());
+        config.put("bochaCacheHitDebit", isBochaCacheHitDebit());
+        config.put("bochaBaseUrl", getBochaBaseUrl());
+
+        // 上游 HTTP 客户端配置
+        config.put("upstreamConnectTimeoutMs", getUpstreamConnectTimeoutMs());
+        config.put("upstreamReadTimeoutSeconds", getUpstreamReadTimeoutSeconds());
+        config.put("upstreamWriteTimeoutSeconds", getUpstreamWriteTimeoutSeconds());
+        config.put("upstreamMaxInMemoryMb", getUpstreamMaxInMemoryMb());
+        config.put("upstreamMaxConnections", getUpstreamMaxConnections());
+        config.put("upstreamPendingAcquireMax", getUpstreamPendingAcquireMax());
 
         return config;
     }
@@ -0,0 +1,19 @@
+package com.bezhuang.my_little_app_backend.service;
+
+/**
+ * AI 配置多实例同步服务
+ * 多个后端实例部署时，某个实例修改配置后通知其余实例刷新配置快照。
+ * 启用 Redis 时通过 pub/sub 广播，未启用时轮询 ai_config 表的更新时间。
+ */
+public interface AiConfigSyncService {
+
+    /**
+     * 同步方式（redis-pubsub / db-polling）
+     */
+    String getMode();
+
+    /**
+     * 收到或检测到的配置变更次数（轮询模式下也包含本实例自己的修改）
+     */
+    long getRemoteChangeCount();
+}
@@ -2,23 +2,68 @@ package com.bezhuang.my_little_app_backend.service;
 
 import com.bezhuang.my_little_app_backend.entity.ApiUsage;
 import com.bezhuang.my_little_app_backend.mapper.ApiUsageMapper;
+import com.bezhuang.my_little_app_backend.service.ai.QuotaLedger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionOperations;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * API使用配额服务
+ * 余额保存在内存账本 {@link QuotaLedger} 中，扣减不再同步访问数据库，由账本批量写回 api_usage；
+ * Token 按"预留 - 结算"扣减：调用上游前原子预留估算用量，结束后按实际用量退回差额，
+ * 同一用户的并发对话不会透支；未结算的预留过期后由 {@code QuotaHoldSweeper} 退回
  */
 @Service
-public class ApiUsageService {
+public class ApiUsageService implements DisposableBean {
 
     private static final Logger logger = LoggerFactory.getLogger(ApiUsageService.class);
 
+    /**
+     * 最小回复长度：剩余配额扣除输入后连这么多输出都不够时，不再调用上游
+     */
+    public static final int MIN_COMPLETION_TOKENS = 256;
+
     private final ApiUsageMapper apiUsageMapper;
+    private final AiConfigService aiConfigService;
+    private final QuotaLedger quotaLedger;
+    private final long holdTtlMillis;
+    // 进行中的预留，结算、释放或过期退回时移除（只有移除成功的一方处理）
+    private final Map<Long, PendingHold> holds = new ConcurrentHashMap<>();
+    private final AtomicLong holdIds = new AtomicLong();
 
-    public ApiUsageService(ApiUsageMapper apiUsageMapper) {
+    public ApiUsageService(ApiUsageMapper apiUsageMapper, AiConfigService aiConfigService,
+                           TransactionOperations transactionOperations,
+                           @Value("${ai.quota.hold-ttl-seconds:600}") long holdTtlSeconds,
+                           @Value("${ai.quota.flush-interval-ms:500}") long flushIntervalMs,
+                           @Value("${ai.quota.refresh-interval-ms:5000}") long refreshIntervalMs,
+                           @Value("${ai.quota.journal-dir:data/quota-journal}") String journalDir,
+                           @Value("${ai.quota.idle-seconds:1800}") long idleSeconds) {
         this.apiUsageMapper = apiUsageMapper;
+        this.aiConfigService = aiConfigService;
+        this.holdTtlMillis = holdTtlSeconds * 1000;
+        this.quotaLedger = new QuotaLedger(apiUsageMapper, this::loadOrCreate, transactionOperations,
+                Path.of(journalDir), flushIntervalMs, refreshIntervalMs, idleSeconds * 1000);
+    }
+
+    /**
+     * 一次上游调用预留的 Token
+     * @param id 预留ID
+     * @param tokens 已从可用余额中扣下的 Token 数（估算输入 + maxTokens）
+     * @param maxTokens 本次调用可用的 max_tokens（剩余配额不足时已缩小）
+     */
+    public record TokenHold(Long id, Long userId, long tokens, int maxTokens) {
+    }
+
+    private record PendingHold(TokenHold hold, long expiresAt) {
     }
 
     /**
@@ -29,10 +74,16 @@ public class ApiUsageService {
     }
 
     /**
-     * 获取用户配额记录，不存在则创建
+     * 获取用户配额（内存账本中的当前值），不存在则创建
      */
-    @Transactional
     public ApiUsage getOrCreate(Long userId) {
+        return quotaLedger.snapshot(userId);
+    }
+
+    /**
+     * 从数据库加载配额记录，不存在则创建（账本首次访问该用户时调用）
+     */
+    private ApiUsage loadOrCreate(Long userId) {
         ApiUsage usage = apiUsageMapper.selectByUserId(userId);
         if (usage == null) {
             usage = new ApiUsage();
@@ -57,11 +108,30 @@ public class ApiUsageService {
     /**
      * 获取当月配额记录（兼容旧方法名）
      */
-    @Transactional
     public ApiUsage getOrCreateCurrentMonth(Long userId) {
         return getOrCreate(userId);
     }
 
+    /**
+     * 管理员设置剩余配额（为 null 的项不修改），经账本写回数据库
+     * @return 设置后的配额
+     */
+    public ApiUsage setQuota(Long userId, Long tokensRemaining, Integer searchRemaining) {
+        ApiUsage usage = quotaLedger.setQuota(userId, tokensRemaining, searchRemaining);
+        logger.info("设置用户 {} 配额: {} tokens, {} 次搜索", userId,
+                usage.getTokensRemaining(), usage.getSearchRemaining());
+        return usage;
+    }
+
+    /**
+     * 增加 Token（如签到奖励），经账本写回数据库
+     * @param cap 增加后的余额上限
+     * @return 实际增加的 Token 数（已达上限时为 0）
+     */
+    public long creditTokens(Long userId, long tokens, long cap) {
+        return quotaLedger.creditTokens(userId, tokens, cap);
+    }
+
     /**
      * 检查是否可以使用Token
      */
@@ -70,6 +140,115 @@ public class ApiUsageService {
         return usage.getTokensRemaining() != null && usage.getTokensRemaining() >= estimatedTokens;
     }
 
+    /**
+     * 剩余 Token 配额
+     */
+    public long getTokensRemaining(Long userId) {
+        Long remaining = getOrCreate(userId).getTokensRemaining();
+        return remaining != null ? remaining : 0;
+    }
+
+    /**
+     * 配额预检：按估算的输入 token 和剩余配额确定本次上游调用的 max_tokens
+     * 剩余配额足够时使用配置的 max_tokens，不够时缩小到扣除输入后的剩余量
+     * @return 可用的 max_tokens，不足以生成最小回复时返回 0（不应调用上游）
+     */
+    public static int preflightMaxTokens(long tokensRemaining, long estimatedPromptTokens, int maxTokens) {
+        long available = tokensRemaining - estimatedPromptTokens;
+        if (available < Math.min(MIN_COMPLETION_TOKENS, maxTokens)) {
+            return 0;
+        }
+        return (int) Math.min(maxTokens, available);
+    }
+
+    /**
+     * 调用上游前预留 Token：原子扣下估算输入 + max_tokens，剩余配额不够时按预检规则缩小 max_tokens 后重试一次
+     * @return 预留结果，剩余配额不足以生成最小回复时返回 null（不应调用上游）
+     */
+    public TokenHold reserveTokens(Long userId, long estimatedPromptTokens, int maxTokens) {
+        long tokens = estimatedPromptTokens + maxTokens;
+        if (!quotaLedger.tryHoldTokens(userId, tokens)) {
+            long remaining = getTokensRemaining(userId);
+            maxTokens = preflightMaxTokens(remaining, estimatedPromptTokens, maxTokens);
+            if (maxTokens <= 0) {
+                logger.warn("用户 {} Token不足，估算输入 {}，剩余 {}", userId, estimatedPromptTokens, remaining);
+                return null;
+            }
+            tokens = estimatedPromptTokens + maxTokens;
+            if (!quotaLedger.tryHoldTokens(userId, tokens)) {
+                logger.warn("用户 {} Token不足（并发对话已占用），需要 {}", userId, tokens);
+                return null;
+            }
+            logger.info("剩余配额 {}，估算输入 {}，max_tokens 缩小为 {}", remaining, estimatedPromptTokens, maxTokens);
+        }
+
+        TokenHold hold = new TokenHold(holdIds.incrementAndGet(), userId, tokens, maxTokens);
+        holds.put(hold.id(), new PendingHold(hold, System.currentTimeMillis() + holdTtlMillis));
+        logger.debug("用户 {} 预留 {} tokens（预留ID {}）", userId, tokens, hold.id());
+        return hold;
+    }
+
+    /**
+     * 按实际用量结算一次预留：退回多预留的部分，超出预留的部分补扣（剩余配额不低于 0）
+     * 预留已过期退回时，按实际用量直接扣减
+     * @param cacheHitTokens inputTokens 中命中上游前缀缓存的部分
+     * @return 实际扣减的 Token 数
+     */
+    public long settle(TokenHold hold, long inputTokens, long cacheHitTokens, long outputTokens) {
+        long charged = weightedInputTokens(hold.userId(), inputTokens, cacheHitTokens) + outputTokens;
+        if (holds.remove(hold.id()) != null) {
+            quotaLedger.settleHold(hold.userId(), hold.tokens(), charged);
+        } else if (charged > 0) {
+            quotaLedger.debitTokens(hold.userId(), charged);
+        }
+        logger.info("用户 {} 消耗 {} tokens（预留 {}）", hold.userId(), charged, hold.tokens());
+        return charged;
+    }
+
+    /**
+     * 释放预留，全部退回（上游调用失败）
+     * @return 是否退回（预留已被结算或已释放时返回 false）
+     */
+    public boolean releaseHold(TokenHold hold) {
+        if (holds.remove(hold.id()) == null) {
+            return false;
+        }
+        quotaLedger.releaseHold(hold.userId(), hold.tokens());
+        return true;
+    }
+
+    /**
+     * 退回已过期未结算的预留
+     * @return 退回的预留数
+     */
+    public int releaseExpiredHolds() {
+        long now = System.currentTimeMillis();
+        int released = 0;
+        for (Iterator<PendingHold> it = holds.values().iterator(); it.hasNext(); ) {
+            PendingHold pending = it.next();
+            if (pending.expiresAt() <= now && holds.remove(pending.hold().id(), pending)) {
+                quotaLedger.releaseHold(pending.hold().userId(), pending.hold().tokens());
+                logger.info("用户 {} 的预留已过期，退回 {} tokens", pending.hold().userId(), pending.hold().tokens());
+                released++;
+            }
+        }
+        return released;
+    }
+
+    /**
+     * 进行中的预留数
+     */
+    public int getHoldCount() {
+        return holds.size();
+    }
+
+    /**
+     * 配额账本（运行指标）
+     */
+    public QuotaLedger getQuotaLedger() {
+        return quotaLedger;
+    }
+
     /**
      * 检查是否可以使用搜索
      */
@@ -79,42 +258,54 @@ public class ApiUsageService {
     }
 
     /**
-     * 消耗Token配额
+     * 消耗Token配额，命中上游前缀缓存的输入 token 按折算系数计入
+     * @param cacheHitTokens inputTokens 中命中缓存的部分
+     * @return 是否成功消耗
+     */
+    public boolean consumeTokens(Long userId, long inputTokens, long cacheHitTokens, long outputTokens) {
+        return consumeTokens(userId, weightedInputTokens(userId, inputTokens, cacheHitTokens), outputTokens);
+    }
+
+    /**
+     * 消耗Token配额（余额不足时不扣）
      * @return 是否成功消耗
      */
-    @Transactional
     public boolean consumeTokens(Long userId, long inputTokens, long outputTokens) {
-        ApiUsage usage = getOrCreate(userId);
-        Long remaining = usage.getTokensRemaining();
-        if (remaining == null || remaining < inputTokens + outputTokens) {
-            logger.warn("用户 {} Token不足，需要 {}，剩余 {}", userId, inputTokens + outputTokens, remaining);
+        long tokens = inputTokens + outputTokens;
+        if (!quotaLedger.tryDebitTokens(userId, tokens)) {
+            logger.warn("用户 {} Token不足，需要 {}，剩余 {}", userId, tokens, getTokensRemaining(userId));
             return false;
         }
 
-        long newRemaining = remaining - inputTokens - outputTokens;
-        apiUsageMapper.updateTokensRemaining(usage.getId(), newRemaining);
-
-        logger.info("用户 {} 消耗 {} tokens，剩余 {}", userId, inputTokens + outputTokens, newRemaining);
+        logger.info("用户 {} 消耗 {} tokens", userId, tokens);
         return true;
     }
 
+    /**
+     * 命中上游前缀缓存的输入 token 按折算系数计入后的输入 token 数
+     */
+    private long weightedInputTokens(Long userId, long inputTokens, long cacheHitTokens) {
+        long hit = Math.max(0, Math.min(cacheHitTokens, inputTokens));
+        if (hit == 0) {
+            return inputTokens;
+        }
+        long weightedInput = inputTokens - hit
+                + (long) Math.ceil(hit * aiConfigService.getDeepSeekCacheHitWeight());
+        logger.debug("用户 {} 输入 {} tokens，其中缓存命中 {}，折算后 {}", userId, inputTokens, hit, weightedInput);
+        return weightedInput;
+    }
+
     /**
      * 消耗搜索次数
      * @return 是否成功消耗
      */
-    @Transactional
     public boolean consumeSearch(Long userId) {
-        ApiUsage usage = getOrCreate(userId);
-        Integer remaining = usage.getSearchRemaining();
-        if (remaining == null || remaining <= 0) {
+        if (!quotaLedger.tryDebitSearch(userId)) {
             logger.warn("用户 {} 搜索次数已用尽", userId);
             return false;
         }
 
-        int newRemaining = remaining - 1;
-        apiUsageMapper.updateSearchRemaining(usage.getId(), newRemaining);
-
-        logger.info("用户 {} 消耗1次搜索，剩余 {}", userId, newRemaining);
+        logger.info("用户 {} 消耗1次搜索", userId);
         return true;
     }
 
@@ -141,7 +332,14 @@ public class ApiUsageService {
      * @param checkSearch 是否检查搜索次数（仅在启用联网搜索时检查）
      */
     public String getQuotaWarning(Long userId, boolean checkSearch) {
-        ApiUsage usage = getOrCreate(userId);
+        return getQuotaWarning(getOrCreate(userId), checkSearch);
+    }
+
+    /**
+     * 根据已取得的配额生成配额不足的提示信息
+     * @param checkSearch 是否检查搜索次数（仅在启用联网搜索时检查）
+     */
+    public String getQuotaWarning(ApiUsage usage, boolean checkSearch) {
         StringBuilder sb = new StringBuilder();
         boolean hasQuota = false;
 
@@ -169,4 +367,12 @@ public class ApiUsageService {
     public String getQuotaWarning(Long userId) {
         return getQuotaWarning(userId, false);
     }
+
+    /**
+     * 停止写回线程，把未写回的变更写回数据库
+     */
+    @Override
+    public void destroy() {
+        quotaLedger.close();
+    }
 }
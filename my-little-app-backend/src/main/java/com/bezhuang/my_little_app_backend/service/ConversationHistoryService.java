@@ -0,0 +1,216 @@
+package com.bezhuang.my_little_app_backend.service;
+
+import com.bezhuang.my_little_app_backend.entity.AiConversation;
+import com.bezhuang.my_little_app_backend.entity.AiMessage;
+import com.bezhuang.my_little_app_backend.mapper.AiConversationMapper;
+import com.bezhuang.my_little_app_backend.mapper.AiMessageMapper;
+import com.bezhuang.my_little_app_backend.service.ai.Conversation;
+import com.bezhuang.my_little_app_backend.util.DeflateUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * AI 对话持久化服务
+ * 登录用户的对话写入 ai_conversation / ai_message 表，换设备后仍可查看；
+ * 消息正文 deflate 压缩存储，每轮结束时一次批量写入；列表和消息均使用键集分页，查询开销与历史总量无关
+ */
+@Service
+public class ConversationHistoryService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConversationHistoryService.class);
+
+    /**
+     * 从数据库恢复对话时加载的最近消息数（覆盖最大对话轮数）
+     */
+    private static final int HISTORY_LOAD_LIMIT = 100;
+
+    /**
+     * 分页大小上限
+     */
+    private static final int MAX_PAGE_SIZE = 100;
+
+    private static final String CURSOR_SEPARATOR = "_";
+
+    private final AiConversationMapper conversationMapper;
+    private final AiMessageMapper messageMapper;
+
+    public ConversationHistoryService(AiConversationMapper conversationMapper, AiMessageMapper messageMapper) {
+        this.conversationMapper = conversationMapper;
+        this.messageMapper = messageMapper;
+    }
+
+    /**
+     * 保存新对话
+     * @return ai_conversation 表主键
+     */
+    public Long create(String conversationKey, Long userId) {
+        AiConversation record = new AiConversation();
+        record.setConversationKey(conversationKey);
+        record.setUserId(userId);
+        conversationMapper.insert(record);
+        return record.getId();
+    }
+
+    /**
+     * 一轮对话结束：用户消息和回复一次批量插入，并更新对话的消息数和时间
+     */
+    @Transactional
+    public void saveTurn(Long recordId, String title, String userMessage, String assistantMessage) {
+        List<AiMessage> messages = List.of(
+                toRecord(recordId, "user", userMessage),
+                toRecord(recordId, "assistant", assistantMessage));
+        messageMapper.insertBatch(messages);
+        conversationMapper.updateAfterTurn(recordId, title, messages.size());
+    }
+
+    public void end(Long recordId) {
+        conversationMapper.updateEnded(recordId);
+    }
+
+    /**
+     * 从数据库恢复对话（进程内和 Redis 中都没有时）
+     * @return 不存在或不属于该用户时返回 null
+     */
+    public Conversation load(String conversationKey, Long userId) {
+        AiConversation record = conversationMapper.selectByKey(conversationKey, userId);
+        if (record == null) {
+            return null;
+        }
+
+        List<AiMessage> page = messageMapper.selectPage(record.getId(), null, HISTORY_LOAD_LIMIT);
+        List<Map<String, String>> messages = new ArrayList<>(page.size());
+        // 查询结果按 id 倒序，恢复为时间正序
+        for (int i = page.size() - 1; i >= 0; i--) {
+            AiMessage message = page.get(i);
+            Map<String, String> item = new LinkedHashMap<>();
+            item.put("role", message.getRole());
+            item.put("content", decode(message));
+            messages.add(item);
+        }
+
+        Conversation conversation = new Conversation(conversationKey, userId);
+        conversation.setRecordId(record.getId());
+        conversation.setTitle(record.getTitle());
+        conversation.setMessages(messages);
+        conversation.setEnded(Boolean.TRUE.equals(record.getEnded()));
+        conversation.setCreatedAt(toMillis(record.getCreatedAt()));
+        conversation.setUpdatedAt(toMillis(record.getUpdatedAt()));
+        logger.info("从数据库恢复对话: {}, 消息数: {}", conversationKey, messages.size());
+        return conversation;
+    }
+
+    /**
+     * 用户的对话列表，按最近更新时间倒序
+     * @param cursor 上一页返回的 nextCursor，第一页为 null
+     * @return list：对话概要；nextCursor：下一页游标，没有更多时为 null
+     */
+    public Map<String, Object> listConversations(Long userId, String cursor, int size) {
+        int limit = pageSize(size);
+        String beforeUpdatedAt = null;
+        Long beforeId = null;
+        if (cursor != null && !cursor.isBlank()) {
+            int separator = cursor.lastIndexOf(CURSOR_SEPARATOR);
+            if (separator > 0) {
+                try {
+                    beforeId = Long.parseLong(cursor.substring(separator + 1));
+                    beforeUpdatedAt = cursor.substring(0, separator);
+                } catch (NumberFormatException e) {
+                    logger.warn("无效的对话列表游标: {}", cursor);
+                }
+            }
+        }
+
+        List<AiConversation> records = conversationMapper.selectPageByUser(userId, beforeUpdatedAt, beforeId, limit);
+        List<Map<String, Object>> list = new ArrayList<>(records.size());
+        for (AiConversation record : records) {
+            list.add(toSummary(record));
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("list", list);
+        if (records.size() == limit) {
+            AiConversation last = records.get(records.size() - 1);
+            result.put("nextCursor", last.getUpdatedAt() + CURSOR_SEPARATOR + last.getId());
+        } else {
+            result.put("nextCursor", null);
+        }
+        return result;
+    }
+
+    /**
+     * 对话消息，每页按时间正序返回
+     * @param beforeId 上一页返回的 nextBeforeId，第一页（最新消息）为 null
+     * @return list：消息；nextBeforeId：更早一页的游标，没有更多时为 null
+     */
+    public Map<String, Object> listMessages(Long recordId, Long beforeId, int size) {
+        int limit = pageSize(size);
+        List<AiMessage> page = messageMapper.selectPage(recordId, beforeId, limit);
+        List<Map<String, Object>> list = new ArrayList<>(page.size());
+        for (int i = page.size() - 1; i >= 0; i--) {
+            AiMessage message = page.get(i);
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("id", message.getId());
+            item.put("role", message.getRole());
+            item.put("content", decode(message));
+            item.put("createdAt", message.getCreatedAt());
+            list.add(item);
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("list", list);
+        result.put("nextBeforeId", page.size() == limit ? page.get(page.size() - 1).getId() : null);
+        return result;
+    }
+
+    private static AiMessage toRecord(Long recordId, String role, String content) {
+        String text = content != null ? content : "";
+        AiMessage message = new AiMessage();
+        message.setConversationId(recordId);
+        message.setRole(role);
+        message.setContent(DeflateUtil.compress(text));
+        message.setContentLength(text.getBytes(StandardCharsets.UTF_8).length);
+        return message;
+    }
+
+    private static String decode(AiMessage message) {
+        return DeflateUtil.decompress(message.getContent(),
+                message.getContentLength() != null ? message.getContentLength() : 0);
+    }
+
+    private static Map<String, Object> toSummary(AiConversation record) {
+        int messageCount = record.getMessageCount() != null ? record.getMessageCount() : 0;
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("id", record.getConversationKey());
+        summary.put("title", record.getTitle() != null ? record.getTitle() : "新对话");
+        summary.put("messageCount", messageCount);
+        summary.put("rounds", messageCount / 2);
+        summary.put("ended", Boolean.TRUE.equals(record.getEnded()));
+        summary.put("createdAt", toMillis(record.getCreatedAt()));
+        summary.put("updatedAt", toMillis(record.getUpdatedAt()));
+        return summary;
+    }
+
+    private static int pageSize(int size) {
+        return Math.max(1, Math.min(size, MAX_PAGE_SIZE));
+    }
+
+    private static long toMillis(String datetime) {
+        if (datetime == null || datetime.isBlank()) {
+            return 0L;
+        }
+        try {
+            return Timestamp.valueOf(datetime).getTime();
+        } catch (IllegalArgumentException e) {
+            return 0L;
+        }
+    }
+}
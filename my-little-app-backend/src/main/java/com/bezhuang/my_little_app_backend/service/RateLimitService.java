@@ -0,0 +1,35 @@
+package com.bezhuang.my_little_app_backend.service;
+
+/**
+ * 请求限流服务接口（令牌桶，按 key 限流，如匿名接口按客户端 IP）
+ * 启用 Redis 时多个实例共享同一组令牌桶，未启用时每个实例各自在内存中限流
+ */
+public interface RateLimitService {
+
+    /**
+     * 尝试消耗 key 对应令牌桶中的一个令牌
+     * @param key 限流键（如客户端 IP）
+     * @return 是否放行
+     */
+    boolean tryAcquire(String key);
+
+    /**
+     * 限流方式（local / redis-lua）
+     */
+    String getMode();
+
+    /**
+     * 本实例内存中的令牌桶数（Redis 模式下为降级时使用的本地桶数）
+     */
+    int getBucketCount();
+
+    /**
+     * 放行次数
+     */
+    long getAllowedCount();
+
+    /**
+     * 拒绝次数
+     */
+    long getRejectedCount();
+}
@@ -1,36 +1,35 @@
 package com.bezhuang.my_little_app_backend.service;
 
+import com.bezhuang.my_little_app_backend.config.TraceIdFilter;
 import com.bezhuang.my_little_app_backend.config.ai.SiliconFlowConfig;
-import com.bezhuang.my_little_app_backend.entity.AiConfig;
-import com.bezhuang.my_little_app_backend.mapper.AiConfigMapper;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.bezhuang.my_little_app_backend.service.ai.AiBulkhead;
+import com.bezhuang.my_little_app_backend.service.ai.AiChatExecutor;
+import com.bezhuang.my_little_app_backend.service.ai.AiMetrics;
+import com.bezhuang.my_little_app_backend.service.ai.ChatCompletionDecoder;
+import com.bezhuang.my_little_app_backend.service.ai.ChatStreamAccumulator;
+import com.bezhuang.my_little_app_backend.service.ai.ContextCompactor;
+import com.bezhuang.my_little_app_backend.service.ai.Conversation;
+import com.bezhuang.my_little_app_backend.service.ai.ConversationStore;
+import com.bezhuang.my_little_app_backend.service.ai.LlmProvider;
+import com.bezhuang.my_little_app_backend.service.ai.LlmRouter;
+import com.bezhuang.my_little_app_backend.service.ai.PromptFragments;
+import com.bezhuang.my_little_app_backend.service.ai.SseConnectionRegistry;
+import com.bezhuang.my_little_app_backend.service.ai.SseEventWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatusCode;
-import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.reactive.function.client.WebClientResponseException;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.security.cert.X509Certificate;
-import java.time.Duration;
+import java.io.UncheckedIOException;
 import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import reactor.core.Disposable;
 import reactor.core.publisher.Mono;
 import reactor.util.retry.Retry;
-import io.netty.channel.ChannelOption;
-import org.springframework.http.client.reactive.ReactorClientHttpConnector;
-import reactor.netty.http.client.HttpClient;
 
 /**
  * 硅基流动 API 服务
@@ -42,68 +41,75 @@ public class SiliconFlowService {
     private static final Logger logger = LoggerFactory.getLogger(SiliconFlowService.class);
     private static final int MAX_CONVERSATION_ROUNDS = 20;
     private static final int MAX_TOOL_CALLS = 3;
+    private static final String DEFAULT_SYSTEM_PROMPT = "你是 Bezhuang AI，一个智能助手。请用简洁清晰的中文回答用户问题。";
 
     private final SiliconFlowConfig config;
-    private final AiConfigMapper aiConfigMapper;
+    private final AiConfigService aiConfigService;
     private final ToolService toolService;
-    private final WebClient webClient;
-    private final ObjectMapper objectMapper;
-
-    public SiliconFlowService(SiliconFlowConfig config, AiConfigMapper aiConfigMapper,
-                               ToolService toolService, ObjectMapper objectMapper) {
+    private final AiChatExecutor aiChatExecutor;
+    private final SseConnectionRegistry sseConnectionRegistry;
+    private final LlmRouter llmRouter;
+    private final PromptFragments promptFragments;
+    private final ConversationStore conversationStore;
+    private final ContextCompactor contextCompactor;
+    private final AiMetrics aiMetrics;
+
+    public SiliconFlowService(SiliconFlowConfig config, AiConfigService aiConfigService,
+                               ToolService toolService,
+                               AiChatExecutor aiChatExecutor, SseConnectionRegistry sseConnectionRegistry,
+                               LlmRouter llmRouter, PromptFragments promptFragments,
+                               ConversationStore conversationStore, ContextCompactor contextCompactor,
+                               AiMetrics aiMetrics) {
         this.config = config;
-        this.aiConfigMapper = aiConfigMapper;
+        this.aiConfigService = aiConfigService;
         this.toolService = toolService;
-        this.objectMapper = objectMapper;
+        this.aiChatExecutor = aiChatExecutor;
+        this.sseConnectionRegistry = sseConnectionRegistry;
+        this.llmRouter = llmRouter;
+        this.promptFragments = promptFragments;
+        this.conversationStore = conversationStore;
+        this.contextCompactor = contextCompactor;
+        this.aiMetrics = aiMetrics;
+    }
 
-        // 创建信任所有证书的 SSL 上下文
-        try {
-            SSLContext sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(null, new TrustManager[] { new X509TrustManager() {
-                public void checkClientTrusted(X509Certificate[] chain, String authType) {}
-                public void checkServerTrusted(X509Certificate[] chain, String authType) {}
-                public X509Certificate[] getAcceptedIssuers() { return new X509Certificate[0]; }
-            }}, null);
-
-            this.webClient = WebClient.builder()
-                    .baseUrl(config.getBaseUrl())
-                    .defaultHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
-                    .defaultHeader("Accept", "text/event-stream")
-                    .codecs(configurer -> configurer
-                            .defaultCodecs()
-                            .maxInMemorySize(10 * 1024 * 1024))
-                    .clientConnector(new ReactorClientHttpConnector(HttpClient.create()
-                            .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 30000) // 连接超时30秒
-                            .responseTimeout(Duration.ofSeconds(180)))) // 响应超时180秒
-                    .build();
-        } catch (Exception e) {
-            logger.error("创建 WebClient 失败", e);
-            throw new RuntimeException("Failed to create WebClient", e);
-        }
+    /**
+     * 创建匿名对话（默认模型无需登录）
+     */
+    public Conversation createConversation() {
+        return conversationStore.create(null);
     }
 
     /**
      * 同步聊天（默认模型，无需登录）
      * @param userMessage 用户消息
-     * @param history 历史消息
+     * @param history 历史消息（指定 conversationId 时忽略）
+     * @param conversationId 服务端对话 ID，为 null 时使用客户端提交的历史消息
      * @param enableDeepThink 是否启用深度思考
      * @param enableWebSearch 是否启用联网搜索
      */
-    public Map<String, Object> chat(String userMessage, List<Map<String, Object>> history,
+    public Map<String, Object> chat(String userMessage, List<Map<String, Object>> history, String conversationId,
                                      boolean enableDeepThink, boolean enableWebSearch) {
-        logger.info("========== SiliconFlow 聊天请求 ==========");
-        logger.info("enableDeepThink: {}, enableWebSearch: {}", enableDeepThink, enableWebSearch);
+        logger.info("SiliconFlow 聊天请求: enableDeepThink: {}, enableWebSearch: {}", enableDeepThink, enableWebSearch);
+
+        Conversation conversation = null;
+        if (conversationId != null) {
+            conversation = conversationStore.get(conversationId, null);
+            String invalid = checkConversation(conversation);
+            if (invalid != null) {
+                Map<String, Object> error = new LinkedHashMap<>();
+                error.put("success", false);
+                error.put("message", invalid);
+                return error;
+            }
+            history = conversation.getHistory();
+        }
 
+        AiMetrics.ChatObservation observation = aiMetrics.startChat(LlmProvider.SILICONFLOW);
         try {
             List<Map<String, Object>> messages = new ArrayList<>();
 
-            // 系统提示 - 从数据库获取
-            String systemPrompt = getSystemPrompt(enableWebSearch);
-            logger.info("System Prompt: {}", systemPrompt);
-            messages.add(Map.of(
-                    "role", "system",
-                    "content", systemPrompt
-            ));
+            // 系统提示 - 每个配置版本预编译一次（SiliconFlow 只使用本地工具，不包含 web_search）
+            messages.add(promptFragments.get(DEFAULT_SYSTEM_PROMPT, false).getSystemMessage());
 
             // 历史消息
             if (history != null) {
@@ -118,15 +124,14 @@ public class SiliconFlowService {
 
             // 获取温度配置
             double temperature = getTemperatureFromDb();
-            logger.info("Temperature: {}", temperature);
 
             // 使用默认模型
             String selectedModel = config.getModel();
-            logger.info("选用的模型: {}", selectedModel);
-            logger.info("Messages count: {}", messages.size());
+            logger.debug("模型: {}, Temperature: {}, Messages count: {}", selectedModel, temperature, messages.size());
 
             // 执行工具调用流程
-            SiliconFlowToolCallResult result = executeWithToolCalls(messages, selectedModel, temperature, enableDeepThink, enableWebSearch);
+            SiliconFlowToolCallResult result = executeWithToolCalls(messages, selectedModel, temperature, enableDeepThink,
+                    enableWebSearch, observation);
 
             String content = result.response;
             String thinking = result.thinking;
@@ -134,6 +139,11 @@ public class SiliconFlowService {
 
             logger.info("响应内容长度: {}, 思考过程长度: {}, 搜索链接数: {}", content.length(), thinking.length(), searchLinks.size());
 
+            // 保存到服务端对话
+            if (conversation != null && !result.isError) {
+                conversationStore.appendTurn(conversation, userMessage, content);
+            }
+
             Map<String, Object> resultMap = new LinkedHashMap<>();
             resultMap.put("success", true);
             resultMap.put("response", content);
@@ -157,19 +167,43 @@ public class SiliconFlowService {
             }
             error.put("message", "AI 响应失败: " + (errorMessage != null ? errorMessage : "未知错误"));
             return error;
+        } finally {
+            observation.finish();
+        }
+    }
+
+    /**
+     * 异步同步聊天：在 AI 对话线程池中执行 chat，线程池已满时直接返回繁忙提示
+     */
+    public CompletableFuture<Map<String, Object>> chatAsync(String userMessage, List<Map<String, Object>> history,
+                                                            String conversationId,
+                                                            boolean enableDeepThink, boolean enableWebSearch) {
+        try {
+            return aiChatExecutor.supplyAsync(() -> chat(userMessage, history, conversationId,
+                    enableDeepThink, enableWebSearch));
+        } catch (RejectedExecutionException e) {
+            logger.warn("AI 对话线程池已满，拒绝 SiliconFlow 同步请求");
+            Map<String, Object> busy = new LinkedHashMap<>();
+            busy.put("success", false);
+            busy.put("message", AiChatExecutor.BUSY_MESSAGE);
+            return CompletableFuture.completedFuture(busy);
         }
     }
 
     /**
      * 流式聊天
+     * 上游以 stream=true 调用，构建请求在 AI 对话线程池中执行，数据块到达即转发，不占用请求线程
+     * @param permit 准入许可，连接关闭时归还
      */
-    public SseEmitter chatStream(String userMessage, List<Map<String, Object>> history,
-                                  SseEmitter emitter, boolean enableDeepThink, boolean enableWebSearch) {
-        logger.info("========== SiliconFlow 流式请求 ==========");
+    public SseEmitter chatStream(String userMessage, List<Map<String, Object>> history, String conversationId,
+                                  SseEmitter emitter, boolean enableDeepThink, boolean enableWebSearch,
+                                  AiBulkhead.Permit permit) {
+        logger.debug("========== SiliconFlow 流式请求 ==========");
 
         if (userMessage == null || userMessage.trim().isEmpty()) {
+            permit.release();
             try {
-                emitter.send(SseEmitter.event().name("error").data("{\"error\": \"消息不能为空\"}"));
+                emitter.send(SseEventWriter.error("消息不能为空"));
                 emitter.complete();
             } catch (IOException e) {
                 logger.error("发送空消息错误失败", e);
@@ -177,242 +211,206 @@ public class SiliconFlowService {
             return emitter;
         }
 
-        SseEmitter sseEmitter = new SseEmitter(300000L);
-
-        // 心跳定时器
-        ScheduledExecutorService heartbeatScheduler = Executors.newScheduledThreadPool(1);
-        Runnable heartbeatTask = () -> {
-            try {
-                sseEmitter.send(SseEmitter.event().name("heartbeat").data(": keepalive\n\n"));
-            } catch (IOException e) {
-                logger.debug("心跳发送失败，连接可能已关闭");
-            }
-        };
-        heartbeatScheduler.scheduleAtFixedRate(heartbeatTask, 30, 30, TimeUnit.SECONDS);
-
-        sseEmitter.onTimeout(() -> {
-            heartbeatScheduler.shutdown();
-            try {
-                sseEmitter.send(SseEmitter.event().name("error").data("{\"error\": \"请求超时\"}"));
-            } catch (IOException e) {
-                logger.error("发送超时错误失败", e);
-            }
-            sseEmitter.complete();
-        });
-
-        sseEmitter.onError(e -> {
-            heartbeatScheduler.shutdown();
-            logger.error("SSE 连接错误: {}", e.getMessage());
-        });
-
-        try {
-            List<Map<String, Object>> messages = new ArrayList<>();
-
-            // 系统提示 - 从数据库获取
-            String systemPrompt = getSystemPrompt(enableWebSearch);
-            logger.info("System Prompt: {}", systemPrompt);
-            messages.add(Map.of(
-                    "role", "system",
-                    "content", systemPrompt
-            ));
-
-            // 历史消息
-            if (history != null) {
-                messages.addAll(history);
+        Conversation conversation = conversationId != null ? conversationStore.get(conversationId, null) : null;
+        if (conversationId != null) {
+            String invalid = checkConversation(conversation);
+            if (invalid != null) {
+                permit.release();
+                try {
+                    emitter.send(SseEventWriter.warning(invalid));
+                    emitter.complete();
+                } catch (IOException e) {
+                    logger.error("发送对话校验提示失败", e);
+                }
+                return emitter;
             }
+        }
+        List<Map<String, Object>> priorMessages = conversation != null ? conversation.getHistory() : history;
 
-            // 用户消息
-            Map<String, Object> userMsg = new LinkedHashMap<>();
-            userMsg.put("role", "user");
-            userMsg.put("content", userMessage);
-            messages.add(userMsg);
-
-            // 获取温度配置
-            double temperature = getTemperatureFromDb();
-            logger.info("Temperature: {}", temperature);
+        // 心跳、超时和断开由全局 SSE 连接注册表统一处理
+        SseConnectionRegistry.SseConnection connection = sseConnectionRegistry.register(emitter);
+        connection.onClose(permit::release);
 
-            // 构建请求
-            String selectedModel = config.getModel();
-            logger.info("选用的模型: {}", selectedModel);
-            logger.info("深度思考模式: {}", enableDeepThink);
-
-            Map<String, Object> requestBody = new LinkedHashMap<>();
-            requestBody.put("model", selectedModel);
-            requestBody.put("messages", messages);
-            requestBody.put("max_tokens", config.getMaxTokens());
-            requestBody.put("temperature", temperature);
-            requestBody.put("stream", false);  // 非流式输出
-
-            // 免费模型 支持 enable_thinking 参数开启思考模式
-            if (enableDeepThink) {
-                requestBody.put("enable_thinking", true);
-                requestBody.put("thinking_budget", 4096);
-                logger.info("已添加 enable_thinking 参数");
-            }
+        ChatStreamAccumulator accumulator = new ChatStreamAccumulator();
+        String traceId = TraceIdFilter.currentTraceId();
+        AiMetrics.ChatObservation observation = aiMetrics.startChat(LlmProvider.SILICONFLOW);
+        LlmRouter.Route route = new LlmRouter.Route();
 
-            sseEmitter.send(SseEmitter.event().name("start").data("{\"type\": \"start\"}"));
+        // 系统提示 - 每个配置版本预编译一次（SiliconFlow 只使用本地工具，不包含 web_search）
+        PromptFragments.Compiled prompt = promptFragments.get(DEFAULT_SYSTEM_PROMPT, false);
 
-            // 调用 API
-            logger.info("Messages count: {}", messages.size());
-            logger.info("开始调用 SiliconFlow API, Model: {}", selectedModel);
-            String response = webClient.post()
-                    .uri("/chat/completions")
-                    .header("Authorization", "Bearer " + config.getApiKey())
-                    .bodyValue(requestBody)
-                    .retrieve()
-                    .bodyToMono(String.class)
-                    .timeout(Duration.ofSeconds(180))
-                    .block();
-
-            JsonNode root = objectMapper.readTree(response);
-            JsonNode choice = root.path("choices").get(0);
-            JsonNode message = choice.path("message");
-
-            // 获取思考过程
-            JsonNode reasoning = message.path("reasoning_content");
-            String thinking = "";
-            if (!reasoning.isNull() && !reasoning.asText().isEmpty()) {
-                thinking = reasoning.asText().trim();
-                // 发送思考过程
-                try {
-                    sseEmitter.send(SseEmitter.event().name("reasoning")
-                            .data("{\"reasoning\": \"" + escapeJson(thinking) + "\"}"));
-                } catch (IOException e) {
-                    logger.error("发送 reasoning 失败", e);
-                }
-            }
+        // 读取配置、构建请求在 AI 对话线程池中执行，请求线程立即返回 emitter
+        Disposable upstream = Mono.fromCallable(() -> {
+                    List<Map<String, Object>> messages = new ArrayList<>();
+                    messages.add(prompt.getSystemMessage());
 
-            String content = message.path("content").asText("");
-
-            // 发送内容（模拟打字机效果）
-            if (!content.isEmpty()) {
-                // 分段发送，每段约 20 字符
-                int chunkSize = 20;
-                for (int i = 0; i < content.length(); i += chunkSize) {
-                    int end = Math.min(i + chunkSize, content.length());
-                    String chunk = content.substring(i, end);
-                    try {
-                        sseEmitter.send(SseEmitter.event().name("token")
-                                .data("{\"token\": \"" + escapeJson(chunk) + "\"}"));
-                        Thread.sleep(30); // 打字机延迟
-                    } catch (IOException | InterruptedException e) {
-                        logger.error("发送 token 失败", e);
-                        break;
+                    // 历史消息
+                    if (priorMessages != null) {
+                        messages.addAll(priorMessages);
                     }
-                }
-            }
 
-            // 完成
-            heartbeatScheduler.shutdown();
-            sseEmitter.send(SseEmitter.event().name("complete").data("{\"type\": \"complete\"}"));
-            sseEmitter.complete();
-            logger.info("========== SiliconFlow 流式请求正常结束 ==========");
+                    // 用户消息
+                    Map<String, Object> userMsg = new LinkedHashMap<>();
+                    userMsg.put("role", "user");
+                    userMsg.put("content", userMessage);
+                    messages.add(userMsg);
+
+                    emitter.send(SseEventWriter.start(traceId));
+                    return messages;
+                })
+                .subscribeOn(aiChatExecutor.scheduler())
+                // 按上下文预算压缩（需要摘要时异步调用上游，不占用对话线程；匿名对话没有配额事件，节省量只计入统计）
+                .flatMap(messages -> contextCompactor.compact(LlmProvider.SILICONFLOW, messages,
+                        this::summarizeHistory))
+                .map(context -> {
+                    // 获取温度配置
+                    double temperature = getTemperatureFromDb();
+
+                    // 构建请求
+                    String selectedModel = config.getModel();
+                    logger.debug("模型: {}, Temperature: {}, 深度思考模式: {}", selectedModel, temperature,
+                            enableDeepThink);
+
+                    Map<String, Object> requestBody = new LinkedHashMap<>();
+                    requestBody.put("model", selectedModel);
+                    requestBody.put("messages", prompt.messagesValue(context.messages()));
+                    requestBody.put("max_tokens", config.getMaxTokens());
+                    requestBody.put("temperature", temperature);
+                    requestBody.put("stream", true);
+                    requestBody.put("stream_options", Map.of("include_usage", true));
+
+                    // 免费模型 支持 enable_thinking 参数开启思考模式
+                    if (enableDeepThink) {
+                        requestBody.put("enable_thinking", true);
+                        requestBody.put("thinking_budget", 4096);
+                    }
 
-        } catch (Exception e) {
-            logger.error("SiliconFlow API 调用失败", e);
-            heartbeatScheduler.shutdown();
-            try {
-                sseEmitter.send(SseEmitter.event().name("error")
-                        .data("{\"error\": \"" + escapeJson(e.getMessage()) + "\"}"));
-            } catch (IOException ex) {
-                logger.error("发送错误事件失败", ex);
-            }
-            sseEmitter.completeWithError(e);
-        }
+                    logger.debug("开始调用 SiliconFlow API, Model: {}, Messages count: {}", selectedModel,
+                            context.messages().size());
+                    return requestBody;
+                })
+                // 调用 API（数据块到达即转发）
+                .flatMapMany(requestBody -> {
+                    observation.onRound();
+                    return llmRouter.stream(LlmProvider.SILICONFLOW, requestBody, route)
+                            .doOnComplete(() -> aiMetrics.recordGeneration(route, accumulator.getCompletionTokens(),
+                                    true));
+                })
+                .subscribe(
+                        data -> {
+                            if (relayChunk(data, accumulator, emitter)) {
+                                observation.onToken(route.getModel());
+                            }
+                        },
+                        error -> {
+                            if (error instanceof RejectedExecutionException) {
+                                logger.warn("AI 对话线程池已满，拒绝 SiliconFlow 流式请求");
+                                try {
+                                    emitter.send(SseEventWriter.warning(AiChatExecutor.BUSY_MESSAGE));
+                                    emitter.complete();
+                                } catch (IOException ex) {
+                                    emitter.completeWithError(ex);
+                                }
+                                return;
+                            }
+                            logger.error("SiliconFlow 流式调用失败: {}", error.getMessage());
+                            try {
+                                emitter.send(SseEventWriter.error(error.getMessage()));
+                            } catch (IOException ex) {
+                                logger.debug("发送错误事件失败，连接可能已关闭");
+                            }
+                            emitter.completeWithError(error);
+                        },
+                        () -> {
+                            // 保存到服务端对话
+                            if (conversation != null) {
+                                conversationStore.appendTurn(conversation, userMessage, accumulator.getContent());
+                            }
+                            try {
+                                emitter.send(SseEventWriter.complete());
+                                emitter.complete();
+                            } catch (IOException e) {
+                                logger.error("发送完成信号失败", e);
+                            }
+                            logger.info("========== SiliconFlow 流式请求正常结束，内容长度: {}, tokens: {}/{} ==========",
+                                    accumulator.getContent().length(),
+                                    accumulator.getPromptTokens(), accumulator.getCompletionTokens());
+                        });
+
+        // 客户端断开或超时：立即取消上游请求，释放连接
+        connection.onClose(() -> {
+            upstream.dispose();
+            observation.finish();
+        });
 
-        return sseEmitter;
+        return emitter;
     }
 
     /**
-     * 从数据库获取温度配置
+     * 校验服务端对话，可以继续对话时返回 null，否则返回提示
+     * 对话轮数按服务端保存的消息计算，不依赖客户端提交的内容
      */
-    private double getTemperatureFromDb() {
-        try {
-            AiConfig config = aiConfigMapper.selectByConfigKey("temperature");
-            if (config != null && config.getConfigValue() != null) {
-                return Double.parseDouble(config.getConfigValue());
-            }
-        } catch (Exception e) {
-            logger.warn("读取温度配置失败，使用默认值: {}", e.getMessage());
+    private static String checkConversation(Conversation conversation) {
+        if (conversation == null) {
+            return "对话不存在或已过期，请开启新对话";
         }
-        // 默认值 0.7
-        return 0.7;
+        if (conversation.isEnded()) {
+            return "对话已结束，请开启新对话";
+        }
+        if (conversation.getUserRounds() >= MAX_CONVERSATION_ROUNDS) {
+            return "已达" + MAX_CONVERSATION_ROUNDS + "轮对话上限，请开启新对话";
+        }
+        return null;
     }
 
     /**
-     * 获取系统提示词 - 从数据库获取
-     * @param includeWebSearch 是否包含联网搜索工具提示
+     * 解析一个上游 SSE 数据块，把新增的思考过程和正文直接转发给前端
+     * @return 是否有思考过程或正文发给前端（用于统计首个 token 延迟）
      */
-    private String getSystemPrompt(boolean includeWebSearch) {
-        String basePrompt = "";
-        try {
-            AiConfig config = aiConfigMapper.selectByConfigKey("system_prompt");
-            if (config != null && config.getConfigValue() != null) {
-                Object configValue = config.getConfigValue();
-                String value;
-                if (configValue instanceof byte[]) {
-                    value = new String((byte[]) configValue, StandardCharsets.UTF_8);
-                } else if (configValue instanceof String) {
-                    value = (String) configValue;
-                } else {
-                    value = configValue.toString();
-                }
-                value = cleanInvalidChars(value);
-                if (value != null && !value.trim().isEmpty() && isValidText(value)) {
-                    basePrompt = value;
-                }
-            }
-        } catch (Exception e) {
-            logger.warn("读取 System Prompt 失败，使用默认配置", e);
+    private boolean relayChunk(String data, ChatStreamAccumulator accumulator, SseEmitter emitter) {
+        if (data == null || data.isBlank() || "[DONE]".equals(data.trim())) {
+            return false;
         }
 
-        if (basePrompt.isEmpty()) {
-            basePrompt = "你是 Bezhuang AI，一个智能助手。请用简洁清晰的中文回答用户问题。";
+        ChatStreamAccumulator.Delta delta;
+        try {
+            delta = accumulator.accept(ChatCompletionDecoder.decode(data));
+        } catch (IOException e) {
+            logger.warn("跳过无法解析的数据块: {}", e.getMessage());
+            return false;
         }
 
-        // SiliconFlow 只使用本地工具，不包含 web_search
-        basePrompt += "\n\n" + toolService.getToolsPrompt(false);
-
-        return basePrompt;
-    }
-
-    private String cleanInvalidChars(String value) {
-        if (value == null) return null;
-        StringBuilder cleaned = new StringBuilder();
-        for (int i = 0; i < value.length(); i++) {
-            char c = value.charAt(i);
-            if (c == '\n' || c == '\r' || c == '\t' || !Character.isISOControl(c)) {
-                cleaned.append(c);
-            } else {
-                cleaned.append(' ');
+        boolean relayed = false;
+        try {
+            if (delta.hasReasoning()) {
+                emitter.send(SseEventWriter.reasoning(delta.reasoning()));
+                relayed = true;
+            }
+            if (delta.hasContent()) {
+                emitter.send(SseEventWriter.token(delta.content()));
+                relayed = true;
             }
+        } catch (IOException e) {
+            // 客户端已断开，抛出后由订阅者取消上游请求
+            throw new UncheckedIOException(e);
         }
-        return cleaned.toString();
+        return relayed;
     }
 
-    private boolean isValidText(String value) {
-        if (value == null || value.isEmpty()) return false;
-        int readableCount = 0;
-        for (int i = 0; i < value.length(); i++) {
-            char c = value.charAt(i);
-            if (Character.isLetterOrDigit(c) || Character.isWhitespace(c) ||
-                isChineseChar(c) || isCommonPunctuation(c)) {
-                readableCount++;
+    /**
+     * 从配置快照获取温度配置
+     */
+    private double getTemperatureFromDb() {
+        try {
+            String value = aiConfigService.getConfig(AiConfigService.TEMPERATURE, null);
+            if (value != null) {
+                return Double.parseDouble(value);
             }
+        } catch (Exception e) {
+            logger.warn("读取温度配置失败，使用默认值: {}", e.getMessage());
         }
-        return readableCount >= value.length() * 0.5;
-    }
-
-    private boolean isChineseChar(char c) {
-        Character.UnicodeBlock ub = Character.UnicodeBlock.of(c);
-        return ub == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS ||
-               ub == Character.UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS ||
-               ub == Character.UnicodeBlock.CJK_SYMBOLS_AND_PUNCTUATION;
-    }
-
-    private boolean isCommonPunctuation(char c) {
-        String punctuation = "，。！？、；：\"''（）【】《》…—· ";
-        return punctuation.indexOf(c) >= 0;
+        // 默认值 0.7
+        return 0.7;
     }
 
     /**
@@ -444,15 +442,15 @@ public class SiliconFlowService {
      */
     private SiliconFlowToolCallResult executeWithToolCalls(List<Map<String, Object>> messages,
                                                             String selectedModel, double temperature,
-                                                            boolean enableDeepThink, boolean enableWebSearch) {
+                                                            boolean enableDeepThink, boolean enableWebSearch,
+                                                            AiMetrics.ChatObservation observation) {
         String chatModel = config.getModel();
         String reasonerModel = config.getReasonerModel();
         List<String> allThinking = new ArrayList<>(); // 收集所有思考过程
         int toolCallCount = 0;
         List<Map<String, String>> allSearchLinks = new ArrayList<>(); // 收集所有搜索链接（包含标题）
 
-        logger.info("开始执行工具调用流程，当前消息数: {}", messages.size());
-        logger.info("enableDeepThink: {}, enableWebSearch: {}", enableDeepThink, enableWebSearch);
+        logger.debug("开始执行工具调用流程，当前消息数: {}", messages.size());
 
         while (toolCallCount < MAX_TOOL_CALLS) {
             // 选择模型：启用深度思考时每轮都使用 reasonerModel
@@ -464,11 +462,12 @@ public class SiliconFlowService {
             Map<String, Object> requestBody = buildRequestBody(currentModel, messages, temperature, enableWebSearch, enableThinking);
 
             // 调用 API
-            String response = null;
+            ChatCompletionDecoder.ChatCompletion completion = null;
             Exception apiException = null;
+            LlmRouter.Route route = new LlmRouter.Route();
+            observation.onRound();
             try {
-                response = callSiliconFlowApi(requestBody);
-                logger.info("API 原始响应长度: {}", response != null ? response.length() : 0);
+                completion = llmRouter.complete(LlmProvider.SILICONFLOW, requestBody, route).block();
             } catch (Exception e) {
                 apiException = e;
                 logger.error("SiliconFlow API 调用失败: {}", e.getMessage());
@@ -477,7 +476,8 @@ public class SiliconFlowService {
             // 检查是否是连接/超时错误
             if (apiException != null) {
                 String errorMsg = apiException.getMessage();
-                if (errorMsg != null && (errorMsg.contains("timeout") || errorMsg.contains("Connection") || errorMsg.contains("timed out"))) {
+                if (LlmRouter.isRetriable(apiException) || errorMsg != null && (errorMsg.contains("timeout")
+                        || errorMsg.contains("Connection") || errorMsg.contains("timed out"))) {
                     logger.warn("SiliconFlow API 连接超时，返回友好错误");
                     String thinking = String.join("\n\n", allThinking);
                     return new SiliconFlowToolCallResult("服务暂时无法响应，请稍后再试", thinking, allSearchLinks, true);
@@ -485,87 +485,63 @@ public class SiliconFlowService {
                 break;
             }
 
-            JsonNode root;
-            try {
-                root = objectMapper.readTree(response);
-            } catch (Exception e) {
-                logger.error("解析响应失败", e);
-                break;
+            if (completion.usage() != null) {
+                aiMetrics.recordGeneration(route, completion.usage().completionTokens(), false);
             }
-
-            JsonNode choice = root.path("choices").get(0);
-            JsonNode message = choice.path("message");
+            String roundContent = completion.content() != null ? completion.content() : "";
 
             // 获取思考过程（每轮都获取，最多500字）
-            if (enableDeepThink && message.has("reasoning_content")) {
-                JsonNode reasoning = message.path("reasoning_content");
-                if (!reasoning.isNull() && !reasoning.asText().isEmpty()) {
-                    String roundThinking = reasoning.asText().trim();
-                    if (!roundThinking.isEmpty()) {
-                        allThinking.add("=== 第 " + (toolCallCount + 1) + " 轮思考 ===\n" + roundThinking);
-                        logger.info("第 {} 轮思考过程长度: {}", toolCallCount + 1, roundThinking.length());
-                    }
-                } else {
-                    logger.info("第 {} 轮 reasoning_content 为空", toolCallCount + 1);
+            if (enableDeepThink && completion.reasoningContent() != null && !completion.reasoningContent().isEmpty()) {
+                String roundThinking = completion.reasoningContent().trim();
+                if (!roundThinking.isEmpty()) {
+                    allThinking.add("=== 第 " + (toolCallCount + 1) + " 轮思考 ===\n" + roundThinking);
+                    logger.debug("第 {} 轮思考过程长度: {}", toolCallCount + 1, roundThinking.length());
                 }
-            } else {
-                logger.info("第 {} 轮无 reasoning_content 字段", toolCallCount + 1);
+            } else if (enableDeepThink) {
+                logger.debug("第 {} 轮 reasoning_content 为空", toolCallCount + 1);
             }
 
             // 检查是否有工具调用
-            JsonNode toolCalls = message.path("tool_calls");
-            if (toolCalls.isArray() && toolCalls.size() > 0) {
-                logger.info("检测到工具调用，数量: {}", toolCalls.size());
+            if (completion.hasToolCalls()) {
+                logger.debug("检测到工具调用，数量: {}", completion.toolCalls().size());
 
                 // 添加 assistant 消息
                 Map<String, Object> assistantMessage = new LinkedHashMap<>();
                 assistantMessage.put("role", "assistant");
-                assistantMessage.put("content", message.path("content").asText(""));
-                try {
-                    assistantMessage.put("tool_calls", objectMapper.readValue(toolCalls.toString(), List.class));
-                } catch (Exception e) {
-                    logger.error("解析 tool_calls 失败", e);
-                }
+                assistantMessage.put("content", roundContent);
+                List<Map<String, Object>> toolCallList = completion.toolCallMaps();
+                assistantMessage.put("tool_calls", toolCallList);
                 messages.add(assistantMessage);
 
-                // 执行工具调用
-                for (JsonNode toolCall : toolCalls) {
-                    String toolName = toolCall.path("function").path("name").asText();
-                    String arguments = toolCall.path("function").path("arguments").asText();
-
-                    logger.info("执行工具调用: {}, 参数: {}", toolName, arguments);
-
-                    // 如果是搜索工具，使用新方法获取链接
-                    String toolResult;
-                    if ("web_search".equals(toolName) && enableWebSearch) {
-                        ToolService.WebSearchResult searchResult = toolService.executeWebSearchTool(toolName, arguments);
-                        toolResult = searchResult.getContent();
-                        allSearchLinks.addAll(searchResult.getLinks());
-                        logger.info("搜索工具返回链接数: {}", searchResult.getLinks().size());
-                    } else {
-                        toolResult = toolService.executeTool(toolName, arguments);
+                // 并发执行工具调用，结果按 tool_call_id 原始顺序追加
+                List<ToolService.ToolCallOutcome> outcomes = toolService.executeToolCalls(toolCallList, null).block();
+                for (ToolService.ToolCallOutcome outcome : outcomes) {
+                    String toolResult = outcome.content() != null ? outcome.content() : "";
+                    if (enableWebSearch && !outcome.links().isEmpty()) {
+                        allSearchLinks.addAll(outcome.links());
+                        logger.debug("搜索工具返回链接数: {}", outcome.links().size());
                     }
-                    logger.info("工具 {} 返回结果长度: {}", toolName, toolResult.length());
+                    logger.debug("工具 {} 返回结果长度: {}", outcome.toolName(), toolResult.length());
 
                     Map<String, Object> toolMessage = new LinkedHashMap<>();
                     toolMessage.put("role", "tool");
-                    toolMessage.put("tool_call_id", toolCall.path("id").asText());
-                    toolMessage.put("name", toolName);
+                    toolMessage.put("tool_call_id", outcome.toolCallId());
+                    toolMessage.put("name", outcome.toolName());
                     toolMessage.put("content", toolResult.isEmpty() ? "工具调用失败或返回空结果" : toolResult);
                     messages.add(toolMessage);
                 }
 
                 toolCallCount++;
-                logger.info("工具调用轮次: {}/{}", toolCallCount, MAX_TOOL_CALLS);
+                logger.debug("工具调用轮次: {}/{}", toolCallCount, MAX_TOOL_CALLS);
                 continue;
             }
 
             // 没有工具调用，返回结果
-            String content = message.path("content").asText("");
-            logger.info("无工具调用，返回内容长度: {}, 内容: [{}]", content.length(), content);
+            String content = roundContent;
+            logger.debug("无工具调用，返回内容长度: {}", content.length());
             // 合并所有思考过程
             String thinking = String.join("\n\n", allThinking);
-            logger.info("共收集到 {} 轮思考，总长度: {}", allThinking.size(), thinking.length());
+            logger.debug("共收集到 {} 轮思考，总长度: {}", allThinking.size(), thinking.length());
             return new SiliconFlowToolCallResult(content, thinking, allSearchLinks);
         }
 
@@ -594,9 +570,15 @@ public class SiliconFlowService {
     private Map<String, Object> buildRequestBody(String model, List<Map<String, Object>> messages,
                                                   double temperature, boolean enableWebSearch,
                                                   boolean enableThinking) {
+        PromptFragments.Compiled prompt = promptFragments.get(DEFAULT_SYSTEM_PROMPT, false);
+
         Map<String, Object> requestBody = new LinkedHashMap<>();
         requestBody.put("model", model);
-        requestBody.put("messages", messages);
+        // 按上下文预算压缩后，系统消息和工具定义直接写出预编译的 JSON 片段
+        // 同步调用本身阻塞等待上游，摘要同样等待
+        List<Map<String, Object>> compacted = contextCompactor
+                .compact(LlmProvider.SILICONFLOW, messages, this::summarizeHistory).block().messages();
+        requestBody.put("messages", prompt.messagesValue(compacted));
         requestBody.put("stream", false);
         requestBody.put("max_tokens", config.getMaxTokens());
         requestBody.put("temperature", temperature);
@@ -606,41 +588,29 @@ public class SiliconFlowService {
             requestBody.put("enable_thinking", true);
             // 减小 thinking_budget 让每次思考更简洁，生成多轮短思考
             requestBody.put("thinking_budget", 2048);
-            logger.info("启用深度思考模式，thinking_budget: 2048");
         }
 
         // SiliconFlow 只使用本地工具（get_current_time），不包含 web_search
-        List<Map<String, Object>> tools = toolService.getToolsDefinition(false);
-        if (!tools.isEmpty()) {
-            requestBody.put("tools", tools);
-            logger.info("开始调用 SiliconFlow API（工具模式：仅本地工具）");
-            logger.info("Model: {}", model);
-            logger.info("Tools count: {}", tools.size());
+        if (prompt.getToolCount() > 0) {
+            requestBody.put("tools", prompt.toolsValue());
+            logger.debug("开始调用 SiliconFlow API（工具模式：仅本地工具）, Model: {}, Tools count: {}", model,
+                    prompt.getToolCount());
         }
 
         return requestBody;
     }
 
     /**
-     * 调用 SiliconFlow API
+     * 用对话模型总结被压缩掉的轮次（不带工具）
      */
-    private String callSiliconFlowApi(Map<String, Object> requestBody) {
-        return webClient.post()
-                .uri("/chat/completions")
-                .header("Authorization", "Bearer " + config.getApiKey())
-                .bodyValue(requestBody)
-                .retrieve()
-                .bodyToMono(String.class)
-                .timeout(Duration.ofSeconds(180))
-                .block();
-    }
-
-    private String escapeJson(String text) {
-        if (text == null) return "";
-        return text.replace("\\", "\\\\")
-                .replace("\"", "\\\"")
-                .replace("\n", "\\n")
-                .replace("\r", "\\r")
-                .replace("\t", "\\t");
+    private Mono<String> summarizeHistory(List<Map<String, Object>> requestMessages) {
+        Map<String, Object> requestBody = new LinkedHashMap<>();
+        requestBody.put("model", config.getModel());
+        requestBody.put("messages", requestMessages);
+        requestBody.put("stream", false);
+        requestBody.put("max_tokens", ContextCompactor.getSummaryMaxTokens());
+        requestBody.put("temperature", 0.3);
+        return llmRouter.complete(LlmProvider.SILICONFLOW, requestBody, null)
+                .mapNotNull(ChatCompletionDecoder.ChatCompletion::content);
     }
 }
@@ -1,17 +1,28 @@
 package com.bezhuang.my_little_app_backend.service;
 
 import com.bezhuang.my_little_app_backend.config.websearch.BochaWebSearchConfig;
+import com.bezhuang.my_little_app_backend.service.ai.AiMetrics;
+import com.bezhuang.my_little_app_backend.service.ai.UpstreamClientFactory;
+import com.bezhuang.my_little_app_backend.service.ai.WebSearchCache;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
 
 /**
  * 工具服务 - 实现 DeepSeek Function Calling 所需的工具函数
@@ -25,20 +36,24 @@ import java.util.*;
 public class ToolService {
 
     private static final Logger logger = LoggerFactory.getLogger(ToolService.class);
-    private final WebClient webClient;
+    // 已定义的工具，其余工具名在指标中统一记为 unknown
+    private static final Set<String> TOOL_NAMES = Set.of("get_current_time", "web_search");
     private final ObjectMapper objectMapper;
     private final BochaWebSearchConfig bochaConfig;
-    private final WebClient bochaWebClient;
-
-    public ToolService(BochaWebSearchConfig bochaConfig) {
+    private final UpstreamClientFactory upstreamClientFactory;
+    private final Duration turnTimeout;
+    private final WebSearchCache webSearchCache;
+    private final AiMetrics aiMetrics;
+
+    public ToolService(BochaWebSearchConfig bochaConfig, UpstreamClientFactory upstreamClientFactory,
+                       WebSearchCache webSearchCache, AiMetrics aiMetrics,
+                       @Value("${ai.tools.turn-timeout-seconds:30}") long turnTimeoutSeconds) {
         this.bochaConfig = bochaConfig;
-        this.webClient = WebClient.builder()
-                .baseUrl("https://api.open-meteo.com")
-                .build();
+        this.upstreamClientFactory = upstreamClientFactory;
+        this.webSearchCache = webSearchCache;
+        this.aiMetrics = aiMetrics;
+        this.turnTimeout = Duration.ofSeconds(turnTimeoutSeconds);
         this.objectMapper = new ObjectMapper();
-        this.bochaWebClient = WebClient.builder()
-                .baseUrl("https://api.bochaai.com")
-                .build();
     }
 
     /**
@@ -59,6 +74,87 @@ public class ToolService {
         }
     }
 
+    /**
+     * 单个工具调用的执行结果
+     * @param links 搜索结果链接（非搜索工具为空列表）
+     */
+    public record ToolCallOutcome(Object toolCallId, String toolName, String content,
+                                  List<Map<String, String>> links) {
+    }
+
+    /**
+     * 并发执行模型同一轮返回的多个 tool_calls
+     * 每次 web_search 发起前按顺序调用 searchGuard 扣减搜索额度，返回 false 则不发起该次搜索
+     * （命中缓存且配置为不扣减时跳过）；
+     * 各调用同时发起，整轮共享一个截止时间，结果按 tool_calls 原始顺序返回；
+     * 每个调用的耗时按工具名和结果（超时、异常、搜索失败记为 failure）计入 ai.tool.latency
+     * @param toolCalls 模型返回的 tool_calls（id、function.name、function.arguments）
+     * @param searchGuard 搜索额度检查，为 null 时不限制
+     */
+    public Mono<List<ToolCallOutcome>> executeToolCalls(List<Map<String, Object>> toolCalls,
+                                                        BooleanSupplier searchGuard) {
+        List<Mono<ToolCallOutcome>> calls = new ArrayList<>(toolCalls.size());
+        for (Map<String, Object> toolCall : toolCalls) {
+            Object toolCallId = toolCall.get("id");
+            @SuppressWarnings("unchecked")
+            Map<String, Object> function = (Map<String, Object>) toolCall.get("function");
+            String toolName = function != null ? String.valueOf(function.get("name")) : "";
+            String arguments = function != null && function.get("arguments") != null
+                    ? function.get("arguments").toString() : "{}";
+
+            logger.info("执行工具调用: {}, 参数: {}", toolName, arguments);
+
+            long start = System.nanoTime();
+            AtomicBoolean failed = new AtomicBoolean();
+            Mono<ToolCallOutcome> call;
+            if ("web_search".equals(toolName)) {
+                String query = parseQuery(arguments);
+                WebSearchResult cached = query.isEmpty() ? null : webSearchCache.get(query);
+                // 命中缓存时是否扣减搜索次数由管理员配置决定
+                boolean debit = cached == null || bochaConfig.isCacheHitDebit();
+                if (debit && searchGuard != null && !searchGuard.getAsBoolean()) {
+                    call = Mono.just(new ToolCallOutcome(toolCallId, toolName,
+                            "搜索次数已用尽，请联系管理员充值。", List.of()));
+                } else if (cached != null) {
+                    logger.info("网页搜索命中缓存: {}", query);
+                    call = Mono.just(new ToolCallOutcome(toolCallId, toolName,
+                            cached.getContent(), cached.getLinks()));
+                } else {
+                    Mono<WebSearchResult> search = query.isEmpty()
+                            ? Mono.just(new WebSearchResult("请提供搜索关键词", new ArrayList<>()))
+                            : searchUncached(query);
+                    call = search.map(result -> {
+                        if (result.isFailed()) {
+                            failed.set(true);
+                        }
+                        return new ToolCallOutcome(toolCallId, toolName, result.getContent(), result.getLinks());
+                    });
+                }
+            } else {
+                call = Mono.fromCallable(() -> new ToolCallOutcome(toolCallId, toolName,
+                        executeTool(toolName, arguments), List.of()));
+            }
+
+            calls.add(call
+                    .timeout(turnTimeout, Mono.fromSupplier(() -> {
+                        failed.set(true);
+                        logger.warn("工具 {} 执行超时（{} 秒）", toolName, turnTimeout.getSeconds());
+                        return new ToolCallOutcome(toolCallId, toolName, "工具调用超时", List.of());
+                    }))
+                    .onErrorResume(e -> {
+                        failed.set(true);
+                        logger.error("工具执行失败: {} - {}", toolName, e.getMessage());
+                        return Mono.just(new ToolCallOutcome(toolCallId, toolName,
+                                "工具调用失败: " + e.getMessage(), List.of()));
+                    })
+                    .doOnNext(outcome -> aiMetrics.recordToolCall(toolName, TOOL_NAMES.contains(toolName),
+                            !failed.get(), System.nanoTime() - start)));
+        }
+
+        // mergeSequential 同时订阅所有调用，按原始顺序输出结果
+        return Flux.mergeSequential(calls).collectList();
+    }
+
     /**
      * 获取工具定义（供 DeepSeek API 使用）
      * @param includeWebSearch 是否包含联网搜索工具
@@ -168,14 +264,26 @@ public class ToolService {
     public static class WebSearchResult {
         private String content;
         private List<Map<String, String>> links; // 改为包含标题的链接列表
+        // 搜索请求失败（只用于指标统计，失败结果不缓存）
+        private boolean failed;
 
-        public WebSearchResult(String content, List<Map<String, String>> links) {
+        @JsonCreator
+        public WebSearchResult(@JsonProperty("content") String content,
+                               @JsonProperty("links") List<Map<String, String>> links) {
             this.content = content;
             this.links = links;
         }
 
+        static WebSearchResult failed(String content) {
+            WebSearchResult result = new WebSearchResult(content, new ArrayList<>());
+            result.failed = true;
+            return result;
+        }
+
         public String getContent() { return content; }
         public List<Map<String, String>> getLinks() { return links; }
+        @JsonIgnore
+        public boolean isFailed() { return failed; }
     }
 
     /**
@@ -183,27 +291,55 @@ public class ToolService {
      * 返回搜索结果和链接列表
      */
     private WebSearchResult executeWebSearchWithLinks(String arguments) {
-        try {
-            JsonNode argsNode = objectMapper.readTree(arguments);
-            String query = argsNode.path("query").asText("");
+        return webSearchAsync(arguments).block();
+    }
 
-            if (query.isEmpty()) {
-                return new WebSearchResult("请提供搜索关键词", new ArrayList<>());
-            }
+    /**
+     * 网页搜索（异步），优先读取缓存
+     */
+    private Mono<WebSearchResult> webSearchAsync(String arguments) {
+        String query = parseQuery(arguments);
+        if (query.isEmpty()) {
+            return Mono.just(new WebSearchResult("请提供搜索关键词", new ArrayList<>()));
+        }
 
-            logger.info("执行网页搜索: {}", query);
+        WebSearchResult cached = webSearchCache.get(query);
+        if (cached != null) {
+            logger.info("网页搜索命中缓存: {}", query);
+            return Mono.just(cached);
+        }
+        return searchUncached(query);
+    }
 
-            // 使用博查AI API
-            if (bochaConfig.isConfigured()) {
-                WebSearchResult result = bochaWebSearch(query);
-                return result;
-            }
+    /**
+     * 调用搜索 API，成功的结果写入缓存
+     */
+    private Mono<WebSearchResult> searchUncached(String query) {
+        logger.info("执行网页搜索: {}", query);
+
+        // 使用博查AI API
+        if (bochaConfig.isConfigured()) {
+            return bochaWebSearch(query)
+                    .doOnNext(result -> {
+                        // 只缓存有结果的搜索，失败和空结果下次重新搜索
+                        if (!result.getLinks().isEmpty()) {
+                            webSearchCache.put(query, result);
+                        }
+                    });
+        }
 
-            return new WebSearchResult("联网搜索服务未配置，请联系管理员。", new ArrayList<>());
+        return Mono.just(new WebSearchResult("联网搜索服务未配置，请联系管理员。", new ArrayList<>()));
+    }
 
+    /**
+     * 解析 web_search 参数中的查询词，参数格式错误时返回空字符串
+     */
+    private String parseQuery(String arguments) {
+        try {
+            return objectMapper.readTree(arguments).path("query").asText("").trim();
         } catch (Exception e) {
-            logger.error("网页搜索失败: {}", e.getMessage());
-            return new WebSearchResult("搜索失败: " + e.getMessage(), new ArrayList<>());
+            logger.warn("web_search 参数解析失败: {}", e.getMessage());
+            return "";
         }
     }
 
@@ -221,26 +357,35 @@ public class ToolService {
      * 博查AI Web Search API
      * 返回搜索结果和链接列表
      */
-    private WebSearchResult bochaWebSearch(String query) {
-        try {
-            String apiKey = bochaConfig.getApiKey();
-
-            Map<String, Object> requestBody = new LinkedHashMap<>();
-            requestBody.put("query", query);
-            requestBody.put("freshness", "noLimit");
-            requestBody.put("summary", true);
-            requestBody.put("count", 5);
-
-            String response = bochaWebClient.post()
-                    .uri("/v1/web-search")
-                    .header("Authorization", "Bearer " + apiKey)
-                    .header("Content-Type", "application/json")
-                    .bodyValue(requestBody)
-                    .retrieve()
-                    .bodyToMono(String.class)
-                    .timeout(java.time.Duration.ofSeconds(30))
-                    .block();
+    private Mono<WebSearchResult> bochaWebSearch(String query) {
+        String apiKey = bochaConfig.getApiKey();
+
+        Map<String, Object> requestBody = new LinkedHashMap<>();
+        requestBody.put("query", query);
+        requestBody.put("freshness", "noLimit");
+        requestBody.put("summary", true);
+        requestBody.put("count", 5);
+
+        return upstreamClientFactory.get(bochaConfig.getBaseUrl()).post()
+                .uri("/v1/web-search")
+                .header("Authorization", "Bearer " + apiKey)
+                .header("Content-Type", "application/json")
+                .bodyValue(requestBody)
+                .retrieve()
+                .bodyToMono(String.class)
+                .timeout(Duration.ofSeconds(30))
+                .map(response -> parseBochaResponse(query, response))
+                .onErrorResume(e -> {
+                    logger.warn("博查AI搜索失败: {}", e.getMessage());
+                    return Mono.just(WebSearchResult.failed("搜索失败: " + e.getMessage()));
+                });
+    }
 
+    /**
+     * 解析博查AI搜索响应
+     */
+    private WebSearchResult parseBochaResponse(String query, String response) {
+        try {
             logger.debug("博查AI响应: {}", response);
 
             JsonNode jsonResponse = objectMapper.readTree(response);
@@ -249,7 +394,7 @@ public class ToolService {
             if (jsonResponse.path("code").asInt() != 200) {
                 String errorMsg = jsonResponse.path("message").asText("未知错误");
                 logger.warn("博查AI搜索失败: {}", errorMsg);
-                return new WebSearchResult("搜索失败: " + errorMsg, new ArrayList<>());
+                return WebSearchResult.failed("搜索失败: " + errorMsg);
             }
 
             // 解析搜索结果
@@ -315,7 +460,7 @@ public class ToolService {
 
         } catch (Exception e) {
             logger.warn("博查AI搜索失败: {}", e.getMessage());
-            return new WebSearchResult("搜索失败: " + e.getMessage(), new ArrayList<>());
+            return WebSearchResult.failed("搜索失败: " + e.getMessage());
         }
     }
 }
@@ -0,0 +1,273 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import com.bezhuang.my_little_app_backend.service.AiConfigService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * AI 对话准入控制（舱壁隔离）
+ * 每个服务商一个隔舱：全局并发上限 + 单用户并发上限 + 短的有界等待队列。
+ * 单用户超限、队列已满时立即拒绝；排队超过等待时间也拒绝，不会长时间占用请求线程。
+ * 上限每次准入时从 ai_config 快照读取，管理员修改后即时生效。
+ * 各隔舱的在途数、排队数和拒绝次数通过 {@link AiMetrics} 输出。
+ */
+@Component
+public class AiBulkhead {
+
+    private static final Logger logger = LoggerFactory.getLogger(AiBulkhead.class);
+
+    /**
+     * 单用户并发超限时返回给前端的提示
+     */
+    public static final String USER_BUSY_MESSAGE = "您有对话正在进行，请等待回答完成后再试";
+
+    private final AiConfigService aiConfigService;
+    private final AiMetrics aiMetrics;
+    private final Map<String, Compartment> compartments = new ConcurrentHashMap<>();
+
+    public AiBulkhead(AiConfigService aiConfigService, AiMetrics aiMetrics) {
+        this.aiConfigService = aiConfigService;
+        this.aiMetrics = aiMetrics;
+    }
+
+    /**
+     * 申请一次对话许可，必要时在队列中等待（最长为配置的等待时间）
+     * 获准时必须在对话结束（完成、出错、客户端断开）后调用 {@link Permit#release()}
+     * @param provider 服务商，如 {@link LlmProvider#DEEPSEEK}
+     * @param userKey 用户标识（登录用户为用户 ID，匿名为客户端 IP）
+     * @return 许可，被拒绝时 {@link Permit#isGranted()} 为 false
+     */
+    public Permit acquire(String provider, String userKey) {
+        return compartments.computeIfAbsent(provider, this::createCompartment).acquire(userKey);
+    }
+
+    /**
+     * 配置变更后唤醒排队的请求，上限调大时无需等到有对话结束
+     */
+    @EventListener
+    public void onConfigChanged(AiConfigChangedEvent event) {
+        for (Compartment compartment : compartments.values()) {
+            compartment.signalAll();
+        }
+    }
+
+    /**
+     * 各服务商的在途数、排队数、当前上限和累计准入 / 拒绝次数
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new TreeMap<>();
+        compartments.forEach((provider, compartment) -> stats.put(provider, compartment.getStats()));
+        return stats;
+    }
+
+    /**
+     * 当前在途对话数（所有服务商）
+     */
+    public int getInFlight() {
+        int total = 0;
+        for (Compartment compartment : compartments.values()) {
+            total += compartment.inFlight;
+        }
+        return total;
+    }
+
+    /**
+     * 当前排队数（所有服务商）
+     */
+    public int getQueued() {
+        int total = 0;
+        for (Compartment compartment : compartments.values()) {
+            total += compartment.queued;
+        }
+        return total;
+    }
+
+    private Compartment createCompartment(String provider) {
+        Compartment compartment = new Compartment(provider);
+        Map<String, ToDoubleFunction<Compartment>> rejections = new LinkedHashMap<>();
+        rejections.put(AiMetrics.ADMISSION_REJECT_USER, c -> c.rejectedUser.sum());
+        rejections.put(AiMetrics.ADMISSION_REJECT_QUEUE_FULL, c -> c.rejectedQueueFull.sum());
+        rejections.put(AiMetrics.ADMISSION_REJECT_TIMEOUT, c -> c.rejectedTimeout.sum());
+        aiMetrics.bindAdmission(provider, compartment, c -> c.inFlight, c -> c.queued, rejections);
+        return compartment;
+    }
+
+    /**
+     * 对话许可
+     */
+    public static final class Permit {
+
+        private final Compartment compartment;
+        private final String userKey;
+        private final String message;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(Compartment compartment, String userKey, String message) {
+            this.compartment = compartment;
+            this.userKey = userKey;
+            this.message = message;
+        }
+
+        public boolean isGranted() {
+            return message == null;
+        }
+
+        /**
+         * 被拒绝时返回给前端的提示，获准时为 null
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * 归还许可（可重复调用，只归还一次；被拒绝的许可调用无效果）
+         */
+        public void release() {
+            if (isGranted() && released.compareAndSet(false, true)) {
+                compartment.release(userKey);
+            }
+        }
+    }
+
+    /**
+     * 单个服务商的隔舱
+     */
+    private final class Compartment {
+
+        private final String provider;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition available = lock.newCondition();
+        // 每个用户在途 + 排队中的对话数，只在持锁时访问
+        private final Map<String, Integer> perUser = new HashMap<>();
+        private volatile int inFlight;
+        private volatile int queued;
+
+        private final LongAdder admitted = new LongAdder();
+        private final LongAdder queuedTotal = new LongAdder();
+        private final LongAdder rejectedUser = new LongAdder();
+        private final LongAdder rejectedQueueFull = new LongAdder();
+        private final LongAdder rejectedTimeout = new LongAdder();
+
+        Compartment(String provider) {
+            this.provider = provider;
+        }
+
+        Permit acquire(String userKey) {
+            int perUserLimit = aiConfigService.getMaxConcurrentPerUser(provider);
+            long waitNanos = TimeUnit.MILLISECONDS.toNanos(aiConfigService.getAdmissionQueueWaitMs(provider));
+
+            lock.lock();
+            try {
+                int userCount = perUser.getOrDefault(userKey, 0);
+                if (userCount >= perUserLimit) {
+                    rejectedUser.increment();
+                    logger.debug("{} 用户 {} 并发已达上限 {}", provider, userKey, perUserLimit);
+                    return new Permit(this, userKey, USER_BUSY_MESSAGE);
+                }
+
+                // 已有请求排队时新请求不插队
+                if (queued == 0 && inFlight < aiConfigService.getMaxConcurrent(provider)) {
+                    return admit(userKey, userCount);
+                }
+                if (queued >= aiConfigService.getAdmissionQueueSize(provider) || waitNanos <= 0) {
+                    rejectedQueueFull.increment();
+                    logger.warn("{} 对话已满: inFlight={}, queued={}", provider, inFlight, queued);
+                    return new Permit(this, userKey, AiChatExecutor.BUSY_MESSAGE);
+                }
+
+                // 排队期间也占用该用户的并发名额，防止同一用户占满队列
+                perUser.put(userKey, userCount + 1);
+                queued++;
+                queuedTotal.increment();
+                boolean interrupted = false;
+                try {
+                    while (inFlight >= aiConfigService.getMaxConcurrent(provider)) {
+                        if (waitNanos <= 0) {
+                            break;
+                        }
+                        try {
+                            waitNanos = available.awaitNanos(waitNanos);
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                            break;
+                        }
+                    }
+                } finally {
+                    queued--;
+                    perUser.merge(userKey, -1, Integer::sum);
+                    perUser.remove(userKey, 0);
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                if (interrupted || inFlight >= aiConfigService.getMaxConcurrent(provider)) {
+                    rejectedTimeout.increment();
+                    logger.warn("{} 对话排队超时: inFlight={}, queued={}", provider, inFlight, queued);
+                    // 被中断时可能已消耗了一次唤醒，转交给下一个排队的请求
+                    available.signal();
+                    return new Permit(this, userKey, AiChatExecutor.BUSY_MESSAGE);
+                }
+                return admit(userKey, perUser.getOrDefault(userKey, 0));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private Permit admit(String userKey, int userCount) {
+            perUser.put(userKey, userCount + 1);
+            inFlight++;
+            admitted.increment();
+            return new Permit(this, userKey, null);
+        }
+
+        void release(String userKey) {
+            lock.lock();
+            try {
+                inFlight--;
+                perUser.merge(userKey, -1, Integer::sum);
+                perUser.remove(userKey, 0);
+                available.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void signalAll() {
+            lock.lock();
+            try {
+                available.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        Map<String, Object> getStats() {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("inFlight", inFlight);
+            stats.put("queued", queued);
+            stats.put("maxConcurrent", aiConfigService.getMaxConcurrent(provider));
+            stats.put("maxConcurrentPerUser", aiConfigService.getMaxConcurrentPerUser(provider));
+            stats.put("queueSize", aiConfigService.getAdmissionQueueSize(provider));
+            stats.put("admitted", admitted.sum());
+            stats.put("queuedTotal", queuedTotal.sum());
+            stats.put("rejectedUser", rejectedUser.sum());
+            stats.put("rejectedQueueFull", rejectedQueueFull.sum());
+            stats.put("rejectedTimeout", rejectedTimeout.sum());
+            return stats;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * AI 对话线程池
+ * 对话编排中的阻塞部分（构建请求、工具调用、配额扣减）在此有界线程池中执行，
+ * 上游 token 流在 Reactor 网络线程上转发，不占用 Tomcat 请求线程。
+ * 线程和队列都满时直接拒绝（RejectedExecutionException），由调用方返回"服务繁忙"提示。
+ * 任务执行时带上提交线程的 MDC（请求 traceId），执行完清除，线程复用时不会串到下一个对话。
+ */
+@Component
+public class AiChatExecutor implements DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(AiChatExecutor.class);
+
+    /**
+     * 线程池饱和时返回给前端的提示
+     */
+    public static final String BUSY_MESSAGE = "当前对话人数较多，请稍后再试";
+
+    private final ThreadPoolExecutor executor;
+    private final Scheduler scheduler;
+    private final LongAdder rejectedCount = new LongAdder();
+
+    public AiChatExecutor(@Value("${ai.chat.executor.core-size:16}") int coreSize,
+                          @Value("${ai.chat.executor.max-size:32}") int maxSize,
+                          @Value("${ai.chat.executor.queue-capacity:100}") int queueCapacity,
+                          @Value("${ai.chat.executor.keep-alive-seconds:60}") long keepAliveSeconds) {
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+                coreSize,
+                Math.max(coreSize, maxSize),
+                keepAliveSeconds, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "ai-chat-" + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (runnable, pool) -> {
+                    rejectedCount.increment();
+                    throw new RejectedExecutionException("AI 对话线程池已满: active=" + pool.getActiveCount()
+                            + ", queued=" + pool.getQueue().size());
+                }) {
+            @Override
+            public void execute(Runnable command) {
+                super.execute(withMdc(command));
+            }
+        };
+        this.scheduler = Schedulers.fromExecutorService(executor, "ai-chat");
+        logger.info("AI 对话线程池已创建: core={}, max={}, queue={}", coreSize, maxSize, queueCapacity);
+    }
+
+    /**
+     * Reactor 调度器（subscribeOn / publishOn 使用）
+     */
+    public Scheduler scheduler() {
+        return scheduler;
+    }
+
+    /**
+     * 异步执行同步对话
+     * @throws RejectedExecutionException 线程池已满
+     */
+    public <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier) {
+        return CompletableFuture.supplyAsync(supplier, executor);
+    }
+
+    private static Runnable withMdc(Runnable task) {
+        Map<String, String> context = MDC.getCopyOfContextMap();
+        return () -> {
+            if (context != null) {
+                MDC.setContextMap(context);
+            }
+            try {
+                task.run();
+            } finally {
+                MDC.clear();
+            }
+        };
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public int getPoolSize() {
+        return executor.getPoolSize();
+    }
+
+    public int getLargestPoolSize() {
+        return executor.getLargestPoolSize();
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    @Override
+    public void destroy() {
+        scheduler.dispose();
+        executor.shutdown();
+    }
+}
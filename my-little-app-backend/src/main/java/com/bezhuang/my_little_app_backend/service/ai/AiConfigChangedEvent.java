@@ -0,0 +1,44 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import org.springframework.context.ApplicationEvent;
+
+import java.util.Set;
+
+/**
+ * AI 配置快照已替换事件
+ * 依赖配置构建资源的组件（如上游 HTTP 客户端）监听此事件自行刷新
+ */
+public class AiConfigChangedEvent extends ApplicationEvent {
+
+    private final AiConfigSnapshot previous;
+    private final AiConfigSnapshot current;
+    private final Set<String> changedKeys;
+    private final boolean remote;
+
+    public AiConfigChangedEvent(Object source, AiConfigSnapshot previous, AiConfigSnapshot current, boolean remote) {
+        super(source);
+        this.previous = previous;
+        this.current = current;
+        this.changedKeys = Set.copyOf(current.changedKeys(previous));
+        this.remote = remote;
+    }
+
+    public AiConfigSnapshot getPrevious() {
+        return previous;
+    }
+
+    public AiConfigSnapshot getCurrent() {
+        return current;
+    }
+
+    public Set<String> getChangedKeys() {
+        return changedKeys;
+    }
+
+    /**
+     * 是否由其他实例的配置变更通知触发（本实例无需再向外广播）
+     */
+    public boolean isRemote() {
+        return remote;
+    }
+}
@@ -0,0 +1,95 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import com.bezhuang.my_little_app_backend.entity.AiConfig;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * ai_config 表的不可变快照
+ * 启动时整表加载，配置变更时整体替换，对话热路径只读快照、不访问数据库
+ */
+public final class AiConfigSnapshot {
+
+    private static final AiConfigSnapshot EMPTY = new AiConfigSnapshot(Map.of(), 0, null);
+
+    private final Map<String, String> values;
+    private final long version;
+    private final String lastUpdatedAt;
+
+    private AiConfigSnapshot(Map<String, String> values, long version, String lastUpdatedAt) {
+        this.values = values;
+        this.version = version;
+        this.lastUpdatedAt = lastUpdatedAt;
+    }
+
+    /**
+     * 尚未加载时使用的空快照（所有配置取默认值）
+     */
+    public static AiConfigSnapshot empty() {
+        return EMPTY;
+    }
+
+    public static AiConfigSnapshot of(List<AiConfig> rows, long version) {
+        Map<String, String> values = new HashMap<>();
+        String lastUpdatedAt = null;
+        for (AiConfig row : rows) {
+            if (row.getConfigKey() == null || row.getConfigValue() == null) {
+                continue;
+            }
+            values.put(row.getConfigKey(), row.getConfigValue());
+            String updatedAt = row.getUpdatedAt();
+            if (updatedAt != null && (lastUpdatedAt == null || updatedAt.compareTo(lastUpdatedAt) > 0)) {
+                lastUpdatedAt = updatedAt;
+            }
+        }
+        return new AiConfigSnapshot(Map.copyOf(values), version, lastUpdatedAt);
+    }
+
+    /**
+     * @return 配置值，不存在返回 null
+     */
+    public String get(String configKey) {
+        return values.get(configKey);
+    }
+
+    /**
+     * 快照版本号，每次重新加载递增（0 表示尚未加载）
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * 快照中最新一行的 updated_at
+     */
+    public String getLastUpdatedAt() {
+        return lastUpdatedAt;
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    /**
+     * 与另一快照相比发生变化（新增、修改、删除）的配置键
+     */
+    public Set<String> changedKeys(AiConfigSnapshot other) {
+        Set<String> changed = new HashSet<>();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            if (!Objects.equals(entry.getValue(), other.values.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        for (String key : other.values.keySet()) {
+            if (!values.containsKey(key)) {
+                changed.add(key);
+            }
+        }
+        return changed;
+    }
+}
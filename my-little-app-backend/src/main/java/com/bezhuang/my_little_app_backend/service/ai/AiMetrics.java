@@ -0,0 +1,243 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * AI 对话指标（Micrometer，通过 /actuator/prometheus 以 Prometheus 格式输出）
+ * <ul>
+ *   <li>ai.chat.ttft：流式对话从收到请求到第一个正文 / 思考 token 发给客户端的时间，按服务商、模型</li>
+ *   <li>ai.upstream.latency：单次上游调用耗时（流式为整个流），按服务商、模型、调用方式和结果</li>
+ *   <li>ai.upstream.tokens.per.second：上游生成速度，流式按首个数据块之后的时间计算，按服务商、模型</li>
+ *   <li>ai.tool.latency：单个工具调用耗时，按工具名和结果（失败次数即 outcome=failure 的计数）</li>
+ *   <li>ai.chat.rounds：每次对话调用上游的轮数（含工具调用轮），按服务商</li>
+ *   <li>ai.quota.rejections：因配额不足拒绝或提前结束的对话，按服务商和原因</li>
+ *   <li>ai.admission.in_flight / ai.admission.queued：准入控制当前在途、排队的对话数，按服务商</li>
+ *   <li>ai.admission.rejections：准入控制拒绝的对话，按服务商和原因</li>
+ *   <li>ai.sse.connections：当前存活的 SSE 连接数；ai.sse.connections.registered：启动以来注册过的连接总数</li>
+ * </ul>
+ * 耗时指标发布分位数直方图，Prometheus 端用 histogram_quantile 计算 p50 / p99。
+ */
+@Component
+public class AiMetrics {
+
+    public static final String OUTCOME_SUCCESS = "success";
+    public static final String OUTCOME_FAILURE = "failure";
+    public static final String OUTCOME_CANCELLED = "cancelled";
+
+    /**
+     * 配额拒绝原因：对话开始前检查到配额已用尽、预留 Token 失败、扣减搜索次数失败
+     */
+    public static final String REJECT_QUOTA = "quota";
+    public static final String REJECT_TOKENS = "tokens";
+    public static final String REJECT_SEARCH = "search";
+
+    /**
+     * 准入拒绝原因：单用户并发超限、队列已满、排队超时
+     */
+    public static final String ADMISSION_REJECT_USER = "user";
+    public static final String ADMISSION_REJECT_QUEUE_FULL = "queue_full";
+    public static final String ADMISSION_REJECT_TIMEOUT = "timeout";
+
+    // 模型返回的未知工具名不作为标签值，避免指标基数随模型输出增长
+    private static final String UNKNOWN_TOOL = "unknown";
+
+    private final MeterRegistry registry;
+
+    public AiMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * 开始统计一次对话（首个 token 延迟、轮数）
+     */
+    public ChatObservation startChat(String provider) {
+        return new ChatObservation(provider, System.nanoTime());
+    }
+
+    /**
+     * 记录一次上游调用（由 {@link LlmRouter} 在调用结束时记录）
+     * @param outcome success、failure 或 cancelled（对冲落败、客户端断开）
+     */
+    void recordUpstream(String provider, String model, boolean streaming, String outcome, long nanos) {
+        Timer.builder("ai.upstream.latency")
+                .description("上游大模型调用耗时")
+                .tag("provider", provider)
+                .tag("model", model)
+                .tag("mode", streaming ? "stream" : "sync")
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(50))
+                .maximumExpectedValue(Duration.ofSeconds(180))
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 记录一轮上游调用的生成速度
+     * @param route 本轮的路由结果（未响应时不记录）
+     * @param completionTokens 本轮输出 token 数（上游 usage）
+     * @param streaming 流式按首个数据块到结束的时间计算，非流式按整个请求计算
+     */
+    public void recordGeneration(LlmRouter.Route route, long completionTokens, boolean streaming) {
+        if (route == null || route.getProvider() == null || completionTokens <= 0) {
+            return;
+        }
+        long nanos = streaming
+                ? System.nanoTime() - route.getRespondedNanos()
+                : route.getRespondedNanos() - route.getStartedNanos();
+        if (nanos <= 0) {
+            return;
+        }
+        DistributionSummary.builder("ai.upstream.tokens.per.second")
+                .description("上游生成速度（输出 token / 秒）")
+                .baseUnit("tokens")
+                .tag("provider", route.getProvider())
+                .tag("model", route.getModel())
+                .publishPercentileHistogram()
+                .minimumExpectedValue(1.0)
+                .maximumExpectedValue(1000.0)
+                .register(registry)
+                .record(completionTokens / (nanos / 1e9));
+    }
+
+    /**
+     * 记录一次工具调用
+     * @param knownTool 是否为已定义的工具，未知工具名统一记为 unknown
+     */
+    public void recordToolCall(String toolName, boolean knownTool, boolean success, long nanos) {
+        Timer.builder("ai.tool.latency")
+                .description("工具调用耗时")
+                .tag("tool", knownTool ? toolName : UNKNOWN_TOOL)
+                .tag("outcome", success ? OUTCOME_SUCCESS : OUTCOME_FAILURE)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(1))
+                .maximumExpectedValue(Duration.ofSeconds(30))
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 记录一次因配额不足被拒绝（或提前结束）的对话
+     */
+    public void recordQuotaRejection(String provider, String reason) {
+        Counter.builder("ai.quota.rejections")
+                .description("因配额不足拒绝的对话")
+                .tag("provider", provider)
+                .tag("reason", reason)
+                .register(registry)
+                .increment();
+    }
+
+    /**
+     * 注册一个服务商隔舱的准入指标（隔舱首次使用时由 {@link AiBulkhead} 调用）
+     * @param compartment 指标读取的对象，由注册表持有引用
+     * @param rejections 拒绝原因 -> 累计拒绝次数
+     */
+    <T> void bindAdmission(String provider, T compartment, ToDoubleFunction<T> inFlight, ToDoubleFunction<T> queued,
+                           Map<String, ToDoubleFunction<T>> rejections) {
+        Gauge.builder("ai.admission.in_flight", compartment, inFlight)
+                .description("准入控制当前在途的对话数")
+                .tag("provider", provider)
+                .strongReference(true)
+                .register(registry);
+        Gauge.builder("ai.admission.queued", compartment, queued)
+                .description("准入控制当前排队的对话数")
+                .tag("provider", provider)
+                .strongReference(true)
+                .register(registry);
+        rejections.forEach((reason, count) -> FunctionCounter.builder("ai.admission.rejections", compartment, count)
+                .description("准入控制拒绝的对话")
+                .tag("provider", provider)
+                .tag("reason", reason)
+                .register(registry));
+    }
+
+    /**
+     * 注册 SSE 连接数指标（由 {@link SseConnectionRegistry} 创建时调用）
+     */
+    void bindSseConnections(SseConnectionRegistry connections) {
+        Gauge.builder("ai.sse.connections", connections, SseConnectionRegistry::getLiveCount)
+                .description("当前存活的 SSE 连接数")
+                .strongReference(true)
+                .register(registry);
+        FunctionCounter.builder("ai.sse.connections.registered", connections, SseConnectionRegistry::getTotalRegistered)
+                .description("启动以来注册过的 SSE 连接数")
+                .register(registry);
+    }
+
+    private void recordTtft(String provider, String model, long nanos) {
+        Timer.builder("ai.chat.ttft")
+                .description("流式对话首个 token 延迟")
+                .tag("provider", provider)
+                .tag("model", model != null ? model : "")
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(50))
+                .maximumExpectedValue(Duration.ofSeconds(120))
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void recordRounds(String provider, int rounds) {
+        DistributionSummary.builder("ai.chat.rounds")
+                .description("每次对话调用上游的轮数")
+                .tag("provider", provider)
+                .serviceLevelObjectives(1, 2, 3, 4, 5, 6)
+                .register(registry)
+                .record(rounds);
+    }
+
+    /**
+     * 一次对话的指标状态，可在多个线程上更新
+     */
+    public final class ChatObservation {
+        private final String provider;
+        private final long startNanos;
+        private final AtomicBoolean firstToken = new AtomicBoolean();
+        private final AtomicInteger rounds = new AtomicInteger();
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        private ChatObservation(String provider, long startNanos) {
+            this.provider = provider;
+            this.startNanos = startNanos;
+        }
+
+        /**
+         * 有正文或思考内容发给客户端；只有第一次调用记录 TTFT
+         * @param model 实际响应的模型
+         */
+        public void onToken(String model) {
+            if (firstToken.compareAndSet(false, true)) {
+                recordTtft(provider, model, System.nanoTime() - startNanos);
+            }
+        }
+
+        /**
+         * 发起一轮上游调用
+         */
+        public void onRound() {
+            rounds.incrementAndGet();
+        }
+
+        /**
+         * 对话结束（正常、出错或客户端断开），重复调用只记录一次；未调用上游的对话不计入轮数
+         */
+        public void finish() {
+            if (finished.compareAndSet(false, true) && rounds.get() > 0) {
+                recordRounds(provider, rounds.get());
+            }
+        }
+    }
+}
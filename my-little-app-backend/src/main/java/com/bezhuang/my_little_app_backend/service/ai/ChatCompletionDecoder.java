@@ -0,0 +1,250 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * OpenAI 兼容响应解码器
+ * 基于 Jackson 流式 JsonParser 单次扫描，直接提取 usage、content、reasoning_content、tool_calls 和 finish_reason，
+ * 其余字段跳过，不构建 JsonNode 树。chat.completion（message）和 chat.completion.chunk（delta）共用同一解码逻辑。
+ */
+public final class ChatCompletionDecoder {
+
+    // 需要 ObjectMapper 作为 codec：tool_calls.arguments 偶尔以 JSON 对象而非字符串返回
+    private static final JsonFactory FACTORY = new ObjectMapper().getFactory();
+
+    private ChatCompletionDecoder() {
+    }
+
+    /**
+     * 解码结果（只取第一个 choice）
+     * @param content 正文，不存在或为 null 时为 null
+     * @param reasoningContent 思考过程，不存在或为 null 时为 null
+     * @param toolCalls 工具调用（流式块中为增量），没有时为空列表
+     * @param finishReason 结束原因，尚未结束时为 null
+     * @param usage token 用量，响应中没有 usage 对象时为 null
+     */
+    public record ChatCompletion(String content, String reasoningContent, List<ToolCall> toolCalls,
+                                 String finishReason, Usage usage) {
+
+        public boolean hasToolCalls() {
+            return !toolCalls.isEmpty();
+        }
+
+        /**
+         * tool_calls 的 Map 形式（与请求中 assistant 消息的 tool_calls 结构一致）
+         */
+        public List<Map<String, Object>> toolCallMaps() {
+            List<Map<String, Object>> result = new ArrayList<>(toolCalls.size());
+            for (ToolCall toolCall : toolCalls) {
+                result.add(toolCall.toMap());
+            }
+            return result;
+        }
+    }
+
+    /**
+     * 单个工具调用；流式块中 index 之外的字段可能缺失（为 null）
+     * @param index 流式增量的序号，非流式响应中为 -1
+     */
+    public record ToolCall(int index, String id, String type, String name, String arguments) {
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> function = new LinkedHashMap<>();
+            function.put("name", name != null ? name : "");
+            function.put("arguments", arguments != null && !arguments.isEmpty() ? arguments : "{}");
+
+            Map<String, Object> toolCall = new LinkedHashMap<>();
+            toolCall.put("id", id != null ? id : "");
+            toolCall.put("type", type != null ? type : "function");
+            toolCall.put("function", function);
+            return toolCall;
+        }
+    }
+
+    /**
+     * token 用量，缺失的字段为 0
+     * @param promptCacheHitTokens 命中上游前缀缓存的输入 token（DeepSeek 按较低单价计费）
+     * @param promptCacheMissTokens 未命中缓存的输入 token
+     */
+    public record Usage(long promptTokens, long completionTokens,
+                        long promptCacheHitTokens, long promptCacheMissTokens) {
+    }
+
+    public static ChatCompletion decode(String json) throws JsonProcessingException {
+        try (JsonParser parser = FACTORY.createParser(json)) {
+            return decode(parser);
+        } catch (JsonProcessingException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static ChatCompletion decode(byte[] json) throws JsonProcessingException {
+        try (JsonParser parser = FACTORY.createParser(json)) {
+            return decode(parser);
+        } catch (JsonProcessingException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static ChatCompletion decode(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "响应不是 JSON 对象");
+        }
+        MessageFields message = new MessageFields();
+        Usage usage = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if ("usage".equals(field) && token == JsonToken.START_OBJECT) {
+                usage = readUsage(parser);
+            } else if ("choices".equals(field) && token == JsonToken.START_ARRAY) {
+                readChoices(parser, message);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return new ChatCompletion(message.content, message.reasoningContent,
+                message.toolCalls != null ? message.toolCalls : List.of(), message.finishReason, usage);
+    }
+
+    private static Usage readUsage(JsonParser parser) throws IOException {
+        long promptTokens = 0;
+        long completionTokens = 0;
+        long cacheHitTokens = 0;
+        long cacheMissTokens = 0;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "prompt_tokens" -> promptTokens = parser.getValueAsLong(0);
+                case "completion_tokens" -> completionTokens = parser.getValueAsLong(0);
+                case "prompt_cache_hit_tokens" -> cacheHitTokens = parser.getValueAsLong(0);
+                case "prompt_cache_miss_tokens" -> cacheMissTokens = parser.getValueAsLong(0);
+                default -> parser.skipChildren();
+            }
+        }
+        return new Usage(promptTokens, completionTokens, cacheHitTokens, cacheMissTokens);
+    }
+
+    private static void readChoices(JsonParser parser, MessageFields message) throws IOException {
+        boolean first = true;
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (!first || parser.currentToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            first = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken token = parser.nextToken();
+                if ("finish_reason".equals(field)) {
+                    message.finishReason = textOrNull(parser);
+                } else if (("message".equals(field) || "delta".equals(field)) && token == JsonToken.START_OBJECT) {
+                    readMessage(parser, message);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    private static void readMessage(JsonParser parser, MessageFields message) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            switch (field) {
+                case "content" -> message.content = textOrNull(parser);
+                case "reasoning_content" -> message.reasoningContent = textOrNull(parser);
+                case "tool_calls" -> {
+                    if (token == JsonToken.START_ARRAY) {
+                        message.toolCalls = readToolCalls(parser);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                default -> parser.skipChildren();
+            }
+        }
+    }
+
+    private static List<ToolCall> readToolCalls(JsonParser parser) throws IOException {
+        List<ToolCall> toolCalls = new ArrayList<>(2);
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (parser.currentToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            int index = -1;
+            String id = null;
+            String type = null;
+            String name = null;
+            String arguments = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken token = parser.nextToken();
+                switch (field) {
+                    case "index" -> index = parser.getValueAsInt(-1);
+                    case "id" -> id = textOrNull(parser);
+                    case "type" -> type = textOrNull(parser);
+                    case "function" -> {
+                        if (token != JsonToken.START_OBJECT) {
+                            parser.skipChildren();
+                            break;
+                        }
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            String functionField = parser.currentName();
+                            JsonToken functionToken = parser.nextToken();
+                            if ("name".equals(functionField)) {
+                                name = textOrNull(parser);
+                            } else if ("arguments".equals(functionField)) {
+                                arguments = functionToken.isStructStart()
+                                        ? parser.readValueAsTree().toString()
+                                        : textOrNull(parser);
+                            } else {
+                                parser.skipChildren();
+                            }
+                        }
+                    }
+                    default -> parser.skipChildren();
+                }
+            }
+            toolCalls.add(new ToolCall(index, id, type, name, arguments));
+        }
+        return toolCalls;
+    }
+
+    private static String textOrNull(JsonParser parser) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (token.isStructStart()) {
+            parser.skipChildren();
+            return null;
+        }
+        return parser.getText();
+    }
+
+    private static class MessageFields {
+        String content;
+        String reasoningContent;
+        List<ToolCall> toolCalls;
+        String finishReason;
+    }
+}
@@ -0,0 +1,173 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 流式响应累加器
+ * 逐块累加 OpenAI 兼容的 chat.completion.chunk（由 {@link ChatCompletionDecoder} 解码），拼接正文、思考过程和增量 tool_calls
+ */
+public class ChatStreamAccumulator {
+
+    private final StringBuilder content = new StringBuilder();
+    private final StringBuilder reasoning = new StringBuilder();
+    // tool_calls 增量按 index 合并，TreeMap 保证输出顺序与模型返回顺序一致
+    private final TreeMap<Integer, ToolCallBuilder> toolCalls = new TreeMap<>();
+    private long promptTokens;
+    private long completionTokens;
+    private long promptCacheHitTokens;
+    private String finishReason;
+
+    /**
+     * 本块新增的正文和思考内容（用于实时转发给前端）
+     */
+    public record Delta(String content, String reasoning) {
+        public boolean hasContent() {
+            return content != null && !content.isEmpty();
+        }
+
+        public boolean hasReasoning() {
+            return reasoning != null && !reasoning.isEmpty();
+        }
+    }
+
+    /**
+     * 累加一个流式数据块
+     * @return 本块新增的正文和思考内容
+     */
+    public Delta accept(ChatCompletionDecoder.ChatCompletion chunk) {
+        if (chunk.usage() != null) {
+            promptTokens = chunk.usage().promptTokens();
+            completionTokens = chunk.usage().completionTokens();
+            promptCacheHitTokens = chunk.usage().promptCacheHitTokens();
+        }
+        if (chunk.finishReason() != null) {
+            finishReason = chunk.finishReason();
+        }
+
+        String contentDelta = emptyToNull(chunk.content());
+        String reasoningDelta = emptyToNull(chunk.reasoningContent());
+        if (contentDelta != null) {
+            content.append(contentDelta);
+        }
+        if (reasoningDelta != null) {
+            reasoning.append(reasoningDelta);
+        }
+
+        for (ChatCompletionDecoder.ToolCall toolCallDelta : chunk.toolCalls()) {
+            int index = toolCallDelta.index() >= 0 ? toolCallDelta.index() : toolCalls.size();
+            toolCalls.computeIfAbsent(index, i -> new ToolCallBuilder()).accept(toolCallDelta);
+        }
+
+        return new Delta(contentDelta, reasoningDelta);
+    }
+
+    public String getContent() {
+        return content.toString();
+    }
+
+    public String getReasoning() {
+        return reasoning.toString();
+    }
+
+    public long getPromptTokens() {
+        return promptTokens;
+    }
+
+    public long getCompletionTokens() {
+        return completionTokens;
+    }
+
+    /**
+     * 输入中命中上游前缀缓存的 token 数（上游不返回时为 0）
+     */
+    public long getPromptCacheHitTokens() {
+        return promptCacheHitTokens;
+    }
+
+    public String getFinishReason() {
+        return finishReason;
+    }
+
+    /**
+     * 本轮已生成的输出 token 数
+     * 收到 usage 时返回实际值；流被中途取消（尚未收到 usage）时按已接收的内容估算
+     */
+    public long getGeneratedTokens() {
+        if (completionTokens > 0) {
+            return completionTokens;
+        }
+        long estimated = estimateTokens(content) + estimateTokens(reasoning);
+        for (ToolCallBuilder builder : toolCalls.values()) {
+            estimated += estimateTokens(builder.arguments);
+        }
+        return estimated;
+    }
+
+    public boolean hasToolCalls() {
+        return !toolCalls.isEmpty();
+    }
+
+    /**
+     * 组装完成的 tool_calls（与非流式响应中 message.tool_calls 结构一致）
+     */
+    public List<Map<String, Object>> getToolCalls() {
+        List<Map<String, Object>> result = new ArrayList<>(toolCalls.size());
+        for (ToolCallBuilder builder : toolCalls.values()) {
+            result.add(builder.build());
+        }
+        return result;
+    }
+
+    /**
+     * 粗略估算文本的 token 数（见 {@link TokenEstimator}）
+     */
+    public static long estimateTokens(CharSequence text) {
+        return TokenEstimator.estimate(text);
+    }
+
+    private static String emptyToNull(String text) {
+        return text == null || text.isEmpty() ? null : text;
+    }
+
+    /**
+     * 单个工具调用的增量拼接器
+     * id/name 只在首块出现，arguments 分多块到达
+     */
+    private static class ToolCallBuilder {
+        private String id;
+        private String type = "function";
+        private String name;
+        private final StringBuilder arguments = new StringBuilder();
+
+        void accept(ChatCompletionDecoder.ToolCall toolCallDelta) {
+            if (toolCallDelta.id() != null) {
+                id = toolCallDelta.id();
+            }
+            if (toolCallDelta.type() != null) {
+                type = toolCallDelta.type();
+            }
+            if (toolCallDelta.name() != null) {
+                name = toolCallDelta.name();
+            }
+            if (toolCallDelta.arguments() != null) {
+                arguments.append(toolCallDelta.arguments());
+            }
+        }
+
+        Map<String, Object> build() {
+            Map<String, Object> function = new LinkedHashMap<>();
+            function.put("name", name != null ? name : "");
+            function.put("arguments", arguments.length() > 0 ? arguments.toString() : "{}");
+
+            Map<String, Object> toolCall = new LinkedHashMap<>();
+            toolCall.put("id", id != null ? id : "");
+            toolCall.put("type", type);
+            toolCall.put("function", function);
+            return toolCall;
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import com.bezhuang.my_little_app_backend.service.AiConfigService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 上下文压缩
+ * 在构建上游请求体之前按服务商的上下文预算裁剪消息列表（输入 token 是主要成本）：
+ * 1. 之前各轮的工具调用过程（带 tool_calls 的 assistant 消息及其 tool 结果）直接去掉，最终回复已包含结论；
+ * 2. 本轮较早的工具结果超过长度上限时截断，最近一组工具结果保持完整；
+ * 3. 仍超出预算时从最早的一轮开始丢弃，可选用廉价模型把丢弃的轮次总结为一段摘要（按内容缓存，异步生成）。
+ *    丢弃的轮数按 {@value #DROP_TURN_BLOCK} 轮取整，之后几轮请求的前缀保持不变，上游前缀缓存可以继续命中。
+ * 返回新的列表，不修改传入的消息；第一条系统消息保持同一对象，预编译的系统消息片段仍然生效。
+ */
+@Component
+public class ContextCompactor {
+
+    private static final Logger logger = LoggerFactory.getLogger(ContextCompactor.class);
+
+    private static final int DROP_TURN_BLOCK = 4;
+    private static final int SUMMARY_CACHE_SIZE = 500;
+    private static final int SUMMARY_MAX_TOKENS = 400;
+    private static final String TRUNCATED_SUFFIX = "\n（结果过长，已截断）";
+    private static final String SUMMARY_PREFIX = "以下是此前对话的摘要：\n";
+    private static final String SUMMARY_INSTRUCTION = "请用简洁的中文总结下面的对话，保留用户的需求、关键事实、结论和未解决的问题，不超过 300 字。";
+
+    private final AiConfigService aiConfigService;
+    private final Map<String, String> summaryCache;
+
+    private final LongAdder compactedRequests = new LongAdder();
+    private final LongAdder savedPromptTokens = new LongAdder();
+    private final LongAdder summaryCalls = new LongAdder();
+    private final LongAdder summaryCacheHits = new LongAdder();
+    private final LongAdder summaryFailures = new LongAdder();
+
+    /**
+     * 调用模型生成摘要，输入为 {@link #summaryRequestMessages(List)} 构建的消息
+     * 返回空的 Mono（如剩余配额不足）时不加摘要，直接丢弃这些轮次
+     */
+    @FunctionalInterface
+    public interface Summarizer {
+        Mono<String> summarize(List<Map<String, Object>> requestMessages);
+    }
+
+    /**
+     * 压缩结果
+     * @param messages 发往上游的消息列表（未压缩时即传入的列表本身）
+     * @param savedTokens 估算节省的输入 token 数
+     */
+    public record Result(List<Map<String, Object>> messages, long savedTokens) {
+    }
+
+    public ContextCompactor(AiConfigService aiConfigService) {
+        this.aiConfigService = aiConfigService;
+        // accessOrder=true：超出容量时淘汰最久未使用的摘要
+        this.summaryCache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > SUMMARY_CACHE_SIZE;
+            }
+        };
+    }
+
+    /**
+     * 按服务商配置压缩消息列表；不需要摘要时立即完成，需要摘要时在摘要返回后完成
+     * @param provider 服务商（配置键前缀），如 {@link LlmProvider#DEEPSEEK}
+     * @param summarizer 摘要生成器，为 null 时超出预算的轮次直接丢弃
+     */
+    public Mono<Result> compact(String provider, List<Map<String, Object>> messages, Summarizer summarizer) {
+        return compact(provider, messages, summarizer,
+                aiConfigService.getContextBudgetTokens(provider),
+                aiConfigService.getContextToolOutputMaxChars(provider),
+                aiConfigService.isContextSummaryEnabled(provider));
+    }
+
+    Mono<Result> compact(String provider, List<Map<String, Object>> messages, Summarizer summarizer,
+                         int budgetTokens, int toolOutputMaxChars, boolean summaryEnabled) {
+        int currentTurn = lastIndexOfRole(messages, "user");
+        if (messages.size() < 2 || currentTurn < 0) {
+            return Mono.just(new Result(messages, 0));
+        }
+
+        long originalTokens = estimateTokens(messages);
+        boolean hasToolMessages = false;
+        for (Map<String, Object> message : messages) {
+            if ("tool".equals(message.get("role"))) {
+                hasToolMessages = true;
+                break;
+            }
+        }
+        if (!hasToolMessages && (budgetTokens <= 0 || originalTokens <= budgetTokens)) {
+            return Mono.just(new Result(messages, 0));
+        }
+
+        // 本轮最近一次工具调用的位置，之后的工具结果保持完整
+        int latestToolRound = -1;
+        for (int i = messages.size() - 1; i > currentTurn; i--) {
+            if (hasToolCalls(messages.get(i))) {
+                latestToolRound = i;
+                break;
+            }
+        }
+
+        List<Map<String, Object>> result = new ArrayList<>(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            Map<String, Object> message = messages.get(i);
+            if (i < currentTurn) {
+                // 之前各轮：去掉工具调用过程
+                if (i > 0 && ("tool".equals(message.get("role")) || hasToolCalls(message))) {
+                    continue;
+                }
+            } else if (i < latestToolRound && "tool".equals(message.get("role")) && toolOutputMaxChars > 0) {
+                message = truncateContent(message, toolOutputMaxChars);
+            }
+            result.add(message);
+        }
+
+        long tokens = estimateTokens(result);
+        if (budgetTokens <= 0 || tokens <= budgetTokens) {
+            return Mono.just(finish(provider, messages, originalTokens, result, tokens));
+        }
+
+        Summarizer activeSummarizer = summaryEnabled ? summarizer : null;
+        Dropped dropped = dropOldestTurns(result, tokens, budgetTokens, activeSummarizer != null);
+        if (activeSummarizer == null || dropped.messages().isEmpty()) {
+            return Mono.just(finish(provider, messages, originalTokens, result, dropped.tokens()));
+        }
+        return summarize(provider, dropped.messages(), activeSummarizer)
+                .map(summary -> {
+                    Map<String, Object> summaryMessage = new LinkedHashMap<>();
+                    summaryMessage.put("role", "system");
+                    summaryMessage.put("content", SUMMARY_PREFIX + summary.trim());
+                    result.add(dropped.index(), summaryMessage);
+                    return dropped.tokens() + estimateTokens(summaryMessage);
+                })
+                .defaultIfEmpty(dropped.tokens())
+                .map(compactedTokens -> finish(provider, messages, originalTokens, result, compactedTokens));
+    }
+
+    /**
+     * 记录压缩统计并返回结果
+     */
+    private Result finish(String provider, List<Map<String, Object>> messages, long originalTokens,
+                          List<Map<String, Object>> result, long tokens) {
+        long saved = Math.max(0, originalTokens - tokens);
+        if (saved > 0) {
+            compactedRequests.increment();
+            savedPromptTokens.add(saved);
+            logger.debug("上下文压缩 [{}]: {} -> {} tokens, 消息数 {} -> {}",
+                    provider, originalTokens, tokens, messages.size(), result.size());
+        }
+        return new Result(result, saved);
+    }
+
+    /**
+     * 丢弃的轮次
+     * @param index 摘要插入的位置
+     * @param tokens 丢弃后的估算 token 数
+     */
+    private record Dropped(List<Map<String, Object>> messages, int index, long tokens) {
+    }
+
+    /**
+     * 从最早的一轮开始丢弃，直到不超出预算（本轮始终保留）
+     * @param reserveSummary 是否为摘要预留预算
+     */
+    private Dropped dropOldestTurns(List<Map<String, Object>> messages, long tokens, int budgetTokens,
+                                    boolean reserveSummary) {
+        int historyStart = 1;
+        while (historyStart < messages.size() && "system".equals(messages.get(historyStart).get("role"))) {
+            historyStart++;
+        }
+        int currentTurn = lastIndexOfRole(messages, "user");
+
+        List<Map<String, Object>> dropped = new ArrayList<>();
+        int droppedTurns = 0;
+        // 摘要本身也占用预算，预留出摘要的长度
+        long target = reserveSummary ? budgetTokens - SUMMARY_MAX_TOKENS : budgetTokens;
+        while ((tokens > target || droppedTurns % DROP_TURN_BLOCK != 0) && historyStart < currentTurn) {
+            int nextTurn = historyStart + 1;
+            while (nextTurn < currentTurn && !"user".equals(messages.get(nextTurn).get("role"))) {
+                nextTurn++;
+            }
+            List<Map<String, Object>> turn = messages.subList(historyStart, nextTurn);
+            tokens -= estimateTokens(turn);
+            dropped.addAll(turn);
+            turn.clear();
+            currentTurn -= nextTurn - historyStart;
+            droppedTurns++;
+        }
+        return new Dropped(dropped, historyStart, tokens);
+    }
+
+    /**
+     * 生成（或从缓存取出）摘要，失败或为空时返回空的 Mono
+     */
+    private Mono<String> summarize(String provider, List<Map<String, Object>> dropped, Summarizer summarizer) {
+        String key = provider + ":" + contentKey(dropped);
+        synchronized (summaryCache) {
+            String cached = summaryCache.get(key);
+            if (cached != null) {
+                summaryCacheHits.increment();
+                return Mono.just(cached);
+            }
+        }
+        summaryCalls.increment();
+        return Mono.defer(() -> summarizer.summarize(summaryRequestMessages(dropped)))
+                .filter(summary -> !summary.isBlank())
+                .doOnNext(summary -> {
+                    synchronized (summaryCache) {
+                        summaryCache.put(key, summary);
+                    }
+                })
+                .onErrorResume(e -> {
+                    // 摘要失败不影响对话，只是丢弃的轮次没有摘要
+                    summaryFailures.increment();
+                    logger.warn("生成对话摘要失败 [{}]: {}", provider, e.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * 摘要请求的消息：摘要指令 + 被丢弃轮次的对话记录
+     */
+    public static List<Map<String, Object>> summaryRequestMessages(List<Map<String, Object>> dropped) {
+        StringBuilder transcript = new StringBuilder();
+        for (Map<String, Object> message : dropped) {
+            Object content = message.get("content");
+            if (content == null || content.toString().isBlank()) {
+                continue;
+            }
+            transcript.append("user".equals(message.get("role")) ? "用户：" : "助手：")
+                    .append(content).append('\n');
+        }
+        List<Map<String, Object>> request = new ArrayList<>(2);
+        request.add(Map.of("role", "system", "content", SUMMARY_INSTRUCTION));
+        request.add(Map.of("role", "user", "content", transcript.toString()));
+        return request;
+    }
+
+    public static int getSummaryMaxTokens() {
+        return SUMMARY_MAX_TOKENS;
+    }
+
+    /**
+     * 估算消息列表的输入 token 数（正文 + 工具调用参数 + 每条消息的格式开销）
+     */
+    public static long estimateTokens(List<Map<String, Object>> messages) {
+        return TokenEstimator.estimateMessages(messages);
+    }
+
+    private static long estimateTokens(Map<String, Object> message) {
+        return TokenEstimator.estimateMessage(message);
+    }
+
+    private static boolean hasToolCalls(Map<String, Object> message) {
+        Object toolCalls = message.get("tool_calls");
+        return toolCalls instanceof List<?> list && !list.isEmpty();
+    }
+
+    private static int lastIndexOfRole(List<Map<String, Object>> messages, String role) {
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            if (role.equals(messages.get(i).get("role"))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Map<String, Object> truncateContent(Map<String, Object> message, int maxChars) {
+        Object content = message.get("content");
+        if (content == null || content.toString().length() <= maxChars) {
+            return message;
+        }
+        Map<String, Object> truncated = new LinkedHashMap<>(message);
+        truncated.put("content", content.toString().substring(0, maxChars) + TRUNCATED_SUFFIX);
+        return truncated;
+    }
+
+    private static String contentKey(List<Map<String, Object>> messages) {
+        StringBuilder builder = new StringBuilder();
+        for (Map<String, Object> message : messages) {
+            builder.append(message.get("role")).append('\u0000').append(message.get("content")).append('\u0000');
+        }
+        return UUID.nameUUIDFromBytes(builder.toString().getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    public long getCompactedRequests() {
+        return compactedRequests.sum();
+    }
+
+    public long getSavedPromptTokens() {
+        return savedPromptTokens.sum();
+    }
+
+    public long getSummaryCalls() {
+        return summaryCalls.sum();
+    }
+
+    public long getSummaryCacheHits() {
+        return summaryCacheHits.sum();
+    }
+
+    public long getSummaryFailures() {
+        return summaryFailures.sum();
+    }
+}
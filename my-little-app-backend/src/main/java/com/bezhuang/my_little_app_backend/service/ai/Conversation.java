@@ -0,0 +1,189 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 服务端保存的 AI 对话
+ * 只保存每轮的用户消息和最终回复（role + content），工具调用的中间消息不保存。
+ * 同一对话可能被并发请求访问，读写消息都在对象锁内进行；getter/setter 仅供 Redis 序列化使用。
+ */
+public class Conversation {
+
+    private static final int TITLE_MAX_LENGTH = 30;
+
+    private String id;
+    // ai_conversation 表主键，匿名对话或持久化失败时为 null
+    private Long recordId;
+    private Long userId;
+    private String title;
+    private List<Map<String, String>> messages = new ArrayList<>();
+    private long createdAt;
+    private long updatedAt;
+    private boolean ended;
+
+    public Conversation() {
+    }
+
+    public Conversation(String id, Long userId) {
+        this.id = id;
+        this.userId = userId;
+        this.createdAt = System.currentTimeMillis();
+        this.updatedAt = this.createdAt;
+    }
+
+    /**
+     * 是否属于该用户；匿名对话（userId 为空）只能由匿名请求访问
+     */
+    public boolean isOwnedBy(Long requesterId) {
+        return userId == null ? requesterId == null : userId.equals(requesterId);
+    }
+
+    /**
+     * 已保存的用户消息数（对话轮数）
+     */
+    @JsonIgnore
+    public synchronized int getUserRounds() {
+        int rounds = 0;
+        for (Map<String, String> message : messages) {
+            if ("user".equals(message.get("role"))) {
+                rounds++;
+            }
+        }
+        return rounds;
+    }
+
+    /**
+     * 历史消息副本，可直接追加到发往上游的消息列表
+     */
+    @JsonIgnore
+    public synchronized List<Map<String, Object>> getHistory() {
+        List<Map<String, Object>> history = new ArrayList<>(messages.size());
+        for (Map<String, String> message : messages) {
+            history.add(new LinkedHashMap<>(message));
+        }
+        return history;
+    }
+
+    /**
+     * 一轮对话成功结束后追加用户消息和最终回复
+     */
+    public synchronized void appendTurn(String userMessage, String assistantMessage) {
+        if (title == null && userMessage != null) {
+            String trimmed = userMessage.trim();
+            title = trimmed.length() > TITLE_MAX_LENGTH ? trimmed.substring(0, TITLE_MAX_LENGTH) : trimmed;
+        }
+        messages.add(message("user", userMessage));
+        messages.add(message("assistant", assistantMessage));
+        updatedAt = System.currentTimeMillis();
+    }
+
+    public synchronized void end() {
+        ended = true;
+        updatedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * 当前状态的副本（写入 Redis 时序列化副本，避免与并发追加冲突）
+     */
+    public synchronized Conversation copy() {
+        Conversation copy = new Conversation(id, userId);
+        copy.recordId = recordId;
+        copy.title = title;
+        copy.messages = new ArrayList<>(messages);
+        copy.createdAt = createdAt;
+        copy.updatedAt = updatedAt;
+        copy.ended = ended;
+        return copy;
+    }
+
+    /**
+     * 对话概要（列表和详情接口返回）
+     */
+    public synchronized Map<String, Object> toSummary() {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("id", id);
+        summary.put("title", title != null ? title : "新对话");
+        summary.put("messageCount", messages.size());
+        summary.put("rounds", getUserRounds());
+        summary.put("ended", ended);
+        summary.put("createdAt", createdAt);
+        summary.put("updatedAt", updatedAt);
+        return summary;
+    }
+
+    private static Map<String, String> message(String role, String content) {
+        Map<String, String> message = new LinkedHashMap<>();
+        message.put("role", role);
+        message.put("content", content != null ? content : "");
+        return message;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public Long getRecordId() {
+        return recordId;
+    }
+
+    public void setRecordId(Long recordId) {
+        this.recordId = recordId;
+    }
+
+    public Long getUserId() {
+        return userId;
+    }
+
+    public void setUserId(Long userId) {
+        this.userId = userId;
+    }
+
+    public synchronized String getTitle() {
+        return title;
+    }
+
+    public synchronized void setTitle(String title) {
+        this.title = title;
+    }
+
+    public synchronized List<Map<String, String>> getMessages() {
+        return messages;
+    }
+
+    public synchronized void setMessages(List<Map<String, String>> messages) {
+        this.messages = messages != null ? messages : new ArrayList<>();
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(long createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public synchronized long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public synchronized void setUpdatedAt(long updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+
+    public synchronized boolean isEnded() {
+        return ended;
+    }
+
+    public synchronized void setEnded(boolean ended) {
+        this.ended = ended;
+    }
+}
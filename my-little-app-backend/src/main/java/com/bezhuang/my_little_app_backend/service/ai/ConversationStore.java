@@ -0,0 +1,155 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import com.bezhuang.my_little_app_backend.service.CacheService;
+import com.bezhuang.my_little_app_backend.service.ConversationHistoryService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * 服务端对话存储
+ * 客户端每轮只提交新的用户消息和对话 ID，历史消息从这里取出，不再随请求整体上传。
+ * 进程内有界 LRU，Redis 可用时每次变更写穿到 Redis。
+ * 多实例部署时同一对话的相邻两轮可能落在不同实例上，所以 Redis 可用时以 Redis 为准：
+ * 每次读取都先查 Redis 并刷新本地副本，本地 LRU 只在 Redis 不可用或键已过期时兜底，
+ * 避免把过期的历史发给模型，也避免写回时覆盖其他实例刚追加的一轮。
+ * 登录用户的对话同时持久化到数据库（{@link ConversationHistoryService}），Redis 过期后仍可从数据库恢复
+ */
+@Component
+public class ConversationStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConversationStore.class);
+    private static final String REDIS_KEY_PREFIX = "ai:conversation:";
+
+    private final CacheService cacheService;
+    private final ConversationHistoryService historyService;
+    private final int maxSize;
+    private final long ttlSeconds;
+    private final Map<String, Conversation> conversations;
+
+    public ConversationStore(CacheService cacheService, ConversationHistoryService historyService,
+                             @Value("${ai.conversation.max-size:2000}") int maxSize,
+                             @Value("${ai.conversation.ttl-seconds:86400}") long ttlSeconds) {
+        this.cacheService = cacheService;
+        this.historyService = historyService;
+        this.maxSize = maxSize;
+        this.ttlSeconds = ttlSeconds;
+        // accessOrder=true：按访问顺序排列，超出容量时淘汰最久未访问的对话
+        this.conversations = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Conversation> eldest) {
+                return size() > ConversationStore.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * 创建对话
+     * @param userId 所属用户，匿名对话（硅基流动默认模型）为 null
+     */
+    public Conversation create(Long userId) {
+        Conversation conversation = new Conversation(UUID.randomUUID().toString(), userId);
+        if (userId != null) {
+            try {
+                conversation.setRecordId(historyService.create(conversation.getId(), userId));
+            } catch (Exception e) {
+                // 持久化失败不影响对话，只是换设备后看不到这条历史
+                logger.warn("保存对话失败: {}", e.getMessage());
+            }
+        }
+        putLocal(conversation);
+        share(conversation);
+        logger.info("创建对话: {}, 用户: {}", conversation.getId(), userId);
+        return conversation;
+    }
+
+    /**
+     * 按 ID 获取对话，不存在或不属于该用户时返回 null
+     */
+    public Conversation get(String id, Long userId) {
+        if (id == null || id.isBlank()) {
+            return null;
+        }
+        Conversation conversation = null;
+        if (cacheService.isAvailable()) {
+            conversation = cacheService.get(REDIS_KEY_PREFIX + id, Conversation.class);
+            if (conversation != null) {
+                putLocal(conversation);
+            }
+        }
+        if (conversation == null) {
+            synchronized (conversations) {
+                conversation = conversations.get(id);
+            }
+        }
+        if (conversation == null && userId != null) {
+            try {
+                conversation = historyService.load(id, userId);
+            } catch (Exception e) {
+                logger.warn("从数据库恢复对话失败 {}: {}", id, e.getMessage());
+            }
+            if (conversation != null) {
+                putLocal(conversation);
+                share(conversation);
+            }
+        }
+        if (conversation == null || !conversation.isOwnedBy(userId)) {
+            return null;
+        }
+        return conversation;
+    }
+
+    /**
+     * 一轮对话成功结束后保存用户消息和最终回复
+     */
+    public void appendTurn(Conversation conversation, String userMessage, String assistantMessage) {
+        conversation.appendTurn(userMessage, assistantMessage);
+        share(conversation);
+        if (conversation.getRecordId() != null) {
+            try {
+                historyService.saveTurn(conversation.getRecordId(), conversation.getTitle(),
+                        userMessage, assistantMessage);
+            } catch (Exception e) {
+                logger.warn("保存对话消息失败 {}: {}", conversation.getId(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 结束对话：之后不再接受新消息
+     */
+    public void end(Conversation conversation) {
+        conversation.end();
+        share(conversation);
+        if (conversation.getRecordId() != null) {
+            try {
+                historyService.end(conversation.getRecordId());
+            } catch (Exception e) {
+                logger.warn("保存对话状态失败 {}: {}", conversation.getId(), e.getMessage());
+            }
+        }
+    }
+
+    public int size() {
+        synchronized (conversations) {
+            return conversations.size();
+        }
+    }
+
+    private void putLocal(Conversation conversation) {
+        synchronized (conversations) {
+            conversations.put(conversation.getId(), conversation);
+        }
+    }
+
+    private void share(Conversation conversation) {
+        if (cacheService.isAvailable()) {
+            cacheService.set(REDIS_KEY_PREFIX + conversation.getId(), conversation.copy(), ttlSeconds);
+        }
+    }
+}
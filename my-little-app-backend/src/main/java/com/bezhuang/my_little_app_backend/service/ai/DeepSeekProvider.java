@@ -0,0 +1,65 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import com.bezhuang.my_little_app_backend.config.ai.DeepSeekConfig;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+/**
+ * DeepSeek 官方 API
+ */
+@Component
+public class DeepSeekProvider extends OpenAiCompatibleProvider {
+
+    private final DeepSeekConfig config;
+
+    public DeepSeekProvider(DeepSeekConfig config, UpstreamClientFactory upstreamClientFactory) {
+        super(upstreamClientFactory);
+        this.config = config;
+    }
+
+    @Override
+    public String getName() {
+        return LlmProvider.DEEPSEEK;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return config.isEnabled() && !config.getApiKey().isEmpty();
+    }
+
+    @Override
+    public String getChatModel() {
+        return config.getModel();
+    }
+
+    @Override
+    public String getReasonerModel() {
+        return config.getReasonerModel();
+    }
+
+    @Override
+    public int getMaxTokens() {
+        return config.getMaxTokens();
+    }
+
+    @Override
+    protected String getBaseUrl() {
+        return config.getBaseUrl();
+    }
+
+    @Override
+    protected String getApiKey() {
+        return config.getApiKey();
+    }
+
+    /**
+     * DeepSeek 按模型区分是否思考，不接受 SiliconFlow 的 enable_thinking 参数
+     */
+    @Override
+    public Map<String, Object> adapt(Map<String, Object> requestBody) {
+        requestBody.remove("enable_thinking");
+        requestBody.remove("thinking_budget");
+        return requestBody;
+    }
+}
@@ -0,0 +1,52 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Map;
+
+/**
+ * 大模型服务商（OpenAI 兼容的 /chat/completions 接口）
+ * 由 {@link LlmRouter} 按名称选择，调用方不直接使用。
+ */
+public interface LlmProvider {
+
+    /**
+     * 服务商名称，也用作指标标签、准入隔舱和配置项前缀
+     */
+    String DEEPSEEK = "deepseek";
+    String SILICONFLOW = "siliconflow";
+
+    /**
+     * 服务商名称，与 ai_config 配置项前缀一致，如 {@link #DEEPSEEK}、{@link #SILICONFLOW}
+     */
+    String getName();
+
+    /**
+     * 是否已启用且配置了 API Key，未启用的服务商不作为故障转移目标
+     */
+    boolean isEnabled();
+
+    String getChatModel();
+
+    String getReasonerModel();
+
+    int getMaxTokens();
+
+    /**
+     * 非流式调用
+     */
+    Mono<ChatCompletionDecoder.ChatCompletion> complete(Map<String, Object> requestBody);
+
+    /**
+     * 流式调用，返回上游 SSE 中每个 data 字段（chat.completion.chunk JSON 或 [DONE]）
+     */
+    Flux<String> stream(Map<String, Object> requestBody);
+
+    /**
+     * 其他服务商的请求体转发到本服务商前，去掉本服务商不支持的参数（requestBody 已是副本，可直接修改）
+     */
+    default Map<String, Object> adapt(Map<String, Object> requestBody) {
+        return requestBody;
+    }
+}
@@ -0,0 +1,331 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import com.bezhuang.my_little_app_backend.service.AiConfigService;
+import org.reactivestreams.Publisher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * 大模型请求路由
+ * 调用方指定首选服务商，路由按各服务商的健康状态（{@link ProviderHealth}）决定实际由谁响应：
+ * <ul>
+ *   <li>首选服务商熔断中：直接发往故障转移服务商（ai_config 中 &lt;服务商&gt;_failover_provider），都不可用时立即失败，不再等待超时</li>
+ *   <li>首选服务商在返回任何内容前失败（5xx、限流、超时、连接失败等）：转发到故障转移服务商</li>
+ *   <li>开启对冲（&lt;服务商&gt;_hedge_enabled）时：首选服务商超过其 p95 延迟仍未响应，向故障转移服务商再发一个请求，先返回内容者胜出，另一个取消</li>
+ * </ul>
+ * 流式调用一旦转发了数据块就不再切换服务商，避免客户端收到两份不同的回答。
+ * 转发到其他服务商时模型名按 router_model_map 映射，未配置的按对话模型 / 推理模型对应到目标服务商的默认模型。
+ */
+@Component
+public class LlmRouter {
+
+    private static final Logger logger = LoggerFactory.getLogger(LlmRouter.class);
+
+    // 对冲请求最短等待时间，避免 p95 很小时几乎每个请求都发两份
+    private static final long MIN_HEDGE_DELAY_MS = 200;
+    private static final String UNAVAILABLE_MESSAGE = "AI 服务暂时不可用，请稍后再试";
+
+    /**
+     * 一次调用的实际路由结果，首个数据块（或非流式响应）到达时写入
+     */
+    public static final class Route {
+        private String provider;
+        private String model;
+        private RouteReason reason;
+        // 胜出请求的发起时间和首个数据块（或非流式响应）到达时间，System.nanoTime()
+        private long startedNanos;
+        private long respondedNanos;
+
+        synchronized boolean serve(String provider, String model, RouteReason reason, long startedNanos) {
+            if (this.provider != null) {
+                return false;
+            }
+            this.provider = provider;
+            this.model = model;
+            this.reason = reason;
+            this.startedNanos = startedNanos;
+            this.respondedNanos = System.nanoTime();
+            return true;
+        }
+
+        public synchronized String getProvider() {
+            return provider;
+        }
+
+        public synchronized String getModel() {
+            return model;
+        }
+
+        public synchronized RouteReason getReason() {
+            return reason;
+        }
+
+        synchronized long getStartedNanos() {
+            return startedNanos;
+        }
+
+        synchronized long getRespondedNanos() {
+            return respondedNanos;
+        }
+    }
+
+    private final AiConfigService aiConfigService;
+    private final AiMetrics aiMetrics;
+    private final Map<String, LlmProvider> providers = new LinkedHashMap<>();
+    private final Map<String, ProviderHealth> health = new LinkedHashMap<>();
+    // 按原始配置字符串缓存解析后的模型映射
+    private volatile ModelMap modelMap = new ModelMap("", Map.of());
+
+    public LlmRouter(List<LlmProvider> providers, AiConfigService aiConfigService, AiMetrics aiMetrics) {
+        this.aiConfigService = aiConfigService;
+        this.aiMetrics = aiMetrics;
+        for (LlmProvider provider : providers) {
+            this.providers.put(provider.getName(), provider);
+            this.health.put(provider.getName(), new ProviderHealth(provider.getName()));
+        }
+    }
+
+    /**
+     * 非流式调用
+     * @param provider 首选服务商
+     * @param route 写入实际响应的服务商、模型和原因，不需要时传 null
+     */
+    public Mono<ChatCompletionDecoder.ChatCompletion> complete(String provider, Map<String, Object> requestBody,
+                                                             Route route) {
+        return route(provider, requestBody, false, route, LlmProvider::complete).next();
+    }
+
+    /**
+     * 流式调用，返回上游 SSE 中每个 data 字段
+     */
+    public Flux<String> stream(String provider, Map<String, Object> requestBody, Route route) {
+        return route(provider, requestBody, true, route, LlmProvider::stream);
+    }
+
+    /**
+     * 失败后换一个服务商是否可能成功：服务商侧错误、超时和连接失败为 true，请求本身的错误为 false
+     */
+    public static boolean isRetriable(Throwable error) {
+        Throwable cause = Exceptions.isRetryExhausted(error) && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof UpstreamException upstream) {
+            return upstream.isRetriable();
+        }
+        return cause instanceof TimeoutException
+                || cause instanceof WebClientRequestException
+                || cause instanceof IOException;
+    }
+
+    /**
+     * 各服务商的熔断状态、滑动窗口失败率、延迟分位数和按原因统计的响应次数
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new TreeMap<>();
+        health.forEach((name, providerHealth) -> {
+            Map<String, Object> providerStats = providerHealth.getStats();
+            providerStats.put("failoverProvider", aiConfigService.getFailoverProvider(name));
+            providerStats.put("hedgeEnabled", aiConfigService.isHedgeEnabled(name));
+            stats.put(name, providerStats);
+        });
+        return stats;
+    }
+
+    /**
+     * 处于熔断（OPEN / HALF_OPEN）状态的服务商数
+     */
+    public int getOpenCircuits() {
+        int open = 0;
+        for (ProviderHealth providerHealth : health.values()) {
+            if (providerHealth.getState() != ProviderHealth.State.CLOSED) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    private <T> Flux<T> route(String providerName, Map<String, Object> requestBody, boolean streaming, Route route,
+                              BiFunction<LlmProvider, Map<String, Object>, Publisher<T>> call) {
+        Route target = route != null ? route : new Route();
+        return Flux.defer(() -> {
+            LlmProvider primary = providers.get(providerName);
+            if (primary == null) {
+                return Flux.error(new IllegalArgumentException("未知的服务商: " + providerName));
+            }
+            long now = System.currentTimeMillis();
+            long openMillis = TimeUnit.SECONDS.toMillis(aiConfigService.getRouterOpenSeconds());
+            boolean primaryAvailable = health.get(providerName).isAvailable(now, openMillis);
+            LlmProvider secondary = failoverOf(providerName, now, openMillis);
+
+            if (!primaryAvailable) {
+                if (secondary == null) {
+                    health.get(providerName).onUnavailable();
+                    return Flux.error(new UpstreamException(providerName, UpstreamException.CIRCUIT_OPEN,
+                            UNAVAILABLE_MESSAGE));
+                }
+                return attempt(secondary, forward(primary, secondary, requestBody), streaming, target,
+                        RouteReason.CIRCUIT_OPEN, call);
+            }
+            Flux<T> primaryFlux = attempt(primary, requestBody, streaming, target, RouteReason.PRIMARY, call);
+            if (secondary == null) {
+                return primaryFlux;
+            }
+
+            // 首选服务商可转移地失败时立即触发备用请求；开启对冲时到达 p95 延迟也触发
+            Sinks.Empty<Void> primaryFailed = Sinks.empty();
+            AtomicBoolean failedOver = new AtomicBoolean();
+            Flux<T> primaryBranch = primaryFlux.doOnError(error -> {
+                if (isRetriable(error)) {
+                    failedOver.set(true);
+                    primaryFailed.tryEmitEmpty();
+                }
+            });
+            long hedgeDelay = aiConfigService.isHedgeEnabled(providerName)
+                    ? health.get(providerName).hedgeDelayMillis(streaming) : -1;
+            Mono<?> trigger = hedgeDelay > 0
+                    ? Mono.firstWithSignal(Mono.delay(Duration.ofMillis(Math.max(MIN_HEDGE_DELAY_MS, hedgeDelay)))
+                            .then(), primaryFailed.asMono())
+                    : primaryFailed.asMono();
+            Map<String, Object> secondaryBody = forward(primary, secondary, requestBody);
+            Flux<T> secondaryBranch = trigger.thenMany(Flux.defer(() -> attempt(secondary, secondaryBody, streaming,
+                    target, failedOver.get() ? RouteReason.FAILOVER : RouteReason.HEDGE, call)));
+
+            // 两个分支中先发出数据（或不可转移的错误）的胜出；一个分支失败时等待另一个，都失败才返回错误
+            AtomicInteger pending = new AtomicInteger(2);
+            return Flux.firstWithSignal(
+                    primaryBranch.onErrorResume(error -> isRetriable(error) && pending.decrementAndGet() > 0,
+                            error -> Flux.never()),
+                    secondaryBranch.onErrorResume(error -> pending.decrementAndGet() > 0, error -> Flux.never()));
+        });
+    }
+
+    /**
+     * 向单个服务商发出请求，并把结果计入其健康状态和上游耗时指标
+     */
+    private <T> Flux<T> attempt(LlmProvider provider, Map<String, Object> requestBody, boolean streaming,
+                                Route route, RouteReason reason,
+                                BiFunction<LlmProvider, Map<String, Object>, Publisher<T>> call) {
+        return Flux.defer(() -> {
+            ProviderHealth providerHealth = health.get(provider.getName());
+            long openMillis = TimeUnit.SECONDS.toMillis(aiConfigService.getRouterOpenSeconds());
+            if (!providerHealth.tryAcquire(System.currentTimeMillis(), openMillis)) {
+                return Flux.error(new UpstreamException(provider.getName(), UpstreamException.CIRCUIT_OPEN,
+                        UNAVAILABLE_MESSAGE));
+            }
+            long start = System.nanoTime();
+            String model = String.valueOf(requestBody.get("model"));
+            AtomicBoolean responded = new AtomicBoolean();
+            Runnable onResponse = () -> {
+                if (responded.compareAndSet(false, true)) {
+                    providerHealth.onSuccess(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), streaming);
+                    if (route.serve(provider.getName(), model, reason, start)) {
+                        providerHealth.onServed(reason);
+                        if (reason == RouteReason.PRIMARY) {
+                            logger.debug("AI 请求由 {} 响应，模型 {}", provider.getName(), model);
+                        } else {
+                            logger.info("AI 请求由 {} 响应，模型 {}，原因 {}", provider.getName(), model, reason.getKey());
+                        }
+                    }
+                }
+            };
+            return Flux.from(call.apply(provider, requestBody))
+                    .doOnNext(value -> onResponse.run())
+                    .doOnComplete(() -> {
+                        onResponse.run();
+                        aiMetrics.recordUpstream(provider.getName(), model, streaming, AiMetrics.OUTCOME_SUCCESS,
+                                System.nanoTime() - start);
+                    })
+                    .doOnError(error -> {
+                        aiMetrics.recordUpstream(provider.getName(), model, streaming, AiMetrics.OUTCOME_FAILURE,
+                                System.nanoTime() - start);
+                        boolean beforeResponse = responded.compareAndSet(false, true);
+                        // 请求本身的错误不计入服务商健康状态；已转发内容后中断的按失败计
+                        if (beforeResponse && !isRetriable(error)) {
+                            providerHealth.onIgnored();
+                            return;
+                        }
+                        logger.warn("服务商 {} 调用失败: {}", provider.getName(), error.getMessage());
+                        providerHealth.onFailure(System.currentTimeMillis(), aiConfigService.getRouterMinCalls(),
+                                aiConfigService.getRouterFailureRatePercent());
+                    })
+                    .doOnCancel(() -> {
+                        aiMetrics.recordUpstream(provider.getName(), model, streaming, AiMetrics.OUTCOME_CANCELLED,
+                                System.nanoTime() - start);
+                        if (responded.compareAndSet(false, true)) {
+                            providerHealth.onIgnored();
+                        }
+                    });
+        });
+    }
+
+    /**
+     * 可作为故障转移目标的服务商：已配置、已启用且未熔断
+     */
+    private LlmProvider failoverOf(String providerName, long now, long openMillis) {
+        String name = aiConfigService.getFailoverProvider(providerName);
+        if (name.isEmpty() || name.equals(providerName)) {
+            return null;
+        }
+        LlmProvider provider = providers.get(name);
+        if (provider == null || !provider.isEnabled() || !health.get(name).isAvailable(now, openMillis)) {
+            return null;
+        }
+        return provider;
+    }
+
+    /**
+     * 复制请求体，替换为目标服务商的模型并去掉其不支持的参数
+     */
+    private Map<String, Object> forward(LlmProvider from, LlmProvider to, Map<String, Object> requestBody) {
+        Map<String, Object> body = new LinkedHashMap<>(requestBody);
+        body.put("model", mapModel(from, to, String.valueOf(requestBody.get("model"))));
+        if (body.get("max_tokens") instanceof Number maxTokens && maxTokens.intValue() > to.getMaxTokens()) {
+            body.put("max_tokens", to.getMaxTokens());
+        }
+        return to.adapt(body);
+    }
+
+    String mapModel(LlmProvider from, LlmProvider to, String model) {
+        String mapped = modelMap().mapping().get(model);
+        if (mapped != null) {
+            return mapped;
+        }
+        return model.equals(from.getReasonerModel()) ? to.getReasonerModel() : to.getChatModel();
+    }
+
+    private ModelMap modelMap() {
+        String raw = aiConfigService.getRouterModelMap();
+        ModelMap current = modelMap;
+        if (!current.raw().equals(raw)) {
+            Map<String, String> mapping = new LinkedHashMap<>();
+            for (String entry : raw.split(",")) {
+                int eq = entry.indexOf('=');
+                if (eq > 0 && eq < entry.length() - 1) {
+                    mapping.put(entry.substring(0, eq).trim(), entry.substring(eq + 1).trim());
+                }
+            }
+            current = new ModelMap(raw, mapping);
+            modelMap = current;
+        }
+        return current;
+    }
+
+    private record ModelMap(String raw, Map<String, String> mapping) {
+    }
+}
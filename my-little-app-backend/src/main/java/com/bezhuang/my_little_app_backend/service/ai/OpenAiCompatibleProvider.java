@@ -0,0 +1,87 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import java.net.ConnectException;
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * OpenAI 兼容接口的公共调用逻辑：POST {baseUrl}/chat/completions，
+ * 非 2xx 响应转换为 {@link UpstreamException}，只在建立连接阶段失败时重试（避免已转发的 token 被重复发送）。
+ */
+public abstract class OpenAiCompatibleProvider implements LlmProvider {
+
+    private static final Logger logger = LoggerFactory.getLogger(OpenAiCompatibleProvider.class);
+
+    // 非流式为整个响应、流式为两个数据块之间的最长等待时间
+    private static final Duration TIMEOUT = Duration.ofSeconds(180);
+
+    private final UpstreamClientFactory upstreamClientFactory;
+
+    protected OpenAiCompatibleProvider(UpstreamClientFactory upstreamClientFactory) {
+        this.upstreamClientFactory = upstreamClientFactory;
+    }
+
+    protected abstract String getBaseUrl();
+
+    protected abstract String getApiKey();
+
+    @Override
+    public Mono<ChatCompletionDecoder.ChatCompletion> complete(Map<String, Object> requestBody) {
+        return post(requestBody, MediaType.APPLICATION_JSON)
+                .bodyToMono(byte[].class)
+                .timeout(TIMEOUT)
+                .retryWhen(connectRetry())
+                .defaultIfEmpty(new byte[0])
+                .flatMap(response -> {
+                    logger.debug("{} API response: {} bytes", getName(), response.length);
+                    // 响应体以字节读取后单次流式解码
+                    return Mono.fromCallable(() -> ChatCompletionDecoder.decode(response));
+                });
+    }
+
+    @Override
+    public Flux<String> stream(Map<String, Object> requestBody) {
+        return post(requestBody, MediaType.TEXT_EVENT_STREAM)
+                .bodyToFlux(String.class)
+                .timeout(TIMEOUT)
+                .retryWhen(connectRetry());
+    }
+
+    private WebClient.ResponseSpec post(Map<String, Object> requestBody, MediaType accept) {
+        return upstreamClientFactory.get(getBaseUrl()).post()
+                .uri("/chat/completions")
+                .header("Authorization", "Bearer " + getApiKey())
+                .header("User-Agent", "Spring-WebClient")
+                .accept(accept)
+                .bodyValue(requestBody)
+                .retrieve()
+                .onStatus(HttpStatusCode::isError, this::toException);
+    }
+
+    private Mono<UpstreamException> toException(ClientResponse clientResponse) {
+        int status = clientResponse.statusCode().value();
+        return clientResponse.bodyToMono(String.class)
+                .defaultIfEmpty("")
+                .map(body -> {
+                    logger.error("{} API Error: {} - {}", getName(), status, body);
+                    return new UpstreamException(getName(), status, getName() + " API Error " + status + ": " + body);
+                });
+    }
+
+    private static Retry connectRetry() {
+        return Retry.backoff(2, Duration.ofSeconds(2))
+                .filter(throwable -> throwable instanceof WebClientRequestException
+                        || throwable instanceof ConnectException);
+    }
+}
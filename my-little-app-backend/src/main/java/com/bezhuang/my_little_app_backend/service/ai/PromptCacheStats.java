@@ -0,0 +1,58 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 上游前缀缓存命中统计（按模型）
+ * 每次上游调用结束后记录 usage 中的输入 token 和 prompt_cache_hit_tokens，
+ * 用于验证请求前缀（系统消息 + 工具定义 + 历史消息）是否保持字节稳定
+ */
+@Component
+public class PromptCacheStats {
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    private static class Counter {
+        final LongAdder requests = new LongAdder();
+        final LongAdder promptTokens = new LongAdder();
+        final LongAdder cacheHitTokens = new LongAdder();
+    }
+
+    /**
+     * 记录一次上游调用的输入 token 用量
+     */
+    public void record(String model, long promptTokens, long cacheHitTokens) {
+        if (model == null || promptTokens <= 0) {
+            return;
+        }
+        Counter counter = counters.computeIfAbsent(model, m -> new Counter());
+        counter.requests.increment();
+        counter.promptTokens.add(promptTokens);
+        counter.cacheHitTokens.add(Math.min(cacheHitTokens, promptTokens));
+    }
+
+    /**
+     * 各模型的请求数、输入 token、缓存命中 token 和命中率
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new TreeMap<>();
+        counters.forEach((model, counter) -> {
+            long promptTokens = counter.promptTokens.sum();
+            long cacheHitTokens = counter.cacheHitTokens.sum();
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("requests", counter.requests.sum());
+            item.put("promptTokens", promptTokens);
+            item.put("cacheHitTokens", cacheHitTokens);
+            item.put("cacheHitRatio", promptTokens > 0
+                    ? Math.round(cacheHitTokens * 10000.0 / promptTokens) / 10000.0 : 0);
+            stats.put(model, item);
+        });
+        return stats;
+    }
+}
@@ -0,0 +1,231 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import com.bezhuang.my_little_app_backend.service.AiConfigService;
+import com.bezhuang.my_little_app_backend.service.ToolService;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import com.fasterxml.jackson.databind.util.RawValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 预编译的系统提示词和工具定义 JSON 片段
+ * 每个配置版本只编译一次：读取 system_prompt、清洗校验、拼接工具提示词，并把系统消息和 tools 数组序列化为 JSON；
+ * 构建请求体时直接把片段写入输出，不再每轮重建嵌套 Map 再交给 Jackson 序列化。
+ */
+@Component
+public class PromptFragments {
+
+    private static final Logger logger = LoggerFactory.getLogger(PromptFragments.class);
+
+    private static final String PUNCTUATION = "，。！？、；：\"''（）【】《》…—· ";
+
+    private final AiConfigService aiConfigService;
+    private final ToolService toolService;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    // 键包含配置版本，配置变更后旧版本的片段不会再被命中
+    private final Map<Key, Compiled> compiled = new ConcurrentHashMap<>();
+
+    private record Key(long configVersion, String defaultPrompt, boolean includeWebSearch) {
+    }
+
+    public PromptFragments(AiConfigService aiConfigService, ToolService toolService) {
+        this.aiConfigService = aiConfigService;
+        this.toolService = toolService;
+    }
+
+    /**
+     * 获取当前配置版本的预编译片段
+     * @param defaultPrompt 未配置或配置无效时使用的系统提示词
+     * @param includeWebSearch 工具提示词和工具定义是否包含联网搜索
+     */
+    public Compiled get(String defaultPrompt, boolean includeWebSearch) {
+        AiConfigSnapshot snapshot = aiConfigService.getSnapshot();
+        Key key = new Key(snapshot.getVersion(), defaultPrompt, includeWebSearch);
+        return compiled.computeIfAbsent(key, k -> {
+            String basePrompt = resolvePrompt(snapshot.get(AiConfigService.SYSTEM_PROMPT), defaultPrompt);
+            String systemPrompt = basePrompt + "\n\n" + toolService.getToolsPrompt(includeWebSearch);
+            logger.debug("编译系统提示词片段: configVersion={}, webSearch={}", k.configVersion(), includeWebSearch);
+            return compile(objectMapper, systemPrompt, toolService.getToolsDefinition(includeWebSearch));
+        });
+    }
+
+    @EventListener
+    public void onConfigChanged(AiConfigChangedEvent event) {
+        long version = event.getCurrent().getVersion();
+        compiled.keySet().removeIf(key -> key.configVersion() < version);
+    }
+
+    /**
+     * 把系统提示词和工具定义编译为 JSON 片段
+     */
+    static Compiled compile(ObjectMapper objectMapper, String systemPrompt, List<Map<String, Object>> tools) {
+        Map<String, Object> systemMessage = new LinkedHashMap<>();
+        systemMessage.put("role", "system");
+        systemMessage.put("content", systemPrompt);
+        try {
+            String toolsJson = tools.isEmpty() ? null : objectMapper.writeValueAsString(tools);
+            return new Compiled(systemPrompt,
+                    Collections.unmodifiableMap(systemMessage),
+                    new SerializedString(objectMapper.writeValueAsString(systemMessage)),
+                    toolsJson != null ? new RawValue(new SerializedString(toolsJson)) : null,
+                    tools.size(),
+                    TokenEstimator.estimate(toolsJson));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("序列化系统提示词失败", e);
+        }
+    }
+
+    /**
+     * 清洗并校验配置的系统提示词，无效时返回默认提示词
+     */
+    static String resolvePrompt(String configured, String defaultPrompt) {
+        String value = cleanInvalidChars(configured);
+        if (value != null && !value.trim().isEmpty() && isValidText(value)) {
+            return value;
+        }
+        return defaultPrompt;
+    }
+
+    private static String cleanInvalidChars(String value) {
+        if (value == null) return null;
+        StringBuilder cleaned = new StringBuilder();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\t' || !Character.isISOControl(c)) {
+                cleaned.append(c);
+            } else {
+                cleaned.append(' ');
+            }
+        }
+        return cleaned.toString();
+    }
+
+    private static boolean isValidText(String value) {
+        if (value == null || value.isEmpty()) return false;
+        int readableCount = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (Character.isLetterOrDigit(c) || Character.isWhitespace(c) ||
+                isChineseChar(c) || PUNCTUATION.indexOf(c) >= 0) {
+                readableCount++;
+            }
+        }
+        return readableCount >= value.length() * 0.5;
+    }
+
+    private static boolean isChineseChar(char c) {
+        Character.UnicodeBlock ub = Character.UnicodeBlock.of(c);
+        return ub == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS ||
+               ub == Character.UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS ||
+               ub == Character.UnicodeBlock.CJK_SYMBOLS_AND_PUNCTUATION;
+    }
+
+    /**
+     * 某个配置版本下编译好的片段
+     */
+    public static final class Compiled {
+        private final String systemPrompt;
+        private final Map<String, Object> systemMessage;
+        private final SerializedString systemMessageJson;
+        private final RawValue toolsJson;
+        private final int toolCount;
+        private final long toolsTokens;
+
+        private Compiled(String systemPrompt, Map<String, Object> systemMessage, SerializedString systemMessageJson,
+                         RawValue toolsJson, int toolCount, long toolsTokens) {
+            this.systemPrompt = systemPrompt;
+            this.systemMessage = systemMessage;
+            this.systemMessageJson = systemMessageJson;
+            this.toolsJson = toolsJson;
+            this.toolCount = toolCount;
+            this.toolsTokens = toolsTokens;
+        }
+
+        /**
+         * 完整的系统提示词（含工具使用说明）
+         */
+        public String getSystemPrompt() {
+            return systemPrompt;
+        }
+
+        /**
+         * 系统消息（不可修改），放在消息列表首位；序列化时会被替换为预编译片段
+         */
+        public Map<String, Object> getSystemMessage() {
+            return systemMessage;
+        }
+
+        /**
+         * 请求体 messages 字段的值：消息列表中本片段的系统消息直接写出预编译 JSON，其余消息正常序列化
+         */
+        public Object messagesValue(List<Map<String, Object>> messages) {
+            return new SplicedMessages(messages, this);
+        }
+
+        /**
+         * 请求体 tools 字段的值（预编译 JSON），没有工具时返回 null
+         */
+        public Object toolsValue() {
+            return toolsJson;
+        }
+
+        public int getToolCount() {
+            return toolCount;
+        }
+
+        /**
+         * 工具定义的估算 token 数（随请求发送，计入输入）
+         */
+        public long getToolsTokens() {
+            return toolsTokens;
+        }
+    }
+
+    /**
+     * 拼接预编译系统消息的 messages 数组
+     */
+    private static final class SplicedMessages extends JsonSerializable.Base {
+        private final List<Map<String, Object>> messages;
+        private final Compiled compiled;
+
+        private SplicedMessages(List<Map<String, Object>> messages, Compiled compiled) {
+            this.messages = messages;
+            this.compiled = compiled;
+        }
+
+        @Override
+        public void serialize(JsonGenerator gen, SerializerProvider serializers) throws IOException {
+            gen.writeStartArray();
+            for (Map<String, Object> message : messages) {
+                // 按引用比较：配置在对话中途变更时，旧版本的系统消息仍按普通 Map 序列化
+                if (message == compiled.systemMessage) {
+                    gen.writeRawValue(compiled.systemMessageJson);
+                } else {
+                    serializers.defaultSerializeValue(message, gen);
+                }
+            }
+            gen.writeEndArray();
+        }
+
+        @Override
+        public void serializeWithType(JsonGenerator gen, SerializerProvider serializers, TypeSerializer typeSer)
+                throws IOException {
+            serialize(gen, serializers);
+        }
+    }
+}
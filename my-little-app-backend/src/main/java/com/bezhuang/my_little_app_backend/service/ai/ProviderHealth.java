@@ -0,0 +1,216 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 单个服务商的健康状态：最近 {@value #WINDOW} 次调用的滑动窗口（成败、延迟）和熔断器
+ * 熔断器三态：CLOSED 正常放行；窗口内失败率超过阈值时进入 OPEN，熔断期间不发请求；
+ * 熔断到期后进入 HALF_OPEN，只放行一个探测请求，成功则恢复 CLOSED（清空窗口），失败则重新熔断。
+ * 延迟按调用方式分开统计：非流式为完整响应耗时，流式为首个数据块耗时，用于计算对冲请求的等待时间。
+ */
+final class ProviderHealth {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProviderHealth.class);
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    static final int WINDOW = 50;
+    // 延迟样本少于该数量时不对冲
+    static final int MIN_LATENCY_SAMPLES = 20;
+
+    private final String provider;
+    private final boolean[] failures = new boolean[WINDOW];
+    private int calls;
+    private int next;
+    private int failureCount;
+    private final LatencyRing syncLatency = new LatencyRing();
+    private final LatencyRing streamLatency = new LatencyRing();
+    private State state = State.CLOSED;
+    private long openedAt;
+    private boolean probing;
+
+    private final LongAdder totalCalls = new LongAdder();
+    private final LongAdder totalFailures = new LongAdder();
+    private final LongAdder circuitOpens = new LongAdder();
+    private final LongAdder unavailable = new LongAdder();
+    private final Map<RouteReason, LongAdder> served = new LinkedHashMap<>();
+
+    ProviderHealth(String provider) {
+        this.provider = provider;
+        for (RouteReason reason : RouteReason.values()) {
+            served.put(reason, new LongAdder());
+        }
+    }
+
+    /**
+     * 路由前判断是否可以选用（不占用探测名额）
+     */
+    synchronized boolean isAvailable(long now, long openMillis) {
+        return switch (state) {
+            case CLOSED -> true;
+            case OPEN -> now - openedAt >= openMillis;
+            case HALF_OPEN -> !probing;
+        };
+    }
+
+    /**
+     * 发出请求前调用；熔断中返回 false，熔断到期时占用唯一的探测名额
+     */
+    synchronized boolean tryAcquire(long now, long openMillis) {
+        if (state == State.OPEN && now - openedAt >= openMillis) {
+            state = State.HALF_OPEN;
+            probing = false;
+        }
+        return switch (state) {
+            case CLOSED -> true;
+            case OPEN -> false;
+            case HALF_OPEN -> {
+                if (probing) {
+                    yield false;
+                }
+                probing = true;
+                yield true;
+            }
+        };
+    }
+
+    synchronized void onSuccess(long latencyMillis, boolean streaming) {
+        totalCalls.increment();
+        (streaming ? streamLatency : syncLatency).add(latencyMillis);
+        if (state == State.HALF_OPEN) {
+            close();
+            return;
+        }
+        record(false);
+    }
+
+    /**
+     * @return 本次失败是否触发了熔断
+     */
+    synchronized boolean onFailure(long now, int minCalls, int failureRatePercent) {
+        totalCalls.increment();
+        totalFailures.increment();
+        if (state == State.HALF_OPEN) {
+            open(now);
+            return true;
+        }
+        record(true);
+        if (state == State.CLOSED && calls >= Math.max(1, minCalls)
+                && failureCount * 100L >= (long) failureRatePercent * calls) {
+            open(now);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 请求在得到结果前被取消（客户端断开、对冲请求落败）或因请求本身的问题失败，不计入成败，只归还探测名额
+     */
+    synchronized void onIgnored() {
+        probing = false;
+    }
+
+    /**
+     * 对冲请求的等待时间：该调用方式的 p95 延迟，样本不足时返回 -1
+     */
+    synchronized long hedgeDelayMillis(boolean streaming) {
+        LatencyRing ring = streaming ? streamLatency : syncLatency;
+        return ring.size >= MIN_LATENCY_SAMPLES ? ring.percentile(95) : -1;
+    }
+
+    void onServed(RouteReason reason) {
+        served.get(reason).increment();
+    }
+
+    void onUnavailable() {
+        unavailable.increment();
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("state", state.name());
+        stats.put("windowCalls", calls);
+        stats.put("windowFailures", failureCount);
+        stats.put("errorRatePercent", calls > 0 ? Math.round(failureCount * 1000.0 / calls) / 10.0 : 0.0);
+        stats.put("syncP50Ms", syncLatency.percentile(50));
+        stats.put("syncP95Ms", syncLatency.percentile(95));
+        stats.put("streamFirstChunkP50Ms", streamLatency.percentile(50));
+        stats.put("streamFirstChunkP95Ms", streamLatency.percentile(95));
+        stats.put("totalCalls", totalCalls.sum());
+        stats.put("totalFailures", totalFailures.sum());
+        stats.put("circuitOpens", circuitOpens.sum());
+        stats.put("unavailable", unavailable.sum());
+        Map<String, Long> servedStats = new LinkedHashMap<>();
+        served.forEach((reason, count) -> servedStats.put(reason.getKey(), count.sum()));
+        stats.put("served", servedStats);
+        return stats;
+    }
+
+    private void record(boolean failure) {
+        if (calls == WINDOW) {
+            if (failures[next]) {
+                failureCount--;
+            }
+        } else {
+            calls++;
+        }
+        failures[next] = failure;
+        if (failure) {
+            failureCount++;
+        }
+        next = (next + 1) % WINDOW;
+    }
+
+    private void open(long now) {
+        state = State.OPEN;
+        openedAt = now;
+        probing = false;
+        circuitOpens.increment();
+        logger.warn("服务商 {} 熔断：最近 {} 次调用失败 {} 次", provider, calls, failureCount);
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        probing = false;
+        Arrays.fill(failures, false);
+        calls = 0;
+        next = 0;
+        failureCount = 0;
+        logger.info("服务商 {} 探测请求成功，熔断恢复", provider);
+    }
+
+    /**
+     * 最近 {@value #WINDOW} 个延迟样本
+     */
+    private static final class LatencyRing {
+        private final long[] samples = new long[WINDOW];
+        private int size;
+        private int next;
+
+        void add(long millis) {
+            samples[next] = millis;
+            next = (next + 1) % WINDOW;
+            size = Math.min(size + 1, WINDOW);
+        }
+
+        long percentile(int percent) {
+            if (size == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percent / 100.0 * size) - 1;
+            return sorted[Math.max(0, Math.min(size - 1, index))];
+        }
+    }
+}
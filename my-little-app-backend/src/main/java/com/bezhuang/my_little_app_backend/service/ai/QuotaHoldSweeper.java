@@ -0,0 +1,66 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import com.bezhuang.my_little_app_backend.service.ApiUsageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 过期配额预留清理
+ * 对话正常结束、出错或客户端断开时都会结算预留；结算回调因异常丢失时，预留在过期后由这里全部退回
+ */
+@Component
+public class QuotaHoldSweeper implements DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(QuotaHoldSweeper.class);
+
+    private final ApiUsageService apiUsageService;
+    private final ScheduledExecutorService sweepScheduler;
+    private final LongAdder released = new LongAdder();
+
+    public QuotaHoldSweeper(ApiUsageService apiUsageService,
+                            @Value("${ai.quota.sweep-interval-seconds:60}") long sweepIntervalSeconds) {
+        this.apiUsageService = apiUsageService;
+        this.sweepScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "quota-hold-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweepScheduler.scheduleWithFixedDelay(this::sweep,
+                sweepIntervalSeconds, sweepIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 退回已过期的预留
+     * @return 本次退回的预留数
+     */
+    int sweep() {
+        try {
+            int count = apiUsageService.releaseExpiredHolds();
+            released.add(count);
+            return count;
+        } catch (RuntimeException e) {
+            logger.warn("清理过期配额预留失败: {}", e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * 启动以来退回的过期预留数
+     */
+    public long getReleasedCount() {
+        return released.sum();
+    }
+
+    @Override
+    public void destroy() {
+        sweepScheduler.shutdownNow();
+    }
+}
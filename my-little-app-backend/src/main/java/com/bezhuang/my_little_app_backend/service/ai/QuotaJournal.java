@@ -0,0 +1,246 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 配额变更日志（仅追加）
+ * 每次扣减在内存生效的同时追加一行 "userId tokens增量 search增量"，写回数据库成功后删除对应分段；
+ * 进程崩溃时，启动后回放数据库检查点之后仍存在的分段，补上尚未写回的扣减。
+ * 追加只进入无锁队列，由后台线程每隔 {@value #SYNC_INTERVAL_MS} 毫秒成组写入文件（组提交），
+ * 扣减线程之间不争用锁、不等待磁盘；进程崩溃最多丢失最后一个间隔内的变更。
+ * 写入失败时日志标记为不可用（{@link #isHealthy()}），下次切换分段时重新打开文件后恢复。
+ */
+class QuotaJournal implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(QuotaJournal.class);
+    private static final String PREFIX = "quota-";
+    private static final String SUFFIX = ".journal";
+    private static final String ID_FILE = "journal.id";
+    private static final long SYNC_INTERVAL_MS = 10;
+
+    private final Path dir;
+    private final String id;
+    private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService syncScheduler;
+    private long segment;
+    private BufferedWriter writer;
+    private volatile boolean healthy = true;
+
+    QuotaJournal(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        this.id = loadOrCreateId();
+        for (long existing : segments()) {
+            segment = Math.max(segment, existing);
+        }
+        this.syncScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "quota-journal-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 日志目录的唯一标识（首次使用时生成并保存在目录中），数据库按它记录已写回的分段
+     */
+    String getId() {
+        return id;
+    }
+
+    /**
+     * 读取上次运行遗留的分段，按用户汇总未写回的增量
+     * @param applied 数据库检查点：该分段及之前的变更已写回，跳过
+     * @return userId -> [tokens 增量, search 增量]
+     */
+    synchronized Map<Long, long[]> recover(long applied) throws IOException {
+        Map<Long, long[]> deltas = new HashMap<>();
+        for (long existing : segments()) {
+            if (existing <= applied || existing > segment) {
+                continue;
+            }
+            for (String line : Files.readAllLines(path(existing), StandardCharsets.UTF_8)) {
+                String[] parts = line.trim().split(" ");
+                if (parts.length != 3) {
+                    // 崩溃时写了一半的最后一行
+                    continue;
+                }
+                try {
+                    long[] delta = deltas.computeIfAbsent(Long.parseLong(parts[0]), userId -> new long[2]);
+                    delta[0] += Long.parseLong(parts[1]);
+                    delta[1] += Long.parseLong(parts[2]);
+                } catch (NumberFormatException e) {
+                    logger.warn("跳过无法解析的配额日志: {}", line);
+                }
+            }
+        }
+        return deltas;
+    }
+
+    /**
+     * 回放后开始写入新分段并启动组提交
+     * @param applied 数据库检查点，新分段号必须大于它（日志目录被清空后分段号不能从头开始）
+     * @return 回放过的最后一个分段号
+     */
+    synchronized long open(long applied) throws IOException {
+        long recovered = segment;
+        segment = Math.max(segment, applied);
+        openSegment(segment + 1);
+        syncScheduler.scheduleWithFixedDelay(this::sync, SYNC_INTERVAL_MS, SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        return recovered;
+    }
+
+    /**
+     * 追加一条变更（只进入队列，由组提交写入文件）；日志不可用时丢弃，变更仍由下次写回覆盖
+     */
+    void append(Long userId, long tokens, int search) {
+        if (healthy) {
+            pending.add(userId + " " + tokens + " " + search);
+        }
+    }
+
+    /**
+     * 把队列中的变更写入当前分段并 flush 到操作系统
+     */
+    synchronized void sync() {
+        if (pending.isEmpty() || !healthy) {
+            return;
+        }
+        try {
+            String line;
+            while ((line = pending.poll()) != null) {
+                writer.write(line);
+                writer.newLine();
+            }
+            writer.flush();
+        } catch (IOException e) {
+            markUnhealthy("写入配额日志失败", e);
+        }
+    }
+
+    /**
+     * 切换到新分段：先写入队列中的变更，再关闭当前分段（日志不可用时借此重新打开文件）
+     * 调用方需保证切换期间没有并发追加
+     * @return 切换前的分段号，该分段及之前的变更写回数据库后可用 {@link #deleteThrough} 删除
+     */
+    synchronized long rotate() {
+        sync();
+        long closed = segment;
+        try {
+            if (writer != null) {
+                writer.close();
+            }
+        } catch (IOException e) {
+            logger.warn("关闭配额日志分段失败: {}", e.getMessage());
+        }
+        // 不可用期间未能写入的变更已包含在本次写回的快照中，丢弃即可
+        pending.clear();
+        try {
+            openSegment(segment + 1);
+            if (!healthy) {
+                healthy = true;
+                logger.info("配额日志已恢复，当前分段 {}", segment);
+            }
+        } catch (IOException e) {
+            writer = null;
+            segment++;
+            markUnhealthy("切换配额日志分段失败", e);
+        }
+        return closed;
+    }
+
+    /**
+     * 删除 segment 及之前的分段（其中的变更已写回数据库）
+     */
+    synchronized void deleteThrough(long segment) {
+        try {
+            for (long existing : segments()) {
+                if (existing <= segment) {
+                    Files.deleteIfExists(path(existing));
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("删除配额日志分段失败: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 日志是否可用；不可用期间的变更只在内存中，进程崩溃会丢失最近一次写回之后的扣减
+     */
+    boolean isHealthy() {
+        return healthy;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        syncScheduler.shutdownNow();
+        sync();
+        if (writer != null) {
+            writer.close();
+        }
+    }
+
+    private void markUnhealthy(String message, IOException e) {
+        if (healthy) {
+            logger.error("{}，配额日志不可用，下次写回时重试: {}", message, e.getMessage());
+        }
+        healthy = false;
+    }
+
+    private void openSegment(long next) throws IOException {
+        writer = Files.newBufferedWriter(path(next), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        segment = next;
+    }
+
+    private String loadOrCreateId() throws IOException {
+        Path idFile = dir.resolve(ID_FILE);
+        if (Files.exists(idFile)) {
+            String existing = Files.readString(idFile, StandardCharsets.UTF_8).trim();
+            if (!existing.isEmpty()) {
+                return existing;
+            }
+        }
+        String created = UUID.randomUUID().toString();
+        Files.writeString(idFile, created, StandardCharsets.UTF_8);
+        return created;
+    }
+
+    private Path path(long segment) {
+        return dir.resolve(PREFIX + segment + SUFFIX);
+    }
+
+    private List<Long> segments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    segments.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    logger.warn("忽略无法识别的配额日志文件: {}", name);
+                }
+            }
+        }
+        return segments;
+    }
+}
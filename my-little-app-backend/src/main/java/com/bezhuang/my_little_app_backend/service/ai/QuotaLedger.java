@@ -0,0 +1,576 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import com.bezhuang.my_little_app_backend.entity.ApiUsage;
+import com.bezhuang.my_little_app_backend.entity.ApiUsageDelta;
+import com.bezhuang.my_little_app_backend.mapper.ApiUsageMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionOperations;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * 内存配额账本（写回式）
+ * 用户余额首次访问时从 api_usage 加载，之后的扣减、预留、结算和管理员调整都只修改内存中的无锁计数器，
+ * 并追加到 {@link QuotaJournal}；后台线程每隔 flushIntervalMs 把各用户累计的增量用一条 UPDATE 批量写回。
+ * 写回的是增量而不是绝对值，多实例同时写回不会互相覆盖；写回后重新读取这些用户的余额，
+ * 并每隔 refreshIntervalMs 重新读取所有已加载用户的余额，吸收其他实例的扣减和管理员调整。
+ * 增量与日志检查点（已写回的最后一个分段）在同一事务中提交，回放时跳过检查点之前的分段，
+ * 写回提交后、删除分段前崩溃也不会重复扣减。
+ * 预留只存在于内存中、不写回数据库，进程崩溃时自然作废。
+ */
+public class QuotaLedger implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(QuotaLedger.class);
+    private static final int STRIPES = 16;
+    private static final int FLUSH_BATCH_SIZE = 500;
+
+    private final ApiUsageMapper apiUsageMapper;
+    private final Function<Long, ApiUsage> loader;
+    private final TransactionOperations transactions;
+    private final QuotaJournal journal;
+    private final long refreshIntervalMillis;
+    private final long idleMillis;
+    private final Map<Long, Account> accounts = new ConcurrentHashMap<>();
+    private final Set<Long> dirty = ConcurrentHashMap.newKeySet();
+    // 分段读写锁：单个用户的变更持有所在分段的读锁（互不阻塞），写回快照和淘汰持有写锁
+    private final ReentrantReadWriteLock[] stripes = new ReentrantReadWriteLock[STRIPES];
+    private final ScheduledExecutorService flushScheduler;
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder flushedDeltas = new LongAdder();
+    private final LongAdder flushFailures = new LongAdder();
+    // 上次重新读取全部已加载用户余额的时间（只由写回线程访问）
+    private long lastRefresh = System.currentTimeMillis();
+
+    /**
+     * 单个用户的余额
+     */
+    private static final class Account {
+        // 可用余额（已扣除进行中的预留）
+        final AtomicLong tokens;
+        final AtomicInteger search;
+        // 进行中的预留总量
+        final AtomicLong heldTokens = new AtomicLong();
+        // 尚未写回数据库的增量
+        final AtomicLong pendingTokens = new AtomicLong();
+        final AtomicInteger pendingSearch = new AtomicInteger();
+        // 最近一次与数据库同步时的值（只由写回线程修改）
+        volatile long persistedTokens;
+        volatile int persistedSearch;
+        volatile long lastAccess;
+        final Long id;
+
+        Account(ApiUsage usage) {
+            this.id = usage.getId();
+            this.persistedTokens = usage.getTokensRemaining() != null ? usage.getTokensRemaining() : 0;
+            this.persistedSearch = usage.getSearchRemaining() != null ? usage.getSearchRemaining() : 0;
+            this.tokens = new AtomicLong(persistedTokens);
+            this.search = new AtomicInteger(persistedSearch);
+        }
+    }
+
+    /**
+     * @param loader 加载（不存在时创建）用户的配额记录
+     * @param transactions 写回增量与日志检查点所在的事务
+     * @param journalDir 配额变更日志目录，启动时回放其中遗留的分段
+     * @param flushIntervalMs 写回间隔，不大于 0 时不启动后台写回（由调用方手动 flush）
+     * @param refreshIntervalMs 写回时重新读取全部已加载用户余额的最小间隔
+     * @param idleMillis 超过该时长未访问的用户从内存中移除
+     */
+    public QuotaLedger(ApiUsageMapper apiUsageMapper, Function<Long, ApiUsage> loader,
+                       TransactionOperations transactions, Path journalDir,
+                       long flushIntervalMs, long refreshIntervalMs, long idleMillis) {
+        this.apiUsageMapper = apiUsageMapper;
+        this.loader = loader;
+        this.transactions = transactions;
+        this.refreshIntervalMillis = refreshIntervalMs;
+        this.idleMillis = idleMillis;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+        try {
+            this.journal = new QuotaJournal(journalDir);
+            Long checkpoint = apiUsageMapper.selectJournalCheckpoint(journal.getId());
+            long applied = checkpoint != null ? checkpoint : 0;
+            Map<Long, long[]> recovered = journal.recover(applied);
+            replay(recovered, journal.open(applied));
+        } catch (IOException e) {
+            throw new UncheckedIOException("打开配额日志失败: " + journalDir, e);
+        }
+
+        this.flushScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "quota-ledger-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (flushIntervalMs > 0) {
+            flushScheduler.scheduleWithFixedDelay(this::flushQuietly,
+                    flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 当前配额（可用余额，已扣除进行中的预留）
+     */
+    public ApiUsage snapshot(Long userId) {
+        return withAccount(userId, account -> {
+            ApiUsage usage = new ApiUsage();
+            usage.setId(account.id);
+            usage.setUserId(userId);
+            usage.setTokensRemaining(account.tokens.get());
+            usage.setSearchRemaining(account.search.get());
+            return usage;
+        });
+    }
+
+    /**
+     * 可用余额足够时扣减 Token
+     * @return 是否扣减成功
+     */
+    public boolean tryDebitTokens(Long userId, long tokens) {
+        return withAccount(userId, account -> {
+            if (!tryDecrement(account.tokens, tokens)) {
+                return false;
+            }
+            record(userId, account, -tokens, 0);
+            return true;
+        });
+    }
+
+    /**
+     * 直接扣减 Token（余额不低于 0），用于结算已过期退回的预留
+     */
+    public void debitTokens(Long userId, long tokens) {
+        withAccount(userId, account -> {
+            addClamped(account.tokens, -tokens);
+            record(userId, account, -tokens, 0);
+            return null;
+        });
+    }
+
+    /**
+     * 可用余额足够时预留 Token（只扣减内存中的可用余额，不写回数据库）
+     * @return 是否预留成功
+     */
+    public boolean tryHoldTokens(Long userId, long tokens) {
+        return withAccount(userId, account -> {
+            if (!tryDecrement(account.tokens, tokens)) {
+                return false;
+            }
+            account.heldTokens.addAndGet(tokens);
+            return true;
+        });
+    }
+
+    /**
+     * 结算一次预留：退回预留，按实际用量扣减
+     */
+    public void settleHold(Long userId, long heldTokens, long chargedTokens) {
+        withAccount(userId, account -> {
+            account.heldTokens.addAndGet(-heldTokens);
+            addClamped(account.tokens, heldTokens - chargedTokens);
+            if (chargedTokens != 0) {
+                record(userId, account, -chargedTokens, 0);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 释放一次预留，全部退回
+     */
+    public void releaseHold(Long userId, long heldTokens) {
+        withAccount(userId, account -> {
+            account.heldTokens.addAndGet(-heldTokens);
+            account.tokens.addAndGet(heldTokens);
+            return null;
+        });
+    }
+
+    /**
+     * 还有剩余次数时扣减一次搜索
+     * @return 是否扣减成功
+     */
+    public boolean tryDebitSearch(Long userId) {
+        return withAccount(userId, account -> {
+            if (!tryDecrement(account.search, 1)) {
+                return false;
+            }
+            record(userId, account, 0, -1);
+            return true;
+        });
+    }
+
+    /**
+     * 管理员设置剩余配额（为 null 的项不修改）
+     * Token 余额按"可用余额 + 进行中的预留"计算，设置后可用余额 = 新值 - 进行中的预留。
+     * 设置前先读取数据库中的最新余额（吸收其他实例的扣减），设置后立即写回，其他实例在下次刷新时看到新值
+     */
+    public synchronized ApiUsage setQuota(Long userId, Long tokensRemaining, Integer searchRemaining) {
+        if (accounts.containsKey(userId)) {
+            refresh(List.of(userId));
+        }
+        withAccount(userId, account -> {
+            long tokensDelta = 0;
+            int searchDelta = 0;
+            if (tokensRemaining != null) {
+                tokensDelta = tokensRemaining - account.heldTokens.get() - account.tokens.get();
+                account.tokens.addAndGet(tokensDelta);
+            }
+            if (searchRemaining != null) {
+                searchDelta = searchRemaining - account.search.get();
+                account.search.addAndGet(searchDelta);
+            }
+            record(userId, account, tokensDelta, searchDelta);
+            return null;
+        });
+        flushQuietly();
+        return snapshot(userId);
+    }
+
+    /**
+     * 增加 Token（如签到奖励），增加后的余额（可用余额 + 进行中的预留）不超过 cap
+     * 以增量记账，与其他扣减一样写回；增加前先读取数据库中的最新余额，增加后立即写回，其他实例在下次刷新时看到新值
+     * @return 实际增加的 Token 数
+     */
+    public synchronized long creditTokens(Long userId, long tokens, long cap) {
+        if (accounts.containsKey(userId)) {
+            refresh(List.of(userId));
+        }
+        long credited = withAccount(userId, account -> {
+            long balance = account.tokens.get() + account.heldTokens.get();
+            long credit = Math.max(0, Math.min(tokens, cap - balance));
+            if (credit > 0) {
+                account.tokens.addAndGet(credit);
+                record(userId, account, credit, 0);
+            }
+            return credit;
+        });
+        if (credited > 0) {
+            flushQuietly();
+        }
+        return credited;
+    }
+
+    /**
+     * 把累计的增量批量写回数据库，到达刷新间隔时重新读取全部已加载用户的余额
+     */
+    synchronized void flush() {
+        Set<Long> flushed = dirty.isEmpty() ? Set.of() : writeDirty();
+        long now = System.currentTimeMillis();
+        if (now - lastRefresh >= refreshIntervalMillis) {
+            lastRefresh = now;
+            refresh(new ArrayList<>(accounts.keySet()));
+        } else if (!flushed.isEmpty()) {
+            refresh(flushed);
+        }
+        evictIdle();
+    }
+
+    /**
+     * 写回有变更的用户
+     * 快照期间持有全部分段的写锁：日志切换分段与增量清零原子完成，旧分段中的变更全部包含在本次写回中
+     * @return 写回的用户
+     */
+    private Set<Long> writeDirty() {
+        List<ApiUsageDelta> deltas = new ArrayList<>();
+        long segment;
+        lockAll();
+        try {
+            segment = journal.rotate();
+            for (Long userId : dirty) {
+                dirty.remove(userId);
+                Account account = accounts.get(userId);
+                long tokens = account.pendingTokens.getAndSet(0);
+                int search = account.pendingSearch.getAndSet(0);
+                if (tokens != 0 || search != 0) {
+                    deltas.add(new ApiUsageDelta(userId, tokens, search));
+                }
+            }
+        } finally {
+            unlockAll();
+        }
+
+        Set<Long> flushed = new HashSet<>();
+        if (!deltas.isEmpty()) {
+            try {
+                writeBack(deltas, segment);
+            } catch (RuntimeException e) {
+                // 增量放回内存，日志分段保留，下次写回成功后一并删除
+                for (ApiUsageDelta delta : deltas) {
+                    Account account = accounts.get(delta.getUserId());
+                    account.pendingTokens.addAndGet(delta.getTokensDelta());
+                    account.pendingSearch.addAndGet(delta.getSearchDelta());
+                    dirty.add(delta.getUserId());
+                }
+                flushFailures.increment();
+                throw e;
+            }
+            flushes.increment();
+            flushedDeltas.add(deltas.size());
+            for (ApiUsageDelta delta : deltas) {
+                Account account = accounts.get(delta.getUserId());
+                // 与 applyDeltas 一样截断到 0
+                account.persistedTokens = Math.max(account.persistedTokens + delta.getTokensDelta(), 0);
+                account.persistedSearch = Math.max(account.persistedSearch + delta.getSearchDelta(), 0);
+                flushed.add(delta.getUserId());
+            }
+        }
+        journal.deleteThrough(segment);
+        return flushed;
+    }
+
+    /**
+     * 在一个事务中批量写回增量并记录日志检查点
+     * @param segment 这些增量所在的最后一个日志分段
+     */
+    private void writeBack(List<ApiUsageDelta> deltas, long segment) {
+        transactions.executeWithoutResult(status -> {
+            for (int i = 0; i < deltas.size(); i += FLUSH_BATCH_SIZE) {
+                apiUsageMapper.applyDeltas(deltas.subList(i, Math.min(i + FLUSH_BATCH_SIZE, deltas.size())));
+            }
+            apiUsageMapper.upsertJournalCheckpoint(journal.getId(), segment);
+        });
+    }
+
+    /**
+     * 已加载的用户数
+     */
+    public int size() {
+        return accounts.size();
+    }
+
+    /**
+     * 有未写回增量的用户数
+     */
+    public int getDirtyCount() {
+        return dirty.size();
+    }
+
+    public long getFlushCount() {
+        return flushes.sum();
+    }
+
+    public long getFlushedDeltaCount() {
+        return flushedDeltas.sum();
+    }
+
+    public long getFlushFailureCount() {
+        return flushFailures.sum();
+    }
+
+    /**
+     * 配额日志是否可用（不可用时崩溃会丢失最近一次写回之后的扣减）
+     */
+    public boolean isJournalHealthy() {
+        return journal.isHealthy();
+    }
+
+    /**
+     * 把已追加的变更立即写入日志文件，不等待组提交
+     */
+    void syncJournal() {
+        journal.sync();
+    }
+
+    /**
+     * 停止后台写回，最后写回一次后关闭日志
+     */
+    @Override
+    public void close() {
+        flushScheduler.shutdownNow();
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            logger.error("关闭前写回配额失败，变更保留在配额日志中，下次启动时回放: {}", e.getMessage());
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            logger.warn("关闭配额日志失败: {}", e.getMessage());
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            logger.warn("配额写回失败，稍后重试: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 在用户所在分段的读锁内执行变更；用户未加载时先（在锁外）从数据库加载
+     */
+    private <T> T withAccount(Long userId, Function<Account, T> operation) {
+        ReentrantReadWriteLock.ReadLock lock = stripe(userId).readLock();
+        while (true) {
+            Account account = load(userId);
+            lock.lock();
+            try {
+                // 加载后到加锁前被淘汰，重新加载
+                if (accounts.get(userId) == account) {
+                    account.lastAccess = System.currentTimeMillis();
+                    return operation.apply(account);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private Account load(Long userId) {
+        Account account = accounts.get(userId);
+        if (account != null) {
+            return account;
+        }
+        Account loaded = new Account(loader.apply(userId));
+        loaded.lastAccess = System.currentTimeMillis();
+        Account existing = accounts.putIfAbsent(userId, loaded);
+        return existing != null ? existing : loaded;
+    }
+
+    /**
+     * 记录一次需要写回的变更（调用方持有分段读锁）
+     */
+    private void record(Long userId, Account account, long tokens, int search) {
+        account.pendingTokens.addAndGet(tokens);
+        account.pendingSearch.addAndGet(search);
+        dirty.add(userId);
+        journal.append(userId, tokens, search);
+    }
+
+    /**
+     * 重新读取余额：数据库值与本实例上次同步的值不同的部分（其他实例的变更、管理员调整、GREATEST 截断）补到内存余额上
+     * 只在持有账本监视器时调用，与写回互斥
+     */
+    private void refresh(Collection<Long> userIds) {
+        List<Long> ids = new ArrayList<>(userIds);
+        try {
+            for (int i = 0; i < ids.size(); i += FLUSH_BATCH_SIZE) {
+                List<Long> batch = ids.subList(i, Math.min(i + FLUSH_BATCH_SIZE, ids.size()));
+                for (ApiUsage row : apiUsageMapper.selectByUserIds(batch)) {
+                    Account account = accounts.get(row.getUserId());
+                    if (account == null || row.getTokensRemaining() == null || row.getSearchRemaining() == null) {
+                        continue;
+                    }
+                    long tokensDrift = row.getTokensRemaining() - account.persistedTokens;
+                    int searchDrift = row.getSearchRemaining() - account.persistedSearch;
+                    if (tokensDrift != 0) {
+                        addClamped(account.tokens, tokensDrift);
+                    }
+                    if (searchDrift != 0) {
+                        account.search.addAndGet(searchDrift);
+                    }
+                    account.persistedTokens = row.getTokensRemaining();
+                    account.persistedSearch = row.getSearchRemaining();
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.warn("读取配额失败: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 移除长时间未访问、没有未写回增量和进行中预留的用户，下次访问时重新从数据库加载
+     */
+    private void evictIdle() {
+        long deadline = System.currentTimeMillis() - idleMillis;
+        for (Map.Entry<Long, Account> entry : accounts.entrySet()) {
+            Account account = entry.getValue();
+            if (account.lastAccess >= deadline) {
+                continue;
+            }
+            ReentrantReadWriteLock.WriteLock lock = stripe(entry.getKey()).writeLock();
+            lock.lock();
+            try {
+                if (account.lastAccess < deadline && account.heldTokens.get() == 0
+                        && account.pendingTokens.get() == 0 && account.pendingSearch.get() == 0
+                        && !dirty.contains(entry.getKey())) {
+                    accounts.remove(entry.getKey(), account);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 回放上次运行遗留、尚未写回的日志分段（启动时执行，失败时拒绝启动，避免丢失扣减）
+     * @param lastSegment 回放的最后一个分段号，与增量一起记为检查点
+     */
+    private void replay(Map<Long, long[]> recovered, long lastSegment) {
+        List<ApiUsageDelta> deltas = new ArrayList<>();
+        recovered.forEach((userId, delta) -> {
+            if (delta[0] != 0 || delta[1] != 0) {
+                deltas.add(new ApiUsageDelta(userId, delta[0], (int) delta[1]));
+            }
+        });
+        if (!deltas.isEmpty()) {
+            writeBack(deltas, lastSegment);
+            logger.info("回放配额日志，补写 {} 个用户未写回的变更", deltas.size());
+        }
+        journal.deleteThrough(lastSegment);
+    }
+
+    private ReentrantReadWriteLock stripe(Long userId) {
+        return stripes[Math.floorMod(userId.hashCode(), STRIPES)];
+    }
+
+    private void lockAll() {
+        for (ReentrantReadWriteLock stripe : stripes) {
+            stripe.writeLock().lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (int i = STRIPES - 1; i >= 0; i--) {
+            stripes[i].writeLock().unlock();
+        }
+    }
+
+    private static boolean tryDecrement(AtomicLong counter, long amount) {
+        while (true) {
+            long current = counter.get();
+            if (current < amount) {
+                return false;
+            }
+            if (counter.compareAndSet(current, current - amount)) {
+                return true;
+            }
+        }
+    }
+
+    private static boolean tryDecrement(AtomicInteger counter, int amount) {
+        while (true) {
+            int current = counter.get();
+            if (current < amount) {
+                return false;
+            }
+            if (counter.compareAndSet(current, current - amount)) {
+                return true;
+            }
+        }
+    }
+
+    private static void addClamped(AtomicLong counter, long delta) {
+        counter.getAndUpdate(current -> Math.max(current + delta, 0));
+    }
+}
@@ -0,0 +1,25 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+/**
+ * 请求由哪个服务商响应的原因（{@link LlmRouter}）
+ */
+public enum RouteReason {
+    // 首选服务商正常响应
+    PRIMARY("primary"),
+    // 首选服务商在返回内容前失败，转发到故障转移服务商
+    FAILOVER("failover"),
+    // 首选服务商熔断中，直接发往故障转移服务商
+    CIRCUIT_OPEN("circuitOpen"),
+    // 首选服务商超过 p95 延迟未响应，对冲请求先返回
+    HEDGE("hedge");
+
+    private final String key;
+
+    RouteReason(String key) {
+        this.key = key;
+    }
+
+    public String getKey() {
+        return key;
+    }
+}
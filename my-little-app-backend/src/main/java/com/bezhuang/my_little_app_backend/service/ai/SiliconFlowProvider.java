@@ -0,0 +1,53 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import com.bezhuang.my_little_app_backend.config.ai.SiliconFlowConfig;
+import org.springframework.stereotype.Component;
+
+/**
+ * 硅基流动 API
+ */
+@Component
+public class SiliconFlowProvider extends OpenAiCompatibleProvider {
+
+    private final SiliconFlowConfig config;
+
+    public SiliconFlowProvider(SiliconFlowConfig config, UpstreamClientFactory upstreamClientFactory) {
+        super(upstreamClientFactory);
+        this.config = config;
+    }
+
+    @Override
+    public String getName() {
+        return LlmProvider.SILICONFLOW;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return config.isEnabled() && !config.getApiKey().isEmpty();
+    }
+
+    @Override
+    public String getChatModel() {
+        return config.getModel();
+    }
+
+    @Override
+    public String getReasonerModel() {
+        return config.getReasonerModel();
+    }
+
+    @Override
+    public int getMaxTokens() {
+        return config.getMaxTokens();
+    }
+
+    @Override
+    protected String getBaseUrl() {
+        return config.getBaseUrl();
+    }
+
+    @Override
+    protected String getApiKey() {
+        return config.getApiKey();
+    }
+}
@@ -0,0 +1,165 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SSE 连接注册表
+ * 全局只有一个心跳线程，定时为所有存活的 SseEmitter 发送心跳；
+ * 连接完成、出错、超时或心跳发送失败（客户端已断开）时自动移除，不再需要每个对话各建一个定时线程池。
+ * 存活连接数通过 {@link AiMetrics} 输出为 ai.sse.connections。
+ */
+@Component
+public class SseConnectionRegistry implements DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(SseConnectionRegistry.class);
+
+    private final Set<SseConnection> connections = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService heartbeatScheduler;
+    private final LongAdder totalRegistered = new LongAdder();
+
+    public SseConnectionRegistry(AiMetrics aiMetrics,
+                                 @Value("${ai.sse.heartbeat-interval-seconds:30}") long heartbeatIntervalSeconds) {
+        this.heartbeatScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sse-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeatScheduler.scheduleAtFixedRate(this::heartbeat,
+                heartbeatIntervalSeconds, heartbeatIntervalSeconds, TimeUnit.SECONDS);
+        aiMetrics.bindSseConnections(this);
+    }
+
+    /**
+     * 注册一个 SSE 连接，接管 emitter 的 onCompletion / onError / onTimeout 回调
+     * 调用方不要再自行设置这三个回调，需要在连接关闭时执行的逻辑通过 {@link SseConnection#onClose} 注册
+     */
+    public SseConnection register(SseEmitter emitter) {
+        SseConnection connection = new SseConnection(emitter);
+        connections.add(connection);
+        totalRegistered.increment();
+
+        emitter.onCompletion(() -> close(connection));
+        emitter.onError(e -> {
+            logger.debug("SSE 连接错误: {}", e.getMessage());
+            close(connection);
+        });
+        emitter.onTimeout(() -> {
+            try {
+                emitter.send(SseEventWriter.error("请求超时"));
+            } catch (IOException e) {
+                logger.debug("发送超时错误失败，连接可能已关闭");
+            }
+            emitter.complete();
+            close(connection);
+        });
+        return connection;
+    }
+
+    /**
+     * 当前存活的 SSE 连接数
+     */
+    public int getLiveCount() {
+        return connections.size();
+    }
+
+    /**
+     * 启动以来注册过的 SSE 连接总数
+     */
+    public long getTotalRegistered() {
+        return totalRegistered.sum();
+    }
+
+    private void heartbeat() {
+        for (SseConnection connection : connections) {
+            try {
+                connection.emitter.send(SseEventWriter.heartbeat());
+            } catch (IOException | IllegalStateException e) {
+                // 客户端已断开或 emitter 已完成
+                logger.debug("心跳发送失败，移除连接: {}", e.getMessage());
+                close(connection);
+            } catch (RuntimeException e) {
+                logger.warn("心跳发送异常", e);
+                close(connection);
+            }
+        }
+    }
+
+    private void close(SseConnection connection) {
+        connections.remove(connection);
+        connection.fireClose();
+    }
+
+    @Override
+    public void destroy() {
+        heartbeatScheduler.shutdownNow();
+    }
+
+    /**
+     * 已注册的 SSE 连接
+     */
+    public static final class SseConnection {
+
+        private final SseEmitter emitter;
+        private final List<Runnable> closeListeners = new ArrayList<>();
+        private volatile boolean closed;
+
+        private SseConnection(SseEmitter emitter) {
+            this.emitter = emitter;
+        }
+
+        public SseEmitter getEmitter() {
+            return emitter;
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * 注册连接关闭时的回调；连接已关闭时立即执行
+         */
+        public void onClose(Runnable listener) {
+            synchronized (this) {
+                if (!closed) {
+                    closeListeners.add(listener);
+                    return;
+                }
+            }
+            listener.run();
+        }
+
+        private void fireClose() {
+            List<Runnable> listeners;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                listeners = new ArrayList<>(closeListeners);
+                closeListeners.clear();
+            }
+            for (Runnable listener : listeners) {
+                try {
+                    listener.run();
+                } catch (RuntimeException e) {
+                    logger.warn("SSE 连接关闭回调执行失败", e);
+                }
+            }
+        }
+    }
+}
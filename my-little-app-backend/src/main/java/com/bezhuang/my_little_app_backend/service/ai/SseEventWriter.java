@@ -0,0 +1,166 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter.DataWithMediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * SSE 事件编码器
+ * 用 Jackson JsonGenerator 把事件直接编码为完整的 SSE 帧（event 行 + data 行 + 空行），
+ * 字符串由生成器转义，构造即合法 JSON；编码缓冲区按线程复用，固定内容的事件预先编码一次。
+ * 返回的是不可修改的已编码帧，直接交给 {@link ResponseBodyEmitter#send(Set)}，以一个 byte[] 写出；
+ * 不经过 {@link SseEmitter.SseEventBuilder}，也就不能再追加 id、注释等字段。
+ */
+public final class SseEventWriter {
+
+    private static final JsonFactory JSON_FACTORY = JsonFactory.builder()
+            .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+            .build();
+    private static final byte[] FRAME_END = "\n\n".getBytes(StandardCharsets.UTF_8);
+    // 超过此大小的缓冲区用完即丢弃，避免个别大事件长期占用线程缓冲
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
+    private static final ThreadLocal<ByteArrayBuilder> BUFFER =
+            ThreadLocal.withInitial(() -> new ByteArrayBuilder(512));
+
+    // 各事件的 "event:xxx\ndata:" 前缀
+    private static final byte[] TOKEN = prefix("token");
+    private static final byte[] REASONING = prefix("reasoning");
+    private static final byte[] WARNING = prefix("warning");
+    private static final byte[] ERROR = prefix("error");
+    private static final byte[] QUOTA = prefix("quota");
+    private static final byte[] SEARCH_LINKS = prefix("searchLinks");
+    private static final byte[] START_PREFIX = prefix("start");
+
+    private static final Set<DataWithMediaType> START = text(START_PREFIX, "type", "start");
+    private static final Set<DataWithMediaType> COMPLETE = text(prefix("complete"), "type", "complete");
+    private static final Set<DataWithMediaType> HEARTBEAT = text(prefix("heartbeat"), "type", "heartbeat");
+
+    private SseEventWriter() {
+    }
+
+    public static Set<DataWithMediaType> start() {
+        return START;
+    }
+
+    /**
+     * 开始事件：{"type": "start", "traceId": "..."}，traceId 与服务端日志、X-Trace-Id 响应头一致
+     */
+    public static Set<DataWithMediaType> start(String traceId) {
+        if (traceId == null) {
+            return START;
+        }
+        return encode(START_PREFIX, gen -> {
+            gen.writeStringField("type", "start");
+            gen.writeStringField("traceId", traceId);
+        });
+    }
+
+    public static Set<DataWithMediaType> complete() {
+        return COMPLETE;
+    }
+
+    public static Set<DataWithMediaType> heartbeat() {
+        return HEARTBEAT;
+    }
+
+    /**
+     * 正文增量：{"token": "..."}
+     */
+    public static Set<DataWithMediaType> token(String token) {
+        return text(TOKEN, "token", token);
+    }
+
+    /**
+     * 思考过程增量：{"reasoning": "..."}
+     */
+    public static Set<DataWithMediaType> reasoning(String reasoning) {
+        return text(REASONING, "reasoning", reasoning);
+    }
+
+    public static Set<DataWithMediaType> warning(String warning) {
+        return text(WARNING, "warning", warning);
+    }
+
+    public static Set<DataWithMediaType> error(String error) {
+        return text(ERROR, "error", error);
+    }
+
+    /**
+     * 剩余配额：{"quota": {"tokensRemaining": n, "searchRemaining": n, "savedPromptTokens": n}}
+     * savedPromptTokens 为本次对话上下文压缩节省的输入 token（估算）
+     */
+    public static Set<DataWithMediaType> quota(long tokensRemaining, long searchRemaining, long savedPromptTokens) {
+        return encode(QUOTA, gen -> {
+            gen.writeObjectFieldStart("quota");
+            gen.writeNumberField("tokensRemaining", tokensRemaining);
+            gen.writeNumberField("searchRemaining", searchRemaining);
+            gen.writeNumberField("savedPromptTokens", savedPromptTokens);
+            gen.writeEndObject();
+        });
+    }
+
+    /**
+     * 搜索来源链接：{"searchLinks": [{"title": "...", "url": "..."}, ...]}
+     */
+    public static Set<DataWithMediaType> searchLinks(List<Map<String, String>> links) {
+        return encode(SEARCH_LINKS, gen -> {
+            gen.writeArrayFieldStart("searchLinks");
+            for (Map<String, String> link : links) {
+                gen.writeStartObject();
+                for (Map.Entry<String, String> entry : link.entrySet()) {
+                    gen.writeStringField(entry.getKey(), entry.getValue());
+                }
+                gen.writeEndObject();
+            }
+            gen.writeEndArray();
+        });
+    }
+
+    private static byte[] prefix(String eventName) {
+        return ("event:" + eventName + "\ndata:").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Set<DataWithMediaType> text(byte[] prefix, String fieldName, String value) {
+        return encode(prefix, gen -> gen.writeStringField(fieldName, value != null ? value : ""));
+    }
+
+    private interface Body {
+        void write(JsonGenerator gen) throws IOException;
+    }
+
+    private static Set<DataWithMediaType> encode(byte[] prefix, Body body) {
+        ByteArrayBuilder buffer = BUFFER.get();
+        try {
+            buffer.write(prefix);
+            try (JsonGenerator gen = JSON_FACTORY.createGenerator(buffer)) {
+                gen.writeStartObject();
+                body.write(gen);
+                gen.writeEndObject();
+            }
+            buffer.write(FRAME_END);
+            return Set.of(new DataWithMediaType(buffer.toByteArray(), MediaType.TEXT_EVENT_STREAM));
+        } catch (IOException e) {
+            // 写入内存缓冲区不会发生 IO 异常
+            throw new UncheckedIOException(e);
+        } finally {
+            if (buffer.size() > MAX_RETAINED_BUFFER) {
+                BUFFER.remove();
+            } else {
+                buffer.reset();
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 内存令牌桶限流器（按 key，如客户端 IP）
+ * 每个 key 一个令牌桶，容量为允许的突发请求数，按固定速率补充；每次请求消耗一个令牌，没有令牌时拒绝。
+ * 令牌在请求到达时按经过的时间惰性补充，没有后台线程逐个补充。
+ * 桶的读写用分段锁保护（按 key 的哈希选锁），不同 key 的请求大多落在不同的锁上，热路径只有一次哈希查找和几次浮点运算。
+ */
+public final class TokenBucketLimiter {
+
+    private static final int STRIPES = 64;
+
+    private final double capacity;
+    private final double tokensPerNano;
+    private final long idleNanos;
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final Object[] locks = new Object[STRIPES];
+
+    /**
+     * @param capacity 桶容量（允许的突发请求数）
+     * @param refillPerMinute 每分钟补充的令牌数
+     * @param idleSeconds 空闲多久的桶可被 {@link #evictIdle()} 清理，至少为桶从空到满所需的时间
+     */
+    public TokenBucketLimiter(int capacity, int refillPerMinute, long idleSeconds) {
+        if (capacity <= 0 || refillPerMinute <= 0) {
+            throw new IllegalArgumentException("令牌桶容量和补充速率必须大于 0");
+        }
+        this.capacity = capacity;
+        this.tokensPerNano = refillPerMinute / (double) TimeUnit.MINUTES.toNanos(1);
+        // 空闲时间不短于补满时间，被清理的桶一定已经补满，重新创建不会多放行
+        this.idleNanos = Math.max(TimeUnit.SECONDS.toNanos(idleSeconds), (long) Math.ceil(capacity / tokensPerNano));
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * 尝试消耗一个令牌
+     * @return 是否放行
+     */
+    public boolean tryAcquire(String key) {
+        return tryAcquire(key, System.nanoTime());
+    }
+
+    boolean tryAcquire(String key, long now) {
+        Object lock = lockFor(key);
+        while (true) {
+            Bucket bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = buckets.computeIfAbsent(key, k -> new Bucket(capacity, now));
+            }
+            synchronized (lock) {
+                if (bucket.evicted) {
+                    // 刚被清理线程移除，重新取（或创建）桶
+                    continue;
+                }
+                double tokens = Math.min(capacity, bucket.tokens + Math.max(0, now - bucket.updatedAt) * tokensPerNano);
+                bucket.updatedAt = now;
+                if (tokens >= 1) {
+                    bucket.tokens = tokens - 1;
+                    return true;
+                }
+                bucket.tokens = tokens;
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 清理空闲的桶
+     * @return 清理的桶数
+     */
+    public int evictIdle() {
+        return evictIdle(System.nanoTime());
+    }
+
+    int evictIdle(long now) {
+        int evicted = 0;
+        for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+            Bucket bucket = entry.getValue();
+            synchronized (lockFor(entry.getKey())) {
+                if (now - bucket.updatedAt >= idleNanos && buckets.remove(entry.getKey(), bucket)) {
+                    bucket.evicted = true;
+                    evicted++;
+                }
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * 当前的桶数（活跃 key 数）
+     */
+    public int size() {
+        return buckets.size();
+    }
+
+    private Object lockFor(String key) {
+        int hash = key.hashCode();
+        return locks[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     * 令牌桶，字段只在持有对应分段锁时读写
+     */
+    private static final class Bucket {
+        double tokens;
+        long updatedAt;
+        boolean evicted;
+
+        Bucket(double tokens, long updatedAt) {
+            this.tokens = tokens;
+            this.updatedAt = updatedAt;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * 本地 token 估算
+ * 按字符类别（中日韩、字母、数字、空白、标点、其他）累加系数，系数从 classpath 下的
+ * ai/token-estimator.properties 加载；单次遍历、不分配对象，10 轮对话的估算在微秒级完成，
+ * 用于调用上游之前的配额预检和上下文预算
+ */
+public final class TokenEstimator {
+
+    private static final Logger logger = LoggerFactory.getLogger(TokenEstimator.class);
+    private static final String RESOURCE = "/ai/token-estimator.properties";
+
+    // ASCII 字符按查表计算，其余按区间判断
+    private static final double[] ASCII = new double[128];
+    private static final double CJK;
+    private static final double OTHER;
+    private static final double SUPPLEMENTARY;
+    private static final int MESSAGE_OVERHEAD;
+
+    static {
+        Properties properties = new Properties();
+        try (InputStream input = TokenEstimator.class.getResourceAsStream(RESOURCE)) {
+            if (input != null) {
+                properties.load(input);
+            } else {
+                logger.warn("未找到 token 估算系数 {}，使用默认值", RESOURCE);
+            }
+        } catch (IOException e) {
+            logger.warn("读取 token 估算系数失败，使用默认值: {}", e.getMessage());
+        }
+        double letter = coefficient(properties, "letter", 0.3);
+        double digit = coefficient(properties, "digit", 0.4);
+        double whitespace = coefficient(properties, "whitespace", 0.15);
+        double punctuation = coefficient(properties, "punctuation", 0.5);
+        for (int c = 0; c < ASCII.length; c++) {
+            if (Character.isLetter(c)) {
+                ASCII[c] = letter;
+            } else if (Character.isDigit(c)) {
+                ASCII[c] = digit;
+            } else if (Character.isWhitespace(c)) {
+                ASCII[c] = whitespace;
+            } else {
+                ASCII[c] = punctuation;
+            }
+        }
+        CJK = coefficient(properties, "cjk", 0.6);
+        OTHER = coefficient(properties, "other", 1.0);
+        SUPPLEMENTARY = coefficient(properties, "supplementary", 2.0);
+        MESSAGE_OVERHEAD = (int) coefficient(properties, "message_overhead", 4);
+    }
+
+    private TokenEstimator() {
+    }
+
+    /**
+     * 估算文本的 token 数
+     */
+    public static long estimate(CharSequence text) {
+        if (text == null || text.length() == 0) {
+            return 0;
+        }
+        double tokens = 0;
+        for (int i = 0, length = text.length(); i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 128) {
+                tokens += ASCII[c];
+            } else if (Character.isHighSurrogate(c)) {
+                tokens += SUPPLEMENTARY;
+            } else if (Character.isLowSurrogate(c)) {
+                // 与前一个高位代理合并计为一个码点
+                continue;
+            } else if (c > 0x2E7F) {
+                // 中日韩文字、全角标点、假名、谚文等
+                tokens += CJK;
+            } else {
+                tokens += OTHER;
+            }
+        }
+        return (long) Math.ceil(tokens);
+    }
+
+    /**
+     * 估算单条消息的 token 数（正文 + 工具调用参数 + 格式开销）
+     */
+    public static long estimateMessage(Map<String, Object> message) {
+        long tokens = MESSAGE_OVERHEAD;
+        Object content = message.get("content");
+        if (content instanceof CharSequence text) {
+            tokens += estimate(text);
+        } else if (content != null) {
+            tokens += estimate(content.toString());
+        }
+        Object toolCalls = message.get("tool_calls");
+        if (toolCalls != null) {
+            tokens += estimate(toolCalls.toString());
+        }
+        return tokens;
+    }
+
+    /**
+     * 估算消息列表的输入 token 数
+     */
+    public static long estimateMessages(List<Map<String, Object>> messages) {
+        long tokens = 0;
+        for (int i = 0, size = messages.size(); i < size; i++) {
+            tokens += estimateMessage(messages.get(i));
+        }
+        return tokens;
+    }
+
+    private static double coefficient(Properties properties, String key, double defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            double coefficient = Double.parseDouble(value.trim());
+            return coefficient >= 0 ? coefficient : defaultValue;
+        } catch (NumberFormatException e) {
+            logger.warn("token 估算系数 {} 无效: {}", key, value);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import com.bezhuang.my_little_app_backend.service.AiConfigService;
+import io.netty.channel.ChannelOption;
+import io.netty.handler.timeout.WriteTimeoutHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionPoolMetrics;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.net.SocketAddress;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 上游 HTTP 客户端工厂
+ * DeepSeek、SiliconFlow、博查搜索共用：每个 Base URL 一个连接池（keep-alive 复用），
+ * HTTPS 上游优先协商 HTTP/2，超时和内存上限从 AiConfigService 读取。
+ * 管理员修改 Base URL 或连接参数后（{@link AiConfigChangedEvent}）自动重建，下一次请求即使用新客户端，无需重启。
+ */
+@Component
+public class UpstreamClientFactory implements DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(UpstreamClientFactory.class);
+    private static final String ACQUIRE_START = UpstreamClientFactory.class.getName() + ".acquireStart";
+
+    private final AiConfigService aiConfigService;
+    private final Map<String, UpstreamClient> clients = new ConcurrentHashMap<>();
+
+    public UpstreamClientFactory(AiConfigService aiConfigService) {
+        this.aiConfigService = aiConfigService;
+    }
+
+    /**
+     * 获取指定 Base URL 的 WebClient（按 Base URL 复用）
+     */
+    public WebClient get(String baseUrl) {
+        String key = stripTrailingSlash(baseUrl);
+        return clients.computeIfAbsent(key, this::create).webClient;
+    }
+
+    /**
+     * 配置变更后重建客户端
+     * 旧连接池不再分配新请求，进行中的请求结束后连接随之释放
+     */
+    public void refresh() {
+        List<UpstreamClient> old = new ArrayList<>(clients.values());
+        clients.clear();
+        for (UpstreamClient client : old) {
+            client.provider.disposeLater().subscribe();
+        }
+        if (!old.isEmpty()) {
+            logger.info("上游 HTTP 客户端已重建，释放旧连接池 {} 个", old.size());
+        }
+    }
+
+    /**
+     * Base URL 或连接参数变更时重建客户端
+     */
+    @EventListener
+    public void onConfigChanged(AiConfigChangedEvent event) {
+        boolean affected = event.getChangedKeys().stream()
+                .anyMatch(key -> key.endsWith("_base_url") || key.startsWith("upstream_"));
+        if (affected) {
+            refresh();
+        }
+    }
+
+    /**
+     * 各上游连接池状态：活跃、空闲、等待获取连接数，以及获取连接耗时
+     */
+    public List<Map<String, Object>> getPoolStats() {
+        List<Map<String, Object>> stats = new ArrayList<>();
+        for (UpstreamClient client : clients.values()) {
+            int active = 0;
+            int idle = 0;
+            int pending = 0;
+            int allocated = 0;
+            for (ConnectionPoolMetrics metrics : client.pools.values()) {
+                active += metrics.acquiredSize();
+                idle += metrics.idleSize();
+                pending += metrics.pendingAcquireSize();
+                allocated += metrics.allocatedSize();
+            }
+            long acquireCount = client.acquireCount.sum();
+
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("baseUrl", client.baseUrl);
+            item.put("active", active);
+            item.put("idle", idle);
+            item.put("pending", pending);
+            item.put("allocated", allocated);
+            item.put("maxConnections", client.maxConnections);
+            item.put("acquireCount", acquireCount);
+            item.put("acquireAvgMs", acquireCount > 0
+                    ? TimeUnit.NANOSECONDS.toMillis(client.acquireNanos.sum() / acquireCount) : 0);
+            item.put("acquireMaxMs", TimeUnit.NANOSECONDS.toMillis(client.acquireMaxNanos.get()));
+            stats.add(item);
+        }
+        return stats;
+    }
+
+    private UpstreamClient create(String baseUrl) {
+        int connectTimeoutMs = aiConfigService.getUpstreamConnectTimeoutMs();
+        int readTimeoutSeconds = aiConfigService.getUpstreamReadTimeoutSeconds();
+        int writeTimeoutSeconds = aiConfigService.getUpstreamWriteTimeoutSeconds();
+        int maxInMemoryBytes = aiConfigService.getUpstreamMaxInMemoryMb() * 1024 * 1024;
+        int maxConnections = aiConfigService.getUpstreamMaxConnections();
+        int pendingAcquireMax = aiConfigService.getUpstreamPendingAcquireMax();
+
+        UpstreamClient client = new UpstreamClient(baseUrl, maxConnections);
+
+        String host = URI.create(baseUrl).getHost();
+        client.provider = ConnectionProvider.builder("ai-upstream-" + host)
+                .maxConnections(maxConnections)
+                .pendingAcquireMaxCount(pendingAcquireMax)
+                .pendingAcquireTimeout(Duration.ofMillis(connectTimeoutMs))
+                // 空闲连接保留 60 秒供后续请求复用，避免被上游或中间网关静默断开
+                .maxIdleTime(Duration.ofSeconds(60))
+                .maxLifeTime(Duration.ofMinutes(10))
+                .evictInBackground(Duration.ofSeconds(30))
+                .metrics(true, () -> new ConnectionProvider.MeterRegistrar() {
+                    @Override
+                    public void registerMetrics(String poolName, String id, SocketAddress remoteAddress,
+                                                ConnectionPoolMetrics metrics) {
+                        client.pools.put(remoteAddress, metrics);
+                    }
+
+                    @Override
+                    public void deRegisterMetrics(String poolName, String id, SocketAddress remoteAddress) {
+                        client.pools.remove(remoteAddress);
+                    }
+                })
+                .build();
+
+        HttpClient httpClient = HttpClient.create(client.provider)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeoutMs)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                // 两次读取之间的最长间隔（流式响应按数据块计算）
+                .responseTimeout(Duration.ofSeconds(readTimeoutSeconds))
+                .doOnConnected(connection ->
+                        connection.addHandlerLast(new WriteTimeoutHandler(writeTimeoutSeconds)))
+                // 请求真正发出时即已拿到连接，记录从发起到拿到连接的耗时
+                .doOnRequest((request, connection) -> request.currentContextView()
+                        .<Long>getOrEmpty(ACQUIRE_START)
+                        .ifPresent(start -> client.recordAcquire(System.nanoTime() - start)));
+        if (baseUrl.startsWith("https")) {
+            httpClient = httpClient.protocol(HttpProtocol.H2, HttpProtocol.HTTP11).secure();
+        }
+
+        ExchangeFilterFunction acquireTimer = (request, next) -> next.exchange(request)
+                .contextWrite(context -> context.put(ACQUIRE_START, System.nanoTime()));
+
+        client.webClient = WebClient.builder()
+                .baseUrl(baseUrl)
+                .defaultHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                .codecs(configurer -> configurer.defaultCodecs().maxInMemorySize(maxInMemoryBytes))
+                .clientConnector(new ReactorClientHttpConnector(httpClient))
+                .filter(acquireTimer)
+                .build();
+
+        logger.info("创建上游 HTTP 客户端: {}, maxConnections={}, connectTimeout={}ms, readTimeout={}s",
+                baseUrl, maxConnections, connectTimeoutMs, readTimeoutSeconds);
+        return client;
+    }
+
+    private static String stripTrailingSlash(String baseUrl) {
+        String url = baseUrl == null ? "" : baseUrl.trim();
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    @Override
+    public void destroy() {
+        for (UpstreamClient client : clients.values()) {
+            client.provider.dispose();
+        }
+        clients.clear();
+    }
+
+    /**
+     * 单个上游的客户端及其连接池统计
+     */
+    private static class UpstreamClient {
+        final String baseUrl;
+        final int maxConnections;
+        final Map<SocketAddress, ConnectionPoolMetrics> pools = new ConcurrentHashMap<>();
+        final LongAdder acquireCount = new LongAdder();
+        final LongAdder acquireNanos = new LongAdder();
+        final AtomicLong acquireMaxNanos = new AtomicLong();
+        ConnectionProvider provider;
+        WebClient webClient;
+
+        UpstreamClient(String baseUrl, int maxConnections) {
+            this.baseUrl = baseUrl;
+            this.maxConnections = maxConnections;
+        }
+
+        void recordAcquire(long nanos) {
+            acquireCount.increment();
+            acquireNanos.add(nanos);
+            acquireMaxNanos.accumulateAndGet(nanos, Math::max);
+        }
+    }
+}
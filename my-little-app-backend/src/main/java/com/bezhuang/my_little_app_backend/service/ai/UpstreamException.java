@@ -0,0 +1,38 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+/**
+ * 上游模型服务返回错误或暂不可用
+ * retriable 表示换一个服务商重试可能成功（5xx、限流、鉴权/余额问题、熔断中），
+ * 请求本身有问题（如 400 参数错误）时为 false，不做故障转移。
+ */
+public class UpstreamException extends RuntimeException {
+
+    /**
+     * 熔断中未发出请求时的状态码
+     */
+    public static final int CIRCUIT_OPEN = -1;
+
+    private final String provider;
+    private final int status;
+    private final boolean retriable;
+
+    public UpstreamException(String provider, int status, String message) {
+        super(message);
+        this.provider = provider;
+        this.status = status;
+        this.retriable = status == CIRCUIT_OPEN || status == 401 || status == 402 || status == 403
+                || status == 408 || status == 429 || status >= 500;
+    }
+
+    public String getProvider() {
+        return provider;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public boolean isRetriable() {
+        return retriable;
+    }
+}
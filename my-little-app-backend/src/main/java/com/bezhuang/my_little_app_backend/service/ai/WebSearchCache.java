@@ -0,0 +1,132 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import com.bezhuang.my_little_app_backend.service.CacheService;
+import com.bezhuang.my_little_app_backend.service.ToolService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.text.Normalizer;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 联网搜索结果缓存
+ * 以规范化后的查询词为键（去首尾空白、合并连续空白、全角转半角、统一小写），
+ * 进程内 LRU + TTL，Redis 可用时同时写入 Redis 供多实例共享
+ */
+@Component
+public class WebSearchCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(WebSearchCache.class);
+    private static final String REDIS_KEY_PREFIX = "websearch:";
+
+    private final CacheService cacheService;
+    private final long ttlMillis;
+    private final int maxSize;
+    private final Map<String, Entry> entries;
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    private record Entry(ToolService.WebSearchResult result, long expiresAt) {
+    }
+
+    public WebSearchCache(CacheService cacheService,
+                          @Value("${ai.websearch.cache.ttl-seconds:600}") long ttlSeconds,
+                          @Value("${ai.websearch.cache.max-size:1000}") int maxSize) {
+        this.cacheService = cacheService;
+        this.ttlMillis = ttlSeconds * 1000;
+        this.maxSize = maxSize;
+        // accessOrder=true：按访问顺序排列，超出容量时淘汰最久未访问的条目
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > WebSearchCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * 规范化查询词：NFKC 统一全角/半角，合并空白，统一小写
+     */
+    public static String normalize(String query) {
+        if (query == null) {
+            return "";
+        }
+        String normalized = Normalizer.normalize(query, Normalizer.Form.NFKC);
+        return normalized.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * 查询缓存
+     * @return 命中返回缓存的搜索结果，未命中返回 null
+     */
+    public ToolService.WebSearchResult get(String query) {
+        String key = normalize(query);
+        if (key.isEmpty() || ttlMillis <= 0) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.expiresAt() > now) {
+                    hitCount.increment();
+                    return entry.result();
+                }
+                entries.remove(key);
+            }
+        }
+
+        if (cacheService.isAvailable()) {
+            ToolService.WebSearchResult shared = cacheService.get(REDIS_KEY_PREFIX + key, ToolService.WebSearchResult.class);
+            if (shared != null) {
+                putLocal(key, shared, now);
+                hitCount.increment();
+                return shared;
+            }
+        }
+
+        missCount.increment();
+        return null;
+    }
+
+    /**
+     * 写入缓存
+     */
+    public void put(String query, ToolService.WebSearchResult result) {
+        String key = normalize(query);
+        if (key.isEmpty() || result == null || ttlMillis <= 0) {
+            return;
+        }
+        putLocal(key, result, System.currentTimeMillis());
+        if (cacheService.isAvailable()) {
+            cacheService.set(REDIS_KEY_PREFIX + key, result, ttlMillis / 1000);
+        }
+        logger.debug("缓存搜索结果: {}", key);
+    }
+
+    private void putLocal(String key, ToolService.WebSearchResult result, long now) {
+        synchronized (entries) {
+            entries.put(key, new Entry(result, now + ttlMillis));
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+}
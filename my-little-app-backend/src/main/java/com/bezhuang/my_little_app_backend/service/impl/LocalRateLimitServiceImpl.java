@@ -0,0 +1,88 @@
+package com.bezhuang.my_little_app_backend.service.impl;
+
+import com.bezhuang.my_little_app_backend.service.RateLimitService;
+import com.bezhuang.my_little_app_backend.service.ai.TokenBucketLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 基于内存令牌桶的限流
+ * 未启用 Redis 时使用，每个实例各自限流；后台线程定时清理空闲的令牌桶，内存占用只与活跃 IP 数有关
+ */
+@Service
+@ConditionalOnMissingBean(RateLimitService.class)
+public class LocalRateLimitServiceImpl implements RateLimitService, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(LocalRateLimitServiceImpl.class);
+
+    private final TokenBucketLimiter limiter;
+    private final ScheduledExecutorService sweepScheduler;
+    private final LongAdder allowedCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+
+    public LocalRateLimitServiceImpl(@Value("${ai.ratelimit.capacity:10}") int capacity,
+                                     @Value("${ai.ratelimit.refill-per-minute:20}") int refillPerMinute,
+                                     @Value("${ai.ratelimit.idle-seconds:600}") long idleSeconds,
+                                     @Value("${ai.ratelimit.sweep-interval-seconds:60}") long sweepIntervalSeconds) {
+        this.limiter = new TokenBucketLimiter(capacity, refillPerMinute, idleSeconds);
+        this.sweepScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rate-limit-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweepScheduler.scheduleWithFixedDelay(this::sweep, sweepIntervalSeconds, sweepIntervalSeconds, TimeUnit.SECONDS);
+        logger.info("内存令牌桶限流已启用: 容量 {}, 每分钟补充 {}", capacity, refillPerMinute);
+    }
+
+    @Override
+    public boolean tryAcquire(String key) {
+        boolean allowed = limiter.tryAcquire(key);
+        (allowed ? allowedCount : rejectedCount).increment();
+        return allowed;
+    }
+
+    private void sweep() {
+        try {
+            int evicted = limiter.evictIdle();
+            if (evicted > 0) {
+                logger.debug("清理空闲令牌桶 {} 个，剩余 {} 个", evicted, limiter.size());
+            }
+        } catch (RuntimeException e) {
+            logger.warn("清理空闲令牌桶失败", e);
+        }
+    }
+
+    @Override
+    public String getMode() {
+        return "local";
+    }
+
+    @Override
+    public int getBucketCount() {
+        return limiter.size();
+    }
+
+    @Override
+    public long getAllowedCount() {
+        return allowedCount.sum();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    @Override
+    public void destroy() {
+        sweepScheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,82 @@
+package com.bezhuang.my_little_app_backend.service.impl;
+
+import com.bezhuang.my_little_app_backend.mapper.AiConfigMapper;
+import com.bezhuang.my_little_app_backend.service.AiConfigService;
+import com.bezhuang.my_little_app_backend.service.AiConfigSyncService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.stereotype.Service;
+
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 基于数据库轮询的 AI 配置同步
+ * 未启用 Redis 时使用：后台线程定时查询 ai_config 表指纹（行数、最近 updated_at、配置值校验和），
+ * 指纹变化时重新加载配置快照。每次轮询只有一条聚合查询，与请求量无关。
+ */
+@Service
+@ConditionalOnMissingBean(AiConfigSyncService.class)
+public class PollingAiConfigSyncServiceImpl implements AiConfigSyncService, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(PollingAiConfigSyncServiceImpl.class);
+
+    private final AiConfigMapper aiConfigMapper;
+    private final AiConfigService aiConfigService;
+    private final ScheduledExecutorService pollScheduler;
+    private final LongAdder remoteChangeCount = new LongAdder();
+    private volatile String lastFingerprint;
+
+    public PollingAiConfigSyncServiceImpl(AiConfigMapper aiConfigMapper, AiConfigService aiConfigService,
+                                          @Value("${ai.config.poll-interval-ms:1000}") long pollIntervalMs) {
+        this.aiConfigMapper = aiConfigMapper;
+        this.aiConfigService = aiConfigService;
+        this.pollScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ai-config-poll");
+            thread.setDaemon(true);
+            return thread;
+        });
+        pollScheduler.scheduleWithFixedDelay(this::poll, pollIntervalMs, pollIntervalMs, TimeUnit.MILLISECONDS);
+        logger.info("Redis 未启用，AI 配置同步使用数据库轮询: 间隔 {}ms", pollIntervalMs);
+    }
+
+    private void poll() {
+        try {
+            // 先读指纹再加载：两者之间发生的修改会在下一次轮询时因指纹不同被再次加载
+            String fingerprint = aiConfigMapper.selectFingerprint();
+            if (Objects.equals(fingerprint, lastFingerprint)) {
+                return;
+            }
+            boolean first = lastFingerprint == null;
+            lastFingerprint = fingerprint;
+            if (!first) {
+                remoteChangeCount.increment();
+            }
+            // 首次轮询也加载一次，覆盖启动加载与首次轮询之间的修改；无变化时不会发布事件
+            aiConfigService.reloadOnRemoteChange();
+        } catch (Exception e) {
+            logger.warn("轮询 AI 配置变更失败: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public String getMode() {
+        return "db-polling";
+    }
+
+    @Override
+    public long getRemoteChangeCount() {
+        return remoteChangeCount.sum();
+    }
+
+    @Override
+    public void destroy() {
+        pollScheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,84 @@
+package com.bezhuang.my_little_app_backend.service.impl;
+
+import com.bezhuang.my_little_app_backend.service.AiConfigService;
+import com.bezhuang.my_little_app_backend.service.AiConfigSyncService;
+import com.bezhuang.my_little_app_backend.service.ai.AiConfigChangedEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Service;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 基于 Redis pub/sub 的 AI 配置同步
+ * 本实例配置快照变化后向频道发布自己的实例 ID，其他实例收到后重新加载快照
+ */
+@Service
+@ConditionalOnBean(RedisTemplate.class)
+@ConditionalOnProperty(name = "redis.enabled", havingValue = "true", matchIfMissing = false)
+public class RedisAiConfigSyncServiceImpl implements AiConfigSyncService, MessageListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(RedisAiConfigSyncServiceImpl.class);
+
+    static final String CHANNEL = "ai:config:changed";
+
+    private final RedisTemplate<String, Object> redisTemplate;
+    private final AiConfigService aiConfigService;
+    // 用于忽略自己发出的通知
+    private final String instanceId = UUID.randomUUID().toString();
+    private final LongAdder remoteChangeCount = new LongAdder();
+
+    public RedisAiConfigSyncServiceImpl(RedisTemplate<String, Object> redisTemplate,
+                                        RedisMessageListenerContainer listenerContainer,
+                                        AiConfigService aiConfigService) {
+        this.redisTemplate = redisTemplate;
+        this.aiConfigService = aiConfigService;
+        listenerContainer.addMessageListener(this, new ChannelTopic(CHANNEL));
+        logger.info("AI 配置同步已启用: Redis 频道 {}", CHANNEL);
+    }
+
+    @EventListener
+    public void onConfigChanged(AiConfigChangedEvent event) {
+        if (event.isRemote()) {
+            return;
+        }
+        try {
+            redisTemplate.convertAndSend(CHANNEL, instanceId);
+        } catch (Exception e) {
+            logger.warn("发布 AI 配置变更通知失败，其他实例将无法及时刷新: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        Object sender = redisTemplate.getValueSerializer().deserialize(message.getBody());
+        if (instanceId.equals(sender)) {
+            return;
+        }
+        remoteChangeCount.increment();
+        try {
+            aiConfigService.reloadOnRemoteChange();
+        } catch (Exception e) {
+            logger.error("收到配置变更通知后重新加载失败: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public String getMode() {
+        return "redis-pubsub";
+    }
+
+    @Override
+    public long getRemoteChangeCount() {
+        return remoteChangeCount.sum();
+    }
+}
@@ -0,0 +1,124 @@
+package com.bezhuang.my_little_app_backend.service.impl;
+
+import com.bezhuang.my_little_app_backend.service.RateLimitService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.GenericToStringSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 基于 Redis 的令牌桶限流
+ * 多个实例共享同一组令牌桶：补充、扣减在一个 Lua 脚本中原子完成，时间取 Redis 服务器时间，不受各实例时钟偏差影响；
+ * 每次访问刷新 key 的过期时间，空闲的桶由 Redis 自动清理。
+ * Redis 不可用时降级为本实例的内存令牌桶，不放开限流。
+ */
+@Service
+@ConditionalOnBean(RedisTemplate.class)
+@ConditionalOnProperty(name = "redis.enabled", havingValue = "true", matchIfMissing = false)
+public class RedisRateLimitServiceImpl implements RateLimitService, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(RedisRateLimitServiceImpl.class);
+
+    private static final String KEY_PREFIX = "ai:ratelimit:";
+
+    /**
+     * KEYS[1] 桶；ARGV[1] 容量，ARGV[2] 每毫秒补充的令牌数，ARGV[3] 过期时间（毫秒）
+     * 返回 1 放行，0 拒绝
+     */
+    private static final String SCRIPT = """
+            local capacity = tonumber(ARGV[1])
+            local rate = tonumber(ARGV[2])
+            local time = redis.call('TIME')
+            local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+            local bucket = redis.call('HMGET', KEYS[1], 'tokens', 'ts')
+            local tokens = tonumber(bucket[1]) or capacity
+            local ts = tonumber(bucket[2]) or now
+            tokens = math.min(capacity, tokens + math.max(0, now - ts) * rate)
+            local allowed = 0
+            if tokens >= 1 then
+                tokens = tokens - 1
+                allowed = 1
+            end
+            redis.call('HSET', KEYS[1], 'tokens', tostring(tokens), 'ts', tostring(now))
+            redis.call('PEXPIRE', KEYS[1], ARGV[3])
+            return allowed
+            """;
+
+    private final RedisTemplate<String, Object> redisTemplate;
+    private final DefaultRedisScript<Long> script = new DefaultRedisScript<>(SCRIPT, Long.class);
+    private final StringRedisSerializer argsSerializer = new StringRedisSerializer();
+    private final GenericToStringSerializer<Long> resultSerializer = new GenericToStringSerializer<>(Long.class);
+    private final String capacity;
+    private final String tokensPerMilli;
+    private final String ttlMillis;
+    // Redis 不可用时使用
+    private final LocalRateLimitServiceImpl fallback;
+    private final LongAdder allowedCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+
+    public RedisRateLimitServiceImpl(RedisTemplate<String, Object> redisTemplate,
+                                     @Value("${ai.ratelimit.capacity:10}") int capacity,
+                                     @Value("${ai.ratelimit.refill-per-minute:20}") int refillPerMinute,
+                                     @Value("${ai.ratelimit.idle-seconds:600}") long idleSeconds,
+                                     @Value("${ai.ratelimit.sweep-interval-seconds:60}") long sweepIntervalSeconds) {
+        this.redisTemplate = redisTemplate;
+        this.capacity = String.valueOf(capacity);
+        this.tokensPerMilli = String.valueOf(refillPerMinute / (double) TimeUnit.MINUTES.toMillis(1));
+        // 过期时间不短于补满时间，过期的桶一定已经补满
+        long fullRefillMillis = (long) Math.ceil(capacity * (double) TimeUnit.MINUTES.toMillis(1) / refillPerMinute);
+        this.ttlMillis = String.valueOf(Math.max(TimeUnit.SECONDS.toMillis(idleSeconds), fullRefillMillis));
+        this.fallback = new LocalRateLimitServiceImpl(capacity, refillPerMinute, idleSeconds, sweepIntervalSeconds);
+        logger.info("Redis 令牌桶限流已启用: 容量 {}, 每分钟补充 {}", capacity, refillPerMinute);
+    }
+
+    @Override
+    public boolean tryAcquire(String key) {
+        boolean allowed;
+        try {
+            Long result = redisTemplate.execute(script, argsSerializer, resultSerializer,
+                    List.of(KEY_PREFIX + key), capacity, tokensPerMilli, ttlMillis);
+            allowed = result != null && result == 1L;
+        } catch (Exception e) {
+            logger.warn("Redis 限流失败，降级为本地令牌桶: {}", e.getMessage());
+            allowed = fallback.tryAcquire(key);
+        }
+        (allowed ? allowedCount : rejectedCount).increment();
+        return allowed;
+    }
+
+    @Override
+    public String getMode() {
+        return "redis-lua";
+    }
+
+    @Override
+    public int getBucketCount() {
+        return fallback.getBucketCount();
+    }
+
+    @Override
+    public long getAllowedCount() {
+        return allowedCount.sum();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    @Override
+    public void destroy() {
+        fallback.destroy();
+    }
+}
@@ -0,0 +1,83 @@
+package com.bezhuang.my_little_app_backend.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 文本 deflate 压缩工具类
+ * zlib 格式（deflate + 校验和），用于压缩存储 AI 对话消息正文
+ */
+public class DeflateUtil {
+
+    /**
+     * 压缩级别：对话文本在默认级别下压缩率已足够，CPU 开销更低
+     */
+    private static final int LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    private static final int BUFFER_SIZE = 1024;
+
+    /**
+     * 私有构造方法，防止实例化
+     */
+    private DeflateUtil() {
+    }
+
+    /**
+     * 压缩文本
+     *
+     * @param text 原文，null 按空字符串处理
+     * @return 压缩后的字节
+     */
+    public static byte[] compress(String text) {
+        byte[] input = (text != null ? text : "").getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = new Deflater(LEVEL);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(64, input.length / 2));
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                output.write(buffer, 0, length);
+            }
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * 解压文本
+     *
+     * @param data 压缩后的字节
+     * @param originalLength 原文字节数（用于预分配缓冲区），未知时传 0
+     * @return 原文
+     * @throws IllegalArgumentException 数据不是有效的 deflate 格式
+     */
+    public static String decompress(byte[] data, int originalLength) {
+        if (data == null || data.length == 0) {
+            return "";
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream output = new ByteArrayOutputStream(originalLength > 0 ? originalLength : data.length * 3);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("压缩数据不完整");
+                }
+                output.write(buffer, 0, length);
+            }
+            return output.toString(StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("压缩数据格式错误", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
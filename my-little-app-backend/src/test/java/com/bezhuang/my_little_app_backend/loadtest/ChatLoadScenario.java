@@ -0,0 +1,259 @@
+package com.bezhuang.my_little_app_backend.loadtest;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * 流式对话压测场景
+ * 以固定并发向 /api/ai/chat/stream（登录用户）和 /api/ai/siliconflow/chat/stream（匿名）发送请求，统计：
+ * 首个 token 延迟（TTFT）和总耗时的 p50 / p99、每个请求的 token/s（首个 token 之后收到的 token 事件数）、吞吐，
+ * 以及压测期间服务端的 JVM 线程数、对话线程池活跃线程数和 SSE 连接数峰值（需要管理员 token，读取 /api/admin/ai/stats）。
+ * <p>
+ * 建议先启动 {@link MockUpstreamServer} 并把 ai_config 中的上游地址指向它，避免产生费用；
+ * 压测前按需调高单用户并发（deepseek_max_concurrent_per_user、siliconflow_max_concurrent_per_user）和匿名限流（ai.ratelimit.*），
+ * 否则被拒绝的请求会计入"告警"。
+ * <p>
+ * 运行：mvn test-compile 后执行
+ * java -Dload.tokens=JWT1,JWT2 -Dload.admin-token=ADMIN_JWT -cp target/test-classes com.bezhuang.my_little_app_backend.loadtest.ChatLoadScenario
+ * <p>
+ * 系统属性（括号内为默认值）：load.base-url（http://localhost:8080）、load.target deepseek / siliconflow / both（both）、
+ * load.concurrency（10）、load.requests 每个接口的请求数（100）、load.tokens 登录用户 JWT，逗号分隔轮流使用（未配置时跳过 DeepSeek 接口）、
+ * load.admin-token 管理员 JWT（未配置时不统计服务端线程）、load.message（"请介绍一下你自己"）、load.web-search（false）
+ */
+public final class ChatLoadScenario {
+
+	private static final Pattern JVM_THREADS = Pattern.compile("\"jvmThreads\":(\\d+)");
+	private static final Pattern EXECUTOR_ACTIVE = Pattern.compile("\"executorActive\":(\\d+)");
+	private static final Pattern SSE_LIVE = Pattern.compile("\"sseLiveConnections\":(\\d+)");
+
+	private record Target(String name, String path, boolean authenticated) {
+	}
+
+	/**
+	 * 单个请求的结果；outcome 为 ok、warning、error、http &lt;状态码&gt; 或 exception
+	 */
+	private record Sample(String outcome, long ttftNanos, long totalNanos, int tokenEvents) {
+
+		double tokensPerSecond() {
+			long generationNanos = totalNanos - ttftNanos;
+			return ttftNanos > 0 && generationNanos > 0 && tokenEvents > 1
+					? (tokenEvents - 1) / (generationNanos / 1e9) : 0;
+		}
+	}
+
+	private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+	private final String baseUrl = System.getProperty("load.base-url", "http://localhost:8080");
+	private final int concurrency = Integer.getInteger("load.concurrency", 10);
+	private final int requests = Integer.getInteger("load.requests", 100);
+	private final List<String> tokens = Arrays.stream(System.getProperty("load.tokens", "").split(","))
+			.map(String::trim).filter(token -> !token.isEmpty()).toList();
+	private final String adminToken = System.getProperty("load.admin-token", "");
+	private final String message = System.getProperty("load.message", "请介绍一下你自己");
+	private final boolean webSearch = Boolean.getBoolean("load.web-search");
+
+	public static void main(String[] args) throws Exception {
+		new ChatLoadScenario().run(System.getProperty("load.target", "both"));
+	}
+
+	private void run(String target) throws Exception {
+		List<Target> targets = new ArrayList<>();
+		if (!"siliconflow".equals(target)) {
+			targets.add(new Target("DeepSeek", "/api/ai/chat/stream", true));
+		}
+		if (!"deepseek".equals(target)) {
+			targets.add(new Target("SiliconFlow", "/api/ai/siliconflow/chat/stream", false));
+		}
+		System.out.printf("压测 %s，并发 %d，每个接口 %d 个请求%n", baseUrl, concurrency, requests);
+		for (Target t : targets) {
+			if (t.authenticated() && tokens.isEmpty()) {
+				System.out.printf("%n== %s %s ==%n未配置 load.tokens，跳过%n", t.name(), t.path());
+				continue;
+			}
+			runTarget(t);
+		}
+	}
+
+	private void runTarget(Target target) throws Exception {
+		ServerPeaks peaks = new ServerPeaks();
+		ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+		if (!adminToken.isEmpty()) {
+			peaks.sample();
+			peaks.baselineThreads = peaks.jvmThreads.get();
+			sampler.scheduleAtFixedRate(peaks::sample, 500, 500, TimeUnit.MILLISECONDS);
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+		List<Future<Sample>> futures = new ArrayList<>();
+		long start = System.nanoTime();
+		for (int i = 0; i < requests; i++) {
+			String token = target.authenticated() ? tokens.get(i % tokens.size()) : null;
+			futures.add(pool.submit(() -> send(target, token)));
+		}
+		List<Sample> samples = new ArrayList<>();
+		for (Future<Sample> future : futures) {
+			samples.add(future.get());
+		}
+		double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+		pool.shutdown();
+		sampler.shutdownNow();
+
+		report(target, samples, elapsedSeconds, peaks);
+	}
+
+	private Sample send(Target target, String token) {
+		String body = target.authenticated()
+				? "{\"messages\":[{\"role\":\"user\",\"content\":" + quote(message) + "}],\"enableWebSearch\":"
+				+ webSearch + ",\"enableDeepThink\":false}"
+				: "{\"message\":" + quote(message) + ",\"history\":[],\"enableWebSearch\":" + webSearch
+				+ ",\"enableDeepThink\":false}";
+		HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(baseUrl + target.path()))
+				.timeout(Duration.ofMinutes(5))
+				.header("Content-Type", "application/json")
+				.header("Accept", "text/event-stream")
+				.POST(HttpRequest.BodyPublishers.ofString(body));
+		if (token != null) {
+			request.header("Authorization", "Bearer " + token);
+		}
+
+		long start = System.nanoTime();
+		long ttft = 0;
+		int tokenEvents = 0;
+		String outcome = "error";
+		try {
+			HttpResponse<Stream<String>> response = client.send(request.build(), HttpResponse.BodyHandlers.ofLines());
+			if (response.statusCode() != 200) {
+				response.body().close();
+				return new Sample("http " + response.statusCode(), 0, System.nanoTime() - start, 0);
+			}
+			try (Stream<String> lines = response.body()) {
+				Iterator<String> iterator = lines.iterator();
+				while (iterator.hasNext()) {
+					String line = iterator.next();
+					if (!line.startsWith("event:")) {
+						continue;
+					}
+					String event = line.substring("event:".length()).trim();
+					if ("token".equals(event) || "reasoning".equals(event)) {
+						if (ttft == 0) {
+							ttft = System.nanoTime() - start;
+						}
+						if ("token".equals(event)) {
+							tokenEvents++;
+						}
+					} else if ("complete".equals(event)) {
+						outcome = "ok";
+					} else if ("warning".equals(event) || "error".equals(event)) {
+						outcome = event;
+					}
+				}
+			}
+		} catch (Exception e) {
+			outcome = "exception";
+		}
+		return new Sample(outcome, ttft, System.nanoTime() - start, tokenEvents);
+	}
+
+	private void report(Target target, List<Sample> samples, double elapsedSeconds, ServerPeaks peaks) {
+		List<Long> ttft = new ArrayList<>();
+		List<Long> total = new ArrayList<>();
+		List<Double> tokensPerSecond = new ArrayList<>();
+		int ok = 0;
+		for (Sample sample : samples) {
+			if (!"ok".equals(sample.outcome())) {
+				continue;
+			}
+			ok++;
+			ttft.add(sample.ttftNanos());
+			total.add(sample.totalNanos());
+			if (sample.tokensPerSecond() > 0) {
+				tokensPerSecond.add(sample.tokensPerSecond());
+			}
+		}
+		Collections.sort(ttft);
+		Collections.sort(total);
+		Collections.sort(tokensPerSecond);
+
+		System.out.printf("%n== %s %s ==%n", target.name(), target.path());
+		System.out.printf("请求 %d，成功 %d，告警 %d，错误 %d，HTTP 非 200 %d，异常 %d，用时 %.1f s，吞吐 %.1f req/s%n",
+				samples.size(), ok, count(samples, "warning"), count(samples, "error"),
+				samples.stream().filter(sample -> sample.outcome().startsWith("http")).count(),
+				count(samples, "exception"), elapsedSeconds, samples.size() / elapsedSeconds);
+		if (ok > 0) {
+			System.out.printf("TTFT      p50 %6d ms   p99 %6d ms%n", millis(percentile(ttft, 50)), millis(percentile(ttft, 99)));
+			System.out.printf("总耗时    p50 %6d ms   p99 %6d ms%n", millis(percentile(total, 50)), millis(percentile(total, 99)));
+			System.out.printf("token/s   p50 %6.1f      平均 %6.1f%n", percentile(tokensPerSecond, 50),
+					tokensPerSecond.stream().mapToDouble(Double::doubleValue).average().orElse(0));
+		}
+		if (!adminToken.isEmpty()) {
+			System.out.printf("服务端    JVM 线程峰值 %d（压测前 %d），对话线程池活跃峰值 %d，SSE 连接峰值 %d%n",
+					peaks.jvmThreads.get(), peaks.baselineThreads, peaks.executorActive.get(), peaks.sseLive.get());
+		}
+	}
+
+	private static long count(List<Sample> samples, String outcome) {
+		return samples.stream().filter(sample -> outcome.equals(sample.outcome())).count();
+	}
+
+	private static <T extends Comparable<T>> T percentile(List<T> sorted, int percent) {
+		int index = (int) Math.ceil(percent / 100.0 * sorted.size()) - 1;
+		return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+	}
+
+	private static long millis(long nanos) {
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+
+	private static String quote(String value) {
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	/**
+	 * 压测期间服务端指标峰值
+	 */
+	private final class ServerPeaks {
+		final AtomicLong jvmThreads = new AtomicLong();
+		final AtomicLong executorActive = new AtomicLong();
+		final AtomicLong sseLive = new AtomicLong();
+		long baselineThreads;
+
+		void sample() {
+			try {
+				HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/api/admin/ai/stats"))
+						.timeout(Duration.ofSeconds(5))
+						.header("Authorization", "Bearer " + adminToken)
+						.GET()
+						.build();
+				String stats = client.send(request, HttpResponse.BodyHandlers.ofString()).body();
+				updateMax(jvmThreads, JVM_THREADS, stats);
+				updateMax(executorActive, EXECUTOR_ACTIVE, stats);
+				updateMax(sseLive, SSE_LIVE, stats);
+			} catch (Exception e) {
+				// 采样失败不影响压测
+			}
+		}
+
+		private void updateMax(AtomicLong peak, Pattern pattern, String stats) {
+			Matcher matcher = pattern.matcher(stats);
+			if (matcher.find()) {
+				peak.accumulateAndGet(Long.parseLong(matcher.group(1)), Math::max);
+			}
+		}
+	}
+}
@@ -0,0 +1,371 @@
+package com.bezhuang.my_little_app_backend.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本地模拟上游（压测用，不产生任何费用）
+ * 只依赖 JDK，模拟：
+ * <ul>
+ *   <li>DeepSeek / SiliconFlow 的 POST .../chat/completions：流式（SSE）和非流式，含 reasoning_content、tool_calls、usage</li>
+ *   <li>博查的 POST /v1/web-search</li>
+ * </ul>
+ * 可配置首包延迟、生成速度（token/s）、错误注入和流中途截断。应用的上游地址都来自 ai_config，
+ * 把 deepseek_base_url、siliconflow_base_url、bocha_base_url 改为 http://localhost:18080 即可，无需改代码。
+ * <p>
+ * 运行：mvn test-compile 后执行
+ * java -Dmock.port=18080 -Dmock.tokens-per-second=50 -cp target/test-classes com.bezhuang.my_little_app_backend.loadtest.MockUpstreamServer
+ * <p>
+ * 系统属性（括号内为默认值）：mock.port（18080）、mock.latency-ms 首包延迟（300）、mock.tokens-per-second（50，0 表示不限速）、
+ * mock.completion-tokens 每次回复的 token 数（120）、mock.tool-call-rate 带工具的首轮请求返回 tool_calls 的概率（0.3）、
+ * mock.error-rate 返回错误状态码的概率（0）、mock.error-status（503）、mock.abort-rate 流式回复中途截断的概率（0）、
+ * mock.search-latency-ms 搜索延迟（200）
+ */
+public final class MockUpstreamServer implements AutoCloseable {
+
+	private static final String[] WORDS = {"这是", "模拟", "上游", "生成", "的", "回答", "内容", "，", "用于", "压测", "。"};
+
+	/**
+	 * 模拟参数
+	 */
+	public record Options(int port, long latencyMs, int tokensPerSecond, int completionTokens, double toolCallRate,
+						  double errorRate, int errorStatus, double abortRate, long searchLatencyMs) {
+
+		public static Options fromSystemProperties() {
+			return new Options(
+					Integer.getInteger("mock.port", 18080),
+					Long.getLong("mock.latency-ms", 300),
+					Integer.getInteger("mock.tokens-per-second", 50),
+					Integer.getInteger("mock.completion-tokens", 120),
+					doubleProperty("mock.tool-call-rate", 0.3),
+					doubleProperty("mock.error-rate", 0),
+					Integer.getInteger("mock.error-status", 503),
+					doubleProperty("mock.abort-rate", 0),
+					Long.getLong("mock.search-latency-ms", 200));
+		}
+
+		private static double doubleProperty(String name, double defaultValue) {
+			String value = System.getProperty(name);
+			return value != null ? Double.parseDouble(value) : defaultValue;
+		}
+	}
+
+	private final Options options;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final AtomicLong chatRequests = new AtomicLong();
+	private final AtomicLong searchRequests = new AtomicLong();
+	private final AtomicLong injectedErrors = new AtomicLong();
+	private final AtomicInteger activeStreams = new AtomicInteger();
+
+	public MockUpstreamServer(Options options) throws IOException {
+		this.options = options;
+		this.server = HttpServer.create(new InetSocketAddress(options.port()), 1024);
+		AtomicInteger threadIndex = new AtomicInteger();
+		// 每个请求占用一个线程按生成速度逐块写出，模拟上游长连接
+		this.executor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "mock-upstream-" + threadIndex.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		server.setExecutor(executor);
+		server.createContext("/", this::handle);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = Options.fromSystemProperties();
+		MockUpstreamServer server = new MockUpstreamServer(options);
+		server.start();
+		System.out.printf("模拟上游已启动: http://localhost:%d （%s）%n", server.getPort(), options);
+		System.out.println("把 ai_config 中的 deepseek_base_url、siliconflow_base_url、bocha_base_url 指向该地址即可");
+		Thread.currentThread().join();
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public long getChatRequests() {
+		return chatRequests.get();
+	}
+
+	public long getSearchRequests() {
+		return searchRequests.get();
+	}
+
+	public long getInjectedErrors() {
+		return injectedErrors.get();
+	}
+
+	public int getActiveStreams() {
+		return activeStreams.get();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try (exchange) {
+			String path = exchange.getRequestURI().getPath();
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				sendJson(exchange, 405, "{\"error\":{\"message\":\"method not allowed\"}}");
+				return;
+			}
+			String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+			if (path.endsWith("/chat/completions")) {
+				chatRequests.incrementAndGet();
+				sleep(options.latencyMs());
+				if (injectError(exchange)) {
+					return;
+				}
+				chat(exchange, body);
+			} else if (path.endsWith("/v1/web-search")) {
+				searchRequests.incrementAndGet();
+				sleep(options.searchLatencyMs());
+				if (injectError(exchange)) {
+					return;
+				}
+				search(exchange, body);
+			} else {
+				sendJson(exchange, 404, "{\"error\":{\"message\":\"not found\"}}");
+			}
+		} catch (IOException e) {
+			// 客户端提前断开（取消请求、对冲落败）
+		}
+	}
+
+	private boolean injectError(HttpExchange exchange) throws IOException {
+		if (ThreadLocalRandom.current().nextDouble() >= options.errorRate()) {
+			return false;
+		}
+		injectedErrors.incrementAndGet();
+		sendJson(exchange, options.errorStatus(),
+				"{\"error\":{\"message\":\"mock injected error\",\"type\":\"server_error\"}}");
+		return true;
+	}
+
+	private void chat(HttpExchange exchange, String body) throws IOException {
+		String model = stringField(body, "model");
+		boolean thinking = body.contains("\"enable_thinking\":true") || model.contains("reasoner") || model.contains("R1");
+		String tool = chooseTool(body);
+		int promptTokens = Math.max(1, body.length() / 4);
+		if (body.contains("\"stream\":true")) {
+			streamChat(exchange, model, thinking, tool, promptTokens);
+		} else {
+			completeChat(exchange, model, thinking, tool, promptTokens);
+		}
+	}
+
+	/**
+	 * 带工具定义、且不是工具结果之后的一轮，按概率返回工具调用（开启联网搜索时调用 web_search）
+	 */
+	private String chooseTool(String body) {
+		if (!body.contains("\"tools\":") || "tool".equals(lastRole(body))
+				|| ThreadLocalRandom.current().nextDouble() >= options.toolCallRate()) {
+			return null;
+		}
+		return body.contains("\"name\":\"web_search\"") ? "web_search" : "get_current_time";
+	}
+
+	private void completeChat(HttpExchange exchange, String model, boolean thinking, String tool,
+							  int promptTokens) throws IOException {
+		int tokens = tool != null ? 10 : options.completionTokens();
+		int reasoningTokens = thinking ? tokens / 2 : 0;
+		// 非流式也按生成速度计算耗时
+		sleep(generationMillis(tokens + reasoningTokens));
+
+		StringBuilder message = new StringBuilder("{\"role\":\"assistant\",\"content\":");
+		message.append(quote(tool != null ? "" : text(tokens)));
+		if (thinking) {
+			message.append(",\"reasoning_content\":").append(quote(text(reasoningTokens)));
+		}
+		if (tool != null) {
+			message.append(",\"tool_calls\":[").append(toolCall(tool, true)).append(']');
+		}
+		message.append('}');
+		String response = "{\"id\":\"mock-" + System.nanoTime() + "\",\"object\":\"chat.completion\",\"model\":"
+				+ quote(model) + ",\"choices\":[{\"index\":0,\"message\":" + message
+				+ ",\"finish_reason\":" + quote(tool != null ? "tool_calls" : "stop") + "}],\"usage\":"
+				+ usage(promptTokens, tokens + reasoningTokens) + "}";
+		sendJson(exchange, 200, response);
+	}
+
+	private void streamChat(HttpExchange exchange, String model, boolean thinking, String tool,
+							int promptTokens) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+		exchange.sendResponseHeaders(200, 0);
+		activeStreams.incrementAndGet();
+		try {
+			OutputStream out = exchange.getResponseBody();
+			int tokens = tool != null ? 10 : options.completionTokens();
+			int reasoningTokens = thinking ? tokens / 2 : 0;
+			boolean abort = ThreadLocalRandom.current().nextDouble() < options.abortRate();
+			long interval = generationMillis(1);
+
+			writeChunk(out, model, "{\"role\":\"assistant\",\"content\":\"\"}", null);
+			for (int i = 0; i < reasoningTokens; i++) {
+				sleep(interval);
+				writeChunk(out, model, "{\"reasoning_content\":" + quote(WORDS[i % WORDS.length]) + "}", null);
+			}
+			if (tool != null) {
+				sleep(interval);
+				writeChunk(out, model, "{\"tool_calls\":[" + toolCall(tool, false) + "]}", null);
+				writeChunk(out, model, "{\"tool_calls\":[{\"index\":0,\"function\":{\"arguments\":"
+						+ quote(toolArguments(tool)) + "}}]}", null);
+				writeChunk(out, model, "{}", "tool_calls");
+			} else {
+				for (int i = 0; i < tokens; i++) {
+					if (abort && i == tokens / 2) {
+						// 中途截断：不发送 finish_reason、usage 和 [DONE]
+						return;
+					}
+					sleep(interval);
+					writeChunk(out, model, "{\"content\":" + quote(WORDS[i % WORDS.length]) + "}", null);
+				}
+				writeChunk(out, model, "{}", "stop");
+			}
+			// stream_options.include_usage：最后一个数据块只带 usage
+			writeData(out, "{\"id\":\"mock\",\"object\":\"chat.completion.chunk\",\"model\":" + quote(model)
+					+ ",\"choices\":[],\"usage\":" + usage(promptTokens, tokens + reasoningTokens) + "}");
+			writeData(out, "[DONE]");
+		} finally {
+			activeStreams.decrementAndGet();
+		}
+	}
+
+	private void search(HttpExchange exchange, String body) throws IOException {
+		String query = stringField(body, "query");
+		List<String> pages = new ArrayList<>();
+		for (int i = 1; i <= 5; i++) {
+			pages.add("{\"name\":" + quote(query + " - 模拟结果 " + i)
+					+ ",\"url\":\"https://example.com/mock/" + i + "\""
+					+ ",\"summary\":" + quote("这是关于 " + query + " 的模拟搜索摘要 " + i + "。")
+					+ ",\"siteName\":\"Mock\",\"dateLastCrawled\":\"2024-01-01T00:00:00Z\"}");
+		}
+		sendJson(exchange, 200, "{\"code\":200,\"msg\":null,\"data\":{\"webPages\":{\"value\":["
+				+ String.join(",", pages) + "]}}}");
+	}
+
+	private static void writeChunk(OutputStream out, String model, String delta, String finishReason)
+			throws IOException {
+		writeData(out, "{\"id\":\"mock\",\"object\":\"chat.completion.chunk\",\"model\":" + quote(model)
+				+ ",\"choices\":[{\"index\":0,\"delta\":" + delta + ",\"finish_reason\":"
+				+ (finishReason != null ? quote(finishReason) : "null") + "}]}");
+	}
+
+	private static void writeData(OutputStream out, String data) throws IOException {
+		out.write(("data: " + data + "\n\n").getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+
+	private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+		byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		exchange.getResponseBody().write(bytes);
+	}
+
+	/**
+	 * @param complete 非流式返回完整参数；流式首块只带 id 和函数名，参数在下一块中返回
+	 */
+	private static String toolCall(String tool, boolean complete) {
+		return "{\"index\":0,\"id\":\"call_mock_" + System.nanoTime() + "\",\"type\":\"function\",\"function\":{\"name\":"
+				+ quote(tool) + ",\"arguments\":" + quote(complete ? toolArguments(tool) : "") + "}}";
+	}
+
+	private static String toolArguments(String tool) {
+		return "web_search".equals(tool) ? "{\"query\":\"模拟搜索\"}" : "{}";
+	}
+
+	private static String usage(int promptTokens, int completionTokens) {
+		return "{\"prompt_tokens\":" + promptTokens + ",\"completion_tokens\":" + completionTokens
+				+ ",\"total_tokens\":" + (promptTokens + completionTokens)
+				+ ",\"prompt_cache_hit_tokens\":0,\"prompt_cache_miss_tokens\":" + promptTokens + "}";
+	}
+
+	private long generationMillis(int tokens) {
+		return options.tokensPerSecond() > 0 ? tokens * 1000L / options.tokensPerSecond() : 0;
+	}
+
+	private static String text(int tokens) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < tokens; i++) {
+			text.append(WORDS[i % WORDS.length]);
+		}
+		return text.toString();
+	}
+
+	/**
+	 * 请求体由 Jackson 紧凑输出，按 "name":"value" 取简单字符串字段即可
+	 */
+	private static String stringField(String json, String name) {
+		String key = "\"" + name + "\":\"";
+		int start = json.indexOf(key);
+		if (start < 0) {
+			return "";
+		}
+		start += key.length();
+		int end = start;
+		while (end < json.length() && (json.charAt(end) != '"' || json.charAt(end - 1) == '\\')) {
+			end++;
+		}
+		return json.substring(start, end);
+	}
+
+	private static String lastRole(String json) {
+		int start = json.lastIndexOf("\"role\":\"");
+		return start < 0 ? "" : stringField(json.substring(start), "role");
+	}
+
+	private static String quote(String value) {
+		StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '"' -> quoted.append("\\\"");
+				case '\\' -> quoted.append("\\\\");
+				case '\n' -> quoted.append("\\n");
+				case '\r' -> quoted.append("\\r");
+				case '\t' -> quoted.append("\\t");
+				default -> {
+					if (c < 0x20) {
+						quoted.append(String.format("\\u%04x", (int) c));
+					} else {
+						quoted.append(c);
+					}
+				}
+			}
+		}
+		return quoted.append('"').toString();
+	}
+
+	private static void sleep(long millis) {
+		if (millis <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
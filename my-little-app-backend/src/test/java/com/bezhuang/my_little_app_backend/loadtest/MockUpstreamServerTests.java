@@ -0,0 +1,95 @@
+package com.bezhuang.my_little_app_backend.loadtest;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 模拟上游：流式 / 非流式对话、工具调用、思考过程、usage、博查搜索和错误注入
+ */
+class MockUpstreamServerTests {
+
+	private final HttpClient client = HttpClient.newHttpClient();
+
+	@Test
+	void streamsToolCallThenAnswerAfterToolResult() throws Exception {
+		try (MockUpstreamServer server = start(options(1.0, 0))) {
+			String tools = ",\"tools\":[{\"type\":\"function\",\"function\":{\"name\":\"web_search\"}}]";
+			HttpResponse<String> first = post(server, "/chat/completions", "{\"model\":\"deepseek-chat\","
+					+ "\"messages\":[{\"role\":\"user\",\"content\":\"你好\"}],\"stream\":true" + tools + "}");
+
+			assertEquals(200, first.statusCode());
+			assertTrue(first.headers().firstValue("Content-Type").orElse("").startsWith("text/event-stream"));
+			assertTrue(first.body().contains("\"name\":\"web_search\""));
+			assertTrue(first.body().contains("\"finish_reason\":\"tool_calls\""));
+			assertTrue(first.body().contains("\"usage\":{\"prompt_tokens\":"));
+			assertTrue(first.body().endsWith("data: [DONE]\n\n"));
+
+			HttpResponse<String> second = post(server, "/v1/chat/completions", "{\"model\":\"deepseek-chat\","
+					+ "\"messages\":[{\"role\":\"user\",\"content\":\"你好\"},{\"role\":\"tool\",\"content\":\"结果\"}],"
+					+ "\"stream\":true" + tools + "}");
+
+			assertFalse(second.body().contains("tool_calls"), "工具结果之后直接回答");
+			assertTrue(second.body().contains("\"delta\":{\"content\":"));
+			assertTrue(second.body().contains("\"finish_reason\":\"stop\""));
+		}
+	}
+
+	@Test
+	void completesWithReasoningAndUsage() throws Exception {
+		try (MockUpstreamServer server = start(options(0, 0))) {
+			HttpResponse<String> response = post(server, "/chat/completions", "{\"model\":\"deepseek-reasoner\","
+					+ "\"messages\":[{\"role\":\"user\",\"content\":\"你好\"}],\"stream\":false}");
+
+			assertEquals(200, response.statusCode());
+			assertTrue(response.body().contains("\"reasoning_content\":"));
+			assertTrue(response.body().contains("\"completion_tokens\":30"), "回复 20 个 token + 思考 10 个 token");
+			assertTrue(response.body().contains("\"finish_reason\":\"stop\""));
+		}
+	}
+
+	@Test
+	void answersWebSearchAndInjectsErrors() throws Exception {
+		try (MockUpstreamServer server = start(options(0, 0))) {
+			HttpResponse<String> response = post(server, "/v1/web-search", "{\"query\":\"天气\",\"count\":5}");
+
+			assertEquals(200, response.statusCode());
+			assertTrue(response.body().startsWith("{\"code\":200"));
+			assertTrue(response.body().contains("\"webPages\":{\"value\":[{\"name\":\"天气 - 模拟结果 1\""));
+			assertEquals(1, server.getSearchRequests());
+		}
+
+		try (MockUpstreamServer server = start(options(0, 1.0))) {
+			HttpResponse<String> response = post(server, "/chat/completions", "{\"model\":\"deepseek-chat\","
+					+ "\"messages\":[],\"stream\":true}");
+
+			assertEquals(503, response.statusCode());
+			assertEquals(1, server.getInjectedErrors());
+		}
+	}
+
+	private static MockUpstreamServer.Options options(double toolCallRate, double errorRate) {
+		return new MockUpstreamServer.Options(0, 0, 0, 20, toolCallRate, errorRate, 503, 0, 0);
+	}
+
+	private static MockUpstreamServer start(MockUpstreamServer.Options options) throws Exception {
+		MockUpstreamServer server = new MockUpstreamServer(options);
+		server.start();
+		return server;
+	}
+
+	private HttpResponse<String> post(MockUpstreamServer server, String path, String body) throws Exception {
+		HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + path))
+				.header("Content-Type", "application/json")
+				.POST(HttpRequest.BodyPublishers.ofString(body))
+				.build();
+		return client.send(request, HttpResponse.BodyHandlers.ofString());
+	}
+}
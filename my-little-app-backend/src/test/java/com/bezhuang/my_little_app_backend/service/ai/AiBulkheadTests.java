@@ -0,0 +1,162 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import com.bezhuang.my_little_app_backend.entity.AiConfig;
+import com.bezhuang.my_little_app_backend.mapper.AiConfigMapper;
+import com.bezhuang.my_little_app_backend.service.AiConfigService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 对话准入控制：单用户上限立即拒绝、全局上限排队、队列满快速拒绝、排队超时、配置即时生效、在途数和拒绝次数输出为指标
+ */
+class AiBulkheadTests {
+
+	private final InMemoryConfig config = new InMemoryConfig();
+	private final AiConfigService aiConfigService = new AiConfigService(config, event -> { });
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	private final AiBulkhead bulkhead = new AiBulkhead(aiConfigService, new AiMetrics(registry));
+
+	@Test
+	void rejectsSecondChatOfSameUserImmediately() {
+		configure(10, 1, 5, 2000);
+
+		AiBulkhead.Permit first = bulkhead.acquire(LlmProvider.DEEPSEEK, "1");
+		long start = System.nanoTime();
+		AiBulkhead.Permit second = bulkhead.acquire(LlmProvider.DEEPSEEK, "1");
+
+		assertTrue(first.isGranted());
+		assertFalse(second.isGranted());
+		assertEquals(AiBulkhead.USER_BUSY_MESSAGE, second.getMessage());
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 500, "单用户超限不排队");
+		assertTrue(bulkhead.acquire(LlmProvider.DEEPSEEK, "2").isGranted(), "其他用户不受影响");
+
+		assertEquals(2, registry.get("ai.admission.in_flight").tag("provider", "deepseek").gauge().value());
+		assertEquals(1, registry.get("ai.admission.rejections").tags("provider", "deepseek", "reason", "user")
+				.functionCounter().count());
+
+		first.release();
+		first.release();
+		assertEquals(1, bulkhead.getInFlight(), "重复归还只计一次");
+		assertEquals(1, registry.get("ai.admission.in_flight").tag("provider", "deepseek").gauge().value());
+		assertTrue(bulkhead.acquire(LlmProvider.DEEPSEEK, "1").isGranted());
+	}
+
+	@Test
+	void queuesUntilSlotFreesAndRejectsWhenQueueIsFull() throws Exception {
+		configure(1, 2, 1, 5000);
+		AiBulkhead.Permit running = bulkhead.acquire(LlmProvider.DEEPSEEK, "1");
+
+		CompletableFuture<AiBulkhead.Permit> waiting = CompletableFuture.supplyAsync(
+				() -> bulkhead.acquire(LlmProvider.DEEPSEEK, "2"));
+		awaitQueued(1);
+
+		long start = System.nanoTime();
+		AiBulkhead.Permit overflow = bulkhead.acquire(LlmProvider.DEEPSEEK, "3");
+		assertFalse(overflow.isGranted());
+		assertEquals(AiChatExecutor.BUSY_MESSAGE, overflow.getMessage());
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 500, "队列已满时立即拒绝");
+
+		running.release();
+		assertTrue(waiting.get(2, TimeUnit.SECONDS).isGranted());
+		assertEquals(1, bulkhead.getInFlight());
+		assertEquals(0, bulkhead.getQueued());
+	}
+
+	@Test
+	void rejectsAfterQueueWaitExpires() {
+		configure(1, 2, 5, 50);
+		bulkhead.acquire(LlmProvider.SILICONFLOW, "10.0.0.1");
+
+		AiBulkhead.Permit timedOut = bulkhead.acquire(LlmProvider.SILICONFLOW, "10.0.0.2");
+
+		assertFalse(timedOut.isGranted());
+		assertEquals(0, bulkhead.getQueued());
+		@SuppressWarnings("unchecked")
+		Map<String, Object> stats = (Map<String, Object>) bulkhead.getStats().get(LlmProvider.SILICONFLOW);
+		assertEquals(1L, stats.get("rejectedTimeout"));
+		assertTrue(bulkhead.acquire(LlmProvider.DEEPSEEK, "10.0.0.2").isGranted(), "服务商之间互不影响");
+	}
+
+	@Test
+	void raisingLimitAdmitsQueuedRequest() throws Exception {
+		configure(1, 2, 5, 5000);
+		bulkhead.acquire(LlmProvider.DEEPSEEK, "1");
+		CompletableFuture<AiBulkhead.Permit> waiting = CompletableFuture.supplyAsync(
+				() -> bulkhead.acquire(LlmProvider.DEEPSEEK, "2"));
+		awaitQueued(1);
+
+		configure(2, 2, 5, 5000);
+		bulkhead.onConfigChanged(null);
+
+		assertTrue(waiting.get(2, TimeUnit.SECONDS).isGranted());
+		assertEquals(2, bulkhead.getInFlight());
+	}
+
+	private void configure(int maxConcurrent, int perUser, int queueSize, int waitMs) {
+		for (String provider : List.of(LlmProvider.DEEPSEEK, LlmProvider.SILICONFLOW)) {
+			config.values.put(provider + "_max_concurrent", String.valueOf(maxConcurrent));
+			config.values.put(provider + "_max_concurrent_per_user", String.valueOf(perUser));
+			config.values.put(provider + "_admission_queue_size", String.valueOf(queueSize));
+			config.values.put(provider + "_admission_queue_wait_ms", String.valueOf(waitMs));
+		}
+		aiConfigService.reload();
+	}
+
+	private void awaitQueued(int expected) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 2000;
+		while (bulkhead.getQueued() < expected && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(expected, bulkhead.getQueued());
+	}
+
+	/**
+	 * 内存中的 ai_config 表
+	 */
+	private static class InMemoryConfig implements AiConfigMapper {
+		private final Map<String, String> values = new LinkedHashMap<>();
+
+		@Override
+		public AiConfig selectByConfigKey(String configKey) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public List<AiConfig> selectAll() {
+			List<AiConfig> rows = new ArrayList<>();
+			values.forEach((key, value) -> {
+				AiConfig row = new AiConfig();
+				row.setConfigKey(key);
+				row.setConfigValue(value);
+				rows.add(row);
+			});
+			return rows;
+		}
+
+		@Override
+		public String selectFingerprint() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int updateConfigValue(String configKey, String configValue) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int insert(AiConfig aiConfig) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * AI 对话线程池：上游未返回时不占用线程，同样的线程数能同时服务更多对话；线程和队列都满时拒绝
+ */
+class AiChatExecutorTests {
+
+	private static final int THREADS = 4;
+	private static final int CHATS = 40;
+
+	@Test
+	void releasesThreadsWhileUpstreamIsBlocked() throws InterruptedException {
+		AiChatExecutor executor = new AiChatExecutor(THREADS, THREADS, CHATS, 60);
+		// 模拟的上游：所有对话都在等它，直到测试放行
+		Sinks.Empty<Void> upstream = Sinks.empty();
+		CountDownLatch started = new CountDownLatch(CHATS);
+		CountDownLatch done = new CountDownLatch(CHATS);
+
+		try {
+			for (int i = 0; i < CHATS; i++) {
+				// 与 chatStream 相同的结构：线程池中准备请求 → 等待上游（不占线程）→ 线程池中收尾
+				Mono.fromRunnable(started::countDown)
+						.subscribeOn(executor.scheduler())
+						.then(upstream.asMono())
+						.publishOn(executor.scheduler())
+						.doFinally(signal -> done.countDown())
+						.subscribe();
+			}
+
+			// 线程被等待上游的对话占住时，只有前 THREADS 个对话能开始
+			assertTrue(started.await(10, TimeUnit.SECONDS), "上游未返回时所有对话都应已开始");
+			assertTrue(awaitIdle(executor), "等待上游期间不应有线程被占用");
+			assertEquals(CHATS, done.getCount(), "上游未返回前没有对话结束");
+
+			upstream.tryEmitEmpty();
+			assertTrue(done.await(10, TimeUnit.SECONDS), "上游返回后所有对话都应结束");
+			assertTrue(executor.getLargestPoolSize() <= THREADS);
+		} finally {
+			executor.destroy();
+		}
+	}
+
+	@Test
+	void rejectsWhenSaturated() throws InterruptedException {
+		AiChatExecutor executor = new AiChatExecutor(1, 1, 1, 60);
+		CountDownLatch release = new CountDownLatch(1);
+		try {
+			// 占满唯一的线程和唯一的队列位置
+			executor.supplyAsync(() -> awaitQuietly(release));
+			executor.supplyAsync(() -> awaitQuietly(release));
+
+			assertThrows(RejectedExecutionException.class, () -> executor.supplyAsync(() -> true));
+			assertEquals(1, executor.getRejectedCount());
+		} finally {
+			release.countDown();
+			executor.destroy();
+		}
+	}
+
+	/**
+	 * 等待线程池中的任务全部执行完（getActiveCount 是近似值，短暂轮询）
+	 */
+	private static boolean awaitIdle(AiChatExecutor executor) throws InterruptedException {
+		for (int i = 0; i < 100; i++) {
+			if (executor.getActiveCount() == 0 && executor.getQueueSize() == 0) {
+				return true;
+			}
+			Thread.sleep(50);
+		}
+		return false;
+	}
+
+	private static boolean awaitQuietly(CountDownLatch latch) {
+		try {
+			return latch.await(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * AI 对话指标：首个 token 延迟和轮数每次对话只记录一次、生成速度按路由时间计算、未知工具名不进入标签
+ */
+class AiMetricsTests {
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	private final AiMetrics metrics = new AiMetrics(registry);
+
+	@Test
+	void recordsTtftAndRoundsOncePerChat() {
+		AiMetrics.ChatObservation chat = metrics.startChat(LlmProvider.DEEPSEEK);
+		chat.onRound();
+		chat.onToken("deepseek-chat");
+		chat.onToken("deepseek-chat");
+		chat.onRound();
+		chat.finish();
+		chat.finish();
+
+		Timer ttft = registry.find("ai.chat.ttft").tags("provider", "deepseek", "model", "deepseek-chat").timer();
+		assertEquals(1, ttft.count());
+		DistributionSummary rounds = registry.find("ai.chat.rounds").tag("provider", "deepseek").summary();
+		assertEquals(1, rounds.count());
+		assertEquals(2, rounds.totalAmount());
+
+		AiMetrics.ChatObservation rejected = metrics.startChat(LlmProvider.DEEPSEEK);
+		rejected.finish();
+		assertEquals(1, rounds.count(), "未调用上游的对话不计入轮数");
+	}
+
+	@Test
+	void computesTokensPerSecondFromRoute() {
+		LlmRouter.Route route = new LlmRouter.Route();
+		metrics.recordGeneration(route, 100, false);
+		assertNull(registry.find("ai.upstream.tokens.per.second").summary(), "未响应的路由不记录");
+
+		route.serve(LlmProvider.SILICONFLOW, "Qwen/Qwen3-8B", RouteReason.FAILOVER,
+				System.nanoTime() - TimeUnit.SECONDS.toNanos(2));
+		metrics.recordGeneration(route, 100, false);
+
+		DistributionSummary speed = registry.find("ai.upstream.tokens.per.second")
+				.tags("provider", "siliconflow", "model", "Qwen/Qwen3-8B").summary();
+		assertEquals(1, speed.count());
+		assertTrue(speed.max() > 45 && speed.max() <= 50, "100 token / 2 秒");
+	}
+
+	@Test
+	void mapsUnknownToolNames() {
+		metrics.recordToolCall("web_search", true, false, TimeUnit.MILLISECONDS.toNanos(300));
+		metrics.recordToolCall("rm -rf", false, true, TimeUnit.MILLISECONDS.toNanos(1));
+
+		assertEquals(1, registry.find("ai.tool.latency").tags("tool", "web_search", "outcome", "failure").timer()
+				.count());
+		assertEquals(1, registry.find("ai.tool.latency").tags("tool", "unknown", "outcome", "success").timer()
+				.count());
+	}
+}
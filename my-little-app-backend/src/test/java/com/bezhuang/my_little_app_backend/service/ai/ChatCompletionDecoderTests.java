@@ -0,0 +1,86 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * 流式解码器：与 JsonNode 树解析结果一致（分配量对比见 ChatCompletionDecoderBenchmark）
+ */
+class ChatCompletionDecoderTests {
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	@Test
+	void decodesCompletionLikeTreeParsing() throws Exception {
+		byte[] response = completionResponse();
+		ChatCompletionDecoder.ChatCompletion completion = ChatCompletionDecoder.decode(response);
+
+		JsonNode message = objectMapper.readTree(response).path("choices").get(0).path("message");
+		assertEquals(message.path("content").asText(""), completion.content());
+		assertEquals(message.path("reasoning_content").asText(), completion.reasoningContent());
+		assertEquals(1200, completion.usage().promptTokens());
+		assertEquals(850, completion.usage().completionTokens());
+		assertEquals(1024, completion.usage().promptCacheHitTokens());
+		assertEquals(176, completion.usage().promptCacheMissTokens());
+		assertEquals("tool_calls", completion.finishReason());
+		assertEquals(objectMapper.convertValue(message.path("tool_calls"), new TypeReference<List<Map<String, Object>>>() { }),
+				completion.toolCallMaps());
+	}
+
+	@Test
+	void decodesStreamChunk() throws Exception {
+		String chunk = "{\"id\":\"c1\",\"object\":\"chat.completion.chunk\",\"choices\":[{\"index\":0,\"delta\":"
+				+ "{\"content\":null,\"tool_calls\":[{\"index\":1,\"function\":{\"arguments\":\"{\\\"q\"}}]},"
+				+ "\"finish_reason\":null}],\"usage\":null}";
+		ChatCompletionDecoder.ChatCompletion decoded = ChatCompletionDecoder.decode(chunk);
+
+		assertNull(decoded.content());
+		assertNull(decoded.finishReason());
+		assertNull(decoded.usage());
+		assertEquals(1, decoded.toolCalls().size());
+		assertEquals(1, decoded.toolCalls().get(0).index());
+		assertNull(decoded.toolCalls().get(0).id());
+		assertEquals("{\"q", decoded.toolCalls().get(0).arguments());
+	}
+
+	/**
+	 * 真实大小的非流式响应：约 4KB 正文、2KB 思考过程、两个工具调用
+	 */
+	private byte[] completionResponse() throws Exception {
+		Map<String, Object> message = new LinkedHashMap<>();
+		message.put("role", "assistant");
+		message.put("content", "根据查询结果，今天上海多云转晴，气温 18 到 25 度，适合出行。".repeat(120));
+		message.put("reasoning_content", "用户想知道天气和时间，需要分别调用两个工具。".repeat(90));
+		message.put("tool_calls", List.of(
+				Map.of("id", "call_1", "type", "function",
+						"function", Map.of("name", "web_search", "arguments", "{\"query\":\"上海 今天 天气\"}")),
+				Map.of("id", "call_2", "type", "function",
+						"function", Map.of("name", "get_current_time", "arguments", "{\"timezone\":\"Asia/Shanghai\"}"))));
+
+		Map<String, Object> choice = new LinkedHashMap<>();
+		choice.put("index", 0);
+		choice.put("message", message);
+		choice.put("logprobs", null);
+		choice.put("finish_reason", "tool_calls");
+
+		Map<String, Object> response = new LinkedHashMap<>();
+		response.put("id", "0f4e3c9a-6d7b-4b8e-9a61-2f1c5e7d8b90");
+		response.put("object", "chat.completion");
+		response.put("created", 1760000000);
+		response.put("model", "deepseek-chat");
+		response.put("choices", List.of(choice));
+		response.put("usage", Map.of("prompt_tokens", 1200, "completion_tokens", 850, "total_tokens", 2050,
+				"prompt_cache_hit_tokens", 1024, "prompt_cache_miss_tokens", 176));
+		response.put("system_fingerprint", "fp_8802369eaa_prod0623");
+		return objectMapper.writeValueAsBytes(response);
+	}
+}
@@ -0,0 +1,163 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 上下文压缩：去掉之前各轮的工具调用过程、截断较早的工具结果、超出预算时丢弃最早的轮次并可选生成摘要
+ */
+class ContextCompactorTests {
+
+	private final ContextCompactor compactor = new ContextCompactor(null);
+
+	@Test
+	void keepsShortConversationUntouched() {
+		List<Map<String, Object>> messages = conversation(3, 20);
+
+		ContextCompactor.Result result = compactor.compact("deepseek", messages, null, 16000, 2000, false).block();
+
+		assertSame(messages, result.messages());
+		assertEquals(0, result.savedTokens());
+	}
+
+	@Test
+	void dropsToolCallsOfPreviousTurnsAndTruncatesOlderToolOutputs() {
+		List<Map<String, Object>> messages = new ArrayList<>();
+		messages.add(message("system", "你是一个智能助手。"));
+		messages.add(message("user", "今天上海天气怎么样？"));
+		messages.add(toolCall("call_1"));
+		messages.add(toolResult("call_1", "搜索结果".repeat(1000)));
+		messages.add(message("assistant", "多云，18 到 25 度。"));
+		messages.add(message("user", "明天呢？"));
+		messages.add(toolCall("call_2"));
+		messages.add(toolResult("call_2", "较早的搜索结果".repeat(500)));
+		messages.add(toolCall("call_3"));
+		messages.add(toolResult("call_3", "最新的搜索结果".repeat(500)));
+		int originalSize = messages.size();
+
+		ContextCompactor.Result result = compactor.compact("deepseek", messages, null, 16000, 100, false).block();
+
+		List<Map<String, Object>> compacted = result.messages();
+		assertEquals(originalSize, messages.size(), "不修改传入的消息列表");
+		assertSame(messages.get(0), compacted.get(0), "系统消息保持同一对象");
+		assertEquals(List.of("system", "user", "assistant", "user", "assistant", "tool", "assistant", "tool"),
+				compacted.stream().map(m -> m.get("role")).toList());
+		assertTrue(compacted.get(5).get("content").toString().length() < 200, "本轮较早的工具结果被截断");
+		assertSame(messages.get(9), compacted.get(7), "最近一组工具结果保持完整");
+		assertTrue(result.savedTokens() > 0);
+	}
+
+	@Test
+	void dropsOldestTurnsBeyondBudgetAndCachesSummary() {
+		List<Map<String, Object>> messages = conversation(10, 200);
+		long budget = ContextCompactor.estimateTokens(messages) / 2;
+		AtomicInteger calls = new AtomicInteger();
+		ContextCompactor.Summarizer summarizer = request -> {
+			calls.incrementAndGet();
+			assertTrue(request.get(1).get("content").toString().contains("问题 1"));
+			return Mono.just("用户询问了前几个问题。");
+		};
+
+		ContextCompactor.Result first = compactor.compact("deepseek", messages, summarizer, (int) budget, 2000, true)
+				.block();
+		ContextCompactor.Result second = compactor.compact("deepseek", messages, summarizer, (int) budget, 2000, true)
+				.block();
+
+		List<Map<String, Object>> compacted = first.messages();
+		assertTrue(ContextCompactor.estimateTokens(compacted) <= budget);
+		assertSame(messages.get(0), compacted.get(0));
+		assertEquals("system", compacted.get(1).get("role"));
+		assertTrue(compacted.get(1).get("content").toString().endsWith("用户询问了前几个问题。"));
+		assertEquals("user", compacted.get(2).get("role"));
+		assertSame(messages.get(messages.size() - 1), compacted.get(compacted.size() - 1), "本轮用户消息始终保留");
+		assertEquals(1, calls.get(), "相同的丢弃内容只生成一次摘要");
+		assertEquals(first.messages(), second.messages());
+		assertEquals(1, compactor.getSummaryCacheHits());
+	}
+
+	@Test
+	void dropsTurnsInBlocksSoPrefixStaysStableAcrossTurns() {
+		List<Map<String, Object>> previous = conversation(12, 200);
+		List<Map<String, Object>> next = conversation(13, 200);
+
+		List<Map<String, Object>> previousSent = compactor.compact("deepseek", previous, null, 1000, 2000, false)
+				.block().messages();
+		List<Map<String, Object>> nextSent = compactor.compact("deepseek", next, null, 1000, 2000, false)
+				.block().messages();
+
+		assertEquals("问题 9", previousSent.get(1).get("content"));
+		assertEquals(previousSent.subList(0, previousSent.size() - 1), nextSent.subList(0, previousSent.size() - 1),
+				"新一轮请求以上一轮请求的历史为前缀");
+	}
+
+	@Test
+	void dropsTurnsWithoutSummaryWhenSummarizerFails() {
+		List<Map<String, Object>> messages = conversation(10, 200);
+		long budget = ContextCompactor.estimateTokens(messages) / 2;
+
+		ContextCompactor.Result result = compactor.compact("deepseek", messages,
+				request -> Mono.error(new IllegalStateException("上游超时")), (int) budget, 2000, true).block();
+
+		assertTrue(ContextCompactor.estimateTokens(result.messages()) <= budget);
+		assertEquals("user", result.messages().get(1).get("role"));
+		assertEquals(1, compactor.getSummaryFailures());
+	}
+
+	@Test
+	void dropsTurnsWithoutSummaryWhenSummarizerDeclines() {
+		List<Map<String, Object>> messages = conversation(10, 200);
+		long budget = ContextCompactor.estimateTokens(messages) / 2;
+
+		// 剩余配额不足以生成摘要时摘要器返回空
+		ContextCompactor.Result result = compactor.compact("deepseek", messages, request -> Mono.empty(),
+				(int) budget, 2000, true).block();
+
+		assertTrue(ContextCompactor.estimateTokens(result.messages()) <= budget);
+		assertEquals("user", result.messages().get(1).get("role"));
+		assertEquals(0, compactor.getSummaryFailures());
+	}
+
+	/**
+	 * 系统消息 + rounds 轮问答 + 本轮用户消息，每条回复约 replyLength 个汉字
+	 */
+	private static List<Map<String, Object>> conversation(int rounds, int replyLength) {
+		List<Map<String, Object>> messages = new ArrayList<>();
+		messages.add(message("system", "你是一个智能助手。"));
+		for (int i = 1; i <= rounds; i++) {
+			messages.add(message("user", "问题 " + i));
+			messages.add(message("assistant", "回答".repeat(replyLength / 2)));
+		}
+		messages.add(message("user", "最后一个问题"));
+		return messages;
+	}
+
+	private static Map<String, Object> message(String role, String content) {
+		Map<String, Object> message = new LinkedHashMap<>();
+		message.put("role", role);
+		message.put("content", content);
+		return message;
+	}
+
+	private static Map<String, Object> toolCall(String id) {
+		Map<String, Object> message = message("assistant", "");
+		message.put("tool_calls", List.of(Map.of("id", id, "type", "function",
+				"function", Map.of("name", "web_search", "arguments", "{\"query\":\"上海天气\"}"))));
+		return message;
+	}
+
+	private static Map<String, Object> toolResult(String id, String content) {
+		Map<String, Object> message = message("tool", content);
+		message.put("tool_call_id", id);
+		return message;
+	}
+}
@@ -0,0 +1,257 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import com.bezhuang.my_little_app_backend.entity.AiConversation;
+import com.bezhuang.my_little_app_backend.entity.AiMessage;
+import com.bezhuang.my_little_app_backend.mapper.AiConversationMapper;
+import com.bezhuang.my_little_app_backend.mapper.AiMessageMapper;
+import com.bezhuang.my_little_app_backend.service.CacheService;
+import com.bezhuang.my_little_app_backend.service.ConversationHistoryService;
+import com.bezhuang.my_little_app_backend.service.impl.NoOpCacheServiceImpl;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 服务端对话存储：历史按轮保存、只允许所属用户访问、本地容量有界、登录用户的对话可从数据库恢复、
+ * 多实例共享 Redis 时轮次不丢失
+ */
+class ConversationStoreTests {
+
+	private final InMemoryMessages messages = new InMemoryMessages();
+	private final InMemoryConversations conversations = new InMemoryConversations();
+	private final ConversationHistoryService historyService = new ConversationHistoryService(conversations, messages);
+
+	@Test
+	void appendsTurnsAndCountsStoredRounds() {
+		ConversationStore store = new ConversationStore(new NoOpCacheServiceImpl(), historyService, 10, 60);
+		Conversation conversation = store.create(1L);
+
+		store.appendTurn(conversation, "今天上海天气怎么样？", "多云，18 到 25 度。");
+		store.appendTurn(conversation, "明天呢？", "小雨。");
+
+		List<Map<String, Object>> history = store.get(conversation.getId(), 1L).getHistory();
+		assertEquals(4, history.size());
+		assertEquals("user", history.get(2).get("role"));
+		assertEquals("明天呢？", history.get(2).get("content"));
+		assertEquals(2, conversation.getUserRounds());
+		assertEquals("今天上海天气怎么样？", conversation.getTitle());
+
+		// 返回的是副本，调用方追加本轮消息不影响已保存的历史
+		history.add(Map.of("role", "user", "content", "后天呢？"));
+		assertEquals(2, conversation.getUserRounds());
+	}
+
+	@Test
+	void onlyOwnerCanAccess() {
+		ConversationStore store = new ConversationStore(new NoOpCacheServiceImpl(), historyService, 10, 60);
+		Conversation owned = store.create(1L);
+		Conversation anonymous = store.create(null);
+
+		assertSame(owned, store.get(owned.getId(), 1L));
+		assertNull(store.get(owned.getId(), 2L));
+		assertNull(store.get(owned.getId(), null));
+		assertSame(anonymous, store.get(anonymous.getId(), null));
+		assertNull(store.get(anonymous.getId(), 1L));
+		assertNull(anonymous.getRecordId());
+	}
+
+	@Test
+	void evictsLeastRecentlyUsedBeyondCapacity() {
+		ConversationStore store = new ConversationStore(new NoOpCacheServiceImpl(), historyService, 2, 60);
+		Conversation first = store.create(null);
+		Conversation second = store.create(null);
+		assertNotNull(store.get(first.getId(), null));
+
+		store.create(null);
+
+		assertEquals(2, store.size());
+		assertNotNull(store.get(first.getId(), null));
+		assertNull(store.get(second.getId(), null));
+	}
+
+	@Test
+	void restoresEvictedConversationFromCompressedHistory() {
+		ConversationStore store = new ConversationStore(new NoOpCacheServiceImpl(), historyService, 1, 60);
+		String reply = "根据查询结果，今天上海多云转晴，气温 18 到 25 度，适合出行。".repeat(20);
+		Conversation conversation = store.create(1L);
+		store.appendTurn(conversation, "今天上海天气怎么样？", reply);
+		store.create(1L);
+
+		Conversation restored = store.get(conversation.getId(), 1L);
+
+		assertNotSame(conversation, restored);
+		assertEquals(conversation.getHistory(), restored.getHistory());
+		assertEquals(1, restored.getUserRounds());
+		assertEquals("今天上海天气怎么样？", restored.getTitle());
+		AiMessage stored = messages.rows.get(1);
+		assertTrue(stored.getContent().length < reply.getBytes(StandardCharsets.UTF_8).length / 4,
+				"重复度高的回复压缩后应明显变小");
+	}
+
+	@Test
+	void pagesMessagesByKeyset() {
+		ConversationStore store = new ConversationStore(new NoOpCacheServiceImpl(), historyService, 10, 60);
+		Conversation conversation = store.create(1L);
+		for (int i = 1; i <= 3; i++) {
+			store.appendTurn(conversation, "问题 " + i, "回答 " + i);
+		}
+
+		Map<String, Object> latest = historyService.listMessages(conversation.getRecordId(), null, 4);
+		List<?> latestList = (List<?>) latest.get("list");
+		assertEquals(4, latestList.size());
+		assertEquals("问题 2", ((Map<?, ?>) latestList.get(0)).get("content"));
+		assertEquals("回答 3", ((Map<?, ?>) latestList.get(3)).get("content"));
+
+		Map<String, Object> older = historyService.listMessages(conversation.getRecordId(),
+				(Long) latest.get("nextBeforeId"), 4);
+		List<?> olderList = (List<?>) older.get("list");
+		assertEquals(2, olderList.size());
+		assertEquals("问题 1", ((Map<?, ?>) olderList.get(0)).get("content"));
+		assertNull(older.get("nextBeforeId"));
+	}
+
+	@Test
+	void nodesSharingRedisSeeEachOthersTurns() {
+		CacheService redis = new InMemoryRedis();
+		ConversationStore nodeA = new ConversationStore(redis, historyService, 10, 60);
+		ConversationStore nodeB = new ConversationStore(redis, historyService, 10, 60);
+		Conversation created = nodeA.create(1L);
+
+		// 第一轮落在 B，B 从 Redis 取回对话
+		nodeB.appendTurn(nodeB.get(created.getId(), 1L), "今天上海天气怎么样？", "多云。");
+		// 第二轮回到 A：A 本地仍有创建时的副本，但必须看到 B 追加的一轮
+		Conversation onA = nodeA.get(created.getId(), 1L);
+		assertEquals(2, onA.getHistory().size());
+		nodeA.appendTurn(onA, "明天呢？", "小雨。");
+		// 第三轮再到 B：B 本地的旧副本不能覆盖 A 刚写入的一轮
+		Conversation onB = nodeB.get(created.getId(), 1L);
+		assertEquals(2, onB.getUserRounds());
+		nodeB.appendTurn(onB, "后天呢？", "晴。");
+
+		List<Map<String, Object>> history = nodeA.get(created.getId(), 1L).getHistory();
+		assertEquals(6, history.size());
+		assertEquals("明天呢？", history.get(2).get("content"));
+		assertEquals("后天呢？", history.get(4).get("content"));
+		assertNull(nodeB.get(created.getId(), 2L));
+	}
+
+	/**
+	 * 内存中的 Redis：与真实 Redis 一样，每次读写的都是独立副本而不是同一个对象
+	 */
+	private static class InMemoryRedis implements CacheService {
+		private final Map<String, Object> values = new ConcurrentHashMap<>();
+
+		@Override
+		public <T> T get(String key, Class<T> type) {
+			Object value = values.get(key);
+			return value == null ? null : type.cast(((Conversation) value).copy());
+		}
+
+		@Override
+		public <T> void set(String key, T value, long timeoutSeconds) {
+			values.put(key, ((Conversation) value).copy());
+		}
+
+		@Override
+		public void delete(String key) {
+			values.remove(key);
+		}
+
+		@Override
+		public boolean exists(String key) {
+			return values.containsKey(key);
+		}
+
+		@Override
+		public <T> T getOrLoad(String key, Class<T> type, DataLoader<T> dataLoader) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean isAvailable() {
+			return true;
+		}
+	}
+
+	/**
+	 * 内存中的 ai_conversation 表（只实现测试用到的查询）
+	 */
+	private static class InMemoryConversations implements AiConversationMapper {
+		private final List<AiConversation> rows = new ArrayList<>();
+
+		@Override
+		public int insert(AiConversation conversation) {
+			conversation.setId((long) rows.size() + 1);
+			conversation.setMessageCount(0);
+			conversation.setEnded(false);
+			rows.add(conversation);
+			return 1;
+		}
+
+		@Override
+		public AiConversation selectByKey(String conversationKey, Long userId) {
+			return rows.stream()
+					.filter(row -> row.getConversationKey().equals(conversationKey) && row.getUserId().equals(userId))
+					.findFirst().orElse(null);
+		}
+
+		@Override
+		public List<AiConversation> selectPageByUser(Long userId, String beforeUpdatedAt, Long beforeId, int limit) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int updateAfterTurn(Long id, String title, int addedCount) {
+			AiConversation row = rows.get(id.intValue() - 1);
+			row.setMessageCount(row.getMessageCount() + addedCount);
+			if (row.getTitle() == null) {
+				row.setTitle(title);
+			}
+			return 1;
+		}
+
+		@Override
+		public int updateEnded(Long id) {
+			rows.get(id.intValue() - 1).setEnded(true);
+			return 1;
+		}
+	}
+
+	/**
+	 * 内存中的 ai_message 表
+	 */
+	private static class InMemoryMessages implements AiMessageMapper {
+		private final List<AiMessage> rows = new ArrayList<>();
+
+		@Override
+		public int insertBatch(List<AiMessage> messages) {
+			for (AiMessage message : messages) {
+				message.setId((long) rows.size() + 1);
+				rows.add(message);
+			}
+			return messages.size();
+		}
+
+		@Override
+		public List<AiMessage> selectPage(Long conversationId, Long beforeId, int limit) {
+			return rows.stream()
+					.filter(row -> row.getConversationId().equals(conversationId))
+					.filter(row -> beforeId == null || row.getId() < beforeId)
+					.sorted(Comparator.comparing(AiMessage::getId).reversed())
+					.limit(limit)
+					.toList();
+		}
+	}
+}
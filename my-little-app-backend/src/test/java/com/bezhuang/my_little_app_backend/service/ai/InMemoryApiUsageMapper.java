@@ -0,0 +1,100 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import com.bezhuang.my_little_app_backend.entity.ApiUsage;
+import com.bezhuang.my_little_app_backend.entity.ApiUsageDelta;
+import com.bezhuang.my_little_app_backend.mapper.ApiUsageMapper;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 内存中的 api_usage 表（含配额日志检查点），记录访问次数
+ */
+class InMemoryApiUsageMapper implements ApiUsageMapper {
+	final Map<Long, ApiUsage> rows = new LinkedHashMap<>();
+	private final Map<String, Long> checkpoints = new HashMap<>();
+	int selectCalls;
+	int applyCalls;
+	boolean failNext;
+
+	void create(Long userId, long tokens) {
+		ApiUsage row = new ApiUsage();
+		row.setUserId(userId);
+		row.setTokensRemaining(tokens);
+		row.setSearchRemaining(3);
+		insert(row);
+	}
+
+	synchronized long balance(Long userId) {
+		return rows.get(userId).getTokensRemaining();
+	}
+
+	@Override
+	public synchronized ApiUsage selectByUserId(Long userId) {
+		selectCalls++;
+		return copy(rows.get(userId));
+	}
+
+	@Override
+	public synchronized int insert(ApiUsage apiUsage) {
+		apiUsage.setId((long) rows.size() + 1);
+		rows.put(apiUsage.getUserId(), apiUsage);
+		return 1;
+	}
+
+	@Override
+	public int updateTokensRemaining(Long id, Long tokensRemaining) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public int updateSearchRemaining(Long id, Integer searchRemaining) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public synchronized List<ApiUsage> selectByUserIds(Collection<Long> userIds) {
+		return userIds.stream().map(rows::get).map(InMemoryApiUsageMapper::copy).toList();
+	}
+
+	@Override
+	public synchronized int applyDeltas(List<ApiUsageDelta> deltas) {
+		if (failNext) {
+			failNext = false;
+			throw new IllegalStateException("数据库不可用");
+		}
+		applyCalls++;
+		for (ApiUsageDelta delta : deltas) {
+			ApiUsage row = rows.get(delta.getUserId());
+			row.setTokensRemaining(Math.max(row.getTokensRemaining() + delta.getTokensDelta(), 0));
+			row.setSearchRemaining(Math.max(row.getSearchRemaining() + delta.getSearchDelta(), 0));
+		}
+		return deltas.size();
+	}
+
+	@Override
+	public synchronized Long selectJournalCheckpoint(String journalId) {
+		return checkpoints.get(journalId);
+	}
+
+	@Override
+	public synchronized int upsertJournalCheckpoint(String journalId, long segment) {
+		checkpoints.merge(journalId, segment, Math::max);
+		return 1;
+	}
+
+	private static ApiUsage copy(ApiUsage row) {
+		if (row == null) {
+			return null;
+		}
+		ApiUsage copy = new ApiUsage();
+		copy.setId(row.getId());
+		copy.setUserId(row.getUserId());
+		copy.setTokensRemaining(row.getTokensRemaining());
+		copy.setSearchRemaining(row.getSearchRemaining());
+		return copy;
+	}
+}
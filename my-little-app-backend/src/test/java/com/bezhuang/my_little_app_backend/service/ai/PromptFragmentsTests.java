@@ -0,0 +1,68 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import com.bezhuang.my_little_app_backend.service.ToolService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 预编译提示词片段：请求体与逐轮构建的结果一致（分配量对比见 PromptFragmentsBenchmark）
+ */
+class PromptFragmentsTests {
+
+	private static final String DEFAULT_PROMPT = "你是 Bezhuang AI，一个智能助手。";
+	private static final String CONFIGURED_PROMPT = "你是一个乐于助人的助手，回答要准确、简洁，必要时给出步骤和示例。".repeat(40);
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final ToolService toolService = new ToolService(null, null, null, null, 30);
+
+	@Test
+	void splicedBodyMatchesPlainSerialization() throws Exception {
+		PromptFragments.Compiled prompt = compile();
+		List<Map<String, Object>> messages = conversation(prompt.getSystemMessage());
+
+		Map<String, Object> plain = baseBody();
+		plain.put("messages", messages);
+		plain.put("tools", toolService.getToolsDefinition(true));
+
+		assertEquals(objectMapper.readTree(objectMapper.writeValueAsBytes(plain)),
+				objectMapper.readTree(objectMapper.writeValueAsBytes(splicedBody(prompt, messages))));
+	}
+
+	private PromptFragments.Compiled compile() {
+		String systemPrompt = PromptFragments.resolvePrompt(CONFIGURED_PROMPT, DEFAULT_PROMPT)
+				+ "\n\n" + toolService.getToolsPrompt(true);
+		return PromptFragments.compile(objectMapper, systemPrompt, toolService.getToolsDefinition(true));
+	}
+
+	private static List<Map<String, Object>> conversation(Map<String, Object> systemMessage) {
+		List<Map<String, Object>> messages = new ArrayList<>();
+		messages.add(systemMessage);
+		messages.add(Map.of("role", "user", "content", "今天上海天气怎么样？"));
+		messages.add(Map.of("role", "assistant", "content", "我来帮你查一下。"));
+		messages.add(Map.of("role", "user", "content", "顺便告诉我现在几点。"));
+		return messages;
+	}
+
+	private static Map<String, Object> baseBody() {
+		Map<String, Object> body = new LinkedHashMap<>();
+		body.put("model", "deepseek-chat");
+		body.put("stream", true);
+		body.put("max_tokens", 4096);
+		body.put("temperature", 0.7);
+		return body;
+	}
+
+	private static Map<String, Object> splicedBody(PromptFragments.Compiled prompt, List<Map<String, Object>> messages) {
+		Map<String, Object> body = baseBody();
+		body.put("messages", prompt.messagesValue(messages));
+		body.put("tools", prompt.toolsValue());
+		return body;
+	}
+}
@@ -0,0 +1,91 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 服务商熔断器：失败率达到阈值后熔断、到期只放行一个探测请求、探测成败决定恢复或重新熔断，p95 延迟用于对冲
+ */
+class ProviderHealthTests {
+
+	private static final long OPEN_MILLIS = 30_000;
+
+	@Test
+	void opensWhenFailureRateReachesThreshold() {
+		ProviderHealth health = new ProviderHealth(LlmProvider.DEEPSEEK);
+		for (int i = 0; i < 5; i++) {
+			health.onSuccess(100, false);
+		}
+		for (int i = 0; i < 4; i++) {
+			assertFalse(health.onFailure(0, 10, 50), "调用次数不足最少调用数时不熔断");
+		}
+		assertTrue(health.onFailure(1000, 10, 50));
+
+		assertEquals(ProviderHealth.State.OPEN, health.getState());
+		assertFalse(health.isAvailable(1000 + OPEN_MILLIS - 1, OPEN_MILLIS));
+		assertFalse(health.tryAcquire(1000 + OPEN_MILLIS - 1, OPEN_MILLIS));
+	}
+
+	@Test
+	void halfOpenAllowsSingleProbeAndClosesOnSuccess() {
+		ProviderHealth health = openedAt(0);
+
+		assertTrue(health.isAvailable(OPEN_MILLIS, OPEN_MILLIS));
+		assertTrue(health.tryAcquire(OPEN_MILLIS, OPEN_MILLIS));
+		assertEquals(ProviderHealth.State.HALF_OPEN, health.getState());
+		assertFalse(health.tryAcquire(OPEN_MILLIS, OPEN_MILLIS), "探测期间只放行一个请求");
+		assertFalse(health.isAvailable(OPEN_MILLIS, OPEN_MILLIS));
+
+		health.onSuccess(100, true);
+		assertEquals(ProviderHealth.State.CLOSED, health.getState());
+		assertEquals(0, health.getStats().get("windowCalls"), "恢复后清空窗口");
+		assertTrue(health.tryAcquire(OPEN_MILLIS, OPEN_MILLIS));
+	}
+
+	@Test
+	void failedProbeReopensAndCancelledProbeFreesSlot() {
+		ProviderHealth health = openedAt(0);
+
+		assertTrue(health.tryAcquire(OPEN_MILLIS, OPEN_MILLIS));
+		health.onIgnored();
+		assertTrue(health.tryAcquire(OPEN_MILLIS, OPEN_MILLIS), "取消的探测请求归还名额");
+
+		assertTrue(health.onFailure(OPEN_MILLIS + 5, 1, 50));
+		assertEquals(ProviderHealth.State.OPEN, health.getState());
+		assertFalse(health.tryAcquire(2 * OPEN_MILLIS, OPEN_MILLIS), "重新计算熔断时间");
+		assertTrue(health.tryAcquire(2 * OPEN_MILLIS + 5, OPEN_MILLIS));
+	}
+
+	@Test
+	void hedgeDelayIsP95OfMatchingCallType() {
+		ProviderHealth health = new ProviderHealth(LlmProvider.SILICONFLOW);
+		for (int i = 1; i < ProviderHealth.MIN_LATENCY_SAMPLES; i++) {
+			health.onSuccess(i * 10L, true);
+		}
+		assertEquals(-1, health.hedgeDelayMillis(true), "样本不足时不对冲");
+
+		for (int i = 0; i <= 80; i++) {
+			health.onSuccess(i + 1, true);
+		}
+		// 窗口只保留最近 50 个样本：32..81
+		assertEquals(79, health.hedgeDelayMillis(true));
+		assertEquals(-1, health.hedgeDelayMillis(false), "流式与非流式延迟分开统计");
+
+		health.onServed(RouteReason.HEDGE);
+		@SuppressWarnings("unchecked")
+		Map<String, Long> served = (Map<String, Long>) health.getStats().get("served");
+		assertEquals(1L, served.get("hedge"));
+		assertEquals(0L, served.get("primary"));
+	}
+
+	private static ProviderHealth openedAt(long now) {
+		ProviderHealth health = new ProviderHealth(LlmProvider.DEEPSEEK);
+		assertTrue(health.onFailure(now, 1, 50));
+		return health;
+	}
+}
@@ -0,0 +1,91 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import com.bezhuang.my_little_app_backend.service.ApiUsageService;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionOperations;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 过期配额预留清理：只退回过期的预留、每个预留只退回一次、已结算的预留不再退回
+ */
+class QuotaHoldSweeperTests {
+
+	private static final Long USER_ID = 100L;
+
+	private final InMemoryApiUsageMapper usage = new InMemoryApiUsageMapper();
+	private ApiUsageService apiUsageService;
+
+	@Test
+	void releasesExpiredHoldOnlyOnce() {
+		QuotaHoldSweeper sweeper = start(0);
+		try {
+			ApiUsageService.TokenHold hold = apiUsageService.reserveTokens(USER_ID, 1000, 4096);
+
+			assertEquals(1, sweeper.sweep());
+			assertEquals(0, sweeper.sweep());
+			assertEquals(10000, apiUsageService.getTokensRemaining(USER_ID));
+			assertEquals(1, sweeper.getReleasedCount());
+
+			// 预留已被退回后对话才结算：按实际用量直接扣减，不再退回差额
+			apiUsageService.settle(hold, 900, 0, 300);
+			assertEquals(10000 - 1200, apiUsageService.getTokensRemaining(USER_ID));
+			assertFalse(apiUsageService.releaseHold(hold));
+		} finally {
+			sweeper.destroy();
+		}
+	}
+
+	@Test
+	void keepsHoldsThatHaveNotExpired() {
+		QuotaHoldSweeper sweeper = start(600);
+		try {
+			apiUsageService.reserveTokens(USER_ID, 1000, 4096);
+
+			assertEquals(0, sweeper.sweep());
+			assertEquals(10000 - 5096, apiUsageService.getTokensRemaining(USER_ID));
+			assertEquals(1, apiUsageService.getHoldCount());
+		} finally {
+			sweeper.destroy();
+		}
+	}
+
+	@Test
+	void doesNotReleaseSettledHold() {
+		QuotaHoldSweeper sweeper = start(0);
+		try {
+			ApiUsageService.TokenHold settled = apiUsageService.reserveTokens(USER_ID, 1000, 1000);
+			ApiUsageService.TokenHold released = apiUsageService.reserveTokens(USER_ID, 1000, 1000);
+			apiUsageService.settle(settled, 900, 0, 300);
+			assertTrue(apiUsageService.releaseHold(released));
+
+			assertEquals(0, sweeper.sweep());
+			assertEquals(10000 - 1200, apiUsageService.getTokensRemaining(USER_ID));
+			assertEquals(0, apiUsageService.getHoldCount());
+		} finally {
+			sweeper.destroy();
+		}
+	}
+
+	private QuotaHoldSweeper start(long holdTtlSeconds) {
+		usage.create(USER_ID, 10000);
+		apiUsageService = new ApiUsageService(usage, null, TransactionOperations.withoutTransaction(),
+				holdTtlSeconds, 0, 60_000, tempDir().toString(), 1800);
+		return new QuotaHoldSweeper(apiUsageService, 3600);
+	}
+
+	private static Path tempDir() {
+		try {
+			return Files.createTempDirectory("quota-journal");
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
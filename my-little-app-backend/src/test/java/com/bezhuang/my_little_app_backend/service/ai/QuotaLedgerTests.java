@@ -0,0 +1,237 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import com.bezhuang.my_little_app_backend.entity.ApiUsage;
+import com.bezhuang.my_little_app_backend.entity.ApiUsageDelta;
+import com.bezhuang.my_little_app_backend.service.ApiUsageService;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionOperations;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 内存配额账本：预留 - 结算不透支、增量批量写回、崩溃后回放变更日志、
+ * 已写回的分段不重复回放、定期吸收其他实例的变更
+ */
+class QuotaLedgerTests {
+
+	private static final Long USER_ID = 100L;
+
+	private final InMemoryApiUsageMapper usage = new InMemoryApiUsageMapper();
+	private final Path journalDir = tempDir();
+
+	@Test
+	void reservesEstimateAndRefundsDifferenceOnSettle() {
+		usage.create(USER_ID, 10000);
+		ApiUsageService apiUsageService = service(600);
+
+		ApiUsageService.TokenHold hold = apiUsageService.reserveTokens(USER_ID, 1000, 4096);
+
+		assertNotNull(hold);
+		assertEquals(4096, hold.maxTokens());
+		assertEquals(10000 - 5096, apiUsageService.getTokensRemaining(USER_ID));
+
+		apiUsageService.settle(hold, 900, 0, 300);
+		apiUsageService.getQuotaLedger().flush();
+
+		assertEquals(10000 - 1200, apiUsageService.getTokensRemaining(USER_ID));
+		assertEquals(10000 - 1200, usage.balance(USER_ID), "预留不写回数据库，只写回结算后的实际用量");
+		assertEquals(1, usage.applyCalls);
+	}
+
+	@Test
+	void downsizesMaxTokensThenRejectsWhenBalanceIsLow() {
+		usage.create(USER_ID, 3000);
+		ApiUsageService apiUsageService = service(600);
+
+		ApiUsageService.TokenHold hold = apiUsageService.reserveTokens(USER_ID, 2000, 4096);
+
+		assertNotNull(hold);
+		assertEquals(1000, hold.maxTokens());
+		assertEquals(0, apiUsageService.getTokensRemaining(USER_ID));
+		assertNull(apiUsageService.reserveTokens(USER_ID, 2000, 4096), "余额已全部预留，第二次预留失败");
+	}
+
+	@Test
+	void concurrentReservationsNeverOverdraw() throws Exception {
+		usage.create(USER_ID, 10000);
+		ApiUsageService apiUsageService = service(600);
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		List<Future<ApiUsageService.TokenHold>> futures = new ArrayList<>();
+		for (int i = 0; i < 32; i++) {
+			futures.add(pool.submit(() -> apiUsageService.reserveTokens(USER_ID, 500, 500)));
+		}
+
+		long reserved = 0;
+		for (Future<ApiUsageService.TokenHold> future : futures) {
+			ApiUsageService.TokenHold hold = future.get();
+			if (hold != null) {
+				reserved += hold.tokens();
+			}
+		}
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+
+		long remaining = apiUsageService.getTokensRemaining(USER_ID);
+		assertTrue(remaining >= 0);
+		assertEquals(10000, reserved + remaining, "预留总量 + 剩余 = 初始余额，没有丢失的扣减");
+	}
+
+	@Test
+	void flushesAccumulatedDeltasInOneBatchedUpdate() {
+		for (long userId = 1; userId <= 3; userId++) {
+			usage.create(userId + 100, 10000);
+		}
+		QuotaLedger ledger = ledger();
+		for (int i = 0; i < 10; i++) {
+			for (long userId = 101; userId <= 103; userId++) {
+				assertTrue(ledger.tryDebitTokens(userId, 100));
+			}
+		}
+		assertTrue(ledger.tryDebitSearch(101L));
+		assertEquals(3, usage.selectCalls, "每个用户只在首次访问时读取一次");
+		assertEquals(10000, usage.balance(101L), "扣减先在内存生效");
+
+		ledger.flush();
+
+		assertEquals(1, usage.applyCalls);
+		assertEquals(9000, usage.balance(101L));
+		assertEquals(9000, usage.balance(103L));
+		assertEquals(2, usage.rows.get(101L).getSearchRemaining());
+		assertEquals(0, ledger.getDirtyCount());
+
+		ledger.flush();
+		assertEquals(1, usage.applyCalls, "没有新的变更时不访问数据库");
+	}
+
+	@Test
+	void replaysJournalAfterCrash() {
+		usage.create(USER_ID, 10000);
+		QuotaLedger crashed = ledger();
+		assertTrue(crashed.tryDebitTokens(USER_ID, 1500));
+		assertTrue(crashed.tryDebitSearch(USER_ID));
+		crashed.syncJournal();
+		// 没有写回、没有关闭，模拟进程崩溃
+
+		QuotaLedger restarted = ledger();
+
+		assertEquals(8500, usage.balance(USER_ID));
+		assertEquals(2, usage.rows.get(USER_ID).getSearchRemaining());
+		assertEquals(8500, restarted.snapshot(USER_ID).getTokensRemaining());
+
+		ledger();
+		assertEquals(8500, usage.balance(USER_ID), "已回放的日志不重复回放");
+	}
+
+	@Test
+	void skipsSegmentsAlreadyWrittenBeforeCrash() throws IOException {
+		usage.create(USER_ID, 10000);
+		QuotaLedger ledger = ledger();
+		assertTrue(ledger.tryDebitTokens(USER_ID, 1500));
+		ledger.flush();
+		assertEquals(8500, usage.balance(USER_ID));
+
+		// 模拟写回提交后、删除分段前崩溃：已写回的分段仍留在目录中
+		Files.writeString(journalDir.resolve("quota-1.journal"), USER_ID + " -1500 0\n", StandardOpenOption.CREATE);
+		ledger();
+
+		assertEquals(8500, usage.balance(USER_ID), "检查点之前的分段不重复扣减");
+	}
+
+	@Test
+	void refreshesBalancesChangedByOtherInstances() {
+		usage.create(USER_ID, 10000);
+		QuotaLedger ledger = new QuotaLedger(usage, usage::selectByUserId, TransactionOperations.withoutTransaction(),
+				journalDir, 0, 0, 1800_000);
+		assertEquals(10000, ledger.snapshot(USER_ID).getTokensRemaining());
+
+		// 其他实例扣减、管理员在其他实例上调整
+		usage.applyDeltas(List.of(new ApiUsageDelta(USER_ID, -3000, 2)));
+		ledger.flush();
+
+		assertEquals(7000, ledger.snapshot(USER_ID).getTokensRemaining(), "没有本地变更的用户也定期重新读取");
+		assertEquals(5, ledger.snapshot(USER_ID).getSearchRemaining());
+	}
+
+	@Test
+	void failedFlushKeepsDeltasForNextFlush() {
+		usage.create(USER_ID, 10000);
+		QuotaLedger ledger = ledger();
+		assertTrue(ledger.tryDebitTokens(USER_ID, 1000));
+		usage.failNext = true;
+
+		assertThrows(RuntimeException.class, ledger::flush);
+		assertTrue(ledger.tryDebitTokens(USER_ID, 500));
+		ledger.flush();
+
+		assertEquals(8500, usage.balance(USER_ID));
+		ledger();
+		assertEquals(8500, usage.balance(USER_ID), "写回成功后旧日志分段已删除");
+	}
+
+	@Test
+	void adminQuotaEditGoesThroughLedger() {
+		usage.create(USER_ID, 10000);
+		ApiUsageService apiUsageService = service(600);
+		ApiUsageService.TokenHold hold = apiUsageService.reserveTokens(USER_ID, 1000, 1000);
+
+		ApiUsage updated = apiUsageService.setQuota(USER_ID, 50000L, 10);
+
+		assertEquals(48000, updated.getTokensRemaining(), "进行中的预留仍然占用");
+		assertEquals(10, updated.getSearchRemaining());
+		assertEquals(50000, usage.balance(USER_ID), "管理员调整立即写回，预留不写回");
+		apiUsageService.settle(hold, 1000, 0, 500);
+		apiUsageService.getQuotaLedger().flush();
+		assertEquals(48500, usage.balance(USER_ID));
+		assertEquals(10, usage.rows.get(USER_ID).getSearchRemaining());
+	}
+
+	@Test
+	void creditsOnTopOfUnflushedDebitsUpToCap() {
+		usage.create(USER_ID, 10000);
+		QuotaLedger ledger = ledger();
+		assertTrue(ledger.tryDebitTokens(USER_ID, 1000));
+		assertTrue(ledger.tryHoldTokens(USER_ID, 2000));
+
+		assertEquals(3000, ledger.creditTokens(USER_ID, 3000, 660000));
+		assertEquals(10000, ledger.snapshot(USER_ID).getTokensRemaining(), "奖励立即可用，进行中的预留仍然占用");
+		assertEquals(12000, usage.balance(USER_ID), "未写回的扣减和奖励一起写回");
+
+		assertEquals(1000, ledger.creditTokens(USER_ID, 3000, 13000), "余额（含预留）不超过上限");
+		assertEquals(0, ledger.creditTokens(USER_ID, 3000, 13000));
+		assertEquals(13000, usage.balance(USER_ID));
+	}
+
+	private ApiUsageService service(long holdTtlSeconds) {
+		return new ApiUsageService(usage, null, TransactionOperations.withoutTransaction(), holdTtlSeconds, 0,
+				60_000, journalDir.toString(), 1800);
+	}
+
+	private QuotaLedger ledger() {
+		return new QuotaLedger(usage, usage::selectByUserId, TransactionOperations.withoutTransaction(),
+				journalDir, 0, 60_000, 1800_000);
+	}
+
+	private static Path tempDir() {
+		try {
+			return Files.createTempDirectory("quota-journal");
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * SSE 事件编码：转义正确（与字符串拼接方式的分配量对比见 SseEventWriterBenchmark）
+ */
+class SseEventWriterTests {
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	@Test
+	void escapesByConstruction() throws Exception {
+		String token = "引号\" 反斜杠\\ 换行\n 制表\t 控制字符\u0001 表情😀";
+		String frame = frame(SseEventWriter.token(token));
+
+		assertTrue(frame.startsWith("event:token\ndata:"));
+		assertTrue(frame.endsWith("\n\n"));
+		assertEquals(token, data(frame).path("token").asText());
+	}
+
+	@Test
+	void encodesQuotaAndSearchLinks() throws Exception {
+		JsonNode quota = data(frame(SseEventWriter.quota(12345, 7, 2048)));
+		assertEquals(12345, quota.path("quota").path("tokensRemaining").asLong());
+		assertEquals(7, quota.path("quota").path("searchRemaining").asLong());
+		assertEquals(2048, quota.path("quota").path("savedPromptTokens").asLong());
+
+		JsonNode links = data(frame(SseEventWriter.searchLinks(List.of(
+				Map.of("title", "标题 \"一\"", "url", "https://example.com/a?b=1&c=2")))));
+		assertEquals("标题 \"一\"", links.path("searchLinks").get(0).path("title").asText());
+		assertEquals("https://example.com/a?b=1&c=2", links.path("searchLinks").get(0).path("url").asText());
+	}
+
+	@Test
+	void startCarriesTraceId() throws Exception {
+		JsonNode start = data(frame(SseEventWriter.start("4f2a9c0e1b7d3a65")));
+		assertEquals("start", start.path("type").asText());
+		assertEquals("4f2a9c0e1b7d3a65", start.path("traceId").asText());
+
+		assertEquals(frame(SseEventWriter.start()), frame(SseEventWriter.start(null)));
+	}
+
+	private static String frame(Set<ResponseBodyEmitter.DataWithMediaType> parts) {
+		assertEquals(1, parts.size());
+		return new String((byte[]) parts.iterator().next().getData(), StandardCharsets.UTF_8);
+	}
+
+	private JsonNode data(String frame) throws Exception {
+		int start = frame.indexOf("\ndata:") + "\ndata:".length();
+		return objectMapper.readTree(frame.substring(start, frame.length() - 2));
+	}
+}
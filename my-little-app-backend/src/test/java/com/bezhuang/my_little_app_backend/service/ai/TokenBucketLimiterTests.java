@@ -0,0 +1,81 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 令牌桶限流：突发容量、按时间补充、并发下不多放行、清理空闲桶（判定耗时见 TokenBucketLimiterBenchmark）
+ */
+class TokenBucketLimiterTests {
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	@Test
+	void allowsBurstThenRefillsOverTime() {
+		// 容量 5，每分钟 60 个（每秒 1 个）
+		TokenBucketLimiter limiter = new TokenBucketLimiter(5, 60, 600);
+		long now = 0;
+		for (int i = 0; i < 5; i++) {
+			assertTrue(limiter.tryAcquire("1.2.3.4", now));
+		}
+		assertFalse(limiter.tryAcquire("1.2.3.4", now));
+		assertTrue(limiter.tryAcquire("5.6.7.8", now), "不同 IP 各自一个桶");
+
+		assertFalse(limiter.tryAcquire("1.2.3.4", now + SECOND / 2));
+		assertTrue(limiter.tryAcquire("1.2.3.4", now + SECOND));
+		assertFalse(limiter.tryAcquire("1.2.3.4", now + SECOND));
+
+		// 空闲很久也只补满到容量
+		long later = now + 3600 * SECOND;
+		for (int i = 0; i < 5; i++) {
+			assertTrue(limiter.tryAcquire("1.2.3.4", later));
+		}
+		assertFalse(limiter.tryAcquire("1.2.3.4", later));
+	}
+
+	@Test
+	void concurrentRequestsNeverExceedCapacity() throws Exception {
+		TokenBucketLimiter limiter = new TokenBucketLimiter(100, 1, 600);
+		AtomicInteger allowed = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		for (int i = 0; i < 8; i++) {
+			pool.submit(() -> {
+				for (int j = 0; j < 1000; j++) {
+					if (limiter.tryAcquire("10.0.0.1", 0)) {
+						allowed.incrementAndGet();
+					}
+				}
+			});
+		}
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+
+		assertEquals(100, allowed.get());
+	}
+
+	@Test
+	void evictsOnlyIdleBuckets() {
+		// 补满需要 10 秒，空闲时间设为 1 秒时按 10 秒计算
+		TokenBucketLimiter limiter = new TokenBucketLimiter(10, 60, 1);
+		limiter.tryAcquire("idle", 0);
+		limiter.tryAcquire("active", 9 * SECOND);
+
+		assertEquals(0, limiter.evictIdle(5 * SECOND), "未补满的桶不清理");
+		assertEquals(1, limiter.evictIdle(10 * SECOND));
+		assertEquals(1, limiter.size());
+
+		// 被清理的 IP 再次访问时得到一个满的新桶
+		for (int i = 0; i < 10; i++) {
+			assertTrue(limiter.tryAcquire("idle", 10 * SECOND));
+		}
+		assertFalse(limiter.tryAcquire("idle", 10 * SECOND));
+	}
+}
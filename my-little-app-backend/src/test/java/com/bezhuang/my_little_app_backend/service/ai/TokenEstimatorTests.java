@@ -0,0 +1,38 @@
+package com.bezhuang.my_little_app_backend.service.ai;
+
+import com.bezhuang.my_little_app_backend.service.ApiUsageService;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 本地 token 估算：按字符类别计算、调用上游前预检配额（估算耗时见 TokenEstimatorBenchmark）
+ */
+class TokenEstimatorTests {
+
+	@Test
+	void estimatesByCharacterClass() {
+		assertEquals(0, TokenEstimator.estimate(""));
+		// 10 个汉字 × 0.6
+		assertEquals(6, TokenEstimator.estimate("今天上海天气怎么样啊"));
+		// 20 个字母 × 0.3
+		assertEquals(6, TokenEstimator.estimate("abcdefghijabcdefghij"));
+		// emoji 按码点计，不按 UTF-16 长度重复计算
+		assertEquals(2, TokenEstimator.estimate("😀"));
+		assertEquals(4, TokenEstimator.estimate("😀😀"));
+		// 每条消息另计格式开销
+		assertTrue(TokenEstimator.estimateMessage(Map.of("role", "user", "content", "")) > 0);
+	}
+
+	@Test
+	void preflightRejectsOrDownsizesMaxTokens() {
+		assertEquals(4096, ApiUsageService.preflightMaxTokens(100000, 2000, 4096));
+		assertEquals(1000, ApiUsageService.preflightMaxTokens(3000, 2000, 4096));
+		// 剩余 50 tokens 连输入都不够，直接拒绝
+		assertEquals(0, ApiUsageService.preflightMaxTokens(50, 2000, 4096));
+		assertEquals(0, ApiUsageService.preflightMaxTokens(2100, 2000, 4096));
+	}
+}